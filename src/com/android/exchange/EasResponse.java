@@ -20,6 +20,8 @@ package com.android.exchange;
 import android.net.Uri;
 
 import com.android.emailcommon.utility.EmailClientConnectionManager;
+import com.android.exchange.utility.OperationMetrics;
+import com.android.exchange.utility.WbxmlCapture;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -49,6 +51,15 @@ public class EasResponse {
     private InputStream mInputStream;
     private boolean mClosed;
 
+    // If we're capturing this response, the command, protocol version, and mailbox type to
+    // record it with (see WbxmlCapture)
+    private String mCaptureCommand;
+    private double mCaptureProtocolVersion;
+    private int mCaptureMailboxType;
+
+    // If we're recording metrics for this response, the sample to add them to
+    private OperationMetrics.Sample mMetricsSample;
+
     private final int mStatus;
 
     /**
@@ -143,6 +154,30 @@ public class EasResponse {
         return locHeader != null ? Uri.parse(locHeader.getValue()) : null;
     }
 
+    /**
+     * Capture the body of this response as it's read (see {@link WbxmlCapture}). Must be called
+     * before {@link #getInputStream}.
+     * @param command the command this is a response to
+     * @param protocolVersion the protocol version in use
+     * @param mailboxType the type of the mailbox the command is for, or
+     *     {@link WbxmlCapture#NO_MAILBOX_TYPE}
+     */
+    public void capture(final String command, final double protocolVersion,
+            final int mailboxType) {
+        mCaptureCommand = command;
+        mCaptureProtocolVersion = protocolVersion;
+        mCaptureMailboxType = mailboxType;
+    }
+
+    /**
+     * Record the bytes read from this response, and the time spent reading them, in a metrics
+     * sample. This must be called before {@link #getInputStream}.
+     * @param sample the sample to add to
+     */
+    public void setMetricsSample(final OperationMetrics.Sample sample) {
+        mMetricsSample = sample;
+    }
+
     /**
      * Return an appropriate input stream for the response, either a GZIPInputStream, for
      * compressed data, or a generic InputStream otherwise
@@ -158,6 +193,9 @@ public class EasResponse {
         try {
             // Get the default input stream for the entity
             is = mEntity.getContent();
+            if (mMetricsSample != null) {
+                is = mMetricsSample.meter(is);
+            }
             Header ceHeader = mResponse.getFirstHeader("Content-Encoding");
             if (ceHeader != null) {
                 String encoding = ceHeader.getValue();
@@ -169,6 +207,10 @@ public class EasResponse {
         } catch (IllegalStateException e1) {
         } catch (IOException e1) {
         }
+        if (mCaptureCommand != null) {
+            is = WbxmlCapture.capture(is, mCaptureCommand, mCaptureProtocolVersion,
+                    mCaptureMailboxType);
+        }
         mInputStream = is;
         return is;
     }
@@ -202,7 +244,9 @@ public class EasResponse {
                     // No harm, no foul
                 }
             }
-            if (mInputStream instanceof GZIPInputStream) {
+            // Closing a capture finishes writing it
+            if (mInputStream instanceof GZIPInputStream
+                    || (mInputStream != null && mCaptureCommand != null)) {
                 try {
                     mInputStream.close();
                 } catch (IOException e) {
@@ -31,10 +31,14 @@ import com.android.emailcommon.provider.Mailbox;
 import com.android.exchange.CommandStatusException;
 import com.android.exchange.CommandStatusException.CommandStatus;
 import com.android.exchange.Eas;
+import com.android.exchange.eas.SyncCommitPipeline;
+import com.android.exchange.utility.OperationMetrics;
+import com.android.exchange.utility.Tracing;
 import com.android.mail.utils.LogUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.Callable;
 
 /**
  * Base class for the Email and PIM sync parsers
@@ -45,12 +49,29 @@ import java.io.InputStream;
 public abstract class AbstractSyncParser extends Parser {
     private static final String TAG = Eas.LOG_TAG;
 
+    /** The collection status when the response had nothing for the collection. */
+    public static final int STATUS_NO_RESPONSE = 0;
+
     protected Mailbox mMailbox;
     protected Account mAccount;
     protected Context mContext;
     protected ContentResolver mContentResolver;
 
     private boolean mLooping;
+    private boolean mTransactionTooLarge;
+    /** Where we write content while we're still parsing, if anywhere; see
+     * {@link #setCommitPipeline}. */
+    private SyncCommitPipeline mCommitPipeline;
+
+    // What we've found so far in the collection we're parsing
+    private boolean mMoreAvailable;
+    private boolean mNewSyncKey;
+    private ContentValues mMailboxValues;
+    private int mCollectionStatus = STATUS_NO_RESPONSE;
+    /** Whether the collection's Status failed its sync; see {@link #failCollection}. */
+    private boolean mCollectionFailed;
+    /** Whether we're parsing one collection of several, with {@link #parseCollection}. */
+    private boolean mParsingCollections;
 
     public AbstractSyncParser(final Context context, final ContentResolver resolver,
             final InputStream in, final Mailbox mailbox, final Account account) throws IOException {
@@ -107,10 +128,63 @@ public abstract class AbstractSyncParser extends Parser {
     public abstract void commit() throws IOException, RemoteException,
             OperationApplicationException;
 
+    /**
+     * Let subclasses write their content on a writer thread as they parse it, with
+     * {@link #writeContent}, so that writing overlaps the rest of the fetch. The collection is
+     * still committed, and its sync key saved, by the time parsing returns, and only after the
+     * content written this way.
+     * @param pipeline The pipeline to write on.
+     */
+    public void setCommitPipeline(final SyncCommitPipeline pipeline) {
+        mCommitPipeline = pipeline;
+    }
+
+    /**
+     * @return Whether we can write content while we're still parsing.
+     */
+    protected boolean canWriteContent() {
+        return mCommitPipeline != null;
+    }
+
+    /**
+     * Write some of the content we've parsed on the writer thread, after what we've handed over
+     * already; see {@link #setCommitPipeline}. Until our sync key is saved, the server will send
+     * the window again if we're interrupted, so the write must skip anything an earlier attempt
+     * already wrote.
+     * @param write Writes the content.
+     */
+    protected void writeContent(final Callable<Void> write) {
+        mCommitPipeline.write(write);
+    }
+
     public boolean isLooping() {
         return mLooping;
     }
 
+    /**
+     * @return The Status the server gave for the collection; 1 (success) if the collection was in
+     *     the response without one, or {@link #STATUS_NO_RESPONSE} if it wasn't in the response.
+     */
+    public int getCollectionStatus() {
+        return mCollectionStatus;
+    }
+
+    /**
+     * Called by subclasses when a commit had to be split up because it was too large for one
+     * binder transaction.
+     */
+    protected void onTransactionTooLarge() {
+        mTransactionTooLarge = true;
+    }
+
+    /**
+     * @return Whether a commit was too large for one binder transaction, which is a sign that we
+     *     should ask for smaller windows.
+     */
+    public boolean isTransactionTooLarge() {
+        return mTransactionTooLarge;
+    }
+
     /**
      * Skip through tags until we reach the specified end tag
      * @param endTag the tag we end with
@@ -130,107 +204,245 @@ public abstract class AbstractSyncParser extends Parser {
      */
     @Override
     public boolean parse() throws IOException, CommandStatusException {
-        int status;
-        boolean moreAvailable = false;
-        boolean newSyncKey = false;
-        mLooping = false;
-        // If we're not at the top of the xml tree, throw an exception
-        if (nextTag(START_DOCUMENT) != Tags.SYNC_SYNC) {
-            throw new EasParserException();
-        }
-
-        boolean mailboxUpdated = false;
-        ContentValues cv = new ContentValues();
-
-        // Loop here through the remaining xml
-        while (nextTag(START_DOCUMENT) != END_DOCUMENT) {
-            if (tag == Tags.SYNC_COLLECTION || tag == Tags.SYNC_COLLECTIONS) {
-                // Ignore these tags, since we've only got one collection syncing in this loop
-            } else if (tag == Tags.SYNC_STATUS) {
-                // Status = 1 is success; everything else is a failure
-                status = getValueInt();
-                if (status != 1) {
-                    if (status == 3 || CommandStatus.isBadSyncKey(status)) {
-                        // Must delete all of the data and start over with syncKey of "0"
-                        mMailbox.mSyncKey = "0";
-                        newSyncKey = true;
-                        wipe();
-                        // Indicate there's more so that we'll start syncing again
-                        moreAvailable = true;
-                    } else if (status == 16 || status == 5) {
-                        // Status 16 indicates a transient server error (indeterminate state)
-                        // Status 5 indicates "server error"; this tends to loop for a while so
-                        // throwing IOException will at least provide backoff behavior
-                        throw new IOException();
-                    } else if (status == 8 || status == 12) {
-                        // Status 8 is Bad; it means the server doesn't recognize the serverId it
-                        // sent us.  12 means that we're being asked to refresh the folder list.
-                        // We'll do that with 8 also...
-                        // TODO: Improve this -- probably best to do this synchronously and then
-                        // immediately retry the current sync.
-                        final Bundle extras = new Bundle(1);
-                        extras.putBoolean(Mailbox.SYNC_EXTRA_ACCOUNT_ONLY, true);
-                        ContentResolver.requestSync(new android.accounts.Account(
-                                mAccount.mEmailAddress, Eas.EXCHANGE_ACCOUNT_MANAGER_TYPE),
-                                EmailContent.AUTHORITY, extras);
-                        // We don't have any provision for telling the user "wait a minute while
-                        // we sync folders"...
-                        throw new IOException();
-                    } else if (status == 7) {
-                        // TODO: Fix this. The handling here used to be pretty bogus, and it's not
-                        // obvious that simply forcing another resync makes sense here.
-                        moreAvailable = true;
-                    } else {
-                        LogUtils.e(LogUtils.TAG, "Sync: Unknown status: " + status);
-                        // Access, provisioning, transient, etc.
-                        throw new CommandStatusException(status);
-                    }
+        if (Tracing.isEnabled()) {
+            Tracing.beginSection(Tracing.makeSectionName(getClass().getSimpleName() + ".parse",
+                    mMailbox.mType));
+        }
+        try {
+            // If we're not at the top of the xml tree, throw an exception
+            if (nextTag(START_DOCUMENT) != Tags.SYNC_SYNC) {
+                throw new EasParserException();
+            }
+            startCollection();
+            // Loop here through the remaining xml
+            while (nextTag(START_DOCUMENT) != END_DOCUMENT) {
+                if (tag == Tags.SYNC_COLLECTION || tag == Tags.SYNC_COLLECTIONS) {
+                    // Ignore these tags, since we've only got one collection syncing in this loop
+                } else {
+                    parseCollectionTag();
                 }
-            } else if (tag == Tags.SYNC_COMMANDS) {
-                commandsParser();
-            } else if (tag == Tags.SYNC_RESPONSES) {
-                responsesParser();
-            } else if (tag == Tags.SYNC_MORE_AVAILABLE) {
-                moreAvailable = true;
-            } else if (tag == Tags.SYNC_SYNC_KEY) {
-                if (mMailbox.mSyncKey.equals("0")) {
-                    moreAvailable = true;
+            }
+            return endCollection();
+        } finally {
+            Tracing.endSection();
+        }
+    }
+
+    /**
+     * Parse one Collection from a Sync response for several collections, and commit its changes.
+     * The other parser has read up to and including the CollectionId, and has closed the
+     * Collection tag on its side; we parse the rest of the Collection, including its end tag.
+     * @param parser The parser for the whole response.
+     * @param syncKey The SyncKey that the other parser found before the CollectionId, or null.
+     * @return Whether the server has more data for this collection; false if its sync failed (see
+     *     {@link #isCollectionFailed}).
+     * @throws IOException
+     * @throws CommandStatusException
+     */
+    public boolean parseCollection(final Parser parser, final String syncKey)
+            throws IOException, CommandStatusException {
+        if (Tracing.isEnabled()) {
+            Tracing.beginSection(Tracing.makeSectionName(getClass().getSimpleName()
+                    + ".parseCollection", mMailbox.mType));
+        }
+        try {
+            setInput(parser);
+            pushTag(Tags.SYNC_COLLECTION);
+            mParsingCollections = true;
+            startCollection();
+            final String previousSyncKey = mMailbox.mSyncKey;
+            if (syncKey != null) {
+                handleSyncKey(syncKey);
+            }
+            while (nextTag(Tags.SYNC_COLLECTION) != END) {
+                if (mCollectionFailed) {
+                    skipTag();
+                } else {
+                    parseCollectionTag();
                 }
-                String newKey = getValue();
-                userLog("Parsed key for ", mMailbox.mDisplayName, ": ", newKey);
-                if (!newKey.equals(mMailbox.mSyncKey)) {
-                    mMailbox.mSyncKey = newKey;
-                    cv.put(MailboxColumns.SYNC_KEY, newKey);
-                    mailboxUpdated = true;
-                    newSyncKey = true;
+            }
+            if (mCollectionFailed) {
+                // We commit nothing for it, so it keeps the sync key it had
+                mMailbox.mSyncKey = previousSyncKey;
+                return false;
+            }
+            return endCollection();
+        } finally {
+            Tracing.endSection();
+        }
+    }
+
+    private void startCollection() {
+        mMoreAvailable = false;
+        mNewSyncKey = false;
+        mLooping = false;
+        mMailboxValues = new ContentValues();
+        mCollectionStatus = 1;
+        mCollectionFailed = false;
+    }
+
+    /**
+     * Handle a Status that fails the sync of the collection. On its own, that fails the sync; as
+     * one collection of several, we just note it, skip the rest of the collection and commit
+     * nothing for it, so that the caller can carry on with the others.
+     * @param status The Status.
+     */
+    private void failCollection(final int status) throws IOException, CommandStatusException {
+        if (status != 16 && status != 5 && status != 8 && status != 12) {
+            LogUtils.e(LogUtils.TAG, "Sync: Unknown status: " + status);
+        }
+        if (mParsingCollections) {
+            mCollectionFailed = true;
+            return;
+        }
+        if (isFolderSyncNeeded(status)) {
+            requestFolderSync(mAccount);
+        }
+        throwForStatus(status);
+    }
+
+    /**
+     * @param status A Status that failed the sync of a collection.
+     * @return Whether the server wants us to sync the folder list before we try again.
+     */
+    public static boolean isFolderSyncNeeded(final int status) {
+        // Status 8 is Bad; it means the server doesn't recognize the serverId it sent us. 12
+        // means that we're being asked to refresh the folder list. We'll do that with 8 also...
+        return status == 8 || status == 12;
+    }
+
+    /**
+     * Ask for the account's folder list to be synced.
+     * TODO: Improve this -- probably best to do this synchronously and then immediately retry
+     * the current sync.
+     * @param account The account.
+     */
+    public static void requestFolderSync(final Account account) {
+        final Bundle extras = new Bundle(1);
+        extras.putBoolean(Mailbox.SYNC_EXTRA_ACCOUNT_ONLY, true);
+        ContentResolver.requestSync(new android.accounts.Account(
+                account.mEmailAddress, Eas.EXCHANGE_ACCOUNT_MANAGER_TYPE),
+                EmailContent.AUTHORITY, extras);
+    }
+
+    /**
+     * Fail a sync with the exception for a Status that failed it.
+     * @param status The Status.
+     * @throws IOException For server errors and folder list changes, so that we back off.
+     * @throws CommandStatusException For anything else (access, provisioning, etc.).
+     */
+    public static void throwForStatus(final int status) throws IOException,
+            CommandStatusException {
+        if (status == 16 || status == 5) {
+            // Status 16 indicates a transient server error (indeterminate state)
+            // Status 5 indicates "server error"; this tends to loop for a while so
+            // throwing IOException will at least provide backoff behavior
+            throw new IOException();
+        } else if (isFolderSyncNeeded(status)) {
+            // We don't have any provision for telling the user "wait a minute while
+            // we sync folders"...
+            throw new IOException();
+        }
+        // Access, provisioning, transient, etc.
+        throw new CommandStatusException(status);
+    }
+
+    /**
+     * @return Whether the collection's sync failed, when parsing one of several collections; if
+     *     so, nothing was committed for it. See {@link #getCollectionStatus} for the Status.
+     */
+    public boolean isCollectionFailed() {
+        return mCollectionFailed;
+    }
+
+    /**
+     * Handle one tag within a Collection (or, for a single collection, anywhere in the response).
+     */
+    private void parseCollectionTag() throws IOException, CommandStatusException {
+        if (tag == Tags.SYNC_STATUS) {
+            // Status = 1 is success; everything else is a failure
+            final int status = getValueInt();
+            mCollectionStatus = status;
+            if (status != 1) {
+                if (status == 3 || CommandStatus.isBadSyncKey(status)) {
+                    // Must delete all of the data and start over with syncKey of "0"
+                    mMailbox.mSyncKey = "0";
+                    mNewSyncKey = true;
+                    wipe();
+                    // Indicate there's more so that we'll start syncing again
+                    mMoreAvailable = true;
+                } else if (status == 7) {
+                    // TODO: Fix this. The handling here used to be pretty bogus, and it's not
+                    // obvious that simply forcing another resync makes sense here.
+                    mMoreAvailable = true;
+                } else {
+                    failCollection(status);
                 }
-           } else {
-                skipTag();
-           }
+            }
+        } else if (tag == Tags.SYNC_COMMANDS) {
+            commandsParser();
+        } else if (tag == Tags.SYNC_RESPONSES) {
+            responsesParser();
+        } else if (tag == Tags.SYNC_MORE_AVAILABLE) {
+            mMoreAvailable = true;
+        } else if (tag == Tags.SYNC_SYNC_KEY) {
+            handleSyncKey(getValue());
+        } else {
+            skipTag();
+        }
+    }
+
+    private void handleSyncKey(final String newKey) {
+        if (mMailbox.mSyncKey.equals("0")) {
+            mMoreAvailable = true;
+        }
+        userLog("Parsed key for ", mMailbox.mDisplayName, ": ", newKey);
+        if (!newKey.equals(mMailbox.mSyncKey)) {
+            mMailbox.mSyncKey = newKey;
+            mMailboxValues.put(MailboxColumns.SYNC_KEY, newKey);
+            mNewSyncKey = true;
         }
+    }
 
+    /**
+     * Commit what we've parsed for the collection.
+     * @return Whether the server has more data for it.
+     */
+    private boolean endCollection() throws IOException {
         // If we don't have a new sync key, ignore moreAvailable (or we'll loop)
-        if (moreAvailable && !newSyncKey) {
+        if (mMoreAvailable && !mNewSyncKey) {
             LogUtils.e(TAG, "Looping detected");
             mLooping = true;
         }
 
+        if (mCommitPipeline != null) {
+            // The content written so far has to be in before the rest, and before the sync key;
+            // if any of it failed, nothing more is committed
+            mCommitPipeline.await();
+        }
         // Commit any changes
+        final long commitStart = OperationMetrics.startCommit();
+        if (Tracing.isEnabled()) {
+            Tracing.beginSection(getClass().getSimpleName() + ".commit");
+        }
         try {
             commit();
-            if (mailboxUpdated) {
-                mMailbox.update(mContext, cv);
+            if (mMailboxValues.size() > 0) {
+                mMailbox.update(mContext, mMailboxValues);
             }
         } catch (RemoteException e) {
             LogUtils.e(TAG, "Failed to commit changes", e);
         } catch (OperationApplicationException e) {
             LogUtils.e(TAG, "Failed to commit changes", e);
+        } finally {
+            Tracing.endSection();
+            OperationMetrics.endCommit(commitStart);
         }
         // Let the caller know that there's more to do
-        if (moreAvailable) {
+        if (mMoreAvailable) {
             userLog("MoreAvailable");
         }
-        return moreAvailable;
+        return mMoreAvailable;
     }
 
     abstract protected void wipe();
@@ -28,6 +28,7 @@ import com.android.exchange.Eas;
 import com.android.exchange.adapter.AbstractSyncAdapter.Operation;
 import com.android.exchange.eas.EasSyncCalendar;
 import com.android.exchange.utility.CalendarUtilities;
+import com.android.exchange.utility.Tracing;
 import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
 
@@ -1253,6 +1254,9 @@ public class CalendarSyncParser extends AbstractSyncParser {
             final String authority, final ArrayList<ContentProviderOperation> ops)
             throws RemoteException, OperationApplicationException {
         if (!ops.isEmpty()) {
+            if (Tracing.isEnabled()) {
+                Tracing.beginSection("applyBatch " + authority + " " + ops.size());
+            }
             try {
                 ContentProviderResult[] result = contentResolver.applyBatch(authority, ops);
                 //mService.userLog("Results: " + result.length);
@@ -1260,6 +1264,8 @@ public class CalendarSyncParser extends AbstractSyncParser {
             } catch (IllegalArgumentException e) {
                 // Thrown when Calendar Provider is disabled
                 LogUtils.e(TAG, "Error executing operation; provider is disabled.", e);
+            } finally {
+                Tracing.endSection();
             }
         }
         return new ContentProviderResult[0];
@@ -1330,7 +1336,7 @@ public class CalendarSyncParser extends AbstractSyncParser {
      * Callers MAY leave a dangling separator at the end of the list; note that the separators
      * themselves are only markers and are not sent to the provider.
      */
-    protected static ContentProviderResult[] safeExecute(final ContentResolver contentResolver,
+    protected ContentProviderResult[] safeExecute(final ContentResolver contentResolver,
             final String authority, final ArrayList<Operation> ops) throws RemoteException {
         //mService.userLog("Try to execute ", ops.size(), " CPO's for " + authority);
         ContentProviderResult[] result = null;
@@ -1340,6 +1346,7 @@ public class CalendarSyncParser extends AbstractSyncParser {
         } catch (TransactionTooLargeException e) {
             // Nope; split into smaller chunks, demarcated by the separator operation
             //mService.userLog("Transaction too large; spliting!");
+            onTransactionTooLarge();
             ArrayList<Operation> mini = new ArrayList<Operation>();
             // Build a result array with the total size we're sending
             result = new ContentProviderResult[ops.size()];
@@ -35,7 +35,6 @@ import android.provider.SyncStateContract;
 import android.text.TextUtils;
 import android.text.util.Rfc822Token;
 import android.text.util.Rfc822Tokenizer;
-import android.util.Base64;
 
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.Mailbox;
@@ -44,8 +43,11 @@ import com.android.exchange.Eas;
 import com.android.exchange.eas.EasSyncCollectionTypeBase;
 import com.android.exchange.eas.EasSyncContacts;
 import com.android.exchange.utility.CalendarUtilities;
+import com.android.exchange.utility.Tracing;
 import com.android.mail.utils.LogUtils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
@@ -68,6 +70,7 @@ public class ContactsSyncParser extends AbstractSyncParser {
     private static final int MAX_IM_ROWS = 3;
     private static final int MAX_EMAIL_ROWS = 3;
     private static final int MAX_PHONE_ROWS = 2;
+    private static final int PHOTO_BUFFER_SIZE = 4096;
     private static final String COMMON_DATA_ROW = Im.DATA;  // Could have been Email.DATA, etc.
     private static final String COMMON_TYPE_ROW = Phone.TYPE; // Could have been any typed row
 
@@ -292,7 +295,7 @@ public class ContactsSyncParser extends AbstractSyncParser {
                     break;
 
                 case Tags.CONTACTS_PICTURE:
-                    ops.addPhoto(entity, getValue());
+                    ops.addPhoto(entity, photoParser());
                     break;
 
                 case Tags.BASE_BODY:
@@ -399,6 +402,87 @@ public class ContactsSyncParser extends AbstractSyncParser {
         return body;
     }
 
+    /**
+     * Decode the (base64) picture of a contact as it's read from the stream, rather than reading
+     * the whole encoded value into memory first.
+     * @return the decoded picture, or null if it wasn't valid base64
+     * @throws IOException
+     */
+    private byte[] photoParser() throws IOException {
+        final Base64CheckingInputStream check = new Base64CheckingInputStream(getValueStream());
+        final InputStream in = new Base64InputStream(check);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[PHOTO_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buf)) != -1) {
+                out.write(buf, 0, count);
+            }
+            // Base64InputStream skips anything it doesn't understand, so it would happily turn
+            // garbage into a picture
+            if (!check.isValid()) {
+                LogUtils.w(TAG, "Bad base-64 encoding; unable to decode photo.");
+                return null;
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Passes base64 data through unchanged, noting whether it's properly encoded: only base64
+     * characters and white space, nothing but padding after the first pad character, and no
+     * dangling character at the end.
+     */
+    private static class Base64CheckingInputStream extends FilterInputStream {
+        private int mCount = 0;
+        private boolean mPadSeen = false;
+        private boolean mValid = true;
+
+        public Base64CheckingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) {
+                check(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int count)
+                throws IOException {
+            final int read = super.read(buffer, offset, count);
+            for (int i = 0; i < read; i++) {
+                check(buffer[offset + i] & 0xFF);
+            }
+            return read;
+        }
+
+        private void check(final int b) {
+            if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                return;
+            }
+            if (b == '=') {
+                mPadSeen = true;
+            } else if (mPadSeen || !((b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z')
+                    || (b >= '0' && b <= '9') || b == '+' || b == '/')) {
+                mValid = false;
+            }
+            mCount++;
+        }
+
+        public boolean isValid() {
+            // Each group of four characters makes up to three bytes; one character on its own
+            // can't make any
+            return mValid && mCount % 4 != 1;
+        }
+    }
+
     public void addParser(ContactOperations ops) throws IOException {
         String serverId = null;
         while (nextTag(Tags.SYNC_ADD) != END) {
@@ -842,8 +926,16 @@ public class ContactsSyncParser extends AbstractSyncParser {
         public void execute(final Context context) {
             try {
                 if (!isEmpty()) {
-                    mResults = context.getContentResolver().applyBatch(
-                            ContactsContract.AUTHORITY, this);
+                    if (Tracing.isEnabled()) {
+                        Tracing.beginSection(
+                                "applyBatch " + ContactsContract.AUTHORITY + " " + size());
+                    }
+                    try {
+                        mResults = context.getContentResolver().applyBatch(
+                                ContactsContract.AUTHORITY, this);
+                    } finally {
+                        Tracing.endSection();
+                    }
                 }
             } catch (RemoteException e) {
                 // There is nothing sensible to be done here
@@ -1135,17 +1227,13 @@ public class ContactsSyncParser extends AbstractSyncParser {
             add(builder.build());
         }
 
-        public void addPhoto(Entity entity, String photo) {
-            // We're always going to add this; it's not worth trying to figure out whether the
-            // picture is the same as the one stored.
-            final byte[] pic;
-            try {
-                pic = Base64.decode(photo, Base64.DEFAULT);
-            } catch (IllegalArgumentException e) {
-                LogUtils.w(TAG, "Bad base-64 encoding; unable to decode photo.");
+        public void addPhoto(Entity entity, byte[] pic) {
+            if (pic == null) {
+                // It couldn't be decoded
                 return;
             }
-
+            // We're always going to add this; it's not worth trying to figure out whether the
+            // picture is the same as the one stored.
             final RowBuilder builder = untypedRowBuilder(entity, Photo.CONTENT_ITEM_TYPE);
             builder.withValue(Photo.PHOTO, pic);
             add(builder.build());
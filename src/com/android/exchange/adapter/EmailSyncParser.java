@@ -39,16 +39,19 @@ import com.android.emailcommon.utility.Utility;
 import com.android.exchange.CommandStatusException;
 import com.android.exchange.Eas;
 import com.android.exchange.utility.CalendarUtilities;
+import com.android.exchange.utility.Tracing;
 import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * Parser for Sync on an email collection.
@@ -89,6 +92,12 @@ public class EmailSyncParser extends AbstractSyncParser {
     // above this number, we flush.
     private static final int MAX_OPS_PER_BATCH = 50;
 
+    // When we can write while we parse (see AbstractSyncParser#setCommitPipeline), the number of
+    // new messages we hand over at a time.
+    private static final int NEW_MESSAGES_PER_WRITE = 20;
+
+    private static final String[] SERVER_ID_PROJECTION = { SyncColumns.SERVER_ID };
+
     private boolean mFetchNeeded = false;
 
     private final Map<String, Integer> mMessageUpdateStatus = new HashMap();
@@ -186,18 +195,17 @@ public class EmailSyncParser extends AbstractSyncParser {
                         // it will take time and throw an exception anyway when EOF is reached
                         // In this case, we will load the body separately by tagging the message
                         // "partially loaded".
-                        // Get the data (and ignore it)
-                        getValue();
+                        // Skip the data without decoding it
+                        skipTag();
                         userLog("Partially loaded: ", msg.mServerId);
                         msg.mFlagLoaded = EmailContent.Message.FLAG_LOADED_PARTIAL;
                         mFetchNeeded = true;
                     } else {
-                        mimeBodyParser(msg, getValue());
+                        mimeBodyParser(msg, getValueStream());
                     }
                     break;
                 case Tags.EMAIL_BODY:
-                    String text = getValue();
-                    msg.mText = text;
+                    msg.mText = getValue();
                     break;
                 case Tags.EMAIL_MESSAGE_CLASS:
                     String messageClass = getValue();
@@ -214,7 +222,7 @@ public class EmailSyncParser extends AbstractSyncParser {
                     msg.mThreadTopic = getValue();
                     break;
                 case Tags.RIGHTS_LICENSE:
-                    skipParser(tag);
+                    skipTag();
                     break;
                 case Tags.EMAIL2_CONVERSATION_ID:
                     msg.mServerConversationId =
@@ -222,7 +230,7 @@ public class EmailSyncParser extends AbstractSyncParser {
                     break;
                 case Tags.EMAIL2_CONVERSATION_INDEX:
                     // Ignore this byte array since we're not constructing a tree.
-                    getValueBytes();
+                    skipTag();
                     break;
                 case Tags.EMAIL2_LAST_VERB_EXECUTED:
                     int val = getValueInt();
@@ -423,14 +431,13 @@ public class EmailSyncParser extends AbstractSyncParser {
     /**
      * Parses untruncated MIME data, saving away the text parts
      * @param msg the message we're building
-     * @param mimeData the MIME data we've received from the server
+     * @param in the MIME data we're receiving from the server
      * @throws IOException
      */
-    private static void mimeBodyParser(EmailContent.Message msg, String mimeData)
+    private static void mimeBodyParser(EmailContent.Message msg, InputStream in)
             throws IOException {
         try {
-            ByteArrayInputStream in = new ByteArrayInputStream(mimeData.getBytes());
-            // The constructor parses the message
+            // The constructor parses the message, straight out of the WBXML stream
             MimeMessage mimeMessage = new MimeMessage(in);
             // Now process body parts & attachments
             ArrayList<Part> viewables = new ArrayList<Part>();
@@ -448,6 +455,8 @@ public class EmailSyncParser extends AbstractSyncParser {
         } catch (MessagingException e) {
             // This would most likely indicate a broken stream
             throw new IOException(e);
+        } finally {
+            in.close();
         }
     }
 
@@ -684,6 +693,9 @@ public class EmailSyncParser extends AbstractSyncParser {
         while (nextTag(Tags.SYNC_COMMANDS) != END) {
             if (tag == Tags.SYNC_ADD) {
                 newEmails.add(addParser(tag));
+                if (canWriteContent() && newEmails.size() >= NEW_MESSAGES_PER_WRITE) {
+                    writeNewEmails();
+                }
             } else if (tag == Tags.SYNC_DELETE || tag == Tags.SYNC_SOFT_DELETE) {
                 deleteParser(deletedEmails, tag);
             } else if (tag == Tags.SYNC_CHANGE) {
@@ -771,6 +783,13 @@ public class EmailSyncParser extends AbstractSyncParser {
         return result || fetchNeeded();
     }
 
+    @Override
+    public boolean parseCollection(final Parser parser, final String syncKey)
+            throws IOException, CommandStatusException {
+        final boolean result = super.parseCollection(parser, syncKey);
+        return result || fetchNeeded();
+    }
+
     /**
      * Commit all changes. This results in a Binder IPC call which has constraint on the size of
      * the data, the docs say it currently 1MB. We set a limit to the size of the message we fetch
@@ -792,6 +811,7 @@ public class EmailSyncParser extends AbstractSyncParser {
             // Eas.EAS12_TRUNCATION_SIZE or Eas.EAS2_5_TRUNCATION_SIZE is small enough to fit
             // in a single Binder call.
             LogUtils.w(TAG, e1, "Transaction too large, retrying in single mode");
+            onTransactionTooLarge();
             try {
                 commitImpl(1);
             } catch (TransactionTooLargeException e2) {
@@ -851,7 +871,7 @@ public class EmailSyncParser extends AbstractSyncParser {
             applyBatchIfNeeded(ops, maxOpsPerBatch, false);
         }
 
-        for (EmailContent.Message msg: newEmails) {
+        for (EmailContent.Message msg: withoutExisting(newEmails)) {
             msg.addSaveOps(ops);
             applyBatchIfNeeded(ops, maxOpsPerBatch, false);
         }
@@ -895,13 +915,106 @@ public class EmailSyncParser extends AbstractSyncParser {
         userLog(mMailbox.mDisplayName, " SyncKey saved as: ", mMailbox.mSyncKey);
     }
 
+    /**
+     * Hand the new messages parsed so far to the writer thread, which saves them while we parse
+     * the rest of the window.
+     */
+    private void writeNewEmails() {
+        final ArrayList<EmailContent.Message> messages =
+                new ArrayList<EmailContent.Message>(newEmails);
+        newEmails.clear();
+        writeContent(new Callable<Void>() {
+            @Override
+            public Void call() throws RemoteException, OperationApplicationException {
+                try {
+                    saveNewEmails(messages, MAX_OPS_PER_BATCH);
+                } catch (TransactionTooLargeException e) {
+                    // As in commit(); the messages that made it in are skipped this time
+                    LogUtils.w(TAG, e, "Transaction too large, retrying in single mode");
+                    onTransactionTooLarge();
+                    saveNewEmails(messages, 1);
+                }
+                return null;
+            }
+        });
+    }
+
+    private void saveNewEmails(final List<EmailContent.Message> messages,
+            final int maxOpsPerBatch) throws RemoteException, OperationApplicationException {
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        for (EmailContent.Message msg : withoutExisting(messages)) {
+            msg.addSaveOps(ops);
+            applyBatchIfNeeded(ops, maxOpsPerBatch, false);
+        }
+        if (!ops.isEmpty()) {
+            applyBatchIfNeeded(ops, maxOpsPerBatch, true);
+        }
+    }
+
+    /**
+     * Leave out the new messages that we already have. The server only sends us an Add for a
+     * message we have if it's sending a window again, because we were interrupted after saving
+     * some of it but before saving its sync key.
+     * @param messages The new messages.
+     * @return The ones we don't have.
+     */
+    private List<EmailContent.Message> withoutExisting(
+            final List<EmailContent.Message> messages) {
+        final StringBuilder selection = new StringBuilder(MessageColumns.MAILBOX_KEY)
+                .append("=? and ").append(SyncColumns.SERVER_ID).append(" in (");
+        final ArrayList<String> args = new ArrayList<String>(messages.size() + 1);
+        args.add(mMailboxIdAsString);
+        for (EmailContent.Message msg : messages) {
+            if (msg.mServerId != null) {
+                selection.append(args.size() == 1 ? "?" : ",?");
+                args.add(msg.mServerId);
+            }
+        }
+        if (args.size() == 1) {
+            return messages;
+        }
+        selection.append(')');
+        final Cursor c = mContentResolver.query(EmailContent.Message.CONTENT_URI,
+                SERVER_ID_PROJECTION, selection.toString(), args.toArray(new String[args.size()]),
+                null);
+        if (c == null) throw new ProviderUnavailableException();
+        final HashSet<String> existing = new HashSet<String>();
+        try {
+            while (c.moveToNext()) {
+                existing.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        if (existing.isEmpty()) {
+            return messages;
+        }
+        LogUtils.i(TAG, "Skipping %d messages we already have in mailbox %d", existing.size(),
+                mMailbox.mId);
+        final ArrayList<EmailContent.Message> result =
+                new ArrayList<EmailContent.Message>(messages.size());
+        for (EmailContent.Message msg : messages) {
+            if (!existing.contains(msg.mServerId)) {
+                result.add(msg);
+            }
+        }
+        return result;
+    }
+
     // Check if there at least MAX_OPS_PER_BATCH ops in queue and flush if there are.
     // If force is true, flush regardless of size.
     private void applyBatchIfNeeded(ArrayList<ContentProviderOperation> ops, int maxOpsPerBatch,
             boolean force)
             throws RemoteException, OperationApplicationException {
         if (force ||  ops.size() >= maxOpsPerBatch) {
-            mContentResolver.applyBatch(EmailContent.AUTHORITY, ops);
+            if (Tracing.isEnabled()) {
+                Tracing.beginSection("applyBatch " + EmailContent.AUTHORITY + " " + ops.size());
+            }
+            try {
+                mContentResolver.applyBatch(EmailContent.AUTHORITY, ops);
+            } finally {
+                Tracing.endSection();
+            }
             ops.clear();
         }
     }
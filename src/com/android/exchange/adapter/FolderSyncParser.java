@@ -42,6 +42,8 @@ import com.android.exchange.CommandStatusException.CommandStatus;
 import com.android.exchange.Eas;
 import com.android.exchange.eas.EasSyncContacts;
 import com.android.exchange.eas.EasSyncCalendar;
+import com.android.exchange.eas.SyncWindowController;
+import com.android.exchange.utility.OperationMetrics;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
@@ -260,7 +262,12 @@ public class FolderSyncParser extends AbstractSyncParser {
                 skipTag();
         }
         if (!mStatusOnly) {
-            commit();
+            final long commitStart = OperationMetrics.startCommit();
+            try {
+                commit();
+            } finally {
+                OperationMetrics.endCommit(commitStart);
+            }
         }
         return res;
     }
@@ -298,6 +305,7 @@ public class FolderSyncParser extends AbstractSyncParser {
                                             mailboxId)).build());
                             AttachmentUtilities.deleteAllMailboxAttachmentFiles(mContext,
                                     mAccountId, mailboxId);
+                            SyncWindowController.removeMailbox(mContext, mailboxId);
                             final String parentId =
                                     c.getString(MAILBOX_ID_COLUMNS_PARENT_SERVER_ID);
                             if (!TextUtils.isEmpty(parentId)) {
@@ -798,6 +806,7 @@ public class FolderSyncParser extends AbstractSyncParser {
         // And only then, delete mailboxes
         mContentResolver.delete(Mailbox.CONTENT_URI, WHERE_ACCOUNT_KEY,
                 new String[] {mAccountIdAsString});
+        SyncWindowController.removeDeletedMailboxes(mContext);
         // Reset the sync key and save.
         mAccount.mSyncKey = "0";
         ContentValues cv = new ContentValues();
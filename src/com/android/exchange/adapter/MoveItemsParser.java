@@ -20,15 +20,16 @@ import com.android.mail.utils.LogUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
- * Parse the result of a MoveItems command.
+ * Parse the result of a MoveItems command, which has a Response for each item in the request.
  */
 public class MoveItemsParser extends Parser {
     private static final String TAG = Eas.LOG_TAG;
-    private int mStatusCode = 0;
-    private String mNewServerId;
-    private String mSourceServerId;
 
     // These are the EAS status codes for MoveItems
     private static final int STATUS_NO_SOURCE_FOLDER = 1;
@@ -44,68 +45,108 @@ public class MoveItemsParser extends Parser {
     public static final int STATUS_CODE_REVERT = 2;
     public static final int STATUS_CODE_RETRY = 3;
 
+    /** The result of moving one item. */
+    public static class Response {
+        public final String mSourceServerId;
+        /** The item's server id in its new folder, or null if the server didn't give one. */
+        public final String mNewServerId;
+        /** One of the STATUS_CODE_* values above. */
+        public final int mStatusCode;
+
+        public Response(final String sourceServerId, final String newServerId,
+                final int statusCode) {
+            mSourceServerId = sourceServerId;
+            mNewServerId = newServerId;
+            mStatusCode = statusCode;
+        }
+    }
+
+    /** The responses that have a source server id, by that id, in the order they were sent. */
+    private final LinkedHashMap<String, Response> mResponses =
+            new LinkedHashMap<String, Response>();
+    /** All of the responses, in the order the server sent them. */
+    private final ArrayList<Response> mResponseList = new ArrayList<Response>();
+
     public MoveItemsParser(InputStream in) throws IOException {
         super(in);
     }
 
-    public int getStatusCode() {
-        if (mStatusCode == 0) {
-            LogUtils.e(TAG, "Trying to get status for MoveItems, but no status was set");
-            // TODO: We currently treat empty responses as retry, so for now we'll do the same for
-            // partially empty responses.
-            return STATUS_CODE_RETRY;
-        }
-        return mStatusCode;
+    /**
+     * @return The response for each item, by its server id in the request. Items that the server
+     *     didn't respond to, or whose response had no SrcMsgId, are missing.
+     */
+    public Map<String, Response> getResponses() {
+        return mResponses;
     }
 
-    public String getNewServerId() {
-        return mNewServerId;
+    /**
+     * @return All of the responses, in the order the server sent them, which is the order of the
+     *     items in the request. Responses without a SrcMsgId have a null source server id.
+     */
+    public List<Response> getResponseList() {
+        return mResponseList;
     }
 
-    public String getSourceServerId() {
-        return mSourceServerId;
+    /**
+     * Convert an EAS status code to one of our external codes.
+     */
+    private static int getStatusCode(final int status) {
+        if (status != STATUS_SUCCESS) {
+            // There's not much to be done if this fails
+            LogUtils.w(TAG, "Error in MoveItems: %d", status);
+        }
+        switch(status) {
+            case STATUS_SUCCESS:
+            case STATUS_SOURCE_DESTINATION_SAME:
+            case STATUS_ALREADY_EXISTS:
+                // Same destination and already exists are ok with us; we'll continue as
+                // if the move succeeded
+                return STATUS_CODE_SUCCESS;
+            case STATUS_LOCKED:
+                // This sounds like a transient error, so we can safely retry
+                return STATUS_CODE_RETRY;
+            case STATUS_NO_SOURCE_FOLDER:
+            case STATUS_NO_DESTINATION_FOLDER:
+            case STATUS_INTERNAL_ERROR:
+            default:
+                // These are non-recoverable, so we'll revert the message to its original
+                // mailbox.  If there's an unknown response, revert
+                return STATUS_CODE_REVERT;
+        }
     }
 
     private void parseResponse() throws IOException {
+        int statusCode = 0;
+        String newServerId = null;
+        String sourceServerId = null;
         while (nextTag(Tags.MOVE_RESPONSE) != END) {
             if (tag == Tags.MOVE_STATUS) {
-                int status = getValueInt();
-                // Convert the EAS status code with our external codes
-                switch(status) {
-                    case STATUS_SUCCESS:
-                    case STATUS_SOURCE_DESTINATION_SAME:
-                    case STATUS_ALREADY_EXISTS:
-                        // Same destination and already exists are ok with us; we'll continue as
-                        // if the move succeeded
-                        mStatusCode = STATUS_CODE_SUCCESS;
-                        break;
-                    case STATUS_LOCKED:
-                        // This sounds like a transient error, so we can safely retry
-                        mStatusCode = STATUS_CODE_RETRY;
-                        break;
-                    case STATUS_NO_SOURCE_FOLDER:
-                    case STATUS_NO_DESTINATION_FOLDER:
-                    case STATUS_INTERNAL_ERROR:
-                    default:
-                        // These are non-recoverable, so we'll revert the message to its original
-                        // mailbox.  If there's an unknown response, revert
-                        mStatusCode = STATUS_CODE_REVERT;
-                        break;
-                }
-                if (status != STATUS_SUCCESS) {
-                    // There's not much to be done if this fails
-                    LogUtils.w(TAG, "Error in MoveItems: %d", status);
-                }
+                statusCode = getStatusCode(getValueInt());
             } else if (tag == Tags.MOVE_DSTMSGID) {
-                mNewServerId = getValue();
-                LogUtils.d(TAG, "Moved message id is now: %s", mNewServerId);
+                newServerId = getValue();
+                LogUtils.d(TAG, "Moved message id is now: %s", newServerId);
             } else if (tag == Tags.MOVE_SRCMSGID) {
-                mSourceServerId = getValue();
-                LogUtils.d(TAG, "Source message id is: %s", mNewServerId);
+                sourceServerId = getValue();
+                LogUtils.d(TAG, "Source message id is: %s", sourceServerId);
             } else {
                 skipTag();
             }
         }
+        if (statusCode == 0) {
+            LogUtils.e(TAG, "MoveItems response for %s has no status", sourceServerId);
+            // TODO: We currently treat empty responses as retry, so for now we'll do the same for
+            // partially empty responses.
+            statusCode = STATUS_CODE_RETRY;
+        }
+        final Response response = new Response(sourceServerId, newServerId, statusCode);
+        mResponseList.add(response);
+        if (sourceServerId == null) {
+            // SrcMsgId is required, but some servers leave it out; the caller can still match
+            // the response to its item by position
+            LogUtils.e(TAG, "MoveItems response has no SrcMsgId");
+        } else {
+            mResponses.put(sourceServerId, response);
+        }
     }
 
     @Override
@@ -124,4 +165,3 @@ public class MoveItemsParser extends Parser {
         return res;
     }
 }
-
@@ -17,8 +17,6 @@
 
 package com.android.exchange.adapter;
 
-import android.content.Context;
-
 import com.android.exchange.Eas;
 import com.android.exchange.EasException;
 import com.android.exchange.service.EasService;
@@ -26,15 +24,11 @@ import com.android.exchange.utility.FileLogger;
 import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayDeque;
-import java.util.ArrayList;
+import java.nio.charset.Charset;
 import java.util.Arrays;
-import java.util.Deque;
 
 /**
  * Extremely fast and lightweight WBXML parser, implementing only the subset of WBXML that
@@ -44,10 +38,10 @@ import java.util.Deque;
  *      WBXML tokens to encode XML tags
  *      WBXML code pages to support multiple XML namespaces
  *      Inline strings
+ *      String tables (string references, and literal tags, which are treated as unknown tags)
  *      Opaque data
  *
  * Does not support: (throws EasParserException)
- *      String tables
  *      Entities
  *      Processing instructions
  *      Attribute encoding
@@ -69,24 +63,55 @@ public abstract class Parser {
     private static final int NOT_ENDED = Integer.MIN_VALUE;
     private static final int EOF_BYTE = -1;
 
-    private boolean capture = false;
+    // Size of the buffer we read the input stream into
+    @VisibleForTesting
+    static final int BUFFER_SIZE = 8192;
+
+    // Initial size of the buffer used for inline strings that span refills of the input buffer
+    private static final int STRING_BUFFER_SIZE = 256;
+
+    // Largest string buffer we hold on to between values; a bigger one was only needed for an
+    // unusually large value, and is released once that value has been decoded
+    private static final int MAX_RETAINED_STRING_BUFFER_SIZE = 64 * 1024;
+
+    // How getNext() handles the value following a start tag: decode it into text or bytes, leave
+    // it in the input to be read through a ValueInputStream, or skip over it without decoding it
+    private static final int VALUE_DECODE = 0;
+    private static final int VALUE_STREAM = 1;
+    private static final int VALUE_SKIP = 2;
+
+    // Stands in for the length of an opaque value in a ValueInputStream over an inline string
+    private static final int INLINE_STRING = -1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
-    private ArrayList<Integer> captureArray;
+    // The buffered input for this parser; shared with any parser constructed from this one
+    private InputBuffer in;
 
-    // The input stream for this parser
-    private InputStream in;
+    // Reusable buffer for inline strings that don't fit in what's left of the input buffer
+    private byte[] stringBuffer;
 
-    // The stack of names of tags being processed; used when debug = true
-    private String[] nameArray = new String[32];
+    // The document's string table, or null if it has none
+    private byte[] stringTable;
 
-    public class Tag {
+    // The location in the string table of the last string reference read
+    private int tableStringOffset;
+    private int tableStringLength;
+
+    /**
+     * An element tag, as read from the stream. Tags are immutable, and there is a single shared
+     * instance for each combination of code page and tag byte (see {@link #TAG_TABLE}), so that
+     * no Tag is allocated as we parse.
+     */
+    public static final class Tag {
         private final int mPage;
         private final int mIndex;
         // Whether the tag is associated with content (a value)
         public final boolean mNoContent;
         private final String mName;
+        private final int mTagNum;
 
-        public Tag(final int page, final int id) {
+        private Tag(final int page, final int id) {
             mPage = page;
             // The tag is in the low 6 bits
             mIndex = id & Tags.PAGE_MASK;
@@ -94,18 +119,19 @@ public abstract class Parser {
             mNoContent = (id & Wbxml.WITH_CONTENT) == 0;
             if (Tags.isGlobalTag(mIndex)) {
                 mName = "unsupported-WBXML";
-            } else if (!Tags.isValidTag(mPage, mIndex)) {
-                mName = "unknown";
+                mTagNum = mIndex;
             } else {
-                mName = Tags.getTagName(mPage, mIndex);
+                if (!Tags.isValidTag(mPage, mIndex)) {
+                    mName = "unknown";
+                } else {
+                    mName = Tags.getTagName(mPage, mIndex);
+                }
+                mTagNum = (mPage << Tags.PAGE_SHIFT) | mIndex;
             }
         }
 
         public int getTagNum() {
-            if (Tags.isGlobalTag(mIndex)) {
-                return mIndex;
-            }
-            return (mPage << Tags.PAGE_SHIFT) | mIndex;
+            return mTagNum;
         }
 
         @Override
@@ -114,8 +140,38 @@ public abstract class Parser {
         }
     }
 
-    // The stack of tags being processed
-    private final Deque<Tag> startTagArray = new ArrayDeque<Tag>();
+    // The number of distinct tag bytes on a code page: the tag index plus the WITH_CONTENT bit
+    private static final int TAG_BYTES = Wbxml.WITH_ATTRIBUTES;
+
+    // The shared Tag instances, indexed by code page and then by tag byte
+    private static final Tag[][] TAG_TABLE = buildTagTable();
+
+    private static Tag[][] buildTagTable() {
+        final Tag[][] table = new Tag[Tags.mPages.length][TAG_BYTES];
+        for (int page = 0; page < table.length; page++) {
+            for (int id = 0; id < TAG_BYTES; id++) {
+                table[page][id] = new Tag(page, id);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Look up the shared Tag for a tag byte on a code page. Pages outside the table can only come
+     * from {@link #pushTag}; they get a Tag of their own.
+     */
+    private static Tag getTag(final int page, final int id) {
+        if (page >= 0 && page < TAG_TABLE.length) {
+            return TAG_TABLE[page][id & (TAG_BYTES - 1)];
+        }
+        return new Tag(page, id);
+    }
+
+    // The stack of tags being processed, each stored as (page * TAG_BYTES) + tag byte
+    private int[] tagStack = new int[32];
+
+    // The number of tags on tagStack
+    private int tagDepth = 0;
 
     private Tag startTag;
 
@@ -139,6 +195,230 @@ public abstract class Parser {
     // The value read, as bytes
     private byte[] bytes;
 
+    // How getNext() handles values; one of the VALUE_* constants
+    private int valueMode = VALUE_DECODE;
+
+    // The stream over the value currently being streamed, if any
+    private ValueInputStream valueStream;
+
+    /**
+     * A refillable buffer over the raw input stream. The parser decodes directly out of
+     * {@link #buf}, so the number of calls made to the underlying stream scales with the number of
+     * refills rather than with the number of bytes in the document.
+     *
+     * This is also an InputStream itself: parsers constructed from an existing parser, and callers
+     * of {@link #getInput()} that read raw data out of the document, need to pick up at the same
+     * position as the parser, including any bytes that have already been buffered.
+     */
+    private static final class InputBuffer extends InputStream {
+        private final InputStream mSource;
+        final byte[] buf = new byte[BUFFER_SIZE];
+        // The position of the next byte to be consumed from buf
+        int pos = 0;
+        // The number of valid bytes in buf
+        int limit = 0;
+
+        InputBuffer(final InputStream source) {
+            mSource = source;
+        }
+
+        /**
+         * Refill the buffer from the underlying stream; should only be called once everything in
+         * the buffer has been consumed.
+         * @return false if the underlying stream is at EOF
+         * @throws IOException
+         */
+        boolean fill() throws IOException {
+            pos = 0;
+            limit = mSource.read(buf, 0, buf.length);
+            if (limit == 0) {
+                // Streams shouldn't do this, but if one does, block on a single byte instead
+                final int i = mSource.read();
+                if (i != EOF_BYTE) {
+                    buf[0] = (byte) i;
+                    limit = 1;
+                }
+            }
+            if (limit <= 0) {
+                limit = 0;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == limit && !fill()) {
+                return EOF_BYTE;
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos == limit) {
+                // Large reads go straight to the underlying stream, bypassing the buffer
+                if (len >= buf.length) {
+                    return mSource.read(b, off, len);
+                }
+                if (!fill()) {
+                    return EOF_BYTE;
+                }
+            }
+            final int count = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, count);
+            pos += count;
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            final int buffered = limit - pos;
+            if (buffered > 0) {
+                final int count = (int) Math.min(buffered, n);
+                pos += count;
+                return count;
+            }
+            return mSource.skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (limit - pos) + mSource.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSource.close();
+        }
+    }
+
+    /**
+     * An InputStream over the raw bytes of the current value (UTF-8 for inline strings), read
+     * directly out of the parser's input as the caller asks for them. Reaching the end of the
+     * value, or closing the stream, consumes the END of the value's tag; closing the stream early
+     * skips whatever is left of the value.
+     */
+    private final class ValueInputStream extends InputStream {
+        private final String mName;
+        // The number of bytes left in an opaque value, or INLINE_STRING
+        private int mRemaining;
+        // The number of bytes handed out so far
+        private int mLength = 0;
+        private boolean mDone;
+
+        ValueInputStream(final String name, final int remaining, final boolean done) {
+            mName = name;
+            mRemaining = remaining;
+            mDone = done;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mDone) {
+                return EOF_BYTE;
+            }
+            if (mRemaining == 0) {
+                finish();
+                return EOF_BYTE;
+            }
+            final int i = readByte();
+            if (mRemaining == INLINE_STRING) {
+                if (i == 0) {
+                    finish();
+                    return EOF_BYTE;
+                }
+            } else if (--mRemaining == 0) {
+                finish();
+            }
+            mLength++;
+            return i;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (mDone) {
+                return EOF_BYTE;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            final InputBuffer input = in;
+            if (mRemaining != INLINE_STRING) {
+                if (mRemaining == 0) {
+                    finish();
+                    return EOF_BYTE;
+                }
+                final int count = input.read(b, off, Math.min(len, mRemaining));
+                if (count == EOF_BYTE) {
+                    throw new EofException();
+                }
+                mLength += count;
+                mRemaining -= count;
+                if (mRemaining == 0) {
+                    finish();
+                }
+                return count;
+            }
+
+            if (input.pos == input.limit && !input.fill()) {
+                throw new EofException();
+            }
+            final byte[] buf = input.buf;
+            final int start = input.pos;
+            final int end = Math.min(input.limit, start + len);
+            int p = start;
+            while (p < end && buf[p] != 0) {
+                p++;
+            }
+            final int count = p - start;
+            final boolean terminated = p < end;
+            input.pos = terminated ? p + 1 : p;
+            System.arraycopy(buf, start, b, off, count);
+            mLength += count;
+            if (terminated) {
+                finish();
+                if (count == 0) {
+                    return EOF_BYTE;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!mDone) {
+                if (mRemaining == INLINE_STRING) {
+                    skipInlineString();
+                } else {
+                    skipOpaque(mRemaining);
+                }
+                finish();
+            }
+        }
+
+        /**
+         * We've consumed the whole value; the next token must be the end of its tag.
+         */
+        private void finish() throws IOException {
+            mDone = true;
+            valueStream = null;
+            if (EasService.getProtocolLogging()) {
+                log(mName + ": (streamed " + mLength + " bytes)");
+            }
+            getNext();
+            if (type != END) {
+                throw new EasParserException("No END found for tag " + mName);
+            }
+        }
+    }
+
     // TODO: Define a new parse exception type rather than lumping these in as IOExceptions.
 
     /**
@@ -186,38 +466,13 @@ public abstract class Parser {
      * @throws IOException
      */
     public Parser(final Parser parser) throws IOException {
-        setInput(parser.in, false);
+        setInput(parser);
     }
 
     protected InputStream getInput() {
         return in;
     }
 
-    /**
-     * Turns on data capture; this is used to create test streams that represent "live" data and
-     * can be used against the various parsers.
-     */
-    public void captureOn() {
-        capture = true;
-        captureArray = new ArrayList<Integer>();
-    }
-
-    /**
-     * Turns off data capture; writes the captured data to a specified file.
-     */
-    public void captureOff(final Context context, final String file) {
-        try {
-            final FileOutputStream out = context.openFileOutput(file,
-                    Context.MODE_WORLD_WRITEABLE);
-            out.write(captureArray.toString().getBytes());
-            out.close();
-        } catch (FileNotFoundException e) {
-            // This is debug code; exceptions aren't interesting.
-        } catch (IOException e) {
-            // This is debug code; exceptions aren't interesting.
-        }
-    }
-
     /**
      * Return the value of the current tag, as a byte array. Throws EasParserException
      * if neither opaque nor text data is present. Never returns null--returns
@@ -232,7 +487,9 @@ public abstract class Parser {
         getNext();
         // This means there was no value given, just <Foo/>; we'll return empty array
         if (type == END) {
-            log("No value for tag: " + name);
+            if (EasService.getProtocolLogging()) {
+                log("No value for tag: " + name);
+            }
             return new byte[0];
         } else if (type != OPAQUE && type != TEXT) {
             throw new EasParserException("Expected OPAQUE or TEXT data for tag " + name);
@@ -262,7 +519,9 @@ public abstract class Parser {
         getNext();
         // This means there was no value given, just <Foo/>; we'll return empty string for now
         if (type == END) {
-            log("No value for tag: " + name);
+            if (EasService.getProtocolLogging()) {
+                log("No value for tag: " + name);
+            }
             return "";
         } else if (type != TEXT) {
             throw new EasParserException("Expected TEXT data for tag " + name);
@@ -279,6 +538,49 @@ public abstract class Parser {
         return val;
     }
 
+    /**
+     * Return the value of the current tag as a stream of bytes (UTF-8 for text data), read from
+     * the input as the caller consumes it, so that the value is never held in memory as a whole.
+     * Throws EasParserException if neither opaque nor text data is present; returns an empty
+     * stream for empty data.
+     *
+     * The stream must be read to its end or closed before the parser is used again; if it isn't,
+     * the next call into the parser skips the rest of the value.
+     *
+     * @return a stream over the value of the current tag
+     * @throws IOException
+     */
+    public InputStream getValueStream() throws IOException {
+        final String name = startTag.toString();
+
+        valueMode = VALUE_STREAM;
+        try {
+            getNext();
+        } finally {
+            valueMode = VALUE_DECODE;
+        }
+        // This means there was no value given, just <Foo/>; we'll return an empty stream
+        if (type == END) {
+            if (EasService.getProtocolLogging()) {
+                log("No value for tag: " + name);
+            }
+            return new ValueInputStream(name, 0, true);
+        } else if (type != OPAQUE && type != TEXT) {
+            throw new EasParserException("Expected OPAQUE or TEXT data for tag " + name);
+        }
+        if (valueStream == null) {
+            // A string table reference; the value is already in memory
+            final int offset = tableStringOffset;
+            final int length = tableStringLength;
+            getNext();
+            if (type != END) {
+                throw new EasParserException("No END found for tag " + name);
+            }
+            return new ByteArrayInputStream(stringTable, offset, length);
+        }
+        return valueStream;
+    }
+
     /**
      * Return the value of the current tag, as an integer. Throws EasParserException
      * for non text data, and text data that doesn't parse as an integer. Returns
@@ -314,15 +616,21 @@ public abstract class Parser {
      * @throws IOException
      */
     public int nextTag(final int endingTag) throws IOException {
-        while (getNext() != DONE) {
-            // If we're a start, set tag to include the page and return it
-            if (type == START) {
-                tag = startTag.getTagNum();
-                return tag;
-            // If we're at the ending tag we're looking for, return the END signal
-            } else if (type == END && startTag.getTagNum() == endingTag) {
-                return END;
+        // Any value we come across here is thrown away, so don't bother decoding it
+        valueMode = VALUE_SKIP;
+        try {
+            while (getNext() != DONE) {
+                // If we're a start, set tag to include the page and return it
+                if (type == START) {
+                    tag = startTag.getTagNum();
+                    return tag;
+                // If we're at the ending tag we're looking for, return the END signal
+                } else if (type == END && startTag.getTagNum() == endingTag) {
+                    return END;
+                }
             }
+        } finally {
+            valueMode = VALUE_DECODE;
         }
         // We're at end of document here.  If we're looking for it, return END_DOCUMENT
         if (endingTag == START_DOCUMENT) {
@@ -336,17 +644,26 @@ public abstract class Parser {
 
     /**
      * Skip anything found in the stream until the end of the current tag is reached.  This can be
-     * used to ignore stretches of xml that aren't needed by the parser.
+     * used to ignore stretches of xml that aren't needed by the parser.  Values inside the skipped
+     * tag are passed over without being decoded: inline strings are scanned for their terminator
+     * and opaque data is skipped by length.
      *
      * @throws IOException
      */
     public void skipTag() throws IOException {
-        final int thisTag = startTag.getTagNum();
-        // Just loop until we hit the end of the current tag
-        while (getNext() != DONE) {
-            if (type == END && startTag.getTagNum() == thisTag) {
-                return;
+        // The current tag is the innermost open one; we're done when we've closed it, which also
+        // keeps us from stopping early at the end of a nested tag with the same number
+        final int depth = tagDepth;
+        valueMode = VALUE_SKIP;
+        try {
+            // Just loop until we hit the end of the current tag
+            while (getNext() != DONE) {
+                if (type == END && tagDepth < depth) {
+                    return;
+                }
             }
+        } finally {
+            valueMode = VALUE_DECODE;
         }
 
         // If we're at end of document, that's bad
@@ -362,7 +679,7 @@ public abstract class Parser {
      * @throws IOException
      */
     public void setInput(final InputStream in, final boolean initialize) throws IOException {
-        this.in = in;
+        this.in = wrapInput(in);
         if ((in != null) && initialize) {
             // If we fail on the very first byte, report an empty stream
             try {
@@ -373,15 +690,23 @@ public abstract class Parser {
             readInt();  // public identifier
             readInt();  // 106 (UTF-8)
             final int stringTableLength = readInt();  // string table length
-            if (stringTableLength != 0) {
-                throw new EasParserException("WBXML string table unsupported");
-            }
+            stringTable = (stringTableLength == 0) ? null : readOpaque(stringTableLength);
         }
     }
 
+    /**
+     * Switch this parser to read from the input of another one, e.g. so that it can parse one
+     * element of the response that the other is parsing.
+     * @param parser an existing, initialized parser
+     */
+    public void setInput(final Parser parser) {
+        in = parser.in;
+        stringTable = parser.stringTable;
+    }
+
     @VisibleForTesting
     void resetInput(final InputStream in) {
-        this.in = in;
+        this.in = wrapInput(in);
         try {
             // Read leading zero
             read();
@@ -389,6 +714,17 @@ public abstract class Parser {
         }
     }
 
+    /**
+     * Wrap an input stream in an {@link InputBuffer}, unless it already is one (which is the case
+     * when we're handed the input of another parser).
+     */
+    private static InputBuffer wrapInput(final InputStream in) {
+        if (in == null || in instanceof InputBuffer) {
+            return (InputBuffer) in;
+        }
+        return new InputBuffer(in);
+    }
+
     void log(final String str) {
         if (!EasService.getProtocolLogging()) {
             return;
@@ -400,7 +736,7 @@ public abstract class Parser {
         } else {
             logStr = str;
         }
-        final char [] charArray = new char[startTagArray.size() * 2];
+        final char [] charArray = new char[tagDepth * 2];
         Arrays.fill(charArray, ' ');
         final String indent = new String(charArray);
         LogUtils.d(LOG_TAG, "%s", indent + logStr);
@@ -415,23 +751,40 @@ public abstract class Parser {
         }
     }
 
+    /**
+     * Open a tag that another parser has read the start of, so that this parser can parse its
+     * contents and consume its end.
+     * @param id the tag number, e.g. from {@link Tags}
+     */
     protected void pushTag(final int id) {
         page = id >>> Tags.PAGE_SHIFT;
-        push(id);
+        // The tag is being handed over so that we can parse its contents, so it has some
+        push((id & Tags.PAGE_MASK) | Wbxml.WITH_CONTENT);
     }
 
-    protected void pop() {
+    protected void pop() throws IOException {
+        if (tagDepth == 0) {
+            throw new EasParserException("END with no open tag");
+        }
         // Retrieve the now-current startTag from our stack
-        startTag = startTagArray.removeFirst();
-        log("</" + startTag + '>');
+        final int entry = tagStack[--tagDepth];
+        startTag = getTag(entry / TAG_BYTES, entry % TAG_BYTES);
+        if (EasService.getProtocolLogging()) {
+            log("</" + startTag + '>');
+        }
     }
 
     private void push(final int id) {
-        startTag = new Tag(page, id);
+        startTag = getTag(page, id);
         noContent = startTag.mNoContent;
-        log("<" + startTag + (noContent ? '/' : "") + '>');
+        if (EasService.getProtocolLogging()) {
+            log("<" + startTag + (noContent ? '/' : "") + '>');
+        }
         // Save the startTag to our stack
-        startTagArray.addFirst(startTag);
+        if (tagDepth == tagStack.length) {
+            tagStack = Arrays.copyOf(tagStack, tagDepth * 2);
+        }
+        tagStack[tagDepth++] = page * TAG_BYTES + (id & (TAG_BYTES - 1));
     }
 
     /**
@@ -443,11 +796,15 @@ public abstract class Parser {
      * @throws IOException
      */
     private final int getNext() throws IOException {
+        if (valueStream != null) {
+            // The caller didn't finish with a streamed value; skip the rest of it
+            valueStream.close();
+        }
         bytes = null;
         text = null;
 
         if (noContent) {
-            startTagArray.removeFirst();
+            tagDepth--;
             type = END;
             noContent = false;
             return type;
@@ -463,7 +820,9 @@ public abstract class Parser {
                 // invalid data from the server so throw an exception here.
                 throw new EasParserException("Unknown code page " + page);
             }
-            logVerbose("Page: " + page);
+            if (LOG_VERBOSE) {
+                logVerbose("Page: " + page);
+            }
             id = read();
         }
 
@@ -481,19 +840,57 @@ public abstract class Parser {
             case Wbxml.STR_I:
                 // Inline string
                 type = TEXT;
+                if (valueMode == VALUE_STREAM) {
+                    valueStream = new ValueInputStream(startTag.toString(), INLINE_STRING, false);
+                    break;
+                } else if (valueMode == VALUE_SKIP && !EasService.getProtocolLogging()) {
+                    // (When logging, we decode values even when skipping them, so they're logged)
+                    skipInlineString();
+                    break;
+                }
                 text = readInlineString();
-                log(startTag + ": " + text);
+                if (EasService.getProtocolLogging()) {
+                    log(startTag + ": " + text);
+                }
+                break;
+
+            case Wbxml.STR_T:
+                // Reference to a string in the string table
+                type = TEXT;
+                readTableString();
+                if (valueMode == VALUE_DECODE || EasService.getProtocolLogging()) {
+                    text = new String(stringTable, tableStringOffset, tableStringLength, UTF_8);
+                    if (EasService.getProtocolLogging()) {
+                        log(startTag + ": " + text);
+                    }
+                }
+                break;
+
+            case Wbxml.LITERAL:
+            case Wbxml.LITERAL_C:
+                // A tag named by a string in the string table rather than by a token; no EAS
+                // tag is encoded this way, so this is reported as a tag of its own (numbered
+                // LITERAL), which callers will skip as unknown
+                readTableString();
+                type = START;
+                push(id);
                 break;
 
             case Wbxml.OPAQUE:
                 // Integer length + opaque data
                 type = OPAQUE;
                 final int length = readInt();
-                bytes = new byte[length];
-                for (int i = 0; i < length; i++) {
-                    bytes[i] = (byte)readByte();
+                if (valueMode == VALUE_STREAM) {
+                    valueStream = new ValueInputStream(startTag.toString(), length, false);
+                    break;
+                } else if (valueMode == VALUE_SKIP && !EasService.getProtocolLogging()) {
+                    skipOpaque(length);
+                    break;
+                }
+                bytes = readOpaque(length);
+                if (EasService.getProtocolLogging()) {
+                    log(startTag + ": (opaque:" + length + ") ");
                 }
-                log(startTag + ": (opaque:" + length + ") ");
                 break;
 
             default:
@@ -514,19 +911,20 @@ public abstract class Parser {
     }
 
     /**
-     * Read an int from the input stream, and capture it if necessary for debugging.  Seems a small
-     * price to pay...
+     * Read a byte from the input stream
      *
      * @return the int read
      * @throws IOException
      */
     private int read() throws IOException {
-        int i;
-        i = in.read();
-        if (capture) {
-            captureArray.add(i);
+        final InputBuffer input = in;
+        if (input.pos == input.limit && !input.fill()) {
+            return EOF_BYTE;
+        }
+        final int i = input.buf[input.pos++] & 0xFF;
+        if (LOG_VERBOSE) {
+            logVerbose("Byte: " + i);
         }
-        logVerbose("Byte: " + i);
         return i;
     }
 
@@ -549,6 +947,23 @@ public abstract class Parser {
         int i;
         int numBytes = 0;
 
+        final InputBuffer input = in;
+        if (input.limit - input.pos >= 5) {
+            // The longest legal encoding is buffered, so decode straight out of the buffer
+            final byte[] buf = input.buf;
+            final int start = input.pos;
+            int p = start;
+            do {
+                if (++numBytes > 5) {
+                    throw new EasParserException("Invalid integer encoding, too many bytes");
+                }
+                i = buf[p++];
+                result = (result << 7) | (i & 0x7f);
+            } while ((i & 0x80) != 0);
+            input.pos = p;
+            return result;
+        }
+
         do {
             if (++numBytes > 5) {
                 throw new EasParserException("Invalid integer encoding, too many bytes");
@@ -567,19 +982,137 @@ public abstract class Parser {
      * @throws IOException
      */
     private String readInlineString() throws IOException {
-        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(256);
+        final InputBuffer input = in;
+        int length = 0;
         while (true) {
-            final int i = read();
-            if (i == 0) {
-                break;
-            } else if (i == EOF_BYTE) {
+            if (input.pos == input.limit && !input.fill()) {
+                throw new EofException();
+            }
+            final byte[] buf = input.buf;
+            final int start = input.pos;
+            final int limit = input.limit;
+            int p = start;
+            while (p < limit && buf[p] != 0) {
+                p++;
+            }
+            final int count = p - start;
+            final boolean terminated = p < limit;
+            // Consume the terminating zero along with the string
+            input.pos = terminated ? p + 1 : p;
+            if (terminated && length == 0) {
+                // The common case: the whole string was in the buffer
+                return new String(buf, start, count, UTF_8);
+            }
+            if (stringBuffer == null || stringBuffer.length < length + count) {
+                final byte[] newBuffer = new byte[Math.max(STRING_BUFFER_SIZE,
+                        Math.max(length + count, length * 2))];
+                if (length > 0) {
+                    System.arraycopy(stringBuffer, 0, newBuffer, 0, length);
+                }
+                stringBuffer = newBuffer;
+            }
+            System.arraycopy(buf, start, stringBuffer, length, count);
+            length += count;
+            if (terminated) {
+                final String res = new String(stringBuffer, 0, length, UTF_8);
+                if (stringBuffer.length > MAX_RETAINED_STRING_BUFFER_SIZE) {
+                    stringBuffer = null;
+                }
+                return res;
+            }
+        }
+    }
+
+    /**
+     * Read a reference into the string table, and find the extent of the string it refers to
+     *
+     * @throws IOException
+     */
+    private void readTableString() throws IOException {
+        final int offset = readInt();
+        if (stringTable == null || offset < 0 || offset >= stringTable.length) {
+            throw new EasParserException("Invalid string table reference " + offset);
+        }
+        int end = offset;
+        while (end < stringTable.length && stringTable[end] != 0) {
+            end++;
+        }
+        if (end == stringTable.length) {
+            throw new EasParserException("Unterminated string in string table");
+        }
+        tableStringOffset = offset;
+        tableStringLength = end - offset;
+    }
+
+    /**
+     * Skip over an inline string in the stream, up to and including its terminator
+     *
+     * @throws IOException
+     */
+    private void skipInlineString() throws IOException {
+        final InputBuffer input = in;
+        while (true) {
+            if (input.pos == input.limit && !input.fill()) {
+                throw new EofException();
+            }
+            final byte[] buf = input.buf;
+            final int start = input.pos;
+            final int limit = input.limit;
+            int p = start;
+            while (p < limit && buf[p] != 0) {
+                p++;
+            }
+            final boolean terminated = p < limit;
+            input.pos = terminated ? p + 1 : p;
+            if (terminated) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Skip over a block of opaque data of the given length in the stream
+     *
+     * @param length the number of bytes of opaque data
+     * @throws IOException
+     */
+    private void skipOpaque(int length) throws IOException {
+        final InputBuffer input = in;
+        while (length > 0) {
+            if (input.pos == input.limit) {
+                // Nothing buffered, so this skips in the underlying stream
+                final long skipped = input.skip(length);
+                if (skipped > 0) {
+                    length -= skipped;
+                    continue;
+                }
+                if (!input.fill()) {
+                    throw new EofException();
+                }
+            }
+            final int count = Math.min(length, input.limit - input.pos);
+            input.pos += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Read a block of opaque data of the given length from the stream
+     *
+     * @param length the number of bytes of opaque data
+     * @return the opaque data
+     * @throws IOException
+     */
+    private byte[] readOpaque(final int length) throws IOException {
+        final byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            final int count = in.read(data, offset, length - offset);
+            if (count == EOF_BYTE) {
                 throw new EofException();
             }
-            outputStream.write(i);
+            offset += count;
         }
-        outputStream.flush();
-        final String res = outputStream.toString("UTF-8");
-        outputStream.close();
-        return res;
+        return data;
     }
 }
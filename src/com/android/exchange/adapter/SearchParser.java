@@ -13,6 +13,7 @@ import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.utility.TextUtilities;
 import com.android.exchange.Eas;
+import com.android.exchange.utility.OperationMetrics;
 import com.android.mail.utils.LogUtils;
 
 import java.io.IOException;
@@ -98,6 +99,7 @@ public class SearchParser extends Parser {
             }
         }
 
+        final long commitStart = OperationMetrics.startCommit();
         try {
             // FLAG: In EmailSyncParser.commit(), we have complicated logic to constrain the size
             // of the batch, and fall back to one op at a time if that fails. We don't have any
@@ -107,6 +109,8 @@ public class SearchParser extends Parser {
         } catch (RemoteException e) {
             LogUtils.d(Logging.LOG_TAG, "RemoteException while saving search results.");
         } catch (OperationApplicationException e) {
+        } finally {
+            OperationMetrics.endCommit(commitStart);
         }
 
         return res;
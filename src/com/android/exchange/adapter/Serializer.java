@@ -32,26 +32,51 @@ import com.android.exchange.utility.FileLogger;
 import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Deque;
+import java.util.HashMap;
 
+/**
+ * Serializes EAS commands as WBXML. Tokens and strings are encoded straight into a byte buffer
+ * owned by the Serializer: when writing to a stream, the buffer is passed on to the stream as it
+ * fills; otherwise the buffer holds the document, which grows as needed.
+ */
 public class Serializer {
     private static final String TAG = Eas.LOG_TAG;
+    // Size of the buffer used when writing to a stream
     private static final int BUFFER_SIZE = 16*1024;
+    // Initial size of the buffer when the Serializer holds the document itself
+    private static final int INITIAL_DOCUMENT_SIZE = 1024;
     private static final int NOT_PENDING = -1;
+    private static final int INITIAL_TABLE_TEXTS = 64;
+    private static final int INITIAL_TAG_STACK_SIZE = 32;
 
+    // The stream the document is written to, or null if the document is kept in mBuffer
     private final OutputStream mOutput;
+    // Bytes that have been serialized but not yet written to mOutput; without an mOutput, or
+    // while we hold back the body to build a string table, this is the document itself
+    private byte[] mBuffer;
+    private int mCount = 0;
     private int mPendingTag = NOT_PENDING;
-    private final Deque<String> mNameStack = new ArrayDeque<String>();
+    // The stack of open tags; their names are only looked up when we're logging
+    private int[] mTagStack = new int[INITIAL_TAG_STACK_SIZE];
+    private int mTagDepth = 0;
     private int mTagPage = 0;
 
+    // When building a string table, the text values of the document in order, and the offset
+    // into the body at which each of them belongs; otherwise null
+    private final ArrayList<String> mTableTexts;
+    private int[] mTableTextOffsets;
+    // Whether the document body is being held in mBuffer until done() (to build a string table)
+    private boolean mHoldingBody;
+
     public Serializer() throws IOException {
-        this(new ByteArrayOutputStream(), true);
+        this(null, true);
     }
 
     public Serializer(OutputStream os) throws IOException {
@@ -60,23 +85,47 @@ public class Serializer {
 
     @VisibleForTesting
     public Serializer(boolean startDocument) throws IOException {
-        this(new ByteArrayOutputStream(), startDocument);
+        this(null, startDocument);
+    }
+
+    public Serializer(final OutputStream outputStream, final boolean startDocument)
+            throws IOException {
+        this(outputStream, startDocument, false);
     }
 
     /**
      * Base constructor
-     * @param outputStream the stream we're serializing to
+     * @param outputStream the stream we're serializing to; if null, the Serializer holds the
+     *     document, which can be retrieved with {@link #toByteArray}
      * @param startDocument whether or not to start a document
+     * @param useStringTable whether to put strings that are used more than once into a WBXML
+     *     string table, referring to them from the body rather than writing them inline. This
+     *     makes documents with a lot of repetition smaller, but the whole document is held in
+     *     memory until {@link #done}, which writes it out. Only valid with startDocument, as the
+     *     string table is part of the document header.
      * @throws IOException
      */
-    public Serializer(final OutputStream outputStream, final boolean startDocument)
-            throws IOException {
+    public Serializer(final OutputStream outputStream, final boolean startDocument,
+            final boolean useStringTable) throws IOException {
         super();
         mOutput = outputStream;
-        if (startDocument) {
-            startDocument();
+        mBuffer = new byte[outputStream == null || useStringTable
+                ? INITIAL_DOCUMENT_SIZE : BUFFER_SIZE];
+        if (useStringTable) {
+            if (!startDocument) {
+                throw new IllegalArgumentException("String table requires a document header");
+            }
+            // The header (which includes the table) is written in done()
+            mHoldingBody = true;
+            mTableTexts = new ArrayList<String>();
+            mTableTextOffsets = new int[INITIAL_TABLE_TEXTS];
         } else {
-            mOutput.write(0);
+            mTableTexts = null;
+            if (startDocument) {
+                startDocument();
+            } else {
+                write(0);
+            }
         }
     }
 
@@ -91,7 +140,7 @@ public class Serializer {
         } else {
             logStr = str;
         }
-        final char [] charArray = new char[mNameStack.size() * 2];
+        final char [] charArray = new char[mTagDepth * 2];
         Arrays.fill(charArray, ' ');
         final String indent = new String(charArray);
         LogUtils.d(TAG, "%s%s", indent, logStr);
@@ -101,17 +150,93 @@ public class Serializer {
     }
 
     public void done() throws IOException {
-        if (mNameStack.size() != 0 || mPendingTag != NOT_PENDING) {
+        if (mTagDepth != 0 || mPendingTag != NOT_PENDING) {
             throw new IOException("Done received with unclosed tags");
         }
-        mOutput.flush();
+        if (mHoldingBody) {
+            writeDocumentWithStringTable();
+        }
+        if (mOutput != null) {
+            flushBuffer();
+            mOutput.flush();
+        }
     }
 
     public void startDocument() throws IOException {
-        mOutput.write(0x03); // version 1.3
-        mOutput.write(0x01); // unknown or missing public identifier
-        mOutput.write(106);  // UTF-8
-        mOutput.write(0);    // 0 length string array
+        writeHeader();
+        write(0);    // 0 length string array
+    }
+
+    private void writeHeader() throws IOException {
+        write(0x03); // version 1.3
+        write(0x01); // unknown or missing public identifier
+        write(106);  // UTF-8
+    }
+
+    /**
+     * Write out the document we've been holding back: the header with a string table of the
+     * strings that are worth sharing, then the body, with each text value written either inline
+     * or as a reference into the string table.
+     */
+    private void writeDocumentWithStringTable() throws IOException {
+        final int textCount = mTableTexts.size();
+        final HashMap<String, Integer> uses = new HashMap<String, Integer>();
+        for (int i = 0; i < textCount; i++) {
+            final String text = mTableTexts.get(i);
+            final Integer count = uses.get(text);
+            uses.put(text, count == null ? 1 : count + 1);
+        }
+
+        // Lay out the table, in order of first use. A string goes in if writing it once in the
+        // table and referring to it everywhere costs fewer bytes than writing it inline each time.
+        final HashMap<String, Integer> tableOffsets = new HashMap<String, Integer>();
+        final ByteArrayOutputStream table = new ByteArrayOutputStream();
+        for (int i = 0; i < textCount; i++) {
+            final String text = mTableTexts.get(i);
+            final int count = uses.get(text);
+            if (count < 2 || tableOffsets.containsKey(text)) {
+                continue;
+            }
+            final byte[] data = text.getBytes("UTF-8");
+            final int offset = table.size();
+            // STR_I, the string, and its terminator
+            final int inlineSize = data.length + 2;
+            // STR_T and the offset
+            final int referenceSize = 1 + getIntegerLength(offset);
+            if (count * inlineSize > data.length + 1 + count * referenceSize) {
+                tableOffsets.put(text, offset);
+                table.write(data);
+                table.write(0);
+            }
+        }
+
+        // Start over with the real document, now that it can go straight to the output
+        final byte[] body = mBuffer;
+        final int bodyLength = mCount;
+        mBuffer = new byte[mOutput == null ? bodyLength + table.size() + 8 : BUFFER_SIZE];
+        mCount = 0;
+        mHoldingBody = false;
+
+        writeHeader();
+        writeInteger(table.size());
+        final byte[] tableBytes = table.toByteArray();
+        write(tableBytes, 0, tableBytes.length);
+
+        int position = 0;
+        for (int i = 0; i < textCount; i++) {
+            final String text = mTableTexts.get(i);
+            final int textOffset = mTableTextOffsets[i];
+            write(body, position, textOffset - position);
+            position = textOffset;
+            final Integer tableOffset = tableOffsets.get(text);
+            if (tableOffset != null) {
+                write(Wbxml.STR_T);
+                writeInteger(tableOffset);
+            } else {
+                writeInlineString(text);
+            }
+        }
+        write(body, position, bodyLength - position);
     }
 
     private void checkPendingTag(final boolean degenerated) throws IOException {
@@ -123,24 +248,35 @@ public class Serializer {
         final int tag = mPendingTag & Tags.PAGE_MASK;
         if (page != mTagPage) {
             mTagPage = page;
-            mOutput.write(Wbxml.SWITCH_PAGE);
-            mOutput.write(page);
+            write(Wbxml.SWITCH_PAGE);
+            write(page);
+        }
+
+        write(degenerated ? tag : tag | Wbxml.WITH_CONTENT);
+        if (EasService.getProtocolLogging()) {
+            log("<" + getTagName(page, tag) + (degenerated ? "/>" : ">"));
         }
+        if (!degenerated) {
+            if (mTagDepth == mTagStack.length) {
+                mTagStack = Arrays.copyOf(mTagStack, mTagDepth * 2);
+            }
+            mTagStack[mTagDepth++] = mPendingTag;
+        }
+        mPendingTag = NOT_PENDING;
+    }
 
-        mOutput.write(degenerated ? tag : tag | Wbxml.WITH_CONTENT);
-        String name = "unknown";
+    /**
+     * Look up the name of a tag, for logging
+     */
+    private String getTagName(final int page, final int tag) {
         if (!Tags.isValidPage(page)) {
             log("Unrecognized page " + page);
         } else if (!Tags.isValidTag(page, tag)) {
             log("Unknown tag " + tag + " on page " + page);
         } else {
-            name = Tags.getTagName(page, tag);
+            return Tags.getTagName(page, tag);
         }
-        log("<" + name + (degenerated ? "/>" : ">"));
-        if (!degenerated) {
-            mNameStack.addFirst(name);
-        }
-        mPendingTag = NOT_PENDING;
+        return "unknown";
     }
 
     public Serializer start(final int tag) throws IOException {
@@ -153,9 +289,14 @@ public class Serializer {
         if (mPendingTag >= 0) {
             checkPendingTag(true);
         } else {
-            mOutput.write(Wbxml.END);
-            final String tagName = mNameStack.removeFirst();
-            log("</" + tagName + '>');
+            if (mTagDepth == 0) {
+                throw new IOException("End received with no open tag");
+            }
+            write(Wbxml.END);
+            final int tag = mTagStack[--mTagDepth];
+            if (EasService.getProtocolLogging()) {
+                log("</" + getTagName(tag >> Tags.PAGE_SHIFT, tag & Tags.PAGE_MASK) + '>');
+            }
         }
         return this;
     }
@@ -184,8 +325,20 @@ public class Serializer {
             throw new IOException("Null text write for pending tag: " + mPendingTag);
         }
         checkPendingTag(false);
-        writeInlineString(mOutput, text);
-        log(text);
+        if (mHoldingBody) {
+            // Remember where the text goes; we'll decide how to write it in done()
+            final int index = mTableTexts.size();
+            if (index == mTableTextOffsets.length) {
+                mTableTextOffsets = Arrays.copyOf(mTableTextOffsets, index * 2);
+            }
+            mTableTextOffsets[index] = mCount;
+            mTableTexts.add(text);
+        } else {
+            writeInlineString(text);
+        }
+        if (EasService.getProtocolLogging()) {
+            log(text);
+        }
         return this;
     }
 
@@ -195,17 +348,26 @@ public class Serializer {
      */
     public Serializer opaque(final InputStream is, final int length) throws IOException {
         writeOpaqueHeader(length);
-        log("opaque: " + length);
-        // Now write out the opaque data in batches
-        final byte[] buffer = new byte[BUFFER_SIZE];
+        if (EasService.getProtocolLogging()) {
+            log("opaque: " + length);
+        }
+        if (mOutput == null || mHoldingBody) {
+            // The data is going to end up in our buffer, so make room for all of it up front
+            ensureCapacity(length);
+        }
+        // Now read the opaque data straight into our buffer, in batches if we're streaming
         int totalBytesRead = 0;
         while (totalBytesRead < length) {
-            final int bytesRead = is.read(buffer, 0, Math.min(BUFFER_SIZE, length));
+            if (mCount == mBuffer.length) {
+                makeRoom(1);
+            }
+            final int bytesRead = is.read(mBuffer, mCount,
+                    Math.min(mBuffer.length - mCount, length - totalBytesRead));
             if (bytesRead == -1) {
                 throw new IOException("Invalid opaque data block; read "
                         + totalBytesRead + " bytes but expected " + length);
             }
-            mOutput.write(buffer, 0, bytesRead);
+            mCount += bytesRead;
             totalBytesRead += bytesRead;
         }
         return this;
@@ -225,8 +387,8 @@ public class Serializer {
             return this;
         }
         checkPendingTag(false);
-        mOutput.write(Wbxml.OPAQUE);
-        writeInteger(mOutput, length);
+        write(Wbxml.OPAQUE);
+        writeInteger(length);
         return this;
     }
 
@@ -247,12 +409,122 @@ public class Serializer {
         out.write(buf[0]);
     }
 
-    private static void writeInlineString(final OutputStream out, final String s)
-        throws IOException {
-        out.write(Wbxml.STR_I);
-        final byte[] data = s.getBytes("UTF-8");
-        out.write(data);
-        out.write(0);
+    /**
+     * Writes an integer into our buffer, in the same encoding as writeInteger(OutputStream, int)
+     */
+    private void writeInteger(final int i) throws IOException {
+        final int length = getIntegerLength(i);
+        if (mCount + length > mBuffer.length) {
+            makeRoom(length);
+        }
+        // Most significant group first, with the high bit set on all but the last byte
+        for (int shift = (length - 1) * 7; shift > 0; shift -= 7) {
+            mBuffer[mCount++] = (byte) (((i >>> shift) & 0x7f) | 0x80);
+        }
+        mBuffer[mCount++] = (byte) (i & 0x7f);
+    }
+
+    /**
+     * @return the number of bytes writeInteger() uses to write i
+     */
+    private static int getIntegerLength(int i) {
+        int length = 1;
+        while ((i >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Writes an inline string, encoding it as UTF-8 directly into our buffer
+     */
+    private void writeInlineString(final String s) throws IOException {
+        write(Wbxml.STR_I);
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            // Room for the longest encoding of a character
+            if (mCount + 4 > mBuffer.length) {
+                makeRoom(4);
+            }
+            final byte[] buffer = mBuffer;
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer[mCount++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[mCount++] = (byte) (0xC0 | (c >> 6));
+                buffer[mCount++] = (byte) (0x80 | (c & 0x3F));
+            } else if (!Character.isSurrogate(c)) {
+                buffer[mCount++] = (byte) (0xE0 | (c >> 12));
+                buffer[mCount++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[mCount++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                buffer[mCount++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[mCount++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[mCount++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[mCount++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                // An unpaired surrogate; String.getBytes() encodes these as '?'
+                buffer[mCount++] = '?';
+            }
+        }
+        write(0);
+    }
+
+    private void write(final int b) throws IOException {
+        if (mCount == mBuffer.length) {
+            makeRoom(1);
+        }
+        mBuffer[mCount++] = (byte) b;
+    }
+
+    private void write(final byte[] b, final int off, final int len) throws IOException {
+        if (mCount + len > mBuffer.length) {
+            makeRoom(len);
+        }
+        if (len > mBuffer.length - mCount) {
+            // Too big for the buffer even when it's empty; this must be going to mOutput
+            mOutput.write(b, off, len);
+            return;
+        }
+        System.arraycopy(b, off, mBuffer, mCount, len);
+        mCount += len;
+    }
+
+    /**
+     * Make room for at least some more bytes in the buffer: by passing what we have on to the
+     * output stream if we're streaming (in which case the room may still be less than asked for,
+     * if more than the whole buffer was asked for), or else by growing the buffer.
+     */
+    private void makeRoom(final int needed) throws IOException {
+        if (mOutput != null && !mHoldingBody) {
+            flushBuffer();
+            if (needed <= mBuffer.length) {
+                return;
+            }
+            if (needed > BUFFER_SIZE) {
+                // Callers that can handle it write large blocks straight to mOutput
+                return;
+            }
+        }
+        ensureCapacity(needed);
+    }
+
+    /**
+     * Grow the buffer, if necessary, so that it can take the given number of additional bytes
+     */
+    private void ensureCapacity(final int needed) {
+        if (mCount + needed > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mCount + needed));
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mCount > 0) {
+            mOutput.write(mBuffer, 0, mCount);
+            mCount = 0;
+        }
     }
 
     /**
@@ -269,16 +541,71 @@ public class Serializer {
         }
     }
 
+    /**
+     * While we hold back the body to build a string table, the buffer has neither the header nor
+     * the table, so there's no document to hand out until {@link #done} has written them.
+     */
+    private void checkNotHoldingBody() {
+        if (mHoldingBody) {
+            throw new IllegalStateException("Document with a string table used before done()");
+        }
+    }
+
+    /**
+     * @return the length of the document, which must be held by this Serializer (i.e. it was
+     *     created without an output stream, or with a ByteArrayOutputStream)
+     */
+    int getLength() {
+        checkNotHoldingBody();
+        if (mOutput == null) {
+            return mCount;
+        } else if (mOutput instanceof ByteArrayOutputStream) {
+            return ((ByteArrayOutputStream)mOutput).size();
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Write the document held by this Serializer to a stream, without copying it
+     */
+    void writeTo(final OutputStream out) throws IOException {
+        checkNotHoldingBody();
+        if (mOutput == null) {
+            out.write(mBuffer, 0, mCount);
+        } else if (mOutput instanceof ByteArrayOutputStream) {
+            ((ByteArrayOutputStream)mOutput).writeTo(out);
+        } else {
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * @return a stream over the document held by this Serializer
+     */
+    InputStream getInputStream() {
+        checkNotHoldingBody();
+        if (mOutput == null) {
+            return new ByteArrayInputStream(mBuffer, 0, mCount);
+        }
+        return new ByteArrayInputStream(toByteArray());
+    }
+
     @Override
     public String toString() {
-        if (mOutput instanceof ByteArrayOutputStream) {
+        checkNotHoldingBody();
+        if (mOutput == null) {
+            return new String(mBuffer, 0, mCount);
+        } else if (mOutput instanceof ByteArrayOutputStream) {
             return ((ByteArrayOutputStream)mOutput).toString();
         }
         throw new IllegalStateException();
     }
 
     public byte[] toByteArray() {
-        if (mOutput instanceof ByteArrayOutputStream) {
+        checkNotHoldingBody();
+        if (mOutput == null) {
+            return Arrays.copyOf(mBuffer, mCount);
+        } else if (mOutput instanceof ByteArrayOutputStream) {
             return ((ByteArrayOutputStream)mOutput).toByteArray();
         }
         throw new IllegalStateException();
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An {@link org.apache.http.HttpEntity} for the document held by a {@link Serializer}. The
+ * document is written from the Serializer's own buffer, rather than from a copy of it, and its
+ * length is known, so requests aren't sent chunked. The entity is repeatable, so it can be sent
+ * again on redirects.
+ *
+ * The Serializer must be {@link Serializer#done} before the entity is created, and must not be
+ * written to afterwards.
+ */
+public class SerializerEntity extends AbstractHttpEntity {
+    private final Serializer mSerializer;
+
+    public SerializerEntity(final Serializer serializer) {
+        mSerializer = serializer;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return mSerializer.getLength();
+    }
+
+    @Override
+    public InputStream getContent() {
+        return mSerializer.getInputStream();
+    }
+
+    @Override
+    public void writeTo(final OutputStream outstream) throws IOException {
+        if (outstream == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        mSerializer.writeTo(outstream);
+        outstream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import com.android.exchange.CommandStatusException;
+import com.android.exchange.Eas;
+import com.android.mail.utils.LogUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Parse the response to a Sync request for several collections. Each Collection in the response
+ * is handed to the {@link AbstractSyncParser} for its folder, which parses and commits it before
+ * we go on to the next. A Status that fails one collection's sync doesn't stop us from parsing
+ * the others; we record it, and it's up to our caller to drop that collection, and to call
+ * {@link #checkAllFailed} to fail the request as a whole if none of them succeeded.
+ */
+public class SyncCollectionsParser extends Parser {
+    private static final String TAG = Eas.LOG_TAG;
+
+    /** The parsers for the collections in the request, by server id. */
+    private final Map<String, AbstractSyncParser> mParsers;
+    /** The server ids of the collections that the server has more data for. */
+    private final HashSet<String> mMoreAvailable = new HashSet<String>();
+    /** The server ids of the collections in the response, in order. */
+    private final ArrayList<String> mParsed = new ArrayList<String>();
+    /** The Status that failed each collection whose sync failed, by server id. */
+    private final HashMap<String, Integer> mFailedStatuses = new HashMap<String, Integer>();
+
+    public SyncCollectionsParser(final InputStream in,
+            final Map<String, AbstractSyncParser> parsers) throws IOException {
+        super(in);
+        mParsers = parsers;
+    }
+
+    /**
+     * @param serverId The server id of a collection in the request.
+     * @return Whether the server has more data for it.
+     */
+    public boolean isMoreAvailable(final String serverId) {
+        return mMoreAvailable.contains(serverId);
+    }
+
+    /**
+     * @param serverId The server id of a collection in the request.
+     * @return Whether the server failed its sync, in which case nothing was committed for it.
+     */
+    public boolean isFailed(final String serverId) {
+        return mFailedStatuses.containsKey(serverId);
+    }
+
+    /**
+     * @return Whether any of the failed collections needs a folder sync before we try again.
+     */
+    public boolean isFolderSyncNeeded() {
+        for (final int status : mFailedStatuses.values()) {
+            if (AbstractSyncParser.isFolderSyncNeeded(status)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * If the response had collections and every one of them failed, fail the request as a whole
+     * the way a sync of one of them would, so that e.g. server errors get backoff.
+     * @throws IOException
+     * @throws CommandStatusException
+     */
+    public void checkAllFailed() throws IOException, CommandStatusException {
+        if (!mParsed.isEmpty() && mFailedStatuses.size() == mParsed.size()) {
+            AbstractSyncParser.throwForStatus(mFailedStatuses.get(mParsed.get(0)));
+        }
+    }
+
+    private void parseCollection() throws IOException, CommandStatusException {
+        // The SyncKey comes before the CollectionId, so we hold on to it for the collection's
+        // parser
+        String syncKey = null;
+        while (nextTag(Tags.SYNC_COLLECTION) != END) {
+            if (tag == Tags.SYNC_SYNC_KEY) {
+                syncKey = getValue();
+            } else if (tag == Tags.SYNC_COLLECTION_ID) {
+                final String serverId = getValue();
+                final AbstractSyncParser parser = mParsers.get(serverId);
+                if (parser == null) {
+                    // Skip the rest of this collection
+                    LogUtils.w(TAG, "Sync response for unexpected collection %s", serverId);
+                    continue;
+                }
+                // The collection's parser consumes the end of the Collection, so it mustn't be
+                // counted here as well
+                pop();
+                mParsed.add(serverId);
+                if (parser.parseCollection(this, syncKey)) {
+                    mMoreAvailable.add(serverId);
+                } else if (parser.isCollectionFailed()) {
+                    final int status = parser.getCollectionStatus();
+                    LogUtils.w(TAG, "Sync: status %d for collection %s", status, serverId);
+                    mFailedStatuses.put(serverId, status);
+                }
+                return;
+            } else {
+                skipTag();
+            }
+        }
+    }
+
+    /**
+     * @return Whether the server has more data for any of the collections.
+     */
+    @Override
+    public boolean parse() throws IOException, CommandStatusException {
+        if (nextTag(START_DOCUMENT) != Tags.SYNC_SYNC) {
+            throw new EasParserException();
+        }
+        while (nextTag(START_DOCUMENT) != END_DOCUMENT) {
+            if (tag == Tags.SYNC_COLLECTIONS) {
+                // Just a container for the collections
+            } else if (tag == Tags.SYNC_COLLECTION) {
+                parseCollection();
+            } else if (tag == Tags.SYNC_STATUS) {
+                // A status outside of any collection is for the request as a whole
+                final int status = getValueInt();
+                if (status != 1) {
+                    LogUtils.e(TAG, "Sync: status %d for request", status);
+                    if (status == 16 || status == 5) {
+                        // Transient server errors; see AbstractSyncParser
+                        throw new IOException();
+                    }
+                    throw new CommandStatusException(status);
+                }
+            } else {
+                skipTag();
+            }
+        }
+        return !mMoreAvailable.isEmpty();
+    }
+}
@@ -17,26 +17,48 @@
 package com.android.exchange.eas;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.text.format.DateUtils;
 
 import com.android.emailcommon.provider.HostAuth;
 import com.android.emailcommon.utility.EmailClientConnectionManager;
 import com.android.exchange.Eas;
+import com.android.exchange.utility.CurlLogger;
+import com.android.exchange.utility.WbxmlResponseLogger;
 import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
 
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
 import org.apache.http.conn.params.ConnManagerPNames;
 import org.apache.http.conn.params.ConnPerRoute;
 import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpProcessor;
 
+import java.io.PrintWriter;
 import java.security.cert.CertificateException;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Manage all {@link EmailClientConnectionManager}s used by Exchange operations.
- * When making connections for persisted accounts, this class will cache and reuse connections
- * as much as possible. All access of connection objects should accordingly go through this class.
+ * Manage all {@link EmailClientConnectionManager}s, and the {@link HttpClient}s using them, used by
+ * Exchange operations. When making connections for persisted accounts, this class will cache and
+ * reuse connections as much as possible. All access of connection objects should accordingly go
+ * through this class.
  *
  * We use {@link HostAuth}'s id as the cache key. Multiple calls to {@link #getConnectionManager}
  * with {@link HostAuth} objects with the same id will get the same connection object returned,
@@ -44,38 +66,234 @@ import java.util.HashMap;
  * not just the id. If the {@link HostAuth} changes or is deleted, {@link #uncacheConnectionManager}
  * must be called.
  *
+ * A connection manager stays cached for as long as it's in use. Once it has had no connections
+ * for {@link #MANAGER_IDLE_TIMEOUT} it's shut down by a background reaper, which also closes
+ * pooled connections that have been idle for {@link #CONNECTION_IDLE_TIMEOUT}. At most
+ * {@link #MAX_CACHED_MANAGERS} idle managers are kept; beyond that the least recently used ones
+ * are shut down.
+ *
+ * Each cached connection manager has one {@link HttpClient}, which is shared by all the requests
+ * for its {@link HostAuth}, from any thread. As the client is shared, its parameters must not be
+ * changed; per-request settings such as the socket timeout go in the request's parameters, which
+ * take precedence over the client's.
+ *
+ * For each {@link HostAuth} we also keep {@link Stats} on how connections are leased.
+ *
  * This cache is a singleton since the whole point is to not have multiples.
  */
 public class EasConnectionCache {
 
-    /** The max length of time we want to keep a connection in the cache. */
-    private static final long MAX_LIFETIME = 10 * DateUtils.MINUTE_IN_MILLIS;
+    /** How long a connection manager may go without connections before we shut it down. */
+    private static final long MANAGER_IDLE_TIMEOUT = 10 * DateUtils.MINUTE_IN_MILLIS;
+    /** How long a pooled connection may go unused before we close it. */
+    private static final long CONNECTION_IDLE_TIMEOUT = 5 * DateUtils.MINUTE_IN_MILLIS;
+    /** How often the reaper runs while there are cached connection managers. */
+    private static final long REAP_INTERVAL = DateUtils.MINUTE_IN_MILLIS;
+    /** The max number of connection managers we cache. */
+    private static final int MAX_CACHED_MANAGERS = 8;
+    /**
+     * How long after handing out a connection manager we avoid evicting it to make room for
+     * another, as it may not have leased a connection yet.
+     */
+    private static final long EVICTION_GRACE_PERIOD = DateUtils.MINUTE_IN_MILLIS;
 
-    private final HashMap<Long, EmailClientConnectionManager> mConnectionMap;
-    /** The creation time of connections in mConnectionMap. */
-    private final HashMap<Long, Long> mConnectionCreationTimes;
+    /** Timeout for establishing a connection. */
+    private static final int CONNECTION_TIMEOUT = (int) (20 * DateUtils.SECOND_IN_MILLIS);
+    /** Socket timeout for requests that don't set one. */
+    private static final int DEFAULT_SOCKET_TIMEOUT = (int) (30 * DateUtils.SECOND_IN_MILLIS);
+    private static final int SOCKET_BUFFER_SIZE = 8192;
+
+    /** Pool limits for each connection manager. Each manager serves a single HostAuth. */
+    private static final int MAX_TOTAL_CONNECTIONS = 25;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 8;
 
     private static final ConnPerRoute sConnPerRoute = new ConnPerRoute() {
         @Override
         public int getMaxForRoute(final HttpRoute route) {
-            return 8;
+            return MAX_CONNECTIONS_PER_ROUTE;
+        }
+    };
+
+    /**
+     * Counters for the connections leased for one {@link HostAuth}. These survive the connection
+     * manager being uncached, so they cover the lifetime of the process.
+     */
+    public static class Stats {
+        private final AtomicLong mLeases = new AtomicLong();
+        private final AtomicLong mReused = new AtomicLong();
+        private final AtomicLong mWaitNanos = new AtomicLong();
+        private final AtomicLong mMaxWaitNanos = new AtomicLong();
+        private final AtomicLong mManagersCreated = new AtomicLong();
+
+        private void recordLease(final boolean reused, final long waitNanos) {
+            mLeases.incrementAndGet();
+            if (reused) {
+                mReused.incrementAndGet();
+            }
+            mWaitNanos.addAndGet(waitNanos);
+            long max;
+            while (waitNanos > (max = mMaxWaitNanos.get())) {
+                if (mMaxWaitNanos.compareAndSet(max, waitNanos)) {
+                    break;
+                }
+            }
+        }
+
+        /** @return The number of connections leased. */
+        public long getLeases() {
+            return mLeases.get();
+        }
+
+        /** @return The number of leases that got an already open connection. */
+        public long getReused() {
+            return mReused.get();
+        }
+
+        /**
+         * @return The number of leases that got a connection that had to be opened, i.e. the
+         *     number of TCP (and for SSL, TLS) handshakes.
+         */
+        public long getHandshakes() {
+            return mLeases.get() - mReused.get();
+        }
+
+        /** @return The fraction of leases that got an already open connection. */
+        public double getReuseRatio() {
+            final long leases = mLeases.get();
+            return leases == 0 ? 0 : (double) mReused.get() / leases;
+        }
+
+        /** @return The total time spent waiting for a connection from the pool, in ms. */
+        public long getWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(mWaitNanos.get());
+        }
+
+        /** @return The longest time spent waiting for a connection from the pool, in ms. */
+        public long getMaxWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(mMaxWaitNanos.get());
+        }
+
+        /** @return The number of connection managers created. */
+        public long getManagersCreated() {
+            return mManagersCreated.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("leases=%d reuse=%.2f handshakes=%d wait=%dms maxWait=%dms "
+                    + "managers=%d", getLeases(), getReuseRatio(), getHandshakes(),
+                    getWaitMillis(), getMaxWaitMillis(), getManagersCreated());
+        }
+    }
+
+    /**
+     * Wraps the {@link ClientConnectionManager} an {@link HttpClient} uses, to record
+     * {@link Stats} for each connection leased. Connections are released to the underlying
+     * manager directly, so we only see the lease side here.
+     */
+    private static class MeteredConnectionManager implements ClientConnectionManager {
+        private final ClientConnectionManager mManager;
+        private final Stats mStats;
+
+        public MeteredConnectionManager(final ClientConnectionManager manager,
+                final Stats stats) {
+            mManager = manager;
+            mStats = stats;
+        }
+
+        @Override
+        public SchemeRegistry getSchemeRegistry() {
+            return mManager.getSchemeRegistry();
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(final HttpRoute route,
+                final Object state) {
+            final ClientConnectionRequest request = mManager.requestConnection(route, state);
+            return new ClientConnectionRequest() {
+                @Override
+                public ManagedClientConnection getConnection(final long timeout,
+                        final TimeUnit unit)
+                        throws InterruptedException, ConnectionPoolTimeoutException {
+                    final long start = System.nanoTime();
+                    final ManagedClientConnection connection =
+                            request.getConnection(timeout, unit);
+                    mStats.recordLease(connection.isOpen(), System.nanoTime() - start);
+                    return connection;
+                }
+
+                @Override
+                public void abortRequest() {
+                    request.abortRequest();
+                }
+            };
+        }
+
+        @Override
+        public void releaseConnection(final ManagedClientConnection connection,
+                final long validDuration, final TimeUnit unit) {
+            mManager.releaseConnection(connection, validDuration, unit);
+        }
+
+        @Override
+        public void closeIdleConnections(final long idleTime, final TimeUnit unit) {
+            mManager.closeIdleConnections(idleTime, unit);
+        }
+
+        @Override
+        public void closeExpiredConnections() {
+            mManager.closeExpiredConnections();
+        }
+
+        @Override
+        public void shutdown() {
+            mManager.shutdown();
+        }
+    }
+
+    /** A cached connection manager. Its fields are guarded by the entry itself. */
+    private static class Entry {
+        public EmailClientConnectionManager mManager;
+        public HttpClient mHttpClient;
+        public long mLastUsed;
+        public boolean mRemoved;
+    }
+
+    private final ConcurrentHashMap<Long, Entry> mEntries = new ConcurrentHashMap<Long, Entry>();
+    private final ConcurrentHashMap<Long, Stats> mStats = new ConcurrentHashMap<Long, Stats>();
+
+    private final int mMaxManagers;
+    private final long mManagerIdleTimeout;
+    private final long mEvictionGracePeriod;
+
+    /** Runs {@link #reap}; created along with the first cached connection manager. */
+    private ScheduledExecutorService mReaper;
+    /** The scheduled reap, or null if there's nothing to reap. Guarded by this. */
+    private ScheduledFuture<?> mReapFuture;
+
+    private final Runnable mReapTask = new Runnable() {
+        @Override
+        public void run() {
+            reap(SystemClock.elapsedRealtime());
         }
     };
 
     /** The singleton instance of the cache. */
-    private static EasConnectionCache sCache = null;
+    private static final EasConnectionCache sCache =
+            new EasConnectionCache(MAX_CACHED_MANAGERS, MANAGER_IDLE_TIMEOUT,
+                    EVICTION_GRACE_PERIOD);
 
     /** Accessor for the cache singleton. */
     public static EasConnectionCache instance() {
-        if (sCache == null) {
-            sCache = new EasConnectionCache();
-        }
         return sCache;
     }
 
-    private EasConnectionCache() {
-        mConnectionMap = new HashMap<Long, EmailClientConnectionManager>();
-        mConnectionCreationTimes = new HashMap<Long, Long>();
+    @VisibleForTesting
+    EasConnectionCache(final int maxManagers, final long managerIdleTimeout,
+            final long evictionGracePeriod) {
+        mMaxManagers = maxManagers;
+        mManagerIdleTimeout = managerIdleTimeout;
+        mEvictionGracePeriod = evictionGracePeriod;
     }
 
     /**
@@ -89,47 +307,90 @@ public class EasConnectionCache {
             throws CertificateException {
         LogUtils.d(Eas.LOG_TAG, "Creating new connection manager for HostAuth %d", hostAuth.mId);
         final HttpParams params = new BasicHttpParams();
-        params.setIntParameter(ConnManagerPNames.MAX_TOTAL_CONNECTIONS, 25);
+        params.setIntParameter(ConnManagerPNames.MAX_TOTAL_CONNECTIONS, MAX_TOTAL_CONNECTIONS);
         params.setParameter(ConnManagerPNames.MAX_CONNECTIONS_PER_ROUTE, sConnPerRoute);
         final EmailClientConnectionManager mgr =
                 EmailClientConnectionManager.newInstance(context, params, hostAuth);
 
         mgr.registerClientCert(context, hostAuth);
+        getStats(hostAuth.mId).mManagersCreated.incrementAndGet();
 
         return mgr;
     }
 
+    /**
+     * Create an {@link HttpClient} that uses a connection manager, recording {@link Stats} for
+     * the connections it leases.
+     * @param hostAuth The {@link HostAuth} the connection manager is for.
+     * @param connectionManager The connection manager.
+     * @return The {@link HttpClient}.
+     */
+    private HttpClient createHttpClient(final HostAuth hostAuth,
+            final EmailClientConnectionManager connectionManager) {
+        final HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, DEFAULT_SOCKET_TIMEOUT);
+        HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+        final ClientConnectionManager meteredManager =
+                new MeteredConnectionManager(connectionManager, getStats(hostAuth.mId));
+        return new DefaultHttpClient(meteredManager, params) {
+            @Override
+            protected BasicHttpProcessor createHttpProcessor() {
+                final BasicHttpProcessor processor = super.createHttpProcessor();
+                processor.addRequestInterceptor(new CurlLogger());
+                processor.addResponseInterceptor(new WbxmlResponseLogger());
+                return processor;
+            }
+        };
+    }
+
     /**
      * Get the correct {@link EmailClientConnectionManager} for a {@link HostAuth} from our cache.
      * If it's not in the cache, create and add it.
-     * If the cached connection is old, recreate it.
      * @param context The {@link Context}.
      * @param hostAuth The {@link HostAuth} to which we want to connect.
      * @return The {@link EmailClientConnectionManager} for hostAuth.
      */
-    private synchronized EmailClientConnectionManager getCachedConnectionManager(
+    private EmailClientConnectionManager getCachedConnectionManager(
             final Context context, final HostAuth hostAuth)
             throws CertificateException {
-        EmailClientConnectionManager connectionManager = mConnectionMap.get(hostAuth.mId);
-        final long now = System.currentTimeMillis();
-        if (connectionManager != null) {
-            final long lifetime = now - mConnectionCreationTimes.get(hostAuth.mId);
-            if (lifetime > MAX_LIFETIME) {
-                LogUtils.d(Eas.LOG_TAG, "Aging out connection manager for HostAuth %d",
-                        hostAuth.mId);
-                uncacheConnectionManager(hostAuth);
-                connectionManager = null;
-            }
-        }
-        if (connectionManager == null) {
-            connectionManager = createConnectionManager(context, hostAuth);
-            mConnectionMap.put(hostAuth.mId, connectionManager);
-            mConnectionCreationTimes.put(hostAuth.mId, now);
-        } else {
-            LogUtils.d(Eas.LOG_TAG, "Reusing cached connection manager for HostAuth %d",
-                    hostAuth.mId);
+        while (true) {
+            Entry entry = mEntries.get(hostAuth.mId);
+            boolean added = false;
+            if (entry == null) {
+                final Entry newEntry = new Entry();
+                entry = mEntries.putIfAbsent(hostAuth.mId, newEntry);
+                if (entry == null) {
+                    entry = newEntry;
+                    added = true;
+                }
+            }
+            synchronized (entry) {
+                if (entry.mRemoved) {
+                    // Reaped or uncached while we were looking it up; try again.
+                    continue;
+                }
+                entry.mLastUsed = SystemClock.elapsedRealtime();
+                if (entry.mManager == null) {
+                    try {
+                        entry.mManager = createConnectionManager(context, hostAuth);
+                    } catch (final CertificateException e) {
+                        entry.mRemoved = true;
+                        mEntries.remove(hostAuth.mId, entry);
+                        throw e;
+                    }
+                    entry.mHttpClient = createHttpClient(hostAuth, entry.mManager);
+                } else {
+                    LogUtils.d(Eas.LOG_TAG, "Reusing cached connection manager for HostAuth %d",
+                            hostAuth.mId);
+                }
+            }
+            if (added) {
+                evictLeastRecentlyUsed();
+                scheduleReap();
+            }
+            return entry.mManager;
         }
-        return connectionManager;
     }
 
     /**
@@ -153,19 +414,195 @@ public class EasConnectionCache {
         return connectionManager;
     }
 
+    /**
+     * Get the {@link HttpClient} for a connection manager we returned from
+     * {@link #getConnectionManager}. For cached connection managers this is shared by all
+     * requests for the {@link HostAuth}, so callers must not change its parameters.
+     * @param hostAuth The {@link HostAuth} to which we want to connect.
+     * @param connectionManager The connection manager we returned for hostAuth.
+     * @return The {@link HttpClient} to use.
+     */
+    public HttpClient getHttpClient(final HostAuth hostAuth,
+            final EmailClientConnectionManager connectionManager) {
+        final Entry entry = mEntries.get(hostAuth.mId);
+        if (entry != null) {
+            synchronized (entry) {
+                if (entry.mManager == connectionManager) {
+                    return entry.mHttpClient;
+                }
+            }
+        }
+        // Not cached, e.g. for a HostAuth that hasn't been saved yet.
+        return createHttpClient(hostAuth, connectionManager);
+    }
+
     /**
      * Remove a connection manager from the cache. This is necessary when a {@link HostAuth} is
      * redirected or otherwise altered. It's not strictly necessary but good to also call this
      * when a {@link HostAuth} is deleted, i.e. when an account is removed.
      * @param hostAuth The {@link HostAuth} whose connection manager should be deleted.
      */
-    public synchronized void uncacheConnectionManager(final HostAuth hostAuth) {
+    public void uncacheConnectionManager(final HostAuth hostAuth) {
         LogUtils.d(Eas.LOG_TAG, "Uncaching connection manager for HostAuth %d", hostAuth.mId);
-        EmailClientConnectionManager connectionManager = mConnectionMap.get(hostAuth.mId);
-        if (connectionManager != null) {
-            connectionManager.shutdown();
+        final Entry entry = mEntries.get(hostAuth.mId);
+        if (entry != null) {
+            synchronized (entry) {
+                removeLocked(hostAuth.mId, entry);
+            }
+        }
+    }
+
+    /**
+     * Get the {@link Stats} for a {@link HostAuth}.
+     * @param hostAuthId The id of the {@link HostAuth}.
+     * @return The {@link Stats}, which are created if necessary.
+     */
+    public Stats getStats(final long hostAuthId) {
+        Stats stats = mStats.get(hostAuthId);
+        if (stats == null) {
+            final Stats newStats = new Stats();
+            stats = mStats.putIfAbsent(hostAuthId, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Write the cached connection managers and the {@link Stats} for each {@link HostAuth}.
+     * @param writer The {@link PrintWriter} to write to.
+     */
+    public void dump(final PrintWriter writer) {
+        writer.println("Connection managers: " + mEntries.size());
+        final long now = SystemClock.elapsedRealtime();
+        for (final Map.Entry<Long, Stats> stats : mStats.entrySet()) {
+            final Entry entry = mEntries.get(stats.getKey());
+            final String state;
+            if (entry == null) {
+                state = "not cached";
+            } else {
+                synchronized (entry) {
+                    state = entry.mManager == null ? "creating"
+                            : String.format("%d connections, used %ds ago",
+                                    entry.mManager.getConnectionsInPool(),
+                                    (now - entry.mLastUsed) / DateUtils.SECOND_IN_MILLIS);
+                }
+            }
+            writer.println("  HostAuth " + stats.getKey() + " (" + state + "): "
+                    + stats.getValue());
+        }
+    }
+
+    /**
+     * @return The number of connection managers in the cache.
+     */
+    @VisibleForTesting
+    int getCachedCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * Close idle connections, and shut down connection managers that have had no connections
+     * for longer than the idle timeout.
+     * @param now The current time, per {@link SystemClock#elapsedRealtime}.
+     */
+    @VisibleForTesting
+    void reap(final long now) {
+        for (final Map.Entry<Long, Entry> mapEntry : mEntries.entrySet()) {
+            final Entry entry = mapEntry.getValue();
+            synchronized (entry) {
+                if (entry.mManager == null) {
+                    continue;
+                }
+                entry.mManager.closeExpiredConnections();
+                entry.mManager.closeIdleConnections(CONNECTION_IDLE_TIMEOUT,
+                        TimeUnit.MILLISECONDS);
+                if (isIdleLocked(entry, now - mManagerIdleTimeout)) {
+                    LogUtils.d(Eas.LOG_TAG, "Reaping idle connection manager for HostAuth %d",
+                            mapEntry.getKey());
+                    removeLocked(mapEntry.getKey(), entry);
+                }
+            }
+        }
+        synchronized (this) {
+            if (mEntries.isEmpty() && mReapFuture != null) {
+                mReapFuture.cancel(false);
+                mReapFuture = null;
+            }
+        }
+    }
+
+    /**
+     * If we have too many connection managers, shut down the least recently used ones that have
+     * no connections. Managers with connections, or that were handed out within
+     * {@link #EVICTION_GRACE_PERIOD}, are never shut down here, so while they're all busy the
+     * cache may exceed its maximum size.
+     */
+    private void evictLeastRecentlyUsed() {
+        final long lastUsedBefore = SystemClock.elapsedRealtime() - mEvictionGracePeriod;
+        while (mEntries.size() > mMaxManagers) {
+            Map.Entry<Long, Entry> oldest = null;
+            long oldestLastUsed = Long.MAX_VALUE;
+            for (final Map.Entry<Long, Entry> mapEntry : mEntries.entrySet()) {
+                final Entry entry = mapEntry.getValue();
+                synchronized (entry) {
+                    if (entry.mLastUsed < oldestLastUsed && isIdleLocked(entry, lastUsedBefore)) {
+                        oldest = mapEntry;
+                        oldestLastUsed = entry.mLastUsed;
+                    }
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            final Entry entry = oldest.getValue();
+            synchronized (entry) {
+                // Another thread may have used it since we looked.
+                if (entry.mLastUsed == oldestLastUsed && isIdleLocked(entry, lastUsedBefore)) {
+                    LogUtils.d(Eas.LOG_TAG, "Evicting connection manager for HostAuth %d",
+                            oldest.getKey());
+                    removeLocked(oldest.getKey(), entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param entry The {@link Entry} to check, which must be locked.
+     * @param lastUsedBefore The time before which it must have last been used.
+     * @return Whether the entry can be removed: it was last used before lastUsedBefore and its
+     *     connection manager has no connections, leased or pooled.
+     */
+    private static boolean isIdleLocked(final Entry entry, final long lastUsedBefore) {
+        return entry.mManager != null && entry.mLastUsed < lastUsedBefore
+                && entry.mManager.getConnectionsInPool() == 0;
+    }
+
+    private void removeLocked(final long hostAuthId, final Entry entry) {
+        if (!entry.mRemoved) {
+            entry.mRemoved = true;
+            mEntries.remove(hostAuthId, entry);
+            if (entry.mManager != null) {
+                entry.mManager.shutdown();
+            }
+        }
+    }
+
+    private synchronized void scheduleReap() {
+        if (mReapFuture == null) {
+            if (mReaper == null) {
+                mReaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r, "EasConnectionCache reaper");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            mReapFuture = mReaper.scheduleWithFixedDelay(mReapTask, REAP_INTERVAL, REAP_INTERVAL,
+                    TimeUnit.MILLISECONDS);
         }
-        mConnectionMap.remove(hostAuth.mId);
-        mConnectionCreationTimes.remove(hostAuth.mId);
     }
 }
@@ -24,6 +24,8 @@ import com.android.mail.utils.LogUtils;
 import org.apache.http.HttpEntity;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 public class EasFullSyncOperation extends EasOperation {
@@ -190,10 +192,19 @@ public class EasFullSyncOperation extends EasOperation {
                 c = Mailbox.getMailboxIdsForSyncByType(mContext.getContentResolver(),
                         mAccount.mId, mailboxType);
             }
+            // Folders that sync the usual way are synced together, with a multi-collection Sync;
+            // the rest (e.g. the outbox) go through syncMailbox.
+            final ArrayList<Mailbox> batch = new ArrayList<Mailbox>();
             if (c != null) {
                 try {
                     while (c.moveToNext()) {
-                        result = syncMailbox(c.getLong(0), hasCallbackMethod, false);
+                        final long mailboxId = c.getLong(0);
+                        final Mailbox mailbox = Mailbox.restoreMailboxWithId(mContext, mailboxId);
+                        if (canSyncInBatch(mailbox)) {
+                            batch.add(mailbox);
+                            continue;
+                        }
+                        result = syncMailbox(mailboxId, hasCallbackMethod, false);
                         if (isFatal(result)) {
                             // This is a failure, abort the sync.
                             LogUtils.i(TAG, "Fatal result %d on syncMailbox", result);
@@ -204,6 +215,14 @@ public class EasFullSyncOperation extends EasOperation {
                     c.close();
                 }
             }
+            if (!batch.isEmpty()) {
+                result = syncMailboxes(batch, hasCallbackMethod);
+                if (isFatal(result)) {
+                    // This is a failure, abort the sync.
+                    LogUtils.i(TAG, "Fatal result %d on syncMailboxes", result);
+                    return result;
+                }
+            }
         }
 
         return RESULT_SUCCESS;
@@ -278,6 +297,59 @@ public class EasFullSyncOperation extends EasOperation {
         return syncResult;
     }
 
+    /**
+     * @param mailbox A mailbox to sync, or null if it couldn't be loaded.
+     * @return Whether the mailbox can be synced by {@link #syncMailboxes}; if not, it should go
+     *     through {@link #syncMailbox}, which deals with all the special cases.
+     */
+    private boolean canSyncInBatch(final Mailbox mailbox) {
+        return mailbox != null && mailbox.mAccountKey == mAccount.mId
+                && mailbox.mType != Mailbox.TYPE_OUTBOX && mailbox.mType != Mailbox.TYPE_DRAFTS
+                && mailbox.isSyncable()
+                && (mAuthsToSync == null
+                        || mAuthsToSync.contains(Mailbox.getAuthority(mailbox.mType)));
+    }
+
+    /**
+     * Sync several mailboxes in background syncs, with as few requests as we can.
+     * @param mailboxes The mailboxes to sync, all of which pass {@link #canSyncInBatch}.
+     * @param hasCallbackMethod Whether to report the status of each mailbox's sync.
+     * @return The result of the sync.
+     */
+    private int syncMailboxes(final List<Mailbox> mailboxes, final boolean hasCallbackMethod) {
+        final int syncStatus = EmailContent.SYNC_STATUS_BACKGROUND;
+        final ContentValues cv = new ContentValues(2);
+        for (final Mailbox mailbox : mailboxes) {
+            updateMailbox(mailbox, cv, syncStatus);
+            if (hasCallbackMethod) {
+                final int lastSyncResult = UIProvider.createSyncValue(syncStatus,
+                        UIProvider.LastSyncResult.SUCCESS);
+                EmailServiceStatus.syncMailboxStatus(mContext.getContentResolver(), mSyncExtras,
+                        mailbox.mId, EmailServiceStatus.IN_PROGRESS, 0, lastSyncResult);
+            }
+        }
+        int syncResult = 0;
+        try {
+            final EasSyncCollections operation =
+                    new EasSyncCollections(mContext, mAccount, mailboxes);
+            LogUtils.d(TAG, "Syncing %d mailboxes for account %d", mailboxes.size(),
+                    mAccount.mId);
+            syncResult = operation.performOperation();
+        } finally {
+            final int uiSyncResult = translateSyncResultToUiResult(syncResult);
+            final int lastSyncResult = UIProvider.createSyncValue(syncStatus, uiSyncResult);
+            for (final Mailbox mailbox : mailboxes) {
+                updateMailbox(mailbox, cv, EmailContent.SYNC_STATUS_NONE);
+                if (hasCallbackMethod) {
+                    EmailServiceStatus.syncMailboxStatus(mContext.getContentResolver(),
+                            mSyncExtras, mailbox.mId, EmailServiceStatus.SUCCESS, 0,
+                            lastSyncResult);
+                }
+            }
+        }
+        return syncResult;
+    }
+
     private int syncOutbox(final long mailboxId) {
         LogUtils.d(TAG, "syncOutbox %d", mAccount.mId);
         // Because syncing the outbox uses a single EasOperation for every message, we don't
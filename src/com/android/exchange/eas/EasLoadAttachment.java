@@ -31,6 +31,7 @@ import com.android.exchange.adapter.ItemOperationsParser;
 import com.android.exchange.adapter.Serializer;
 import com.android.exchange.adapter.Tags;
 import com.android.exchange.service.EasService;
+import com.android.exchange.utility.Tracing;
 import com.android.exchange.utility.UriCodec;
 import com.android.mail.utils.LogUtils;
 
@@ -275,6 +276,15 @@ public final class EasLoadAttachment extends EasOperation {
      */
     @Override
     protected int handleResponse(final EasResponse response) {
+        Tracing.beginSection("EasLoadAttachment.handleResponse");
+        try {
+            return handleAttachmentResponse(response);
+        } finally {
+            Tracing.endSection();
+        }
+    }
+
+    private int handleAttachmentResponse(final EasResponse response) {
         // Some very basic error checking on the response object first.
         // Our base class should be responsible for checking these errors but if the error
         // checking is done in the override functions, we can be more specific about
@@ -18,9 +18,11 @@ import org.apache.http.HttpEntity;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Performs a MoveItems request, which is used to move items between collections.
+ * Performs MoveItems requests, which are used to move items between collections. Each request
+ * moves a batch of items, and the server responds for each one separately.
  * See http://msdn.microsoft.com/en-us/library/ee160102(v=exchg.80).aspx for more details.
  * TODO: Investigate how this interacts with ItemOperations.
  */
@@ -31,26 +33,34 @@ public class EasMoveItems extends EasOperation {
     public final static int RESULT_OK = 1;
     public final static int RESULT_EMPTY_RESPONSE = 2;
 
-    private static class MoveResponse {
-        public final String sourceMessageId;
-        public final String newMessageId;
-        public final int moveStatus;
+    /**
+     * The most moves we put in one request by default. Each move costs a few dozen bytes each way,
+     * so this keeps requests small while saving nearly all of the round trips of moving messages
+     * one at a time.
+     */
+    public static final int DEFAULT_MAX_MOVES_PER_REQUEST = 100;
+
+    private final int mMaxMovesPerRequest;
+    /** The moves in the current request. */
+    private List<MessageMove> mMoves;
+    /** The responses to the current request, by source server id. */
+    private Map<String, MoveItemsParser.Response> mResponses;
+    /** The responses to the current request, in order. */
+    private List<MoveItemsParser.Response> mResponseList;
 
-        public MoveResponse(final String srcMsgId, final String dstMsgId, final int status) {
-            sourceMessageId = srcMsgId;
-            newMessageId = dstMsgId;
-            moveStatus = status;
-        }
+    public EasMoveItems(final Context context, final Account account) {
+        this(context, account, DEFAULT_MAX_MOVES_PER_REQUEST);
     }
 
-    private MessageMove mMove;
-    private MoveResponse mResponse;
-
-    public EasMoveItems(final Context context, final Account account) {
+    /**
+     * @param maxMovesPerRequest The most moves to put in one request.
+     */
+    public EasMoveItems(final Context context, final Account account,
+            final int maxMovesPerRequest) {
         super(context, account);
+        mMaxMovesPerRequest = Math.max(1, maxMovesPerRequest);
     }
 
-    // TODO: Allow multiple messages in one request. Requires parser changes.
     public int upsyncMovedMessages() {
         final List<MessageMove> moves = MessageMove.getMoves(mContext, getAccountId());
         if (moves == null) {
@@ -61,40 +71,52 @@ public class EasMoveItems extends EasOperation {
         final int[] counts = new int[3];
         int result = RESULT_NO_MESSAGES;
 
-        for (final MessageMove move : moves) {
-            mMove = move;
+        for (int start = 0; start < moves.size(); start += mMaxMovesPerRequest) {
+            mMoves = moves.subList(start, Math.min(start + mMaxMovesPerRequest, moves.size()));
             if (result >= 0) {
-                // If our previous time through the loop succeeded, keep making server requests.
-                // Otherwise, we carry through the loop for all messages with the last error
-                // response, which will stop trying this iteration and force the rest of the
-                // messages into the retry state.
+                // If our previous request succeeded, keep making server requests. Otherwise, we
+                // carry through the loop for all batches with the last error response, which will
+                // stop trying this iteration and force the rest of the messages into the retry
+                // state.
+                mResponses = null;
+                mResponseList = null;
                 result = performOperation();
             }
-            final int status;
-            if (result >= 0) {
-                if (result == RESULT_OK) {
-                    processResponse(mMove, mResponse);
-                    status = mResponse.moveStatus;
+            for (int i = 0; i < mMoves.size(); i++) {
+                final MessageMove move = mMoves.get(i);
+                final int status;
+                if (result >= 0) {
+                    if (result == RESULT_OK) {
+                        final MoveItemsParser.Response response = getResponse(move, i);
+                        if (response == null) {
+                            LogUtils.e(LOG_TAG, "MoveItems response has nothing for message %d",
+                                    move.getMessageId());
+                            status = MoveItemsParser.STATUS_CODE_RETRY;
+                        } else {
+                            processResponse(move, response);
+                            status = response.mStatusCode;
+                        }
+                    } else {
+                        // TODO: Should this really be a retry?
+                        // We got a 200 response with an empty payload. It's not clear we ought to
+                        // retry, but this is how our implementation has worked in the past.
+                        status = MoveItemsParser.STATUS_CODE_RETRY;
+                    }
                 } else {
-                    // TODO: Should this really be a retry?
-                    // We got a 200 response with an empty payload. It's not clear we ought to
-                    // retry, but this is how our implementation has worked in the past.
+                    // performOperation returned a negative status code, indicating a failure
+                    // before the server actually was able to tell us yea or nay, so we must retry.
                     status = MoveItemsParser.STATUS_CODE_RETRY;
                 }
-            } else {
-                // performOperation returned a negative status code, indicating a failure before the
-                // server actually was able to tell us yea or nay, so we must retry.
-                status = MoveItemsParser.STATUS_CODE_RETRY;
-            }
-            final int index;
-            if (status <= 0) {
-                LogUtils.e(LOG_TAG, "MoveItems gave us an invalid status %d", status);
-                index = MoveItemsParser.STATUS_CODE_RETRY - 1;
-            } else {
-                index = status - 1;
+                final int index;
+                if (status <= 0) {
+                    LogUtils.e(LOG_TAG, "MoveItems gave us an invalid status %d", status);
+                    index = MoveItemsParser.STATUS_CODE_RETRY - 1;
+                } else {
+                    index = status - 1;
+                }
+                messageIds[index][counts[index]] = move.getMessageId();
+                ++counts[index];
             }
-            messageIds[index][counts[index]] = mMove.getMessageId();
-            ++counts[index];
         }
 
         final ContentResolver cr = mContext.getContentResolver();
@@ -108,6 +130,30 @@ public class EasMoveItems extends EasOperation {
         return result;
     }
 
+    /**
+     * Find the response to a move in the current request.
+     * @param move The move.
+     * @param position The move's position in the request.
+     * @return The response, or null if the server didn't give one.
+     */
+    private MoveItemsParser.Response getResponse(final MessageMove move, final int position) {
+        final MoveItemsParser.Response response = mResponses.get(move.getServerId());
+        if (response != null) {
+            return response;
+        }
+        // Responses come back in the order of the request, so one without a SrcMsgId (which is
+        // required, but some servers leave out) in the same position is the one for this move
+        if (position < mResponseList.size()) {
+            final MoveItemsParser.Response byPosition = mResponseList.get(position);
+            if (byPosition.mSourceServerId == null) {
+                LogUtils.e(LOG_TAG, "MoveItems response for message %d has no SrcMsgId, "
+                        + "using request's server id", move.getMessageId());
+                return byPosition;
+            }
+        }
+        return null;
+    }
+
     @Override
     protected String getCommand() {
         return "MoveItems";
@@ -117,11 +163,13 @@ public class EasMoveItems extends EasOperation {
     protected HttpEntity getRequestEntity() throws IOException {
         final Serializer s = new Serializer();
         s.start(Tags.MOVE_MOVE_ITEMS);
-        s.start(Tags.MOVE_MOVE);
-        s.data(Tags.MOVE_SRCMSGID, mMove.getServerId());
-        s.data(Tags.MOVE_SRCFLDID, mMove.getSourceFolderId());
-        s.data(Tags.MOVE_DSTFLDID, mMove.getDestFolderId());
-        s.end();
+        for (final MessageMove move : mMoves) {
+            s.start(Tags.MOVE_MOVE);
+            s.data(Tags.MOVE_SRCMSGID, move.getServerId());
+            s.data(Tags.MOVE_SRCFLDID, move.getSourceFolderId());
+            s.data(Tags.MOVE_DSTFLDID, move.getDestFolderId());
+            s.end();
+        }
         s.end().done();
         return makeEntity(s);
     }
@@ -131,44 +179,25 @@ public class EasMoveItems extends EasOperation {
         if (!response.isEmpty()) {
             final MoveItemsParser parser = new MoveItemsParser(response.getInputStream());
             parser.parse();
-            final String sourceMessageId = parser.getSourceServerId();
-            final String newMessageId = parser.getNewServerId();
-            final int status = parser.getStatusCode();
-            mResponse = new MoveResponse(sourceMessageId, newMessageId, status);
+            mResponses = parser.getResponses();
+            mResponseList = parser.getResponseList();
             return RESULT_OK;
         }
         return RESULT_EMPTY_RESPONSE;
     }
 
-    private void processResponse(final MessageMove request, final MoveResponse response) {
+    private void processResponse(final MessageMove request,
+            final MoveItemsParser.Response response) {
         // TODO: Eventually this should use a transaction.
-        // TODO: Improve how the parser reports statuses and how we handle them here.
-
-        final String sourceMessageId;
-
-        if (response.sourceMessageId == null) {
-            // The response didn't contain SrcMsgId, despite it being required.
-            LogUtils.e(LOG_TAG,
-                    "MoveItems response for message %d has no SrcMsgId, using request's server id",
-                    request.getMessageId());
-            sourceMessageId = request.getServerId();
-        } else {
-            sourceMessageId = response.sourceMessageId;
-            if (!sourceMessageId.equals(request.getServerId())) {
-                // TODO: This is bad, but we still need to process the response. Just log for now.
-                LogUtils.e(LOG_TAG,
-                        "MoveItems response for message %d has SrcMsgId != request's server id",
-                        request.getMessageId());
-            }
-        }
-
+        final String sourceMessageId = request.getServerId();
         final ContentValues cv = new ContentValues(1);
-        if (response.moveStatus == MoveItemsParser.STATUS_CODE_REVERT) {
+        if (response.mStatusCode == MoveItemsParser.STATUS_CODE_REVERT) {
             // Restore the old mailbox id
             cv.put(EmailContent.MessageColumns.MAILBOX_KEY, request.getSourceFolderKey());
-        } else if (response.moveStatus == MoveItemsParser.STATUS_CODE_SUCCESS) {
-            if (response.newMessageId != null && !response.newMessageId.equals(sourceMessageId)) {
-                cv.put(EmailContent.SyncColumns.SERVER_ID, response.newMessageId);
+        } else if (response.mStatusCode == MoveItemsParser.STATUS_CODE_SUCCESS) {
+            if (response.mNewServerId != null
+                    && !response.mNewServerId.equals(sourceMessageId)) {
+                cv.put(EmailContent.SyncColumns.SERVER_ID, response.mNewServerId);
             }
         }
         if (cv.size() != 0) {
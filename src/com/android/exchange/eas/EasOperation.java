@@ -38,17 +38,22 @@ import com.android.exchange.CommandStatusException;
 import com.android.exchange.Eas;
 import com.android.exchange.EasResponse;
 import com.android.exchange.adapter.Serializer;
+import com.android.exchange.adapter.SerializerEntity;
 import com.android.exchange.adapter.Tags;
 import com.android.exchange.service.EasServerConnection;
+import com.android.exchange.utility.OperationMetrics;
+import com.android.exchange.utility.Tracing;
+import com.android.exchange.utility.WbxmlCapture;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
 
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.entity.ByteArrayEntity;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
 
@@ -156,6 +161,9 @@ public abstract class EasOperation {
     /** The connection to use for this operation. This is created when {@link #mAccount} is set. */
     protected EasServerConnection mConnection;
 
+    /** Whether the last request failed because the server didn't answer in time. */
+    private boolean mTimedOut;
+
     public class MessageInvalidException extends Exception {
         public MessageInvalidException(final String message) {
             super(message);
@@ -166,6 +174,15 @@ public abstract class EasOperation {
         return result < RESULT_MIN_OK_RESULT;
     }
 
+    /**
+     * @return Whether the last request, having been sent, got {@link #RESULT_NETWORK_PROBLEM}
+     *     because we timed out waiting for the response, as opposed to e.g. not being able to
+     *     connect at all.
+     */
+    protected boolean isTimedOut() {
+        return mTimedOut;
+    }
+
     protected EasOperation(final Context context, @NonNull final Account account,
             final EasServerConnection connection) {
         mContext = context;
@@ -260,23 +277,57 @@ public abstract class EasOperation {
                     getAccountId(), getCommand());
             return RESULT_INITIALIZATION_FAILURE;
         }
+        final long startNanos = System.nanoTime();
+        // Some commands are built on each call, so only ask for them if they'll be used.
+        final OperationMetrics.Sample sample = OperationMetrics.isEnabled()
+                ? OperationMetrics.startOperation(getAccountId(), getCommand()) : null;
+        int result = RESULT_OTHER_FAILURE;
+        if (Tracing.isEnabled()) {
+            Tracing.beginSection(Tracing.makeSectionName("EasOperation " + getCommand(),
+                    getMailboxTypeForDiagnostics()));
+        }
         try {
-            return performOperationInternal();
+            result = performOperationInternal(sample);
+            return result;
         } finally {
             onRequestComplete();
+            OperationMetrics.endOperation(sample, startNanos, result);
+            Tracing.endSection();
         }
     }
 
-    private int performOperationInternal() {
+    /**
+     * @param sample The {@link OperationMetrics.Sample} to record this operation's phases in, or
+     *     null if metrics are disabled.
+     */
+    private int performOperationInternal(final OperationMetrics.Sample sample) {
         // We handle server redirects by looping, but we need to protect against too much looping.
         int redirectCount = 0;
 
         do {
+            mTimedOut = false;
             // Perform the HTTP request and handle exceptions.
             final EasResponse response;
             try {
                 try {
-                    response = mConnection.executeHttpUriRequest(makeRequest(), getTimeout());
+                    final long buildStart = System.nanoTime();
+                    final HttpUriRequest request = makeRequest();
+                    if (sample != null) {
+                        sample.addTime(OperationMetrics.PHASE_BUILD, buildStart);
+                        if (request instanceof HttpEntityEnclosingRequest) {
+                            final HttpEntity entity =
+                                    ((HttpEntityEnclosingRequest) request).getEntity();
+                            if (entity != null) {
+                                sample.addBytesOut(entity.getContentLength());
+                            }
+                        }
+                    }
+                    final long sendStart = System.nanoTime();
+                    response = mConnection.executeHttpUriRequest(request, getTimeout());
+                    if (sample != null) {
+                        sample.addTime(OperationMetrics.PHASE_FIRST_BYTE, sendStart);
+                        response.setMetricsSample(sample);
+                    }
                 } finally {
                     onRequestMade();
                 }
@@ -296,6 +347,7 @@ public abstract class EasOperation {
                     message = "(no message)";
                 }
                 LogUtils.i(LOG_TAG, "IOException while sending request: %s", message);
+                mTimedOut = e instanceof SocketTimeoutException;
                 return RESULT_NETWORK_PROBLEM;
             } catch (final CertificateException e) {
                 LogUtils.i(LOG_TAG, "CertificateException while sending request: %s",
@@ -320,11 +372,17 @@ public abstract class EasOperation {
                 final int result;
                 // First off, the success case.
                 if (response.isSuccess()) {
+                    if (WbxmlCapture.isEnabled() && WbxmlCapture.shouldCapture(getCommand())) {
+                        response.capture(getCommand(), getProtocolVersion(),
+                                getMailboxTypeForDiagnostics());
+                    }
                     int responseResult;
+                    final long handleStart = System.nanoTime();
                     try {
                         responseResult = handleResponse(response);
                     } catch (final IOException e) {
                         LogUtils.e(LOG_TAG, e, "Exception while handling response");
+                        mTimedOut = e instanceof SocketTimeoutException;
                         return RESULT_NETWORK_PROBLEM;
                     } catch (final CommandStatusException e) {
                         // For some operations (notably Sync & FolderSync), errors are signaled in
@@ -341,6 +399,10 @@ public abstract class EasOperation {
                         } else {
                             responseResult = RESULT_OTHER_FAILURE;
                         }
+                    } finally {
+                        if (sample != null) {
+                            sample.addHandlingTime(handleStart);
+                        }
                     }
                     result = responseResult;
                 } else {
@@ -361,6 +423,8 @@ public abstract class EasOperation {
 
                 // Handle provisioning errors.
                 if (result == RESULT_PROVISIONING_ERROR || response.isProvisionError()) {
+                    // The key we sent is no good; whatever happens next, don't send it again
+                    mConnection.invalidatePolicyKey();
                     if (handleProvisionError()) {
                         // The provisioning error has been taken care of, so we should re-do this
                         // request.
@@ -535,6 +599,15 @@ public abstract class EasOperation {
         return 30 * DateUtils.SECOND_IN_MILLIS;
     }
 
+    /**
+     * @return The type of the mailbox this operation is for, to record with captured responses
+     *     (see {@link WbxmlCapture}) and trace sections; operations on a mailbox should override
+     *     this.
+     */
+    protected int getMailboxTypeForDiagnostics() {
+        return WbxmlCapture.NO_MAILBOX_TYPE;
+    }
+
     /**
      * If 403 responses should be handled in a special way, this function should be overridden to
      * do that.
@@ -559,10 +632,11 @@ public abstract class EasOperation {
      */
 
     /**
-     * Convenience method to make an {@link HttpEntity} from {@link Serializer}.
+     * Convenience method to make an {@link HttpEntity} from {@link Serializer}. The entity sends
+     * the Serializer's document without copying it.
      */
     protected final HttpEntity makeEntity(final Serializer s) {
-        return new ByteArrayEntity(s.toByteArray());
+        return new SerializerEntity(s);
     }
 
     /**
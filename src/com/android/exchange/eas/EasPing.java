@@ -17,8 +17,9 @@
 package com.android.exchange.eas;
 
 import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
+import android.content.SyncStatusObserver;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.os.Bundle;
 import android.os.SystemClock;
@@ -28,7 +29,6 @@ import android.text.format.DateUtils;
 
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
-import com.android.emailcommon.provider.EmailContent.AccountColumns;
 import com.android.emailcommon.provider.EmailContent.MailboxColumns;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.exchange.CommandStatusException.CommandStatus;
@@ -38,12 +38,15 @@ import com.android.exchange.adapter.PingParser;
 import com.android.exchange.adapter.Serializer;
 import com.android.exchange.adapter.Tags;
 import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
 
 import org.apache.http.HttpEntity;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Performs an Exchange Ping, which is the command for receiving push notifications.
@@ -56,32 +59,52 @@ public class EasPing extends EasOperation {
             MailboxColumns.ACCOUNT_KEY + "=? and " + MailboxColumns.SERVER_ID + "=?";
 
     private final android.accounts.Account mAmAccount;
-    private long mPingDuration;
 
     /**
-     * The default heartbeat interval specified to the Exchange server. This is the maximum amount
-     * of time (in seconds) that the server should wait before responding to the ping request.
+     * The heartbeat interval specified to the Exchange server for the current ping. This is the
+     * maximum amount of time (in seconds) that the server should wait before responding to the
+     * ping request.
      */
-    private static final long DEFAULT_PING_HEARTBEAT =
-            8 * (DateUtils.MINUTE_IN_MILLIS / DateUtils.SECOND_IN_MILLIS);
+    private long mPingDuration;
 
-    /**
-     * The minimum heartbeat interval we should ever use, in seconds.
-     */
-    private static final long MINIMUM_PING_HEARTBEAT =
-            8 * (DateUtils.MINUTE_IN_MILLIS / DateUtils.SECOND_IN_MILLIS);
+    /** The network the current ping is on. */
+    private String mNetworkId;
+
+    /** Where the heartbeat for the current ping came from, and its results go. */
+    private HeartbeatEstimator mHeartbeatEstimator;
 
     /**
-     * The maximum heartbeat interval we should ever use, in seconds.
+     * The mailboxes in our last ping request, or null if we need to look them up again. Pinging
+     * loops with the same request until something changes, so we keep it and watch for changes
+     * to the mailboxes and sync settings, rather than going to the provider for every ping.
      */
-    private static final long MAXIMUM_PING_HEARTBEAT =
-            28 * (DateUtils.MINUTE_IN_MILLIS / DateUtils.SECOND_IN_MILLIS);
+    private ArrayList<Mailbox> mPushMailboxes;
+
+    /** The last ping request, or null if it needs to be rebuilt from {@link #mPushMailboxes}. */
+    private Serializer mRequest;
+
+    /** The heartbeat in {@link #mRequest}. */
+    private long mRequestHeartbeat;
+
+    /** The bytes of {@link #mRequest}, to compare with what the server has. */
+    private byte[] mRequestBytes;
+
+    /** Whether the current ping was sent with an empty body. */
+    private boolean mSentEmptyRequest;
 
     /**
-     * The maximum amount that we can change with each adjustment, in seconds.
+     * For each account, the last ping request that the server accepted. From Exchange 2007 on, the
+     * server remembers the parameters of the last ping, so if our request is the same we can send
+     * a ping with no body instead. This outlives our instances, as each sync starts a new ping.
      */
-    private static final long MAXIMUM_HEARTBEAT_INCREMENT =
-            5 * (DateUtils.MINUTE_IN_MILLIS / DateUtils.SECOND_IN_MILLIS);
+    private static final ConcurrentHashMap<Long, byte[]> sAcceptedRequests =
+            new ConcurrentHashMap<Long, byte[]>();
+
+    /** Set when the mailboxes or sync settings may have changed since {@link #mPushMailboxes}. */
+    private volatile boolean mPushMailboxesChanged;
+
+    private ContentObserver mMailboxObserver;
+    private Object mSyncSettingsListenerHandle;
 
     /**
      * The extra time for the timeout used for the HTTP POST (in milliseconds). Notionally this
@@ -94,14 +117,15 @@ public class EasPing extends EasOperation {
             final android.accounts.Account amAccount) {
         super(context, account);
         mAmAccount = amAccount;
-        mPingDuration = account.mPingDuration;
-        if (mPingDuration == 0) {
-            mPingDuration = DEFAULT_PING_HEARTBEAT;
-        }
-        LogUtils.d(TAG, "initial ping duration " + mPingDuration + " account " + getAccountId());
     }
 
     public final int doPing() {
+        // Look up the network for each ping, as it may change while we loop.
+        mNetworkId = IdKeyedPreferences.getActiveNetworkId(mContext);
+        mHeartbeatEstimator = HeartbeatEstimator.forNetwork(mContext, getAccountId(), mNetworkId);
+        mPingDuration = mHeartbeatEstimator.getHeartbeat();
+        LogUtils.d(TAG, "ping duration %d on %s account %d", mPingDuration, mNetworkId,
+                getAccountId());
         final long startTime = SystemClock.elapsedRealtime();
         final int result = performOperation();
         if (result == RESULT_RESTART) {
@@ -109,33 +133,16 @@ public class EasPing extends EasOperation {
         } else  if (result == RESULT_NETWORK_PROBLEM) {
             final long timeoutDuration = SystemClock.elapsedRealtime() - startTime;
             LogUtils.d(TAG, "doPing request failure, timed out after %d millis", timeoutDuration);
-            decreasePingDuration();
+            // A failure on the network the ping started on may be the network dropping the idle
+            // connection; if we moved, it's just the network coming and going.
+            if (mNetworkId.equals(IdKeyedPreferences.getActiveNetworkId(mContext))) {
+                mHeartbeatEstimator.onFailed(mPingDuration, timeoutDuration,
+                        System.currentTimeMillis());
+            }
         }
         return result;
     }
 
-    private void decreasePingDuration() {
-        mPingDuration = Math.max(MINIMUM_PING_HEARTBEAT,
-                mPingDuration - MAXIMUM_HEARTBEAT_INCREMENT);
-        LogUtils.d(TAG, "decreasePingDuration adjusting by " + MAXIMUM_HEARTBEAT_INCREMENT +
-                " new duration " + mPingDuration + " account " + getAccountId());
-        storePingDuration();
-    }
-
-    private void increasePingDuration() {
-        mPingDuration = Math.min(MAXIMUM_PING_HEARTBEAT,
-                mPingDuration + MAXIMUM_HEARTBEAT_INCREMENT);
-        LogUtils.d(TAG, "increasePingDuration adjusting by " + MAXIMUM_HEARTBEAT_INCREMENT +
-                " new duration " + mPingDuration + " account " + getAccountId());
-        storePingDuration();
-    }
-
-    private void storePingDuration() {
-        final ContentValues values = new ContentValues(1);
-        values.put(AccountColumns.PING_DURATION, mPingDuration);
-        Account.update(mContext, Account.CONTENT_URI, getAccountId(), values);
-    }
-
     public final android.accounts.Account getAmAccount() {
         return mAmAccount;
     }
@@ -147,33 +154,125 @@ public class EasPing extends EasOperation {
 
     @Override
     protected HttpEntity getRequestEntity() throws IOException {
-        // Get the mailboxes that need push notifications.
+        if (mPushMailboxes == null || mPushMailboxesChanged) {
+            startWatchingPushMailboxes();
+            // Clear this before we look, so that we don't miss changes made while we do.
+            mPushMailboxesChanged = false;
+            mPushMailboxes = loadPushMailboxes();
+            mRequest = null;
+        }
+
+        // TODO: Ideally we never even get here unless we already know we want a push.
+        if (mPushMailboxes.isEmpty()) {
+            abort();
+            throw new IOException("No mailboxes want push");
+        }
+
+        if (mRequest == null || mRequestHeartbeat != mPingDuration) {
+            final Serializer s = new Serializer();
+            s.start(Tags.PING_PING);
+            s.data(Tags.PING_HEARTBEAT_INTERVAL, Long.toString(mPingDuration));
+            s.start(Tags.PING_FOLDERS);
+            for (final Mailbox mailbox : mPushMailboxes) {
+                s.start(Tags.PING_FOLDER);
+                s.data(Tags.PING_ID, mailbox.mServerId);
+                s.data(Tags.PING_CLASS, Eas.getFolderClass(mailbox.mType));
+                s.end();
+            }
+            s.end().end().done();
+            mRequest = s;
+            mRequestHeartbeat = mPingDuration;
+            mRequestBytes = s.toByteArray();
+        }
+
+        mSentEmptyRequest = getProtocolVersion() >= Eas.SUPPORTED_PROTOCOL_EX2007_DOUBLE
+                && Arrays.equals(mRequestBytes, sAcceptedRequests.get(getAccountId()));
+        if (mSentEmptyRequest) {
+            LogUtils.d(TAG, "Sending empty ping for account %d", getAccountId());
+            return null;
+        }
+        // Until the server accepts this request, we don't know which parameters it has.
+        sAcceptedRequests.remove(getAccountId());
+        // The entity only reads the serializer, so it can be sent again by the next ping.
+        return makeEntity(mRequest);
+    }
+
+    /**
+     * Start watching for changes to anything that affects which mailboxes we push, if we aren't
+     * already.
+     */
+    private void startWatchingPushMailboxes() {
+        if (mMailboxObserver != null) {
+            return;
+        }
+        mMailboxObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(final boolean selfChange) {
+                mPushMailboxesChanged = true;
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(Mailbox.CONTENT_URI, true,
+                mMailboxObserver);
+        mSyncSettingsListenerHandle = ContentResolver.addStatusChangeListener(
+                ContentResolver.SYNC_OBSERVER_TYPE_SETTINGS, new SyncStatusObserver() {
+                    @Override
+                    public void onStatusChanged(final int which) {
+                        mPushMailboxesChanged = true;
+                    }
+                });
+    }
+
+    /**
+     * Stop watching for changes to the mailboxes we push. This must be called once we're done
+     * pinging.
+     */
+    public void stopWatchingPushMailboxes() {
+        if (mMailboxObserver != null) {
+            mContext.getContentResolver().unregisterContentObserver(mMailboxObserver);
+            ContentResolver.removeStatusChangeListener(mSyncSettingsListenerHandle);
+            mMailboxObserver = null;
+            mSyncSettingsListenerHandle = null;
+        }
+        mPushMailboxes = null;
+        mRequest = null;
+    }
+
+    /**
+     * @return The mailboxes that are eligible for push.
+     */
+    @VisibleForTesting
+    protected ArrayList<Mailbox> loadPushMailboxes() {
         final Cursor c = Mailbox.getMailboxesForPush(mContext.getContentResolver(),
                 getAccountId());
         if (c == null) {
             throw new IllegalStateException("Could not read mailboxes");
         }
 
-        // TODO: Ideally we never even get here unless we already know we want a push.
-        Serializer s = null;
+        final ArrayList<Mailbox> mailboxes = new ArrayList<Mailbox>();
+        // Whether each authority is set to sync automatically, as we only need to ask once.
+        final HashMap<String, Boolean> syncAutomatically = new HashMap<String, Boolean>();
         try {
             while (c.moveToNext()) {
                 final Mailbox mailbox = new Mailbox();
                 mailbox.restore(c);
-                s = handleOneMailbox(s, mailbox);
+                // We can't push until the initial sync is done
+                if (mailbox.mSyncKey == null || mailbox.mSyncKey.equals("0")) {
+                    continue;
+                }
+                final String authority = Mailbox.getAuthority(mailbox.mType);
+                Boolean sync = syncAutomatically.get(authority);
+                if (sync == null) {
+                    sync = ContentResolver.getSyncAutomatically(mAmAccount, authority);
+                    syncAutomatically.put(authority, sync);
+                }
+                if (sync) {
+                    mailboxes.add(mailbox);
+                }
             }
         } finally {
             c.close();
         }
-
-        if (s == null) {
-            abort();
-            throw new IOException("No mailboxes want push");
-        }
-        // This sequence of end()s corresponds to the start()s that occur in handleOneMailbox when
-        // the Serializer is first created. If either side changes, the other must be kept in sync.
-        s.end().end().done();
-        return makeEntity(s);
+        return mailboxes;
     }
 
     @Override
@@ -194,11 +293,22 @@ public class EasPing extends EasOperation {
         // Many of the responses require no explicit action here, they just influence
         // our re-ping behavior, which is handled by the caller.
         final long accountId = getAccountId();
+        if (pingStatus == PingParser.STATUS_EXPIRED
+                || pingStatus == PingParser.STATUS_CHANGES_FOUND) {
+            // The server took our request, so it now has its parameters.
+            if (!mSentEmptyRequest) {
+                sAcceptedRequests.put(accountId, mRequestBytes);
+            }
+        } else {
+            // Whatever went wrong, it's safest to send the full request next time. In particular,
+            // this is how the server tells us that it's forgotten our last request.
+            sAcceptedRequests.remove(accountId);
+        }
         switch (pingStatus) {
             case PingParser.STATUS_EXPIRED:
                 LogUtils.i(TAG, "Ping expired for account %d", accountId);
-                // On successful expiration, we can increase our ping duration
-                increasePingDuration();
+                // On successful expiration, we may be able to increase our ping duration
+                mHeartbeatEstimator.onExpired(mPingDuration);
                 break;
             case PingParser.STATUS_CHANGES_FOUND:
                 LogUtils.i(TAG, "Ping found changed folders for account %d", accountId);
@@ -206,7 +316,8 @@ public class EasPing extends EasOperation {
                 break;
             case PingParser.STATUS_REQUEST_INCOMPLETE:
             case PingParser.STATUS_REQUEST_MALFORMED:
-                // These two cases indicate that the ping request was somehow bad.
+                // These two cases indicate that the ping request was somehow bad. If we sent an
+                // empty ping, the server may have lost our parameters, so we'll send them again.
                 // TODO: It's insanity to re-ping with the same data and expect a different
                 // result. Improve this if possible.
                 LogUtils.e(TAG, "Bad ping request for account %d", accountId);
@@ -215,8 +326,7 @@ public class EasPing extends EasOperation {
                 long newDuration = pp.getHeartbeatInterval();
                 LogUtils.i(TAG, "Heartbeat out of bounds for account %d, " +
                         "old duration %d new duration %d", accountId, mPingDuration, newDuration);
-                mPingDuration = newDuration;
-                storePingDuration();
+                mHeartbeatEstimator.onServerLimit(newDuration, System.currentTimeMillis());
                 break;
             case PingParser.STATUS_REQUEST_TOO_MANY_FOLDERS:
                 LogUtils.i(TAG, "Too many folders for account %d", accountId);
@@ -283,37 +393,6 @@ public class EasPing extends EasOperation {
         return mPingDuration * DateUtils.SECOND_IN_MILLIS + EXTRA_POST_TIMEOUT_MILLIS;
     }
 
-    /**
-     * If mailbox is eligible for push, add it to the ping request, creating the {@link Serializer}
-     * for the request if necessary.
-     * @param mailbox The mailbox to check.
-     * @param s The {@link Serializer} for this request, or null if it hasn't been created yet.
-     * @return The {@link Serializer} for this request, or null if it hasn't been created yet.
-     * @throws IOException
-     */
-    private Serializer handleOneMailbox(Serializer s, final Mailbox mailbox) throws IOException {
-        // We can't push until the initial sync is done
-        if (mailbox.mSyncKey != null && !mailbox.mSyncKey.equals("0")) {
-            if (ContentResolver.getSyncAutomatically(mAmAccount,
-                    Mailbox.getAuthority(mailbox.mType))) {
-                if (s == null) {
-                    // No serializer yet, so create and initialize it.
-                    // Note that these start()s correspond to the end()s in doInBackground.
-                    // If either side changes, the other must be kept in sync.
-                    s = new Serializer();
-                    s.start(Tags.PING_PING);
-                    s.data(Tags.PING_HEARTBEAT_INTERVAL, Long.toString(mPingDuration));
-                    s.start(Tags.PING_FOLDERS);
-                }
-                s.start(Tags.PING_FOLDER);
-                s.data(Tags.PING_ID, mailbox.mServerId);
-                s.data(Tags.PING_CLASS, Eas.getFolderClass(mailbox.mType));
-                s.end();
-            }
-        }
-        return s;
-    }
-
     /**
      * Make the appropriate calls to {@link ContentResolver#requestSync} indicated by the
      * current ping response.
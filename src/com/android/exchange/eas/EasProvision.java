@@ -185,6 +185,7 @@ public class EasProvision extends EasOperation {
             mPolicy.mProtocolPoliciesUnsupported = null;
         }
         PolicyServiceProxy.setAccountPolicy(mContext, accountId, mPolicy, null);
+        mConnection.invalidatePolicyKey();
         if (!PolicyServiceProxy.isActive(mContext, mPolicy)) {
             return false;
         }
@@ -196,6 +197,7 @@ public class EasProvision extends EasOperation {
 
         // Write the final policy key to the Account.
         PolicyServiceProxy.setAccountPolicy(mContext, accountId, mPolicy, mPolicyKey);
+        mConnection.invalidatePolicyKey();
 
         // For 12.1 and 14.0, after provisioning we need to also send the device information via
         // the Settings command.
@@ -58,6 +58,11 @@ public class EasSearch extends EasOperation {
         return "Search";
     }
 
+    @Override
+    protected int getMailboxTypeForDiagnostics() {
+        return mSearchMailbox != null ? mSearchMailbox.mType : super.getMailboxTypeForDiagnostics();
+    }
+
     @Override
     protected HttpEntity getRequestEntity() throws IOException {
         // Sanity check for arguments
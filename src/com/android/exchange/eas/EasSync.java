@@ -17,9 +17,9 @@
 package com.android.exchange.eas;
 
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
+import android.provider.BaseColumns;
 import android.support.v4.util.LongSparseArray;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
@@ -31,51 +31,57 @@ import com.android.emailcommon.provider.MessageStateChange;
 import com.android.exchange.CommandStatusException;
 import com.android.exchange.Eas;
 import com.android.exchange.EasResponse;
+import com.android.exchange.adapter.AbstractSyncParser;
 import com.android.exchange.adapter.EmailSyncParser;
 import com.android.exchange.adapter.Parser;
 import com.android.exchange.adapter.Serializer;
+import com.android.exchange.adapter.SyncCollectionsParser;
 import com.android.exchange.adapter.Tags;
 import com.android.mail.utils.LogUtils;
 
 import org.apache.http.HttpEntity;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
 
 /**
- * Performs an Exchange Sync operation for one {@link Mailbox}.
+ * Performs an Exchange Sync operation to upsync message state changes, with one request for all
+ * of the affected mailboxes.
  * TODO: For now, only handles upsync.
- * TODO: Handle multiple folders in one request. Not sure if parser can handle it yet.
  */
 public class EasSync extends EasOperation {
 
-    /** Result code indicating that the mailbox for an upsync is no longer present. */
-    public final static int RESULT_NO_MAILBOX = 0;
     public final static int RESULT_OK = 1;
 
+    /** Selection for the mailboxes in a list of ids. */
+    private static final String WHERE_ID_IN = BaseColumns._ID + " IN (%s)";
+
     // TODO: When we handle downsync, this will become relevant.
     private boolean mInitialSync;
 
-    // State for the mailbox we're currently syncing.
-    private long mMailboxId;
-    private String mMailboxServerId;
-    private String mMailboxSyncKey;
-    private List<MessageStateChange> mStateChanges;
-    private Map<String, Integer> mMessageUpdateStatus;
+    // State for the mailboxes we're currently syncing.
+    private List<Mailbox> mMailboxes;
+    private LongSparseArray<List<MessageStateChange>> mStateChanges;
+    /** The parser for each mailbox in the last response, by mailbox id. */
+    private LongSparseArray<EmailSyncParser> mParsers;
 
     public EasSync(final Context context, final Account account) {
         super(context, account);
         mInitialSync = false;
     }
 
-    private long getMessageId(final String serverId) {
+    private static long getMessageId(final List<MessageStateChange> stateChanges,
+            final String serverId) {
         // TODO: Improve this.
-        for (final MessageStateChange change : mStateChanges) {
+        for (final MessageStateChange change : stateChanges) {
             if (change.getServerId().equals(serverId)) {
                 return change.getMessageId();
             }
@@ -83,8 +89,9 @@ public class EasSync extends EasOperation {
         return EmailContent.Message.NO_MESSAGE;
     }
 
-    private void handleMessageUpdateStatus(final Map<String, Integer> messageStatus,
-            final long[][] messageIds, final int[] counts) {
+    private static void handleMessageUpdateStatus(final Map<String, Integer> messageStatus,
+            final List<MessageStateChange> stateChanges, final long[][] messageIds,
+            final int[] counts) {
         for (final Map.Entry<String, Integer> entry : messageStatus.entrySet()) {
             final String serverId = entry.getKey();
             final int status = entry.getValue();
@@ -94,7 +101,7 @@ public class EasSync extends EasOperation {
             } else {
                 index = 0;
             }
-            final long messageId = getMessageId(serverId);
+            final long messageId = getMessageId(stateChanges, serverId);
             if (messageId != EmailContent.Message.NO_MESSAGE) {
                 messageIds[index][counts[index]] = messageId;
                 ++counts[index];
@@ -102,6 +109,54 @@ public class EasSync extends EasOperation {
         }
     }
 
+    private static void addAll(final List<MessageStateChange> stateChanges,
+            final long[][] messageIds, final int[] counts, final int index) {
+        for (final MessageStateChange msc : stateChanges) {
+            messageIds[index][counts[index]] = msc.getMessageId();
+            ++counts[index];
+        }
+    }
+
+    /**
+     * Load the mailboxes that have changes, with one query.
+     * @param changes The changes, by mailbox id.
+     * @return The mailboxes that we can upsync, i.e. that still exist and have a sync key.
+     */
+    private ArrayList<Mailbox> loadMailboxes(
+            final LongSparseArray<List<MessageStateChange>> changes) {
+        final StringBuilder ids = new StringBuilder();
+        for (int i = 0; i < changes.size(); ++i) {
+            if (i > 0) {
+                ids.append(',');
+            }
+            ids.append(changes.keyAt(i));
+        }
+        final ArrayList<Mailbox> mailboxes = new ArrayList<Mailbox>(changes.size());
+        final Cursor c = mContext.getContentResolver().query(Mailbox.CONTENT_URI,
+                Mailbox.CONTENT_PROJECTION, String.format(WHERE_ID_IN, ids), null, null);
+        if (c == null) {
+            return mailboxes;
+        }
+        try {
+            while (c.moveToNext()) {
+                final Mailbox mailbox = new Mailbox();
+                mailbox.restore(c);
+                if (TextUtils.isEmpty(mailbox.mSyncKey) || mailbox.mSyncKey.equals("0")) {
+                    // For some reason we can get here without a valid mailbox sync key
+                    // b/10797675
+                    // TODO: figure out why and clean this up
+                    LogUtils.d(LOG_TAG, "Tried to sync mailbox %d with invalid mailbox sync key",
+                            mailbox.mId);
+                } else {
+                    mailboxes.add(mailbox);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return mailboxes;
+    }
+
     /**
      * @return Number of messages successfully synced, or a negative response code from
      *         {@link EasOperation} if we encountered any errors.
@@ -122,63 +177,41 @@ public class EasSync extends EasOperation {
         final int[] counts = new int[2];
         int result = 0;
 
+        mStateChanges = allData;
+        final ArrayList<Mailbox> mailboxes = loadMailboxes(allData);
+        // Changes for the mailboxes we can't upsync get retried.
+        final LongSparseArray<Boolean> loaded = new LongSparseArray<Boolean>(mailboxes.size());
+        for (final Mailbox mailbox : mailboxes) {
+            loaded.put(mailbox.mId, true);
+        }
         for (int i = 0; i < allData.size(); ++i) {
-            mMailboxId = allData.keyAt(i);
-            mStateChanges = allData.valueAt(i);
-            boolean retryMailbox = true;
+            if (loaded.get(allData.keyAt(i)) == null) {
+                addAll(allData.valueAt(i), messageIds, counts, 1);
+            }
+        }
+
+        for (int start = 0; start < mailboxes.size();
+                start += EasSyncCollections.MAX_COLLECTIONS_PER_REQUEST) {
+            final List<Mailbox> batch = mailboxes.subList(start, Math.min(mailboxes.size(),
+                    start + EasSyncCollections.MAX_COLLECTIONS_PER_REQUEST));
             // If we've already encountered a fatal error, don't even try to upsync subsequent
             // mailboxes.
+            mParsers = null;
             if (result >= 0) {
-                final Cursor mailboxCursor = mContext.getContentResolver().query(
-                        ContentUris.withAppendedId(Mailbox.CONTENT_URI, mMailboxId),
-                        Mailbox.ProjectionSyncData.PROJECTION, null, null, null);
-                if (mailboxCursor != null) {
-                    try {
-                        if (mailboxCursor.moveToFirst()) {
-                            mMailboxServerId = mailboxCursor.getString(
-                                    Mailbox.ProjectionSyncData.COLUMN_SERVER_ID);
-                            mMailboxSyncKey = mailboxCursor.getString(
-                                    Mailbox.ProjectionSyncData.COLUMN_SYNC_KEY);
-                            if (TextUtils.isEmpty(mMailboxSyncKey) || mMailboxSyncKey.equals("0")) {
-                                // For some reason we can get here without a valid mailbox sync key
-                                // b/10797675
-                                // TODO: figure out why and clean this up
-                                LogUtils.d(LOG_TAG,
-                                        "Tried to sync mailbox %d with invalid mailbox sync key",
-                                        mMailboxId);
-                            } else {
-                                result = performOperation();
-                                if (result >= 0) {
-                                    // Our request gave us back a legitimate answer; this is the
-                                    // only case in which we don't retry this mailbox.
-                                    retryMailbox = false;
-                                    if (result == RESULT_OK) {
-                                        handleMessageUpdateStatus(mMessageUpdateStatus, messageIds,
-                                                counts);
-                                    } else if (result == RESULT_NO_MAILBOX) {
-                                        // A retry here is pointless -- the message's mailbox (and
-                                        // therefore the message) is gone, so mark as success so
-                                        // that these entries get wiped from the change list.
-                                        for (final MessageStateChange msc : mStateChanges) {
-                                            messageIds[0][counts[0]] = msc.getMessageId();
-                                            ++counts[0];
-                                        }
-                                    } else {
-                                        LogUtils.wtf(LOG_TAG, "Unrecognized result code: %d",
-                                                result);
-                                    }
-                                }
-                            }
-                        }
-                    } finally {
-                        mailboxCursor.close();
-                    }
-                }
+                mMailboxes = batch;
+                result = performOperation();
             }
-            if (retryMailbox) {
-                for (final MessageStateChange msc : mStateChanges) {
-                    messageIds[1][counts[1]] = msc.getMessageId();
-                    ++counts[1];
+            for (final Mailbox mailbox : batch) {
+                final List<MessageStateChange> mailboxChanges = allData.get(mailbox.mId);
+                final EmailSyncParser parser =
+                        (result >= 0 && mParsers != null) ? mParsers.get(mailbox.mId) : null;
+                if (parser == null || parser.getCollectionStatus() != 1) {
+                    // Either we didn't get a legitimate answer, or the server didn't apply any
+                    // of the changes to this mailbox (e.g. its sync key was bad); try again.
+                    addAll(mailboxChanges, messageIds, counts, 1);
+                } else {
+                    handleMessageUpdateStatus(parser.getMessageStatuses(), mailboxChanges,
+                            messageIds, counts);
                 }
             }
         }
@@ -198,13 +231,20 @@ public class EasSync extends EasOperation {
         return "Sync";
     }
 
+    @Override
+    protected int getMailboxTypeForDiagnostics() {
+        return Mailbox.TYPE_MAIL;
+    }
+
     @Override
     protected HttpEntity getRequestEntity() throws IOException {
         final Serializer s = new Serializer();
         s.start(Tags.SYNC_SYNC);
         s.start(Tags.SYNC_COLLECTIONS);
-        addOneCollectionToRequest(s, Mailbox.TYPE_MAIL, mMailboxServerId, mMailboxSyncKey,
-                mStateChanges);
+        for (final Mailbox mailbox : mMailboxes) {
+            addOneCollectionToRequest(s, Mailbox.TYPE_MAIL, mailbox.mServerId, mailbox.mSyncKey,
+                    mStateChanges.get(mailbox.mId));
+        }
         s.end().end().done();
         return makeEntity(s);
     }
@@ -212,15 +252,24 @@ public class EasSync extends EasOperation {
     @Override
     protected int handleResponse(final EasResponse response)
             throws IOException, CommandStatusException {
-        final Mailbox mailbox = Mailbox.restoreMailboxWithId(mContext, mMailboxId);
-        if (mailbox == null) {
-            return RESULT_NO_MAILBOX;
+        mParsers = new LongSparseArray<EmailSyncParser>(mMailboxes.size());
+        final HashMap<String, AbstractSyncParser> parsers =
+                new HashMap<String, AbstractSyncParser>(mMailboxes.size());
+        for (final Mailbox mailbox : mMailboxes) {
+            final EmailSyncParser parser =
+                    new EmailSyncParser(mContext, (InputStream) null, mailbox, mAccount);
+            mParsers.put(mailbox.mId, parser);
+            parsers.put(mailbox.mServerId, parser);
         }
-        final EmailSyncParser parser = new EmailSyncParser(mContext, mContext.getContentResolver(),
-                response.getInputStream(), mailbox, mAccount);
         try {
+            final SyncCollectionsParser parser =
+                    new SyncCollectionsParser(response.getInputStream(), parsers);
             parser.parse();
-            mMessageUpdateStatus = parser.getMessageStatuses();
+            // The changes to failed mailboxes are retried, in upsync
+            if (parser.isFolderSyncNeeded()) {
+                AbstractSyncParser.requestFolderSync(mAccount);
+            }
+            parser.checkAllFailed();
         } catch (final Parser.EmptyStreamException e) {
             // This indicates a compressed response which was empty, which is OK.
         }
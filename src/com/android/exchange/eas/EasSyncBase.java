@@ -16,6 +16,7 @@ import com.android.exchange.adapter.Parser;
 import com.android.exchange.adapter.Serializer;
 import com.android.exchange.adapter.Tags;
 import com.android.mail.utils.LogUtils;
+import com.google.common.io.CountingInputStream;
 
 import org.apache.http.HttpEntity;
 
@@ -35,8 +36,20 @@ public class EasSyncBase extends EasOperation {
     private boolean mInitialSync;
     private final Mailbox mMailbox;
     private EasSyncCollectionTypeBase mCollectionTypeHandler;
+    private SyncWindowController mWindowController;
 
     private int mNumWindows;
+    /** The window size in the current request. */
+    private int mWindowSize;
+    /** The (uncompressed) size of the response to the current request. */
+    private long mResponseBytes;
+    /** Whether committing the response to the current request hit a too-large transaction. */
+    private boolean mTransactionTooLarge;
+
+    /** Whether this sync started from scratch, in which case we may pipeline its writes. */
+    private boolean mPipelineCommits;
+    /** The pipeline for our content writes, once we've started pipelining them. */
+    private SyncCommitPipeline mCommitPipeline;
 
     // TODO: Convert to accountId when ready to convert to EasService.
     public EasSyncBase(final Context context, final Account account, final Mailbox mailbox) {
@@ -64,12 +77,21 @@ public class EasSyncBase extends EasOperation {
         return "Sync";
     }
 
+    @Override
+    protected int getMailboxTypeForDiagnostics() {
+        return mMailbox.mType;
+    }
+
     @Override
     public boolean init() {
-        mCollectionTypeHandler = getCollectionTypeHandler(mMailbox.mType);
+        mCollectionTypeHandler = getCollectionTypeHandler(mContext, mAccount, mMailbox);
         if (mCollectionTypeHandler == null) {
             return false;
         }
+        if (mWindowController == null) {
+            mWindowController = SyncWindowController.forCollection(mContext, mMailbox.mId,
+                    mCollectionTypeHandler.getDefaultWindowSize());
+        }
         // Set up traffic stats bookkeeping.
         final int trafficFlags = TrafficFlags.getSyncFlags(mContext, mAccount);
         TrafficStats.setThreadStatsTag(trafficFlags | mCollectionTypeHandler.getTrafficFlag());
@@ -83,30 +105,82 @@ public class EasSyncBase extends EasOperation {
         LogUtils.d(TAG, "Syncing account %d mailbox %d (class %s) with syncKey %s", mAccount.mId,
                 mMailbox.mId, className, syncKey);
         mInitialSync = EmailContent.isInitialSyncKey(syncKey);
+        mWindowSize = getWindowSize(mWindowController, mNumWindows);
         final Serializer s = new Serializer();
         s.start(Tags.SYNC_SYNC);
         s.start(Tags.SYNC_COLLECTIONS);
+        writeCollection(mContext, s, getProtocolVersion(), mAccount, mMailbox,
+                mCollectionTypeHandler, mWindowSize);
+        s.end().end().done();
+
+        return makeEntity(s);
+    }
+
+    /**
+     * Get the window size for a request: the controller's, scaled up by the number of windows
+     * we've asked for without the server giving us a new sync key (see {@link #performOperation}).
+     * @param controller The {@link SyncWindowController} for the mailbox.
+     * @param numWindows
+     * @return The window size, at most {@link EasSyncCollectionTypeBase#MAX_WINDOW_SIZE}.
+     * @throws IOException If we've already asked for the largest window and still got no data.
+     */
+    static int getWindowSize(final SyncWindowController controller, final int numWindows)
+            throws IOException {
+        final int windowSize = controller.getWindowSize();
+        final int scaledWindowSize = numWindows * windowSize;
+        if (scaledWindowSize > EasSyncCollectionTypeBase.MAX_WINDOW_SIZE + windowSize) {
+            throw new IOException("Max window size reached and still no data");
+        }
+        return Math.min(scaledWindowSize, EasSyncCollectionTypeBase.MAX_WINDOW_SIZE);
+    }
+
+    /**
+     * Write the Collection node for a mailbox in a Sync request.
+     * @param context
+     * @param s The {@link Serializer} for the request, within the
+     *          {@link com.android.exchange.adapter.Tags#SYNC_COLLECTIONS} element.
+     * @param protocolVersion
+     * @param account
+     * @param mailbox The mailbox to sync; its sync key must have been set.
+     * @param handler The {@link EasSyncCollectionTypeBase} for the mailbox.
+     * @param windowSize The window size, from {@link #getWindowSize}.
+     * @throws IOException
+     */
+    static void writeCollection(final Context context, final Serializer s,
+            final double protocolVersion, final Account account, final Mailbox mailbox,
+            final EasSyncCollectionTypeBase handler, final int windowSize) throws IOException {
         s.start(Tags.SYNC_COLLECTION);
         // The "Class" element is removed in EAS 12.1 and later versions
-        if (getProtocolVersion() < Eas.SUPPORTED_PROTOCOL_EX2007_SP1_DOUBLE) {
-            s.data(Tags.SYNC_CLASS, className);
+        if (protocolVersion < Eas.SUPPORTED_PROTOCOL_EX2007_SP1_DOUBLE) {
+            s.data(Tags.SYNC_CLASS, Eas.getFolderClass(mailbox.mType));
         }
-        s.data(Tags.SYNC_SYNC_KEY, syncKey);
-        s.data(Tags.SYNC_COLLECTION_ID, mMailbox.mServerId);
-        mCollectionTypeHandler.setSyncOptions(mContext, s, getProtocolVersion(), mAccount, mMailbox,
-                mInitialSync, mNumWindows);
-        s.end().end().end().done();
-
-        return makeEntity(s);
+        s.data(Tags.SYNC_SYNC_KEY, mailbox.mSyncKey);
+        s.data(Tags.SYNC_COLLECTION_ID, mailbox.mServerId);
+        handler.setSyncOptions(context, s, protocolVersion, account, mailbox,
+                EmailContent.isInitialSyncKey(mailbox.mSyncKey), windowSize);
+        s.end();
     }
 
     @Override
     protected int handleResponse(final EasResponse response)
             throws IOException, CommandStatusException {
+        // Count the bytes we parse, for the window controller
+        final CountingInputStream in = new CountingInputStream(response.getInputStream());
         try {
             final AbstractSyncParser parser = mCollectionTypeHandler.getParser(mContext, mAccount,
-                    mMailbox, response.getInputStream());
+                    mMailbox, in);
+            if (mPipelineCommits && mCollectionTypeHandler.canPipelineCommits()) {
+                // Write the content on the writer thread while we're still reading the rest of
+                // the response. The parser waits for those writes and saves the sync key itself
+                // before it returns, so it's saved before we ask for the next window.
+                if (mCommitPipeline == null) {
+                    mCommitPipeline = new SyncCommitPipeline(Long.toString(mMailbox.mId));
+                }
+                parser.setCommitPipeline(mCommitPipeline);
+            }
             final boolean moreAvailable = parser.parse();
+            mResponseBytes = in.getCount();
+            mTransactionTooLarge = parser.isTransactionTooLarge();
             if (moreAvailable) {
                 return RESULT_MORE_AVAILABLE;
             }
@@ -120,14 +194,65 @@ public class EasSyncBase extends EasOperation {
     public int performOperation() {
         int result = RESULT_MORE_AVAILABLE;
         mNumWindows = 1;
-        final String key = getSyncKey();
+        // Most of the windows we'll ever fetch for a folder come in its initial sync, so that's
+        // when it's worth overlapping the writes with the fetches
+        mPipelineCommits = EmailContent.isInitialSyncKey(getSyncKey());
+        try {
+            result = syncWindows();
+        } finally {
+            if (mCommitPipeline != null) {
+                result = finishWrites(result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Wait for our pipelined writes to finish. Each window's writes finish before it's committed,
+     * so there are only writes left here if the sync stopped partway through a window.
+     * @param result The result of the sync so far.
+     * @return The result of the sync, which is a failure if one of those writes failed.
+     */
+    private int finishWrites(final int result) {
+        final SyncCommitPipeline pipeline = mCommitPipeline;
+        mCommitPipeline = null;
+        try {
+            pipeline.finish();
+        } catch (final IOException e) {
+            LogUtils.e(TAG, e, "Failed to write the last window for mailbox %d", mMailbox.mId);
+            if (!isFatal(result)) {
+                return RESULT_NETWORK_PROBLEM;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Fetch windows until the server has nothing more for us.
+     * @return The result of the last request.
+     */
+    private int syncWindows() {
+        int result = RESULT_MORE_AVAILABLE;
         while (result == RESULT_MORE_AVAILABLE) {
+            final String key = getSyncKey();
+            mTransactionTooLarge = false;
+            final long startNanos = System.nanoTime();
             result = super.performOperation();
+            final long millis = (System.nanoTime() - startNanos) / 1000000L;
             if (result == RESULT_MORE_AVAILABLE || result == RESULT_DONE) {
                 mCollectionTypeHandler.cleanup(mContext, mAccount);
             }
             // TODO: Clear pending request queue.
             final String newKey = getSyncKey();
+            if (mTransactionTooLarge) {
+                mWindowController.onTransactionTooLarge();
+            } else if (result == RESULT_NETWORK_PROBLEM && isTimedOut()) {
+                mWindowController.onTimeout();
+            } else if (result == RESULT_MORE_AVAILABLE && !mInitialSync && !key.equals(newKey)
+                    && mWindowSize == mWindowController.getWindowSize()) {
+                // The server filled the window we asked for
+                mWindowController.onFullWindow(millis, mResponseBytes);
+            }
             if (result == RESULT_MORE_AVAILABLE && key.equals(newKey)) {
                 LogUtils.e(TAG,
                         "Server has more data but we have the same key: %s numWindows: %d",
@@ -151,10 +276,15 @@ public class EasSyncBase extends EasOperation {
     /**
      * Get an instance of the correct {@link EasSyncCollectionTypeBase} for a specific collection
      * type.
-     * @param type The type of the {@link Mailbox} that we're trying to sync.
-     * @return An {@link EasSyncCollectionTypeBase} appropriate for this type.
+     * @param context
+     * @param account
+     * @param mailbox The {@link Mailbox} that we're trying to sync.
+     * @return An {@link EasSyncCollectionTypeBase} appropriate for its type, or null if we can't
+     *         sync it.
      */
-    private EasSyncCollectionTypeBase getCollectionTypeHandler(final int type) {
+    static EasSyncCollectionTypeBase getCollectionTypeHandler(final Context context,
+            final Account account, final Mailbox mailbox) {
+        final int type = mailbox.mType;
         switch (type) {
             case Mailbox.TYPE_MAIL:
             case Mailbox.TYPE_INBOX:
@@ -164,10 +294,10 @@ public class EasSyncBase extends EasOperation {
             case Mailbox.TYPE_JUNK:
                 return new EasSyncMail();
             case Mailbox.TYPE_CALENDAR: {
-                return new EasSyncCalendar(mContext, mAccount, mMailbox);
+                return new EasSyncCalendar(context, account, mailbox);
             }
             case Mailbox.TYPE_CONTACTS:
-                return new EasSyncContacts(mAccount.mEmailAddress);
+                return new EasSyncContacts(account.mEmailAddress);
             default:
                 LogUtils.e(LOG_TAG, "unexpected collectiontype %d", type);
                 return null;
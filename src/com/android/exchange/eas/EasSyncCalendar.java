@@ -190,11 +190,11 @@ public class EasSyncCalendar extends EasSyncCollectionTypeBase {
     @Override
     public void setSyncOptions(final Context context, final Serializer s,
         final double protocolVersion, final Account account, final Mailbox mailbox,
-        final boolean isInitialSync, final int numWindows) throws IOException {
+        final boolean isInitialSync, final int windowSize) throws IOException {
         if (isInitialSync) {
             setInitialSyncOptions(s);
         } else {
-            setNonInitialSyncOptions(s, numWindows, protocolVersion);
+            setNonInitialSyncOptions(s, windowSize, protocolVersion);
             setUpsyncCommands(context, account, protocolVersion, s);
         }
     }
@@ -212,6 +212,11 @@ public class EasSyncCalendar extends EasSyncCollectionTypeBase {
         return TrafficFlags.DATA_CALENDAR;
     }
 
+    @Override
+    public int getDefaultWindowSize() {
+        return PIM_WINDOW_SIZE_CALENDAR;
+    }
+
     /**
      * Adds params to a {@link Uri} to indicate that the caller is a sync adapter, and to add the
      * account info.
@@ -240,14 +245,9 @@ public class EasSyncCalendar extends EasSyncCollectionTypeBase {
         // Nothing to do for Calendar.
     }
 
-    protected void setNonInitialSyncOptions(final Serializer s, final int numWindows,
+    protected void setNonInitialSyncOptions(final Serializer s, final int windowSize,
         final double protocolVersion) throws IOException {
-        final int windowSize = numWindows * PIM_WINDOW_SIZE_CALENDAR;
-        if (windowSize > MAX_WINDOW_SIZE  + PIM_WINDOW_SIZE_CALENDAR) {
-            throw new IOException("Max window size reached and still no data");
-        }
-        setPimSyncOptions(s, Eas.FILTER_2_WEEKS, protocolVersion,
-                windowSize < MAX_WINDOW_SIZE ? windowSize : MAX_WINDOW_SIZE);
+        setPimSyncOptions(s, Eas.FILTER_2_WEEKS, protocolVersion, windowSize);
     }
 
     /**
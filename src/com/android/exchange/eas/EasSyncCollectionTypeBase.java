@@ -29,6 +29,12 @@ public abstract class EasSyncCollectionTypeBase {
      */
     public abstract int getTrafficFlag();
 
+    /**
+     * @return The window size to start with for this collection type, before
+     *         {@link SyncWindowController} has learned a better one.
+     */
+    public abstract int getDefaultWindowSize();
+
     /**
      * Write the contents of a Collection node in an EAS sync request appropriate for our mailbox.
      * See http://msdn.microsoft.com/en-us/library/gg650891(v=exchg.80).aspx for documentation on
@@ -40,19 +46,22 @@ public abstract class EasSyncCollectionTypeBase {
      * @param account
      * @param mailbox
      * @param isInitialSync
-     * @param numWindows
+     * @param windowSize The most items the server should send in its response; at most
+     *                   {@link #MAX_WINDOW_SIZE}.
      * @throws IOException
      */
     public abstract void setSyncOptions(final Context context, final Serializer s,
             final double protocolVersion, final Account account, final Mailbox mailbox,
-            final boolean isInitialSync, final int numWindows) throws IOException;
+            final boolean isInitialSync, final int windowSize) throws IOException;
 
     /**
      * Create a parser for the current response data, appropriate for this collection type.
      * @param context
      * @param account
      * @param mailbox
-     * @param is The {@link InputStream} for the server response we're processing.
+     * @param is The {@link InputStream} for the server response we're processing, or null if the
+     *           parser is to parse one collection of a larger response (see
+     *           {@link AbstractSyncParser#parseCollection}).
      * @return An appropriate parser for this input.
      * @throws IOException
      */
@@ -67,6 +76,17 @@ public abstract class EasSyncCollectionTypeBase {
      */
     public void cleanup(final Context context, final Account account) {}
 
+    /**
+     * Whether the initial sync of this collection type can write the content of each window on a
+     * writer thread while the rest of the window is fetched (see {@link SyncCommitPipeline}).
+     * That requires that its parser can hand content over as it goes, and skip what it already
+     * wrote if a window is fetched again.
+     * @return Whether to pipeline commits.
+     */
+    public boolean canPipelineCommits() {
+        return false;
+    }
+
     /**
      * Shared non-initial sync options for PIM (contacts & calendar) objects.
      *
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.content.Context;
+import android.net.TrafficStats;
+import android.text.format.DateUtils;
+
+import com.android.emailcommon.TrafficFlags;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.exchange.CommandStatusException;
+import com.android.exchange.Eas;
+import com.android.exchange.EasResponse;
+import com.android.exchange.adapter.AbstractSyncParser;
+import com.android.exchange.adapter.Parser;
+import com.android.exchange.adapter.Serializer;
+import com.android.exchange.adapter.SyncCollectionsParser;
+import com.android.exchange.adapter.Tags;
+import com.android.mail.utils.LogUtils;
+import com.google.common.io.CountingInputStream;
+
+import org.apache.http.HttpEntity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Performs an EAS sync operation for several folders at once (excluding mail upsync). Each
+ * request has a Collection for every folder that may still have data on the server, each with its
+ * own options and window size, and each Collection in the response is parsed by the parser for
+ * its folder type. Folders drop out of the requests as the server reports that it has nothing
+ * more for them, so a sync of many folders with few changes takes a round trip or two rather
+ * than one per folder. A folder whose sync fails (a bad status for its Collection, or the server
+ * still not giving us a new sync key at the largest window) drops out too, without failing the
+ * others; we only fail the operation if every folder in a request failed.
+ */
+public class EasSyncCollections extends EasOperation {
+
+    private static final String TAG = Eas.LOG_TAG;
+
+    public static final int RESULT_DONE = EasSyncBase.RESULT_DONE;
+    public static final int RESULT_MORE_AVAILABLE = EasSyncBase.RESULT_MORE_AVAILABLE;
+
+    /**
+     * The most collections we put in one request. Servers limit this (Exchange's default is
+     * 1000), and a big initial response for many folders at once would take a long time to
+     * commit, so if there are more folders than this they wait for the next request.
+     */
+    static final int MAX_COLLECTIONS_PER_REQUEST = 50;
+
+    /** The sync state of one folder. */
+    private static class Collection {
+        public final Mailbox mMailbox;
+        public final EasSyncCollectionTypeBase mHandler;
+        public final SyncWindowController mWindowController;
+        /** Whether the server may have more data for this folder. */
+        public boolean mMoreAvailable = true;
+        public int mNumWindows = 1;
+        /** The sync key we sent in the current request. */
+        public String mRequestSyncKey;
+        /** The window size we sent in the current request. */
+        public int mWindowSize;
+        /** Whether committing this folder's part of the current response hit a too-large
+         * transaction. */
+        public boolean mTransactionTooLarge;
+
+        public Collection(final Mailbox mailbox, final EasSyncCollectionTypeBase handler,
+                final SyncWindowController windowController) {
+            mMailbox = mailbox;
+            mHandler = handler;
+            mWindowController = windowController;
+        }
+
+        /**
+         * @return Whether the server filled the window we asked for in the current request, so
+         *     that its cost tells us something about the window size.
+         */
+        public boolean isFullWindow() {
+            return mMoreAvailable && !EmailContent.isInitialSyncKey(mRequestSyncKey)
+                    && !mRequestSyncKey.equals(mMailbox.mSyncKey)
+                    && mWindowSize == mWindowController.getWindowSize();
+        }
+    }
+
+    private final List<Mailbox> mMailboxes;
+    private ArrayList<Collection> mCollections;
+    /** The collections in the current request. */
+    private final ArrayList<Collection> mRequestCollections = new ArrayList<Collection>();
+    private boolean mInitialSync;
+    /** The (uncompressed) size of the response to the current request. */
+    private long mResponseBytes;
+    /** Whether a failed folder has had us request a folder sync, which we only need once. */
+    private boolean mFolderSyncRequested;
+
+    public EasSyncCollections(final Context context, final Account account,
+            final List<Mailbox> mailboxes) {
+        super(context, account);
+        mMailboxes = mailboxes;
+    }
+
+    @Override
+    protected String getCommand() {
+        return "Sync";
+    }
+
+    @Override
+    public boolean init() {
+        if (mCollections == null) {
+            mCollections = new ArrayList<Collection>(mMailboxes.size());
+            for (final Mailbox mailbox : mMailboxes) {
+                final EasSyncCollectionTypeBase handler =
+                        EasSyncBase.getCollectionTypeHandler(mContext, mAccount, mailbox);
+                if (handler != null) {
+                    if (mailbox.mSyncKey == null) {
+                        mailbox.mSyncKey = "0";
+                    }
+                    mCollections.add(new Collection(mailbox, handler,
+                            SyncWindowController.forCollection(mContext, mailbox.mId,
+                                    handler.getDefaultWindowSize())));
+                }
+            }
+        }
+        if (mCollections.isEmpty()) {
+            return false;
+        }
+        // Set up traffic stats bookkeeping. The folders may be of different types, so we can't
+        // add a type flag the way EasSyncBase does.
+        TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(mContext, mAccount));
+        return true;
+    }
+
+    @Override
+    protected HttpEntity getRequestEntity() throws IOException {
+        mRequestCollections.clear();
+        mInitialSync = false;
+        final Serializer s = new Serializer();
+        s.start(Tags.SYNC_SYNC);
+        s.start(Tags.SYNC_COLLECTIONS);
+        IOException windowSizeFailure = null;
+        final Iterator<Collection> iterator = mCollections.iterator();
+        while (iterator.hasNext()) {
+            final Collection collection = iterator.next();
+            if (!collection.mMoreAvailable) {
+                continue;
+            }
+            final Mailbox mailbox = collection.mMailbox;
+            try {
+                collection.mWindowSize = EasSyncBase.getWindowSize(collection.mWindowController,
+                        collection.mNumWindows);
+            } catch (final IOException e) {
+                LogUtils.w(TAG, "Dropping mailbox %d from the sync: %s", mailbox.mId,
+                        e.getMessage());
+                iterator.remove();
+                windowSizeFailure = e;
+                continue;
+            }
+            LogUtils.d(TAG, "Syncing account %d mailbox %d with syncKey %s", mAccount.mId,
+                    mailbox.mId, mailbox.mSyncKey);
+            mInitialSync |= EmailContent.isInitialSyncKey(mailbox.mSyncKey);
+            collection.mRequestSyncKey = mailbox.mSyncKey;
+            collection.mTransactionTooLarge = false;
+            EasSyncBase.writeCollection(mContext, s, getProtocolVersion(), mAccount, mailbox,
+                    collection.mHandler, collection.mWindowSize);
+            mRequestCollections.add(collection);
+            if (mRequestCollections.size() == MAX_COLLECTIONS_PER_REQUEST) {
+                break;
+            }
+        }
+        if (mRequestCollections.isEmpty() && windowSizeFailure != null) {
+            // Every folder we had left failed
+            throw windowSizeFailure;
+        }
+        s.end().end().done();
+
+        return makeEntity(s);
+    }
+
+    @Override
+    protected int handleResponse(final EasResponse response)
+            throws IOException, CommandStatusException {
+        final HashMap<String, AbstractSyncParser> parsers =
+                new HashMap<String, AbstractSyncParser>(mRequestCollections.size());
+        for (final Collection collection : mRequestCollections) {
+            parsers.put(collection.mMailbox.mServerId, collection.mHandler.getParser(mContext,
+                    mAccount, collection.mMailbox, null));
+        }
+        // Count the bytes we parse, for the window controllers
+        final CountingInputStream in = new CountingInputStream(response.getInputStream());
+        try {
+            final SyncCollectionsParser parser = new SyncCollectionsParser(in, parsers);
+            parser.parse();
+            mResponseBytes = in.getCount();
+            final Iterator<Collection> iterator = mRequestCollections.iterator();
+            while (iterator.hasNext()) {
+                final Collection collection = iterator.next();
+                final String serverId = collection.mMailbox.mServerId;
+                if (parser.isFailed(serverId)) {
+                    // Nothing was committed for it; leave it for the next sync
+                    LogUtils.w(TAG, "Dropping mailbox %d from the sync: status %d",
+                            collection.mMailbox.mId, parsers.get(serverId).getCollectionStatus());
+                    iterator.remove();
+                    mCollections.remove(collection);
+                    continue;
+                }
+                collection.mMoreAvailable = parser.isMoreAvailable(serverId);
+                collection.mTransactionTooLarge = parsers.get(serverId).isTransactionTooLarge();
+            }
+            if (parser.isFolderSyncNeeded() && !mFolderSyncRequested) {
+                AbstractSyncParser.requestFolderSync(mAccount);
+                mFolderSyncRequested = true;
+            }
+            parser.checkAllFailed();
+        } catch (final Parser.EmptyStreamException e) {
+            // This indicates a compressed response which was empty, which is OK; it means that
+            // nothing has changed in any of the collections.
+            for (final Collection collection : mRequestCollections) {
+                collection.mMoreAvailable = false;
+            }
+        }
+        return hasMoreAvailable() ? RESULT_MORE_AVAILABLE : RESULT_DONE;
+    }
+
+    /**
+     * Adjust the window sizes of the collections in the current request. We only know the cost
+     * of the request as a whole, so we share it out among the collections whose windows were
+     * filled, in proportion to their window sizes.
+     * @param result The result of the request.
+     * @param millis How long the request took, from sending it to committing the response.
+     */
+    private void adjustWindowSizes(final int result, final long millis) {
+        if (result == RESULT_NETWORK_PROBLEM) {
+            if (isTimedOut()) {
+                for (final Collection collection : mRequestCollections) {
+                    collection.mWindowController.onTimeout();
+                }
+            }
+            return;
+        }
+        if (result != RESULT_MORE_AVAILABLE && result != RESULT_DONE) {
+            return;
+        }
+        int fullWindowItems = 0;
+        for (final Collection collection : mRequestCollections) {
+            if (collection.isFullWindow()) {
+                fullWindowItems += collection.mWindowSize;
+            }
+        }
+        for (final Collection collection : mRequestCollections) {
+            if (collection.mTransactionTooLarge) {
+                collection.mWindowController.onTransactionTooLarge();
+            } else if (collection.isFullWindow()) {
+                collection.mWindowController.onFullWindow(
+                        millis * collection.mWindowSize / fullWindowItems,
+                        mResponseBytes * collection.mWindowSize / fullWindowItems);
+            }
+        }
+    }
+
+    private boolean hasMoreAvailable() {
+        for (final Collection collection : mCollections) {
+            if (collection.mMoreAvailable) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int performOperation() {
+        int result = RESULT_MORE_AVAILABLE;
+        while (result == RESULT_MORE_AVAILABLE) {
+            final long startNanos = System.nanoTime();
+            result = super.performOperation();
+            adjustWindowSizes(result, (System.nanoTime() - startNanos) / 1000000L);
+            if (result != RESULT_MORE_AVAILABLE && result != RESULT_DONE) {
+                break;
+            }
+            for (final Collection collection : mRequestCollections) {
+                collection.mHandler.cleanup(mContext, mAccount);
+                // As in EasSyncBase, grow the window of a collection that has more data but
+                // didn't get a new key.
+                final String key = collection.mRequestSyncKey;
+                if (collection.mMoreAvailable && key.equals(collection.mMailbox.mSyncKey)) {
+                    LogUtils.e(TAG,
+                            "Server has more data but we have the same key: %s numWindows: %d",
+                            key, collection.mNumWindows);
+                    collection.mNumWindows++;
+                } else {
+                    collection.mNumWindows = 1;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    protected long getTimeout() {
+        if (mInitialSync) {
+            return 120 * DateUtils.SECOND_IN_MILLIS;
+        }
+        return super.getTimeout();
+    }
+}
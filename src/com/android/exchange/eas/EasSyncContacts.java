@@ -163,21 +163,21 @@ public class EasSyncContacts extends EasSyncCollectionTypeBase {
         return TrafficFlags.DATA_CONTACTS;
     }
 
+    @Override
+    public int getDefaultWindowSize() {
+        return PIM_WINDOW_SIZE_CONTACTS;
+    }
+
     @Override
     public void setSyncOptions(final Context context, final Serializer s,
             final double protocolVersion, final Account account, final Mailbox mailbox,
-            final boolean isInitialSync, final int numWindows) throws IOException {
+            final boolean isInitialSync, final int windowSize) throws IOException {
         if (isInitialSync) {
             setInitialSyncOptions(s);
             return;
         }
 
-        final int windowSize = numWindows * PIM_WINDOW_SIZE_CONTACTS;
-        if (windowSize > MAX_WINDOW_SIZE  + PIM_WINDOW_SIZE_CONTACTS) {
-            throw new IOException("Max window size reached and still no data");
-        }
-        setPimSyncOptions(s, null, protocolVersion,
-                windowSize < MAX_WINDOW_SIZE ? windowSize : MAX_WINDOW_SIZE);
+        setPimSyncOptions(s, null, protocolVersion, windowSize);
 
         setUpsyncCommands(s, context.getContentResolver(), account, mailbox, protocolVersion);
     }
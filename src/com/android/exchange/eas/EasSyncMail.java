@@ -39,10 +39,21 @@ public class EasSyncMail extends EasSyncCollectionTypeBase {
         return TrafficFlags.DATA_EMAIL;
     }
 
+    @Override
+    public int getDefaultWindowSize() {
+        return EMAIL_WINDOW_SIZE;
+    }
+
+    @Override
+    public boolean canPipelineCommits() {
+        // EmailSyncParser writes new messages as it parses them
+        return true;
+    }
+
     @Override
     public void setSyncOptions(final Context context, final Serializer s,
             final double protocolVersion, final Account account, final Mailbox mailbox,
-            final boolean isInitialSync, final int numWindows) throws IOException {
+            final boolean isInitialSync, final int windowSize) throws IOException {
         if (isInitialSync) {
             // No special options to set for initial mailbox sync.
             return;
@@ -70,12 +81,7 @@ public class EasSyncMail extends EasSyncCollectionTypeBase {
             }
             s.tag(Tags.SYNC_GET_CHANGES);
 
-            final int windowSize = numWindows * EMAIL_WINDOW_SIZE;
-            if (windowSize > MAX_WINDOW_SIZE  + EMAIL_WINDOW_SIZE) {
-                throw new IOException("Max window size reached and still no data");
-            }
-            s.data(Tags.SYNC_WINDOW_SIZE,
-                    String.valueOf(windowSize < MAX_WINDOW_SIZE ? windowSize : MAX_WINDOW_SIZE));
+            s.data(Tags.SYNC_WINDOW_SIZE, String.valueOf(windowSize));
             s.start(Tags.SYNC_OPTIONS);
             // Set the lookback appropriately (EAS calls this a "filter")
             s.data(Tags.SYNC_FILTER_TYPE, getEmailFilter(account, mailbox));
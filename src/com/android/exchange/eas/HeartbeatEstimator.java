@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.format.DateUtils;
+
+import com.android.emailcommon.provider.Account;
+import com.android.exchange.Eas;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Learns the longest ping heartbeat that works for an account on a network. A ping that outlives
+ * the NAT or proxy timeout on the path to the server never gets its response, and it's the network
+ * that decides that timeout, so we keep an estimate per account per network, and pick up where we
+ * left off when we're back on a network we've seen before.
+ *
+ * The estimate is a range: the longest heartbeat that's expired cleanly (which is safe to use) and
+ * the shortest one that's timed out. We try the middle of the range until it's narrower than
+ * {@link #RESOLUTION}, then stick with the safe end. Timeouts are forgotten after
+ * {@link #TIMEOUT_MEMORY_MILLIS} so that we notice if the network starts allowing longer pings.
+ *
+ * Heartbeats are in seconds, as that's what the server deals in.
+ */
+public class HeartbeatEstimator {
+    private static final String TAG = Eas.LOG_TAG;
+
+    private static final String PREFERENCES_FILE = "HeartbeatEstimates";
+
+    /**
+     * The minimum heartbeat interval we should ever use, in seconds.
+     */
+    @VisibleForTesting
+    static final long MINIMUM_HEARTBEAT =
+            8 * (DateUtils.MINUTE_IN_MILLIS / DateUtils.SECOND_IN_MILLIS);
+
+    /**
+     * The maximum heartbeat interval we should ever use, in seconds.
+     */
+    @VisibleForTesting
+    static final long MAXIMUM_HEARTBEAT =
+            28 * (DateUtils.MINUTE_IN_MILLIS / DateUtils.SECOND_IN_MILLIS);
+
+    /** Once we've narrowed the range to this, in seconds, we stop looking. */
+    @VisibleForTesting
+    static final long RESOLUTION = DateUtils.MINUTE_IN_MILLIS / DateUtils.SECOND_IN_MILLIS;
+
+    /** How long we remember that a heartbeat timed out. */
+    @VisibleForTesting
+    static final long TIMEOUT_MEMORY_MILLIS = DateUtils.DAY_IN_MILLIS;
+
+    /** The value for {@link #mTimedOut} when there's no timeout we know of. */
+    private static final long NO_TIMEOUT = MAXIMUM_HEARTBEAT + RESOLUTION;
+
+    private final SharedPreferences mPreferences;
+    private final String mKey;
+
+    /** The longest heartbeat that's expired cleanly. */
+    private long mSafe;
+    /** The shortest heartbeat that's timed out, or {@link #NO_TIMEOUT}. */
+    private long mTimedOut;
+    /** When {@link #mTimedOut} was recorded, per {@link System#currentTimeMillis}. */
+    private long mTimedOutTime;
+
+    /**
+     * Get the estimator for an account on a network.
+     * @param context Our {@link Context}.
+     * @param accountId The account that's pinging.
+     * @param networkId The network, from {@link IdKeyedPreferences#getActiveNetworkId}.
+     * @return The estimator.
+     */
+    public static HeartbeatEstimator forNetwork(final Context context, final long accountId,
+            final String networkId) {
+        return new HeartbeatEstimator(
+                context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE),
+                accountId, networkId, System.currentTimeMillis());
+    }
+
+    /**
+     * Forget the estimates for accounts that have been deleted.
+     * @param context Our {@link Context}.
+     */
+    public static void removeDeletedAccounts(final Context context) {
+        IdKeyedPreferences.retainExistingIds(context,
+                context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE),
+                Account.CONTENT_URI);
+    }
+
+    @VisibleForTesting
+    HeartbeatEstimator(final SharedPreferences preferences, final long accountId,
+            final String networkId, final long now) {
+        mPreferences = preferences;
+        mKey = accountId + " " + networkId;
+        final String saved = preferences.getString(mKey, null);
+        mSafe = MINIMUM_HEARTBEAT;
+        mTimedOut = NO_TIMEOUT;
+        mTimedOutTime = 0;
+        if (saved != null) {
+            try {
+                final String[] values = saved.split(",");
+                mSafe = Long.parseLong(values[0]);
+                mTimedOut = Long.parseLong(values[1]);
+                mTimedOutTime = Long.parseLong(values[2]);
+            } catch (final RuntimeException e) {
+                LogUtils.w(TAG, "Bad heartbeat estimate %s for %s", saved, mKey);
+            }
+        }
+        if (mTimedOut != NO_TIMEOUT && now - mTimedOutTime > TIMEOUT_MEMORY_MILLIS) {
+            mTimedOut = NO_TIMEOUT;
+        }
+    }
+
+    /**
+     * @return The heartbeat to use for the next ping, in seconds.
+     */
+    public long getHeartbeat() {
+        if (mTimedOut - mSafe <= RESOLUTION) {
+            return mSafe;
+        }
+        return Math.min(MAXIMUM_HEARTBEAT, (mSafe + mTimedOut) / 2);
+    }
+
+    /**
+     * Record that a ping expired cleanly.
+     * @param heartbeat The heartbeat the ping used.
+     */
+    public void onExpired(final long heartbeat) {
+        if (heartbeat > mSafe) {
+            mSafe = heartbeat;
+            if (mTimedOut <= mSafe) {
+                // Whatever timed out before must have been something else.
+                mTimedOut = NO_TIMEOUT;
+            }
+            save();
+        }
+    }
+
+    /**
+     * Record that a ping timed out without a response.
+     * @param heartbeat The heartbeat the ping used.
+     * @param now The current time, per {@link System#currentTimeMillis}.
+     */
+    public void onTimedOut(final long heartbeat, final long now) {
+        if (heartbeat <= mSafe) {
+            // What used to work doesn't any more, so start again.
+            mSafe = MINIMUM_HEARTBEAT;
+        }
+        mTimedOut = Math.max(Math.min(mTimedOut, heartbeat), mSafe + RESOLUTION);
+        mTimedOutTime = now;
+        save();
+    }
+
+    /**
+     * Record that a ping failed without a response, at or before its heartbeat. A connection reset
+     * early, before the heartbeat was up, still tells us that the network doesn't keep idle
+     * connections that long, provided it outlasted the heartbeat we know to be safe; anything
+     * shorter is the network coming and going, and tells us nothing.
+     * @param heartbeat The heartbeat the ping used.
+     * @param elapsedMillis How long the ping waited before it failed.
+     * @param now The current time, per {@link System#currentTimeMillis}.
+     */
+    public void onFailed(final long heartbeat, final long elapsedMillis, final long now) {
+        final long elapsed = elapsedMillis / DateUtils.SECOND_IN_MILLIS;
+        if (elapsed >= heartbeat) {
+            onTimedOut(heartbeat, now);
+        } else if (elapsed > mSafe) {
+            onTimedOut(elapsed, now);
+        }
+    }
+
+    /**
+     * Record that the server rejected our heartbeat, and told us what to use instead.
+     * @param heartbeat The heartbeat the server wants.
+     * @param now The current time, per {@link System#currentTimeMillis}.
+     */
+    public void onServerLimit(final long heartbeat, final long now) {
+        mSafe = heartbeat;
+        mTimedOut = heartbeat + RESOLUTION;
+        mTimedOutTime = now;
+        save();
+    }
+
+    private void save() {
+        LogUtils.d(TAG, "Heartbeat estimate for %s: safe %d, timed out %d", mKey, mSafe,
+                mTimedOut);
+        mPreferences.edit().putString(mKey, mSafe + "," + mTimedOut + "," + mTimedOutTime)
+                .apply();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Housekeeping for preferences whose keys start with the id of an account or mailbox, followed by
+ * a space, as {@link HeartbeatEstimator} and {@link SyncWindowController} keep theirs. Without
+ * it, the entries for deleted accounts and mailboxes would be kept forever. The rest of each key
+ * names the network the entry was learned on, from {@link #getActiveNetworkId}.
+ */
+final class IdKeyedPreferences {
+    private static final String[] ID_PROJECTION = { BaseColumns._ID };
+
+    private IdKeyedPreferences() {}
+
+    /**
+     * @param context Our {@link Context}.
+     * @return An identifier for the network we're using now: its type, and its Wi-Fi SSID or APN.
+     */
+    public static String getActiveNetworkId(final Context context) {
+        final ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        final NetworkInfo info = cm.getActiveNetworkInfo();
+        if (info == null) {
+            return "none";
+        }
+        final String extraInfo = info.getExtraInfo();
+        return info.getTypeName() + (extraInfo != null ? "/" + extraInfo : "");
+    }
+
+    /**
+     * @param key A preference key.
+     * @return The id at the start of the key, or -1 if it doesn't start with one.
+     */
+    private static long getId(final String key) {
+        final int space = key.indexOf(' ');
+        try {
+            return Long.parseLong(space >= 0 ? key.substring(0, space) : key);
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Remove the entries for one id.
+     * @param preferences The preferences.
+     * @param id The id of the deleted account or mailbox.
+     */
+    public static void removeId(final SharedPreferences preferences, final long id) {
+        final SharedPreferences.Editor editor = preferences.edit();
+        for (final String key : preferences.getAll().keySet()) {
+            if (getId(key) == id) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * Remove the entries for every id that isn't in a set.
+     * @param preferences The preferences.
+     * @param ids The ids that still exist.
+     */
+    public static void retainIds(final SharedPreferences preferences, final Set<Long> ids) {
+        final SharedPreferences.Editor editor = preferences.edit();
+        for (final String key : preferences.getAll().keySet()) {
+            if (!ids.contains(getId(key))) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * Remove the entries for every id that's no longer in a table.
+     * @param context Our {@link Context}.
+     * @param preferences The preferences.
+     * @param uri The content URI of the table, e.g. {@link
+     *     com.android.emailcommon.provider.Mailbox#CONTENT_URI}.
+     */
+    public static void retainExistingIds(final Context context,
+            final SharedPreferences preferences, final Uri uri) {
+        final Cursor c = context.getContentResolver().query(uri, ID_PROJECTION, null, null, null);
+        if (c == null) {
+            // Better to keep everything than to throw it all away
+            return;
+        }
+        final HashSet<Long> ids = new HashSet<Long>(c.getCount());
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        retainIds(preferences, ids);
+    }
+}
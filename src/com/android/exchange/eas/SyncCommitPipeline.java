@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import com.android.exchange.adapter.AbstractSyncParser;
+import com.android.exchange.utility.OperationMetrics;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes the content of a sync window on a writer thread while the rest of the window is still
+ * being fetched and parsed, so that the inserts overlap the transfer rather than following it.
+ * A parser hands its content over in batches with {@link #write} as it parses (see
+ * {@link AbstractSyncParser#setCommitPipeline}); when it's done, it {@link #await}s those writes
+ * and then commits the rest of the window, and its sync key, itself.
+ *
+ * Only content overlaps a fetch, never a sync key. Exchange only accepts the key it last issued
+ * and the one before, so if we sent the request for the next window before this window's key was
+ * saved, and died before it was, the next sync would get status 3 and start again from scratch.
+ * Instead, a window's key is saved before we ask for the next one, and a window whose content was
+ * partly written when we died is simply fetched again with the key before, which the server still
+ * accepts; the parser skips what it already wrote (see {@link AbstractSyncParser#writeContent}).
+ */
+public class SyncCommitPipeline {
+
+    private final ExecutorService mWriter;
+    /** The writes handed over since we last waited, which return how long they took, in ns. */
+    private final ArrayList<Future<Long>> mPendingWrites = new ArrayList<Future<Long>>();
+    /** Set once a write has failed, so that the ones after it don't run. */
+    private volatile boolean mFailed;
+
+    public SyncCommitPipeline(final String name) {
+        mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(r, "SyncCommitPipeline " + name);
+            }
+        });
+    }
+
+    /**
+     * Write some content on the writer thread, after what's been written already. Nothing is
+     * written after a write fails; the failure is thrown by {@link #await}.
+     * @param write Writes the content.
+     */
+    public void write(final Callable<Void> write) {
+        mPendingWrites.add(mWriter.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                if (mFailed) {
+                    return 0L;
+                }
+                final long start = System.nanoTime();
+                try {
+                    write.call();
+                } catch (final Exception e) {
+                    mFailed = true;
+                    throw e;
+                }
+                return System.nanoTime() - start;
+            }
+        }));
+    }
+
+    /**
+     * Wait for everything handed to {@link #write} to be written. The time it took is added to
+     * the operation in progress on this thread, if we're recording {@link OperationMetrics}.
+     * @throws IOException If a write failed, in which case nothing after it was written.
+     */
+    public void await() throws IOException {
+        Throwable failure = null;
+        long writeNanos = 0;
+        final long waitStart = System.nanoTime();
+        for (final Future<Long> write : mPendingWrites) {
+            try {
+                // Once a write has started, it has to finish before anything else touches the
+                // collection, so we don't let interruptions cut the wait short.
+                writeNanos += Uninterruptibles.getUninterruptibly(write);
+            } catch (final ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        mPendingWrites.clear();
+        mFailed = false;
+        OperationMetrics.addCommitTime(writeNanos, System.nanoTime() - waitStart);
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new IOException(failure);
+        }
+    }
+
+    /**
+     * Wait for any writes still in progress, e.g. if parsing failed, and stop the writer thread.
+     * The pipeline can't be used after this.
+     * @throws IOException If a write failed.
+     */
+    public void finish() throws IOException {
+        try {
+            await();
+        } finally {
+            mWriter.shutdown();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.android.emailcommon.provider.Mailbox;
+import com.android.exchange.Eas;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Chooses the window size (the most items the server sends per response) for syncing a
+ * collection. A small window costs a round trip for every few items, which makes the initial
+ * sync of a big folder take hundreds of round trips on a fast network; a big one makes for long,
+ * large responses, which on a slow network risk timing out and which have to be committed in one
+ * go. So we measure what each response that filled the window cost, and double the window while
+ * the time per item and the size of the response stay within targets, and halve it when they
+ * don't, or when a response times out or is too big to commit in one transaction.
+ *
+ * The right window depends on the network more than anything, so we keep a size per collection
+ * per network, as {@link HeartbeatEstimator} does, and remember them across syncs. The sizes are
+ * also written to the service's dump, by {@link #dump}.
+ */
+public class SyncWindowController {
+    private static final String TAG = Eas.LOG_TAG;
+
+    private static final String PREFERENCES_FILE = "SyncWindowSizes";
+
+    /** The smallest window we'll shrink to. */
+    @VisibleForTesting
+    static final int MINIMUM_WINDOW_SIZE = 5;
+
+    /** The largest window we'll grow to. */
+    @VisibleForTesting
+    static final int MAXIMUM_WINDOW_SIZE = EasSyncCollectionTypeBase.MAX_WINDOW_SIZE;
+
+    /**
+     * The most time per item, including handling the response, for which we'll grow the window.
+     * At twice this, we shrink it.
+     */
+    @VisibleForTesting
+    static final long TARGET_MILLIS_PER_ITEM = 50;
+
+    /**
+     * The largest response for which we'll grow the window. At twice this, we shrink it.
+     */
+    @VisibleForTesting
+    static final long TARGET_RESPONSE_BYTES = 1024 * 1024;
+
+    private final SharedPreferences mPreferences;
+    private final String mKey;
+    private int mWindowSize;
+
+    /**
+     * Get the controller for a collection on the network we're using now.
+     * @param context Our {@link Context}.
+     * @param mailboxId The collection's mailbox.
+     * @param defaultWindowSize The size to start with if we've not synced the collection on this
+     *     network before.
+     * @return The controller.
+     */
+    public static SyncWindowController forCollection(final Context context, final long mailboxId,
+            final int defaultWindowSize) {
+        return new SyncWindowController(
+                context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE),
+                mailboxId, IdKeyedPreferences.getActiveNetworkId(context), defaultWindowSize);
+    }
+
+    /**
+     * Forget the window sizes for a mailbox that's being deleted.
+     * @param context Our {@link Context}.
+     * @param mailboxId The mailbox.
+     */
+    public static void removeMailbox(final Context context, final long mailboxId) {
+        IdKeyedPreferences.removeId(
+                context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE), mailboxId);
+    }
+
+    /**
+     * Forget the window sizes for mailboxes that have been deleted, e.g. along with their account.
+     * @param context Our {@link Context}.
+     */
+    public static void removeDeletedMailboxes(final Context context) {
+        IdKeyedPreferences.retainExistingIds(context,
+                context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE),
+                Mailbox.CONTENT_URI);
+    }
+
+    @VisibleForTesting
+    SyncWindowController(final SharedPreferences preferences, final long mailboxId,
+            final String networkId, final int defaultWindowSize) {
+        mPreferences = preferences;
+        mKey = mailboxId + " " + networkId;
+        mWindowSize = clamp(preferences.getInt(mKey, defaultWindowSize));
+    }
+
+    private static int clamp(final int windowSize) {
+        return Math.max(MINIMUM_WINDOW_SIZE, Math.min(MAXIMUM_WINDOW_SIZE, windowSize));
+    }
+
+    /**
+     * @return The window size to ask for in the next request.
+     */
+    public int getWindowSize() {
+        return mWindowSize;
+    }
+
+    /**
+     * Record the cost of a response that filled the window, i.e. one for which the server had more
+     * available.
+     * @param millis How long the request took, from sending it to committing the response.
+     * @param bytes The size of the (uncompressed) response.
+     */
+    public void onFullWindow(final long millis, final long bytes) {
+        final long millisPerItem = millis / mWindowSize;
+        if (millisPerItem > 2 * TARGET_MILLIS_PER_ITEM || bytes > 2 * TARGET_RESPONSE_BYTES) {
+            setWindowSize(mWindowSize / 2, "slow or large response");
+        } else if (millisPerItem <= TARGET_MILLIS_PER_ITEM && bytes <= TARGET_RESPONSE_BYTES) {
+            setWindowSize(mWindowSize * 2, "fast response");
+        }
+    }
+
+    /**
+     * Record that we timed out waiting for the response to a request we'd sent. Other network
+     * problems, like having no connection at all, say nothing about the window size.
+     */
+    public void onTimeout() {
+        setWindowSize(mWindowSize / 2, "timeout");
+    }
+
+    /**
+     * Record that a response was too big to commit in one transaction.
+     */
+    public void onTransactionTooLarge() {
+        setWindowSize(mWindowSize / 2, "transaction too large");
+    }
+
+    private void setWindowSize(final int windowSize, final String reason) {
+        final int newWindowSize = clamp(windowSize);
+        if (newWindowSize != mWindowSize) {
+            LogUtils.d(TAG, "Window size for %s: %d -> %d (%s)", mKey, mWindowSize, newWindowSize,
+                    reason);
+            mWindowSize = newWindowSize;
+            mPreferences.edit().putInt(mKey, newWindowSize).apply();
+        }
+    }
+
+    /**
+     * Write the window size we've settled on for each collection and network.
+     * @param context Our {@link Context}.
+     * @param writer The {@link PrintWriter} to write to.
+     */
+    public static void dump(final Context context, final PrintWriter writer) {
+        writer.println("Sync window sizes (mailbox network: size):");
+        // Sort by mailbox and network
+        final TreeMap<String, ?> sizes = new TreeMap<String, Object>(context
+                .getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE).getAll());
+        for (final Map.Entry<String, ?> entry : sizes.entrySet()) {
+            writer.println("  " + entry.getKey() + ": " + entry.getValue());
+        }
+    }
+}
@@ -38,8 +38,7 @@ import com.android.emailcommon.utility.Utility;
 import com.android.exchange.Eas;
 import com.android.exchange.EasResponse;
 import com.android.exchange.eas.EasConnectionCache;
-import com.android.exchange.utility.CurlLogger;
-import com.android.exchange.utility.WbxmlResponseLogger;
+import com.android.exchange.utility.Tracing;
 import com.android.mail.utils.LogUtils;
 
 import org.apache.http.HttpEntity;
@@ -49,11 +48,7 @@ import org.apache.http.client.methods.HttpOptions;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.protocol.BasicHttpProcessor;
 
 import java.io.IOException;
 import java.net.URI;
@@ -69,11 +64,6 @@ public class EasServerConnection {
     /** Logging tag. */
     private static final String TAG = Eas.LOG_TAG;
 
-    /**
-     * Timeout for establishing a connection to the server.
-     */
-    private static final long CONNECTION_TIMEOUT = 20 * DateUtils.SECOND_IN_MILLIS;
-
     /**
      * Timeout for http requests after the connection has been established.
      */
@@ -127,15 +117,24 @@ public class EasServerConnection {
     private boolean mProtocolVersionIsSet = false;
 
     /**
-     * The client for any requests made by this object. This is created lazily, and cleared
-     * whenever our host auth is redirected.
+     * The parts of every request that don't change from one request to the next, so that we
+     * don't rebuild them each time. The ones built from the HostAuth remember the values they
+     * were built from, and are rebuilt if those change.
      */
-    private HttpClient mClient;
+    private String mAuthString;
+    private String mAuthLogin;
+    private String mAuthPassword;
+    private String mUserString;
+    private String mUserLogin;
+    private String mBaseUriString;
+    private String mBaseUriAddress;
+    private String mProtocolVersionString;
 
     /**
-     * This is used only to check when our client needs to be refreshed.
+     * The account's policy key, or null if we haven't read it yet. This is read from the Account
+     * the first time we need it; {@link #invalidatePolicyKey} must be called when it changes.
      */
-    private EmailClientConnectionManager mClientConnectionManager;
+    private String mPolicyKey;
 
     public EasServerConnection(final Context context, final Account account,
                                final HostAuth hostAuth) {
@@ -148,18 +147,12 @@ public class EasServerConnection {
 
     protected EmailClientConnectionManager getClientConnectionManager()
         throws CertificateException {
-        final EmailClientConnectionManager connManager =
-                EasConnectionCache.instance().getConnectionManager(mContext, mHostAuth);
-        if (mClientConnectionManager != connManager) {
-            mClientConnectionManager = connManager;
-            mClient = null;
-        }
-        return connManager;
+        return EasConnectionCache.instance().getConnectionManager(mContext, mHostAuth);
     }
 
     public void redirectHostAuth(final String newAddress) {
-        mClient = null;
         mHostAuth.mAddress = newAddress;
+        mBaseUriString = null;
         if (mHostAuth.isSaved()) {
             EasConnectionCache.instance().uncacheConnectionManager(mHostAuth);
             final ContentValues cv = new ContentValues(1);
@@ -168,28 +161,33 @@ public class EasServerConnection {
         }
     }
 
-    private HttpClient getHttpClient(final long timeout) throws CertificateException {
-        if (mClient == null) {
-            final HttpParams params = new BasicHttpParams();
-            HttpConnectionParams.setConnectionTimeout(params, (int)(CONNECTION_TIMEOUT));
-            HttpConnectionParams.setSoTimeout(params, (int)(timeout));
-            HttpConnectionParams.setSocketBufferSize(params, 8192);
-            mClient = new DefaultHttpClient(getClientConnectionManager(), params) {
-                @Override
-                protected BasicHttpProcessor createHttpProcessor() {
-                    final BasicHttpProcessor processor = super.createHttpProcessor();
-                    processor.addRequestInterceptor(new CurlLogger());
-                    processor.addResponseInterceptor(new WbxmlResponseLogger());
-                    return processor;
-                }
-            };
-        }
-        return mClient;
+    /**
+     * Execute a request with the shared {@link HttpClient} for our {@link HostAuth}.
+     * @param method The request to execute.
+     * @param timeout The socket timeout for this request.
+     * @return The response from the Exchange server.
+     */
+    private EasResponse executeRequest(final HttpUriRequest method, final long timeout)
+            throws IOException, CertificateException {
+        final EmailClientConnectionManager connManager = getClientConnectionManager();
+        final HttpClient client = EasConnectionCache.instance().getHttpClient(mHostAuth,
+                connManager);
+        // The client is shared, so the timeout goes in the request's params.
+        HttpConnectionParams.setSoTimeout(method.getParams(), (int)(timeout));
+        return EasResponse.fromHttpRequest(connManager, client, method);
     }
 
     private String makeAuthString() {
-        final String cs = mHostAuth.mLogin + ":" + mHostAuth.mPassword;
-        return "Basic " + Base64.encodeToString(cs.getBytes(), Base64.NO_WRAP);
+        final String login = mHostAuth.mLogin;
+        final String password = mHostAuth.mPassword;
+        if (mAuthString == null || !TextUtils.equals(login, mAuthLogin)
+                || !TextUtils.equals(password, mAuthPassword)) {
+            final String cs = login + ":" + password;
+            mAuthString = "Basic " + Base64.encodeToString(cs.getBytes(), Base64.NO_WRAP);
+            mAuthLogin = login;
+            mAuthPassword = password;
+        }
+        return mAuthString;
     }
 
     private String makeUserString() {
@@ -200,14 +198,24 @@ public class EasServerConnection {
                 sDeviceId = "0";
             }
         }
-        return "&User=" + Uri.encode(mHostAuth.mLogin) + "&DeviceId=" +
-                sDeviceId + "&DeviceType=" + DEVICE_TYPE;
+        final String login = mHostAuth.mLogin;
+        if (mUserString == null || !TextUtils.equals(login, mUserLogin)) {
+            mUserString = "&User=" + Uri.encode(login) + "&DeviceId=" +
+                    sDeviceId + "&DeviceType=" + DEVICE_TYPE;
+            mUserLogin = login;
+        }
+        return mUserString;
     }
 
     private String makeBaseUriString() {
-        return EmailClientConnectionManager.makeScheme(mHostAuth.shouldUseSsl(),
-                mHostAuth.shouldTrustAllServerCerts(), mHostAuth.mClientCertAlias) +
-                "://" + mHostAuth.mAddress + "/Microsoft-Server-ActiveSync";
+        final String address = mHostAuth.mAddress;
+        if (mBaseUriString == null || !TextUtils.equals(address, mBaseUriAddress)) {
+            mBaseUriString = EmailClientConnectionManager.makeScheme(mHostAuth.shouldUseSsl(),
+                    mHostAuth.shouldTrustAllServerCerts(), mHostAuth.mClientCertAlias) +
+                    "://" + address + "/Microsoft-Server-ActiveSync";
+            mBaseUriAddress = address;
+        }
+        return mBaseUriString;
     }
 
     public String makeUriString(final String cmd) {
@@ -234,6 +242,7 @@ public class EasServerConnection {
         }
         final double oldProtocolVersion = mProtocolVersion;
         mProtocolVersion = Eas.getProtocolVersionDouble(protocolVersionString);
+        mProtocolVersionString = String.valueOf(mProtocolVersion);
         return (oldProtocolVersion != mProtocolVersion);
     }
 
@@ -261,8 +270,7 @@ public class EasServerConnection {
         final HttpOptions method = new HttpOptions(URI.create(makeBaseUriString()));
         method.setHeader("Authorization", makeAuthString());
         method.setHeader("User-Agent", getUserAgent());
-        return EasResponse.fromHttpRequest(getClientConnectionManager(),
-                getHttpClient(COMMAND_TIMEOUT), method);
+        return executeRequest(method, COMMAND_TIMEOUT);
     }
 
     protected void resetAuthorization(final HttpPost post) {
@@ -282,7 +290,7 @@ public class EasServerConnection {
             final boolean usePolicyKey) {
         final HttpPost post = new HttpPost(uri);
         post.setHeader("Authorization", makeAuthString());
-        post.setHeader("MS-ASProtocolVersion", String.valueOf(mProtocolVersion));
+        post.setHeader("MS-ASProtocolVersion", mProtocolVersionString);
         post.setHeader("User-Agent", getUserAgent());
         post.setHeader("Accept-Encoding", "gzip");
         // If there is no entity, we should not be setting a content-type since this will
@@ -291,10 +299,20 @@ public class EasServerConnection {
             post.setHeader("Content-Type", contentType);
         }
         if (usePolicyKey) {
+            post.setHeader("X-MS-PolicyKey", getPolicyKey());
+        }
+        post.setEntity(entity);
+        return post;
+    }
+
+    /**
+     * @return The policy key to send with our requests.
+     */
+    private String getPolicyKey() {
+        if (mPolicyKey == null) {
             // If there's an account in existence, use its key; otherwise (we're creating the
             // account), send "0".  The server will respond with code 449 if there are policies
             // to be enforced
-            final String key;
             final String accountKey;
             if (mAccountId == Account.NO_ACCOUNT) {
                 accountKey = null;
@@ -304,14 +322,20 @@ public class EasServerConnection {
                         ACCOUNT_SECURITY_KEY_PROJECTION, null, null, null, 0);
             }
             if (!TextUtils.isEmpty(accountKey)) {
-                key = accountKey;
+                mPolicyKey = accountKey;
             } else {
-                key = "0";
+                mPolicyKey = "0";
             }
-            post.setHeader("X-MS-PolicyKey", key);
         }
-        post.setEntity(entity);
-        return post;
+        return mPolicyKey;
+    }
+
+    /**
+     * Forget the policy key we've been sending, so that it's read from the Account again before
+     * the next request. Must be called when the account's policy key changes (or may have).
+     */
+    public void invalidatePolicyKey() {
+        mPolicyKey = null;
     }
 
     public HttpGet makeGet(final String uri) {
@@ -426,12 +450,15 @@ public class EasServerConnection {
            mPendingRequest = method;
         }
         boolean postCompleted = false;
+        if (Tracing.isEnabled()) {
+            Tracing.beginSection("executeHttpUriRequest " + method.getMethod());
+        }
         try {
-            final EasResponse response = EasResponse.fromHttpRequest(getClientConnectionManager(),
-                    getHttpClient(timeout), method);
+            final EasResponse response = executeRequest(method, timeout);
             postCompleted = true;
             return response;
         } finally {
+            Tracing.endSection();
             synchronized (this) {
                 mPendingRequest = null;
                 if (postCompleted) {
@@ -44,6 +44,7 @@ import com.android.emailcommon.service.SearchParams;
 import com.android.emailcommon.service.ServiceProxy;
 import com.android.exchange.Eas;
 import com.android.exchange.eas.EasAutoDiscover;
+import com.android.exchange.eas.EasConnectionCache;
 import com.android.exchange.eas.EasFolderSync;
 import com.android.exchange.eas.EasFullSyncOperation;
 import com.android.exchange.eas.EasLoadAttachment;
@@ -54,10 +55,18 @@ import com.android.exchange.eas.EasSearchGal;
 import com.android.exchange.eas.EasSendMeetingResponse;
 import com.android.exchange.eas.EasSyncCalendar;
 import com.android.exchange.eas.EasSyncContacts;
+import com.android.exchange.eas.HeartbeatEstimator;
+import com.android.exchange.eas.SyncWindowController;
 import com.android.exchange.provider.GalResult;
+import com.android.exchange.utility.OperationMetrics;
+import com.android.exchange.utility.Tracing;
+import com.android.exchange.utility.WbxmlCapture;
 import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -73,6 +82,9 @@ public class EasService extends Service {
     private static final String PREFERENCES_FILE = "ExchangePrefs";
     private static final String PROTOCOL_LOGGING_PREF = "ProtocolLogging";
     private static final String FILE_LOGGING_PREF = "FileLogging";
+    private static final String OPERATION_METRICS_PREF = "OperationMetrics";
+    private static final String TRACING_PREF = "Tracing";
+    private static final String WBXML_CAPTURE_DIRECTORY = "wbxml";
 
     public static final String EXTRA_START_PING = "START_PING";
     public static final String EXTRA_PING_ACCOUNT = "PING_ACCOUNT";
@@ -104,7 +116,9 @@ public class EasService extends Service {
             if (account != null) {
                 final EasLoadAttachment operation = new EasLoadAttachment(EasService.this, account,
                         attachmentId, callback);
-                doOperation(operation, "IEmailService.loadAttachment");
+                doOperation(operation, "IEmailService.loadAttachment", background
+                        ? PingSyncSynchronizer.PRIORITY_BACKGROUND_SYNC
+                        : PingSyncSynchronizer.PRIORITY_INTERACTIVE);
             }
         }
 
@@ -114,7 +128,8 @@ public class EasService extends Service {
             final Account account = loadAccount(EasService.this, accountId);
             if (account != null) {
                 final EasFolderSync operation = new EasFolderSync(EasService.this, account);
-                doOperation(operation, "IEmailService.updateFolderList");
+                doOperation(operation, "IEmailService.updateFolderList",
+                        PingSyncSynchronizer.PRIORITY_USER_SYNC);
             }
         }
 
@@ -129,7 +144,13 @@ public class EasService extends Service {
             if (account != null) {
                 EasFullSyncOperation op = new EasFullSyncOperation(EasService.this, account,
                         syncExtras);
-                final int result = doOperation(op, "IEmailService.sync");
+                // Push only syncs are also "manual", but they're only used to restart the ping.
+                final boolean userInitiated =
+                        syncExtras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false)
+                                && !Mailbox.isPushOnlyExtras(syncExtras);
+                final int result = doOperation(op, "IEmailService.sync", userInitiated
+                        ? PingSyncSynchronizer.PRIORITY_USER_SYNC
+                        : PingSyncSynchronizer.PRIORITY_BACKGROUND_SYNC);
                 if (result == EasFullSyncOperation.RESULT_SECURITY_HOLD) {
                     LogUtils.i(LogUtils.TAG, "Security Hold trying to sync");
                     return EmailServiceStatus.INTERNAL_ERROR;
@@ -156,7 +177,8 @@ public class EasService extends Service {
             LogUtils.d(TAG, "IEmailService.validate");
             final HostAuth hostAuth = hostAuthCom.toHostAuth();
             final EasFolderSync operation = new EasFolderSync(EasService.this, hostAuth);
-            doOperation(operation, "IEmailService.validate");
+            doOperation(operation, "IEmailService.validate",
+                    PingSyncSynchronizer.PRIORITY_INTERACTIVE);
             return operation.getValidationResult();
         }
 
@@ -168,7 +190,8 @@ public class EasService extends Service {
             if (account != null) {
                 final EasSearch operation = new EasSearch(EasService.this, account, searchParams,
                         destMailboxId);
-                doOperation(operation, "IEmailService.searchMessages");
+                doOperation(operation, "IEmailService.searchMessages",
+                        PingSyncSynchronizer.PRIORITY_INTERACTIVE);
                 return operation.getTotalResults();
             } else {
                 return 0;
@@ -188,7 +211,8 @@ public class EasService extends Service {
             if (account != null) {
                 final EasSendMeetingResponse operation = new EasSendMeetingResponse(EasService.this,
                         account, msg, response);
-                doOperation(operation, "IEmailService.sendMeetingResponse");
+                doOperation(operation, "IEmailService.sendMeetingResponse",
+                        PingSyncSynchronizer.PRIORITY_USER_SYNC);
             }
         }
 
@@ -255,6 +279,7 @@ public class EasService extends Service {
             sharedPrefs.edit().putBoolean(PROTOCOL_LOGGING_PREF, sProtocolLogging).apply();
             sharedPrefs.edit().putBoolean(FILE_LOGGING_PREF, sFileLogging).apply();
             LogUtils.d(TAG, "IEmailService.setLogging %d, storing to shared pref", flags);
+            updateDiagnostics();
         }
 
         @Override
@@ -265,6 +290,7 @@ public class EasService extends Service {
                 final Context context = EasService.this;
                 EasSyncContacts.wipeAccountFromContentProvider(context, emailAddress);
                 EasSyncCalendar.wipeAccountFromContentProvider(context, emailAddress);
+                removeDeletedAccountState(context);
             }
         }
 
@@ -273,6 +299,15 @@ public class EasService extends Service {
         }
     };
 
+    /**
+     * Forget what we've learned about the networks of accounts and mailboxes that no longer exist.
+     * @param context Our {@link Context}.
+     */
+    private static void removeDeletedAccountState(final Context context) {
+        HeartbeatEstimator.removeDeletedAccounts(context);
+        SyncWindowController.removeDeletedMailboxes(context);
+    }
+
     private static Account loadAccount(final Context context, final long accountId) {
         Account account = Account.restoreAccountWithId(context, accountId);
         if (account == null) {
@@ -297,6 +332,8 @@ public class EasService extends Service {
         @Override
         protected Void doInBackground(Void... params) {
             LogUtils.i(TAG, "RestartPingTask");
+            // In case an account was deleted while we weren't running
+            removeDeletedAccountState(EasService.this);
             final Cursor c = EasService.this.getContentResolver().query(Account.CONTENT_URI,
                     Account.CONTENT_PROJECTION, PUSH_ACCOUNTS_SELECTION, null, null);
             if (c != null) {
@@ -346,6 +383,9 @@ public class EasService extends Service {
                 Context.MODE_PRIVATE);
         sProtocolLogging = sharedPrefs.getBoolean(PROTOCOL_LOGGING_PREF, false);
         sFileLogging = sharedPrefs.getBoolean(FILE_LOGGING_PREF, false);
+        OperationMetrics.setEnabled(sharedPrefs.getBoolean(OPERATION_METRICS_PREF, false));
+        Tracing.setEnabled(sharedPrefs.getBoolean(TRACING_PREF, false));
+        updateDiagnostics();
         // Restart push for all accounts that need it. Because this requires DB loads, we do it in
         // an AsyncTask, and we startService to ensure that we stick around long enough for the
         // task to complete. The task will stop the service if necessary after it's done.
@@ -356,7 +396,7 @@ public class EasService extends Service {
     @Override
     public void onDestroy() {
         LogUtils.i(TAG, "onDestroy");
-        mSynchronizer.stopAllPings();
+        mSynchronizer.shutdown();
     }
 
     @Override
@@ -364,6 +404,22 @@ public class EasService extends Service {
         return mBinder;
     }
 
+    @Override
+    protected void dump(final FileDescriptor fd, final PrintWriter writer, final String[] args) {
+        if (args != null && args.length == 2 && "metrics".equals(args[0])) {
+            setOperationMetrics(writer, args[1]);
+            return;
+        }
+        if (args != null && args.length == 2 && "trace".equals(args[0])) {
+            setTracing(writer, args[1]);
+            return;
+        }
+        mSynchronizer.dump(writer);
+        EasConnectionCache.instance().dump(writer);
+        OperationMetrics.dump(writer);
+        SyncWindowController.dump(this, writer);
+    }
+
     @Override
     public int onStartCommand(final Intent intent, final int flags, final int startId) {
         if (intent != null &&
@@ -388,9 +444,18 @@ public class EasService extends Service {
         return START_STICKY;
     }
 
-    public int doOperation(final EasOperation operation, final String loggingName) {
+    /**
+     * Run an operation, once the {@link PingSyncSynchronizer} lets it.
+     * @param operation The operation to run.
+     * @param loggingName The name to log for the operation.
+     * @param priority The operation's priority, one of the PingSyncSynchronizer.PRIORITY_*
+     *     constants. Only operations that don't change any sync state may be interactive.
+     * @return The operation's result.
+     */
+    public int doOperation(final EasOperation operation, final String loggingName,
+            final int priority) {
         LogUtils.d(TAG, "%s: %d", loggingName, operation.getAccountId());
-        mSynchronizer.syncStart(operation.getAccountId());
+        mSynchronizer.syncStart(operation.getAccountId(), priority);
         int result = EasOperation.RESULT_MIN_OK_RESULT;
         // TODO: Do we need a wakelock here? For RPC coming from sync adapters, no -- the SA
         // already has one. But for others, maybe? Not sure what's guaranteed for AIDL calls.
@@ -403,7 +468,7 @@ public class EasService extends Service {
             return result;
         } finally {
             mSynchronizer.syncEnd(result < EasOperation.RESULT_MIN_OK_RESULT,
-                    operation.getAccount());
+                    operation.getAccount(), priority);
         }
     }
 
@@ -560,6 +625,57 @@ public class EasService extends Service {
         return authsToSync;
     }
 
+    /**
+     * Turn the diagnostics that go with the logging settings on or off: WBXML capture is on with
+     * file logging. Captures hold message contents, so they go in our cache directory, where
+     * other apps can't read them.
+     */
+    private void updateDiagnostics() {
+        WbxmlCapture.setCaptureDirectory(
+                sFileLogging ? new File(getCacheDir(), WBXML_CAPTURE_DIRECTORY) : null);
+    }
+
+    /**
+     * Handle "dumpsys activity service com.android.exchange/.service.EasService metrics <action>",
+     * which turns operation metrics on or off, or clears them. Metrics have their own switch,
+     * rather than following protocol logging, so that they can be recorded without the cost of
+     * logging every tag skewing the times they measure. The setting is kept across restarts.
+     * @param writer The {@link PrintWriter} to report to.
+     * @param action One of "on", "off" or "clear".
+     */
+    private void setOperationMetrics(final PrintWriter writer, final String action) {
+        if ("clear".equals(action)) {
+            OperationMetrics.clear();
+        } else if ("on".equals(action) || "off".equals(action)) {
+            final boolean enabled = "on".equals(action);
+            OperationMetrics.setEnabled(enabled);
+            getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE).edit()
+                    .putBoolean(OPERATION_METRICS_PREF, enabled).apply();
+        } else {
+            writer.println("Usage: metrics on|off|clear");
+            return;
+        }
+        writer.println("Operation metrics " + action);
+    }
+
+    /**
+     * Handle "dumpsys activity service com.android.exchange/.service.EasService trace <action>",
+     * which turns our systrace sections on or off. The setting is kept across restarts.
+     * @param writer The {@link PrintWriter} to report to.
+     * @param action Either "on" or "off".
+     */
+    private void setTracing(final PrintWriter writer, final String action) {
+        if (!"on".equals(action) && !"off".equals(action)) {
+            writer.println("Usage: trace on|off");
+            return;
+        }
+        final boolean enabled = "on".equals(action);
+        Tracing.setEnabled(enabled);
+        getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE).edit()
+                .putBoolean(TRACING_PREF, enabled).apply();
+        writer.println("Tracing " + action);
+    }
+
     @VisibleForTesting
     public static void setProtocolLogging(final boolean val) {
         sProtocolLogging = val;
@@ -23,6 +23,7 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Process;
 import android.os.SystemClock;
 import android.support.v4.util.LongSparseArray;
 import android.text.format.DateUtils;
@@ -32,10 +33,19 @@ import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.exchange.Eas;
 import com.android.exchange.eas.EasPing;
+import com.android.exchange.utility.Tracing;
 import com.android.mail.utils.LogUtils;
-
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -49,13 +59,19 @@ import java.util.concurrent.locks.ReentrantLock;
  *   sync ops, but some may not be (e.g. EAS Settings).
  * - Syncs can come from many sources concurrently; this class must serialize them.
  *
+ * Operations have a priority: interactive, user initiated sync or background sync, and then ping,
+ * which any other operation may interrupt. Interactive operations (e.g. loading an attachment the
+ * user is looking at, or a search) don't change any sync state, so they're exempt from the rules
+ * below: they run as soon as they're asked to, alongside whatever else is running, on their own
+ * connection from the account's pool.
+ *
  * WHEN A SYNC STARTS:
  * - If nothing is running, proceed.
  * - If something is already running: wait until it's done.
  * - If the running thing is a ping task: interrupt it.
  *
  * WHEN A SYNC ENDS:
- * - If there are waiting syncs: signal one to proceed.
+ * - If there are waiting syncs: signal the oldest one with the highest priority to proceed.
  * - If there are no waiting syncs and this account is configured for push: start a ping.
  * - Otherwise: This account is now idle.
  *
@@ -77,6 +93,16 @@ import java.util.concurrent.locks.ReentrantLock;
  * WHEN AN ACCOUNT WANTS TO STOP GETTING PUSH:
  * - If nothing is running, do nothing.
  * - If a ping task is currently running, interrupt it.
+ *
+ * Ping tasks run on a thread pool owned by this class, rather than a shared executor, as each one
+ * holds its thread for as long as the ping hangs (which can be most of an hour). There's at most
+ * one ping task per account, so the pool only grows to the number of accounts using push, up to
+ * {@link #MAX_PING_THREADS}; beyond that pings queue until a thread is free. A queued ping that
+ * gets interrupted is simply removed from the queue.
+ *
+ * Each account's state has its own lock, so that a sync waiting or finishing on one account never
+ * holds up another. A separate lock only guards the map of accounts, and is never held while doing
+ * anything slow. Provider queries are done before taking an account's lock where possible.
  */
 public class PingSyncSynchronizer {
 
@@ -92,6 +118,20 @@ public class PingSyncSynchronizer {
     private static final long KICK_SYNC_INTERVAL_SECONDS =
             DateUtils.HOUR_IN_MILLIS / DateUtils.SECOND_IN_MILLIS;
 
+    /** Operations the user is waiting on, which don't wait for, or interrupt, anything else. */
+    public static final int PRIORITY_INTERACTIVE = 0;
+    /** Syncs the user asked for. */
+    public static final int PRIORITY_USER_SYNC = 1;
+    /** Syncs the system asked for. */
+    public static final int PRIORITY_BACKGROUND_SYNC = 2;
+    private static final int PRIORITY_COUNT = 3;
+    private static final String[] PRIORITY_NAMES = { "interactive", "user sync", "background sync" };
+
+    /** The max number of pings that can run at once. */
+    private static final int MAX_PING_THREADS = 32;
+    /** How long an idle ping thread waits for another ping before exiting. */
+    private static final long PING_THREAD_KEEP_ALIVE_SECONDS = 60;
+
     /**
      * This class handles bookkeeping for a single account.
      */
@@ -107,8 +147,9 @@ public class PingSyncSynchronizer {
         /**
          * Tracks whether this account wants to get push notifications, based on calls to
          * {@link #pushModify} and {@link #pushStop} (i.e. it tracks the last requested push state).
+         * This is only written with {@link #mLock} held, but may be read without it.
          */
-        private int mPushEnabled;
+        private volatile int mPushEnabled;
 
         /**
          * The number of syncs that are blocked waiting for the current operation to complete.
@@ -117,20 +158,49 @@ public class PingSyncSynchronizer {
          */
         private int mSyncCount;
 
-        /** The condition on which to block syncs that need to wait. */
-        private Condition mCondition;
+        /** The number of interactive operations running, which aren't counted in mSyncCount. */
+        private int mInteractiveCount;
+
+        /** The number of syncs of each priority that are waiting. */
+        private final int[] mWaitingCount;
+
+        /**
+         * The number of waiting syncs of each priority that have been told to proceed, but haven't
+         * yet woken up. This is never more than one in total.
+         */
+        private final int[] mProceedCount;
+
+        /** Lock for this account's state. */
+        private final ReentrantLock mLock;
+
+        /** The conditions on which to block syncs that need to wait, by priority. */
+        private final Condition[] mConditions;
+
+        /**
+         * Whether this state has been removed from {@link #mAccountStateMap}. A thread that looked
+         * up this state but only got its lock after it was removed must look it up again.
+         */
+        private boolean mRemoved;
 
         /** The accountId for this accountState, used for logging */
-        private long mAccountId;
+        private final long mAccountId;
 
-        public AccountSyncState(final Lock lock, final long accountId) {
+        public AccountSyncState(final long accountId) {
             mPingTask = null;
             // We don't yet have enough information to know whether or not push should be enabled.
             // We need to look up the account and it's folders, which won't yet exist for a newly
             // created account.
             mPushEnabled = PUSH_UNKNOWN;
             mSyncCount = 0;
-            mCondition = lock.newCondition();
+            mInteractiveCount = 0;
+            mWaitingCount = new int[PRIORITY_COUNT];
+            mProceedCount = new int[PRIORITY_COUNT];
+            mLock = new ReentrantLock();
+            mConditions = new Condition[PRIORITY_COUNT];
+            for (int i = 0; i < PRIORITY_COUNT; ++i) {
+                mConditions[i] = mLock.newCondition();
+            }
+            mRemoved = false;
             mAccountId = accountId;
         }
 
@@ -138,67 +208,130 @@ public class PingSyncSynchronizer {
          * Update bookkeeping for a new sync:
          * - Stop the Ping if there is one.
          * - Wait until there's nothing running for this account before proceeding.
+         * Interactive operations skip all of this.
+         * @param priority The priority of the sync.
+         * @return How long we waited, in nanoseconds.
          */
-        public void syncStart() {
+        public long syncStart(final int priority) {
+            if (priority == PRIORITY_INTERACTIVE) {
+                ++mInteractiveCount;
+                return 0;
+            }
             ++mSyncCount;
             if (mPingTask != null) {
                 // Syncs are higher priority than Ping -- terminate the Ping.
                 LogUtils.i(TAG, "PSS Sync is pre-empting a ping acct:%d", mAccountId);
-                mPingTask.stop();
+                if (cancelQueuedPing(mPingTask)) {
+                    // It never started, so there's nothing to wait for.
+                    mPingTask = null;
+                } else {
+                    mPingTask.stop();
+                }
+            }
+            if (mPingTask == null && mSyncCount == 1) {
+                return 0;
             }
-            if (mPingTask != null || mSyncCount > 1) {
-                // There’s something we need to wait for before we can proceed.
-                try {
-                    LogUtils.i(TAG, "PSS Sync needs to wait: Ping: %s, Pending tasks: %d acct: %d",
-                            mPingTask != null ? "yes" : "no", mSyncCount, mAccountId);
-                    mCondition.await();
-                } catch (final InterruptedException e) {
-                    // TODO: Handle this properly. Not catching it might be the right answer.
-                    LogUtils.i(TAG, "PSS InterruptedException acct:%d", mAccountId);
+            // There’s something we need to wait for before we can proceed.
+            final long startTime = System.nanoTime();
+            ++mWaitingCount[priority];
+            Tracing.beginSection("PingSyncSynchronizer.syncStart wait");
+            try {
+                LogUtils.i(TAG, "PSS Sync needs to wait: Ping: %s, Pending tasks: %d acct: %d",
+                        mPingTask != null ? "yes" : "no", mSyncCount, mAccountId);
+                while (mProceedCount[priority] == 0) {
+                    try {
+                        mConditions[priority].await();
+                    } catch (final InterruptedException e) {
+                        // TODO: Handle this properly. Not catching it might be the right answer.
+                        LogUtils.i(TAG, "PSS InterruptedException acct:%d", mAccountId);
+                    }
                 }
+                --mProceedCount[priority];
+            } finally {
+                --mWaitingCount[priority];
+                Tracing.endSection();
             }
+            return System.nanoTime() - startTime;
+        }
+
+        /**
+         * Let the highest priority waiting sync proceed. Within a priority, syncs proceed in the
+         * order they started waiting.
+         */
+        private void signalNextSync() {
+            for (int priority = 0; priority < PRIORITY_COUNT; ++priority) {
+                if (mWaitingCount[priority] > mProceedCount[priority]) {
+                    ++mProceedCount[priority];
+                    mConditions[priority].signal();
+                    return;
+                }
+            }
+            LogUtils.e(TAG, "PSS no waiting sync to signal acct:%d", mAccountId);
         }
 
         /**
          * Update bookkeeping when a sync completes. This includes signaling pending ops to
          * go ahead, or starting the ping if appropriate and there are no waiting ops.
+         * @param priority The priority the sync was started with.
+         * @param pushEnabled Whether the account needs push, if the caller already looked it up
+         *     (as it's best done without holding the lock), or {@link #PUSH_UNKNOWN}.
          * @return Whether this account is now idle.
          */
         public boolean syncEnd(final boolean lastSyncHadError, final Account account,
-                               final PingSyncSynchronizer synchronizer) {
+                               final PingSyncSynchronizer synchronizer, final int priority,
+                               final int pushEnabled) {
+            if (priority == PRIORITY_INTERACTIVE) {
+                --mInteractiveCount;
+                return mInteractiveCount == 0 && mSyncCount == 0 && mPingTask == null;
+            }
             --mSyncCount;
             if (mSyncCount > 0) {
                 LogUtils.i(TAG, "PSS Signalling a pending sync to proceed acct:%d.",
                         account.getId());
-                mCondition.signal();
+                signalNextSync();
                 return false;
             } else {
                 if (mPushEnabled == PUSH_UNKNOWN) {
                     LogUtils.i(TAG, "PSS push enabled is unknown");
-                    mPushEnabled = (EasService.pingNeededForAccount(mService, account) ?
-                            PUSH_ENABLED : PUSH_DISABLED);
+                    if (pushEnabled != PUSH_UNKNOWN) {
+                        mPushEnabled = pushEnabled;
+                    } else {
+                        mPushEnabled = (EasService.pingNeededForAccount(mService, account) ?
+                                PUSH_ENABLED : PUSH_DISABLED);
+                    }
                 }
                 if (mPushEnabled == PUSH_ENABLED) {
                     if (lastSyncHadError) {
                         LogUtils.i(TAG, "PSS last sync had error, scheduling delayed ping acct:%d.",
                                 account.getId());
                         scheduleDelayedPing(synchronizer.getContext(), account);
-                        return true;
+                        return mInteractiveCount == 0;
                     } else {
                         LogUtils.i(TAG, "PSS last sync succeeded, starting new ping acct:%d.",
                                 account.getId());
                         final android.accounts.Account amAccount =
                                 new android.accounts.Account(account.mEmailAddress,
                                         Eas.EXCHANGE_ACCOUNT_MANAGER_TYPE);
-                        mPingTask = new PingTask(synchronizer.getContext(), account, amAccount,
-                                synchronizer);
-                        mPingTask.start();
-                        return false;
+                        return !startPing(account, amAccount) && mInteractiveCount == 0;
                     }
                 }
             }
             LogUtils.i(TAG, "PSS no push enabled acct:%d.", account.getId());
-            return true;
+            return mInteractiveCount == 0;
+        }
+
+        /**
+         * Start a ping task for this account.
+         * @return Whether the ping task was started.
+         */
+        private boolean startPing(final Account account,
+                final android.accounts.Account amAccount) {
+            final PingTask pingTask = makePingTask(account, amAccount);
+            if (executePing(pingTask)) {
+                mPingTask = pingTask;
+                return true;
+            }
+            return false;
         }
 
         /**
@@ -209,7 +342,7 @@ public class PingSyncSynchronizer {
             mPingTask = null;
             if (mSyncCount > 0) {
                 LogUtils.i(TAG, "PSS pingEnd, syncs still in progress acct:%d.", mAccountId);
-                mCondition.signal();
+                signalNextSync();
                 return false;
             } else {
                 if (mPushEnabled == PUSH_ENABLED || mPushEnabled == PUSH_UNKNOWN) {
@@ -232,7 +365,7 @@ public class PingSyncSynchronizer {
                 }
             }
             LogUtils.i(TAG, "PSS pingEnd, no longer need ping acct:%d.", mAccountId);
-            return true;
+            return mInteractiveCount == 0;
         }
 
         private void scheduleDelayedPing(final Context context,
@@ -253,8 +386,9 @@ public class PingSyncSynchronizer {
 
         /**
          * Modifies or starts a ping for this account if no syncs are running.
+         * @return The Account Manager account for this account.
          */
-        public void pushModify(final Account account, final PingSyncSynchronizer synchronizer) {
+        public android.accounts.Account pushModify(final Account account) {
             LogUtils.i(LogUtils.TAG, "PSS pushModify acct:%d", account.getId());
             mPushEnabled = PUSH_ENABLED;
             final android.accounts.Account amAccount =
@@ -264,9 +398,7 @@ public class PingSyncSynchronizer {
                 if (mPingTask == null) {
                     // No ping, no running syncs -- start a new ping.
                     LogUtils.i(LogUtils.TAG, "PSS starting ping task acct:%d", account.getId());
-                    mPingTask = new PingTask(synchronizer.getContext(), account, amAccount,
-                            synchronizer);
-                    mPingTask.start();
+                    startPing(account, amAccount);
                 } else {
                     // Ping is already running, so tell it to restart to pick up any new params.
                     LogUtils.i(LogUtils.TAG, "PSS restarting ping task acct:%d", account.getId());
@@ -275,31 +407,33 @@ public class PingSyncSynchronizer {
             } else {
                 LogUtils.i(LogUtils.TAG, "PSS syncs still in progress acct:%d", account.getId());
             }
-            if (SCHEDULE_KICK) {
-                final Bundle extras = new Bundle(1);
-                extras.putBoolean(Mailbox.SYNC_EXTRA_PUSH_ONLY, true);
-                ContentResolver.addPeriodicSync(amAccount, EmailContent.AUTHORITY, extras,
-                        KICK_SYNC_INTERVAL_SECONDS);
-            }
+            return amAccount;
         }
 
         /**
          * Stop the currently running ping.
+         * @return Whether this account is now idle.
          */
-        public void pushStop() {
+        public boolean pushStop() {
             LogUtils.i(LogUtils.TAG, "PSS pushStop acct:%d", mAccountId);
             mPushEnabled = PUSH_DISABLED;
             if (mPingTask != null) {
+                if (cancelQueuedPing(mPingTask)) {
+                    // It never started, so it won't report that it ended.
+                    mPingTask = null;
+                    return mSyncCount == 0 && mInteractiveCount == 0;
+                }
                 mPingTask.stop();
             }
+            return false;
         }
     }
 
     /**
-     * Lock for access to {@link #mAccountStateMap}, also used to create the {@link Condition}s for
-     * each Account.
+     * Lock for access to {@link #mAccountStateMap}. Each {@link AccountSyncState} has its own
+     * lock for its contents; when both are needed, the account's lock must be taken first.
      */
-    private final ReentrantLock mLock;
+    private final ReentrantLock mMapLock;
 
     /**
      * Map from account ID -> {@link AccountSyncState} for accounts with a running operation.
@@ -313,10 +447,125 @@ public class PingSyncSynchronizer {
     /** The {@link Service} that this object is managing. */
     private final Service mService;
 
+    /** Runs the {@link PingTask}s. */
+    private final ThreadPoolExecutor mPingExecutor;
+
+    /** The number of ping tasks that are running or queued to run. */
+    private final AtomicInteger mOutstandingPings = new AtomicInteger();
+
+    /** How long syncs have waited to start. */
+    private static class WaitStats {
+        private int mCount;
+        private int mWaitedCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        public synchronized void record(final long waitNanos) {
+            ++mCount;
+            if (waitNanos > 0) {
+                ++mWaitedCount;
+                mTotalNanos += waitNanos;
+                mMaxNanos = Math.max(mMaxNanos, waitNanos);
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "count=" + mCount + " waited=" + mWaitedCount
+                    + " meanWait=" + (mWaitedCount > 0
+                            ? TimeUnit.NANOSECONDS.toMillis(mTotalNanos / mWaitedCount) : 0) + "ms"
+                    + " maxWait=" + TimeUnit.NANOSECONDS.toMillis(mMaxNanos) + "ms";
+        }
+    }
+
+    /** The {@link WaitStats} for each priority. */
+    private final WaitStats[] mWaitStats;
+
     public PingSyncSynchronizer(final Service service) {
-        mLock = new ReentrantLock();
+        mMapLock = new ReentrantLock();
         mAccountStateMap = new LongSparseArray<AccountSyncState>();
+        mWaitStats = new WaitStats[PRIORITY_COUNT];
+        for (int i = 0; i < PRIORITY_COUNT; ++i) {
+            mWaitStats[i] = new WaitStats();
+        }
         mService = service;
+        mPingExecutor = new ThreadPoolExecutor(MAX_PING_THREADS, MAX_PING_THREADS,
+                PING_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "Ping #" + mCount.incrementAndGet());
+                    }
+                });
+        mPingExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Make the task that runs the ping loop for an account.
+     * @param account The account to ping.
+     * @param amAccount The Account Manager account for the account.
+     * @return The task.
+     */
+    @VisibleForTesting
+    PingTask makePingTask(final Account account, final android.accounts.Account amAccount) {
+        return new PingTask(mService, account, amAccount, this);
+    }
+
+    /**
+     * Queue a ping task to run.
+     * @param pingTask The task to run.
+     * @return Whether the task was queued; this fails only once we've been shut down.
+     */
+    private boolean executePing(final PingTask pingTask) {
+        mOutstandingPings.incrementAndGet();
+        try {
+            mPingExecutor.execute(pingTask);
+            return true;
+        } catch (final RejectedExecutionException e) {
+            LogUtils.w(TAG, "PSS not starting ping after shutdown");
+            mOutstandingPings.decrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Remove a ping task from the queue if it hasn't started running yet.
+     * @param pingTask The task to remove.
+     * @return Whether the task was removed; if not, it's running (or has already finished).
+     */
+    private boolean cancelQueuedPing(final PingTask pingTask) {
+        if (mPingExecutor.remove(pingTask)) {
+            mOutstandingPings.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of pings that are running or waiting for a thread to run on.
+     */
+    public int getOutstandingPingCount() {
+        return mOutstandingPings.get();
+    }
+
+    /**
+     * Write the number of outstanding pings and how long syncs have waited to start.
+     * @param writer The {@link PrintWriter} to write to.
+     */
+    public void dump(final PrintWriter writer) {
+        writer.println("Outstanding pings: " + getOutstandingPingCount());
+        writer.println("Sync waits:");
+        for (int i = 0; i < PRIORITY_COUNT; ++i) {
+            writer.println("  " + PRIORITY_NAMES[i] + ": " + mWaitStats[i]);
+        }
     }
 
     public Context getContext() {
@@ -325,18 +574,18 @@ public class PingSyncSynchronizer {
 
     /**
      * Gets the {@link AccountSyncState} for an account.
-     * The caller must hold {@link #mLock}.
+     * The caller must hold {@link #mMapLock}.
      * @param accountId The id for the account we're interested in.
      * @param createIfNeeded If true, create the account state if it's not already there.
      * @return The {@link AccountSyncState} for that account, or null if the account is idle and
      *         createIfNeeded is false.
      */
     private AccountSyncState getAccountState(final long accountId, final boolean createIfNeeded) {
-        assert mLock.isHeldByCurrentThread();
+        assert mMapLock.isHeldByCurrentThread();
         AccountSyncState state = mAccountStateMap.get(accountId);
         if (state == null && createIfNeeded) {
             LogUtils.i(TAG, "PSS adding account state for acct:%d", accountId);
-            state = new AccountSyncState(mLock, accountId);
+            state = new AccountSyncState(accountId);
             mAccountStateMap.put(accountId, state);
             // TODO: Is this too late to startService?
             if (mAccountStateMap.size() == 1) {
@@ -347,89 +596,178 @@ public class PingSyncSynchronizer {
         return state;
     }
 
+    /**
+     * Gets the {@link AccountSyncState} for an account, without locking it.
+     * @param accountId The id for the account we're interested in.
+     * @return The {@link AccountSyncState} for that account, or null if the account is idle.
+     */
+    private AccountSyncState peekAccountState(final long accountId) {
+        mMapLock.lock();
+        try {
+            return getAccountState(accountId, false);
+        } finally {
+            mMapLock.unlock();
+        }
+    }
+
+    /**
+     * Gets the {@link AccountSyncState} for an account, and locks it. The caller must unlock it.
+     * @param accountId The id for the account we're interested in.
+     * @param createIfNeeded If true, create the account state if it's not already there.
+     * @return The locked {@link AccountSyncState} for that account, or null if the account is
+     *         idle and createIfNeeded is false.
+     */
+    private AccountSyncState lockAccountState(final long accountId,
+            final boolean createIfNeeded) {
+        while (true) {
+            final AccountSyncState state;
+            mMapLock.lock();
+            try {
+                state = getAccountState(accountId, createIfNeeded);
+            } finally {
+                mMapLock.unlock();
+            }
+            if (state == null) {
+                return null;
+            }
+            state.mLock.lock();
+            if (!state.mRemoved) {
+                return state;
+            }
+            // It went idle and was removed while we waited for it; look again.
+            state.mLock.unlock();
+        }
+    }
+
     /**
      * Remove an account from the map. If this was the last account, then also stop this service.
-     * The caller must hold {@link #mLock}.
-     * @param accountId The id for the account we're removing.
+     * The caller must hold the account's lock.
+     * @param state The state for the account we're removing.
      */
-    private void removeAccount(final long accountId) {
-        assert mLock.isHeldByCurrentThread();
-        LogUtils.i(TAG, "PSS removing account state for acct:%d", accountId);
-        mAccountStateMap.delete(accountId);
-        if (mAccountStateMap.size() == 0) {
-            LogUtils.i(TAG, "PSS removed last account; stopping service.");
-            mService.stopSelf();
+    private void removeAccount(final AccountSyncState state) {
+        assert state.mLock.isHeldByCurrentThread();
+        LogUtils.i(TAG, "PSS removing account state for acct:%d", state.mAccountId);
+        state.mRemoved = true;
+        mMapLock.lock();
+        try {
+            if (mAccountStateMap.get(state.mAccountId) == state) {
+                mAccountStateMap.delete(state.mAccountId);
+            }
+            if (mAccountStateMap.size() == 0) {
+                LogUtils.i(TAG, "PSS removed last account; stopping service.");
+                mService.stopSelf();
+            }
+        } finally {
+            mMapLock.unlock();
         }
     }
 
-    public void syncStart(final long accountId) {
-        mLock.lock();
+    /**
+     * Call before starting an operation on an account; this blocks until the operation may run.
+     * Every call must be matched by a call to {@link #syncEnd} with the same priority.
+     * @param accountId The account the operation is for.
+     * @param priority One of the PRIORITY_* constants.
+     */
+    public void syncStart(final long accountId, final int priority) {
+        LogUtils.i(TAG, "PSS syncStart for account acct:%d priority:%d", accountId, priority);
+        final AccountSyncState accountState = lockAccountState(accountId, true);
+        final long waitNanos;
         try {
-            LogUtils.i(TAG, "PSS syncStart for account acct:%d", accountId);
-            final AccountSyncState accountState = getAccountState(accountId, true);
-            accountState.syncStart();
+            waitNanos = accountState.syncStart(priority);
         } finally {
-            mLock.unlock();
+            accountState.mLock.unlock();
         }
+        mWaitStats[priority].record(waitNanos);
     }
 
-    public void syncEnd(final boolean lastSyncHadError, final Account account) {
-        mLock.lock();
+    /**
+     * Call after an operation started with {@link #syncStart} is done.
+     * @param lastSyncHadError Whether the operation failed.
+     * @param account The account the operation was for.
+     * @param priority The priority passed to {@link #syncStart}.
+     */
+    public void syncEnd(final boolean lastSyncHadError, final Account account,
+            final int priority) {
+        final long accountId = account.getId();
+        LogUtils.i(TAG, "PSS syncEnd for account acct:%d", accountId);
+        // If we need to know whether this account wants push, look it up now, as that queries
+        // the provider and we'd rather not do that while holding the account's lock.
+        int pushEnabled = AccountSyncState.PUSH_UNKNOWN;
+        final AccountSyncState peekedState = peekAccountState(accountId);
+        if (priority != PRIORITY_INTERACTIVE && peekedState != null
+                && peekedState.mPushEnabled == AccountSyncState.PUSH_UNKNOWN) {
+            pushEnabled = EasService.pingNeededForAccount(mService, account)
+                    ? AccountSyncState.PUSH_ENABLED : AccountSyncState.PUSH_DISABLED;
+        }
+        final AccountSyncState accountState = lockAccountState(accountId, false);
+        if (accountState == null) {
+            LogUtils.w(TAG, "PSS syncEnd for account %d but no state found", accountId);
+            return;
+        }
         try {
-            final long accountId = account.getId();
-            LogUtils.i(TAG, "PSS syncEnd for account acct:%d", account.getId());
-            final AccountSyncState accountState = getAccountState(accountId, false);
-            if (accountState == null) {
-                LogUtils.w(TAG, "PSS syncEnd for account %d but no state found", accountId);
-                return;
-            }
-            if (accountState.syncEnd(lastSyncHadError, account, this)) {
-                removeAccount(accountId);
+            if (accountState.syncEnd(lastSyncHadError, account, this, priority, pushEnabled)) {
+                removeAccount(accountState);
             }
         } finally {
-            mLock.unlock();
+            accountState.mLock.unlock();
         }
     }
 
     public void pingEnd(final long accountId, final android.accounts.Account amAccount) {
-        mLock.lock();
+        mOutstandingPings.decrementAndGet();
+        LogUtils.i(TAG, "PSS pingEnd for account %d", accountId);
+        final AccountSyncState accountState = lockAccountState(accountId, false);
+        if (accountState == null) {
+            LogUtils.w(TAG, "PSS pingEnd for account %d but no state found", accountId);
+            return;
+        }
         try {
-            LogUtils.i(TAG, "PSS pingEnd for account %d", accountId);
-            final AccountSyncState accountState = getAccountState(accountId, false);
-            if (accountState == null) {
-                LogUtils.w(TAG, "PSS pingEnd for account %d but no state found", accountId);
-                return;
-            }
             if (accountState.pingEnd(amAccount)) {
-                removeAccount(accountId);
+                removeAccount(accountState);
             }
         } finally {
-            mLock.unlock();
+            accountState.mLock.unlock();
         }
     }
 
     public void pushModify(final Account account) {
-        mLock.lock();
+        final long accountId = account.getId();
+        LogUtils.i(TAG, "PSS pushModify acct:%d", accountId);
+        final AccountSyncState accountState = lockAccountState(accountId, true);
+        final android.accounts.Account amAccount;
         try {
-            final long accountId = account.getId();
-            LogUtils.i(TAG, "PSS pushModify acct:%d", accountId);
-            final AccountSyncState accountState = getAccountState(accountId, true);
-            accountState.pushModify(account, this);
+            amAccount = accountState.pushModify(account);
         } finally {
-            mLock.unlock();
+            accountState.mLock.unlock();
+        }
+        if (SCHEDULE_KICK) {
+            schedulePushKick(amAccount);
         }
     }
 
+    /**
+     * Schedule a periodic push-only sync for an account, which restarts its ping if it's died.
+     * @param amAccount The Account Manager account for the account.
+     */
+    @VisibleForTesting
+    void schedulePushKick(final android.accounts.Account amAccount) {
+        final Bundle extras = new Bundle(1);
+        extras.putBoolean(Mailbox.SYNC_EXTRA_PUSH_ONLY, true);
+        ContentResolver.addPeriodicSync(amAccount, EmailContent.AUTHORITY, extras,
+                KICK_SYNC_INTERVAL_SECONDS);
+    }
+
     public void pushStop(final long accountId) {
-        mLock.lock();
-        try {
-            LogUtils.i(TAG, "PSS pushStop acct:%d", accountId);
-            final AccountSyncState accountState = getAccountState(accountId, false);
-            if (accountState != null) {
-                accountState.pushStop();
+        LogUtils.i(TAG, "PSS pushStop acct:%d", accountId);
+        final AccountSyncState accountState = lockAccountState(accountId, false);
+        if (accountState != null) {
+            try {
+                if (accountState.pushStop()) {
+                    removeAccount(accountState);
+                }
+            } finally {
+                accountState.mLock.unlock();
             }
-        } finally {
-            mLock.unlock();
         }
     }
 
@@ -437,7 +775,7 @@ public class PingSyncSynchronizer {
      * Stops our service if our map contains no active accounts.
      */
     public void stopServiceIfIdle() {
-        mLock.lock();
+        mMapLock.lock();
         try {
             LogUtils.i(TAG, "PSS stopIfIdle");
             if (mAccountStateMap.size() == 0) {
@@ -445,7 +783,7 @@ public class PingSyncSynchronizer {
                 mService.stopSelf();
             }
         } finally {
-            mLock.unlock();
+            mMapLock.unlock();
         }
     }
 
@@ -453,13 +791,67 @@ public class PingSyncSynchronizer {
      * Tells all running ping tasks to stop.
      */
     public void stopAllPings() {
-        mLock.lock();
+        final ArrayList<AccountSyncState> states = new ArrayList<AccountSyncState>();
+        mMapLock.lock();
         try {
             for (int i = 0; i < mAccountStateMap.size(); ++i) {
-                mAccountStateMap.valueAt(i).pushStop();
+                states.add(mAccountStateMap.valueAt(i));
             }
         } finally {
-            mLock.unlock();
+            mMapLock.unlock();
         }
+        for (final AccountSyncState state : states) {
+            state.mLock.lock();
+            try {
+                if (!state.mRemoved && state.pushStop()) {
+                    removeAccount(state);
+                }
+            } finally {
+                state.mLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @param accountId The account we're interested in.
+     * @return The number of syncs waiting to start on that account.
+     */
+    @VisibleForTesting
+    int getWaitingSyncCount(final long accountId) {
+        final AccountSyncState accountState = lockAccountState(accountId, false);
+        if (accountState == null) {
+            return 0;
+        }
+        try {
+            int count = 0;
+            for (int i = 0; i < PRIORITY_COUNT; ++i) {
+                count += accountState.mWaitingCount[i];
+            }
+            return count;
+        } finally {
+            accountState.mLock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of accounts with a sync or ping running or pending.
+     */
+    @VisibleForTesting
+    int getActiveAccountCount() {
+        mMapLock.lock();
+        try {
+            return mAccountStateMap.size();
+        } finally {
+            mMapLock.unlock();
+        }
+    }
+
+    /**
+     * Stops all pings and the ping threads. No new pings will start after this; the ones that
+     * are running finish (and report their end) in the background.
+     */
+    public void shutdown() {
+        stopAllPings();
+        mPingExecutor.shutdown();
     }
 }
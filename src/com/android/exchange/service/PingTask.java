@@ -17,19 +17,21 @@
 package com.android.exchange.service;
 
 import android.content.Context;
-import android.os.AsyncTask;
 
 import com.android.emailcommon.provider.Account;
 import com.android.exchange.Eas;
 import com.android.exchange.adapter.PingParser;
 import com.android.exchange.eas.EasOperation;
 import com.android.exchange.eas.EasPing;
+import com.android.exchange.utility.Tracing;
 import com.android.mail.utils.LogUtils;
 
 /**
- * Thread management class for Ping operations.
+ * Thread management class for Ping operations. A ping task runs its ping loop on a thread from
+ * the {@link PingSyncSynchronizer}'s ping executor, and reports to the synchronizer when the loop
+ * ends.
  */
-public class PingTask extends AsyncTask<Void, Void, Void> {
+public class PingTask implements Runnable {
     private final EasPing mOperation;
     private final PingSyncSynchronizer mPingSyncSynchronizer;
 
@@ -44,11 +46,6 @@ public class PingTask extends AsyncTask<Void, Void, Void> {
         mPingSyncSynchronizer = pingSyncSynchronizer;
     }
 
-    /** Start the ping loop. */
-    public void start() {
-        executeOnExecutor(THREAD_POOL_EXECUTOR);
-    }
-
     /** Abort the ping loop (used when another operation interrupts the ping). */
     public void stop() {
         mOperation.abort();
@@ -60,9 +57,14 @@ public class PingTask extends AsyncTask<Void, Void, Void> {
     }
 
     @Override
-    protected Void doInBackground(Void... params) {
+    public void run() {
         LogUtils.i(TAG, "Ping task starting for %d", mOperation.getAccountId());
         int pingStatus;
+        // The ping task runs on its own thread for the whole ping loop, so this section covers
+        // the ping's lifetime.
+        if (Tracing.isEnabled()) {
+            Tracing.beginSection("PingTask " + mOperation.getAccountId());
+        }
         try {
             do {
                 pingStatus = mOperation.doPing();
@@ -73,18 +75,12 @@ public class PingTask extends AsyncTask<Void, Void, Void> {
             // failure.
             LogUtils.e(TAG, e, "Ping exception for account %d", mOperation.getAccountId());
             pingStatus = EasOperation.RESULT_NETWORK_PROBLEM;
+        } finally {
+            mOperation.stopWatchingPushMailboxes();
+            Tracing.endSection();
         }
         LogUtils.i(TAG, "Ping task ending with status: %d", pingStatus);
 
         mPingSyncSynchronizer.pingEnd(mOperation.getAccountId(), mOperation.getAmAccount());
-        return null;
-    }
-
-    @Override
-    protected void onCancelled (Void result) {
-        // TODO: This is also hacky, should have a separate result code at minimum.
-        // If the ping is cancelled, make sure it reports something to the sync adapter.
-        LogUtils.w(TAG, "Ping cancelled for %d", mOperation.getAccountId());
-        mPingSyncSynchronizer.pingEnd(mOperation.getAccountId(), mOperation.getAmAccount());
     }
 }
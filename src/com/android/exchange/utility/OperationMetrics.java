@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.utility;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records where the time goes in Exchange operations, per account and command. Each operation is
+ * split into phases:
+ * - build: making the request.
+ * - firstByte: sending the request and waiting for the response headers.
+ * - transfer: reading the response body from the network.
+ * - parse: handling the response, less the transfer and commit time.
+ * - commit: writing the results to the providers.
+ * For each phase we keep a histogram of the times, and for each operation we also count the
+ * bytes sent and received and the result code.
+ *
+ * Operations make a {@link Sample} with {@link #startOperation}, which is null when metrics are
+ * disabled, so that the only cost then is checking a flag. While an operation is in progress its
+ * sample is also available to the code it calls on the same thread, which is how the parsers'
+ * commits are measured (see {@link #startCommit}).
+ *
+ * Recording is off by default; it's turned on with "dumpsys ... EasService metrics on" (see
+ * EasService), independently of protocol logging so that logging doesn't skew the times.
+ */
+public class OperationMetrics {
+    public static final int PHASE_BUILD = 0;
+    public static final int PHASE_FIRST_BYTE = 1;
+    public static final int PHASE_TRANSFER = 2;
+    public static final int PHASE_PARSE = 3;
+    public static final int PHASE_COMMIT = 4;
+    private static final int PHASE_COUNT = 5;
+    private static final String[] PHASE_NAMES =
+            { "build", "firstByte", "transfer", "parse", "commit" };
+
+    private static volatile boolean sEnabled = false;
+
+    /** The metrics for each account and command, keyed by {@link #makeKey}. */
+    private static final ConcurrentHashMap<String, CommandMetrics> sMetrics =
+            new ConcurrentHashMap<String, CommandMetrics>();
+
+    /** The sample for the operation in progress on each thread. */
+    private static final ThreadLocal<Sample> sCurrentSample = new ThreadLocal<Sample>();
+
+    /**
+     * Turn recording on or off. Turning it off doesn't clear what's already been recorded.
+     * @param enabled Whether to record metrics.
+     */
+    public static void setEnabled(final boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * The measurements for one operation. This is only used by the thread performing the
+     * operation, so it isn't synchronized.
+     */
+    public static class Sample {
+        private final long mAccountId;
+        private final String mCommand;
+        private final long[] mPhaseNanos = new long[PHASE_COUNT];
+        private long mHandlingNanos;
+        private long mBytesOut;
+        private long mBytesIn;
+        /** The sample of the operation this one is nested in, if any. */
+        private final Sample mOuter;
+
+        private Sample(final long accountId, final String command, final Sample outer) {
+            mAccountId = accountId;
+            mCommand = command;
+            mOuter = outer;
+        }
+
+        /**
+         * Add time to a phase. The parse time is worked out from {@link #addHandlingTime}, so
+         * shouldn't be added directly.
+         * @param phase One of the PHASE_* constants.
+         * @param startNanos When the time started, per {@link System#nanoTime}.
+         */
+        public void addTime(final int phase, final long startNanos) {
+            mPhaseNanos[phase] += System.nanoTime() - startNanos;
+        }
+
+        /**
+         * Add the time spent handling a response, which includes reading, parsing and committing
+         * it.
+         * @param startNanos When handling started, per {@link System#nanoTime}.
+         */
+        public void addHandlingTime(final long startNanos) {
+            mHandlingNanos += System.nanoTime() - startNanos;
+        }
+
+        public void addBytesOut(final long bytes) {
+            if (bytes > 0) {
+                mBytesOut += bytes;
+            }
+        }
+
+        /**
+         * Wrap a response stream so that the bytes read from it, and the time spent reading them,
+         * are added to this sample.
+         * @param in The stream to wrap, as read from the network.
+         * @return The wrapped stream.
+         */
+        public InputStream meter(final InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    final long start = System.nanoTime();
+                    final int b = super.read();
+                    addTime(PHASE_TRANSFER, start);
+                    if (b >= 0) {
+                        mBytesIn++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(final byte[] buffer, final int offset, final int count)
+                        throws IOException {
+                    final long start = System.nanoTime();
+                    final int read = super.read(buffer, offset, count);
+                    addTime(PHASE_TRANSFER, start);
+                    if (read > 0) {
+                        mBytesIn += read;
+                    }
+                    return read;
+                }
+
+                @Override
+                public long skip(final long count) throws IOException {
+                    final long start = System.nanoTime();
+                    final long skipped = super.skip(count);
+                    addTime(PHASE_TRANSFER, start);
+                    if (skipped > 0) {
+                        mBytesIn += skipped;
+                    }
+                    return skipped;
+                }
+            };
+        }
+    }
+
+    /** A histogram of times, in power of two buckets of milliseconds. */
+    private static class Histogram {
+        /** Bucket 0 is under 1ms; bucket i > 0 is [2^(i-1), 2^i) ms; the last is open ended. */
+        private static final int BUCKET_COUNT = 20;
+
+        private final int[] mBuckets = new int[BUCKET_COUNT];
+        private int mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        public void record(final long nanos) {
+            final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            final int bucket = Math.min(64 - Long.numberOfLeadingZeros(millis), BUCKET_COUNT - 1);
+            mBuckets[bucket]++;
+            mCount++;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+        }
+
+        /**
+         * @param fraction The fraction of samples, between 0 and 1.
+         * @return The upper bound, in ms, of the bucket that the given fraction of samples fall
+         *     at or under.
+         */
+        private long getPercentileBound(final double fraction) {
+            final int target = (int) Math.ceil(mCount * fraction);
+            int seen = 0;
+            for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+                seen += mBuckets[i];
+                if (seen >= target) {
+                    return 1L << i;
+                }
+            }
+            return TimeUnit.NANOSECONDS.toMillis(mMaxNanos);
+        }
+
+        @Override
+        public String toString() {
+            if (mCount == 0) {
+                return "-";
+            }
+            return String.format("mean=%dms p50<%dms p90<%dms max=%dms",
+                    TimeUnit.NANOSECONDS.toMillis(mTotalNanos / mCount),
+                    getPercentileBound(0.5), getPercentileBound(0.9),
+                    TimeUnit.NANOSECONDS.toMillis(mMaxNanos));
+        }
+    }
+
+    /** The metrics for one command on one account. */
+    private static class CommandMetrics {
+        private final Histogram[] mPhases = new Histogram[PHASE_COUNT];
+        private final Histogram mTotal = new Histogram();
+        private long mBytesOut;
+        private long mBytesIn;
+        /** The number of operations with each result code. */
+        private final TreeMap<Integer, Integer> mResults = new TreeMap<Integer, Integer>();
+
+        public CommandMetrics() {
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                mPhases[i] = new Histogram();
+            }
+        }
+
+        public synchronized void record(final Sample sample, final long totalNanos,
+                final int result) {
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                mPhases[i].record(sample.mPhaseNanos[i]);
+            }
+            mTotal.record(totalNanos);
+            mBytesOut += sample.mBytesOut;
+            mBytesIn += sample.mBytesIn;
+            final Integer count = mResults.get(result);
+            mResults.put(result, count == null ? 1 : count + 1);
+        }
+
+        public synchronized void dump(final PrintWriter writer) {
+            writer.println("    count=" + mTotal.mCount + " total: " + mTotal);
+            for (int i = 0; i < PHASE_COUNT; i++) {
+                writer.println("    " + PHASE_NAMES[i] + ": " + mPhases[i]);
+            }
+            writer.println("    bytesOut=" + mBytesOut + " bytesIn=" + mBytesIn
+                    + " results=" + mResults);
+        }
+    }
+
+    private static String makeKey(final long accountId, final String command) {
+        return accountId + " " + command;
+    }
+
+    /**
+     * Start measuring an operation on this thread. An operation may be started from within
+     * another (e.g. a provision while handling another command's response); the outer one is
+     * current again once the inner one ends.
+     * @param accountId The account the operation is for.
+     * @param command The operation's command.
+     * @return The {@link Sample} to add measurements to, or null if metrics are disabled.
+     */
+    public static Sample startOperation(final long accountId, final String command) {
+        if (!sEnabled) {
+            return null;
+        }
+        final Sample sample = new Sample(accountId, command, sCurrentSample.get());
+        sCurrentSample.set(sample);
+        return sample;
+    }
+
+    /**
+     * Finish measuring an operation, and record its sample.
+     * @param sample The sample from {@link #startOperation}, or null.
+     * @param startNanos When the operation started, per {@link System#nanoTime}.
+     * @param result The operation's result code.
+     */
+    public static void endOperation(final Sample sample, final long startNanos,
+            final int result) {
+        if (sample == null) {
+            return;
+        }
+        if (sample.mOuter != null) {
+            sCurrentSample.set(sample.mOuter);
+        } else {
+            sCurrentSample.remove();
+        }
+        sample.mPhaseNanos[PHASE_PARSE] = Math.max(0, sample.mHandlingNanos
+                - sample.mPhaseNanos[PHASE_TRANSFER] - sample.mPhaseNanos[PHASE_COMMIT]);
+        final String key = makeKey(sample.mAccountId, sample.mCommand);
+        CommandMetrics metrics = sMetrics.get(key);
+        if (metrics == null) {
+            final CommandMetrics newMetrics = new CommandMetrics();
+            metrics = sMetrics.putIfAbsent(key, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        metrics.record(sample, System.nanoTime() - startNanos, result);
+    }
+
+    /**
+     * Call before committing the results of an operation; pass the result to
+     * {@link #endCommit} once done.
+     * @return The start time of the commit, or 0 if there's nothing to measure.
+     */
+    public static long startCommit() {
+        return sCurrentSample.get() != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Call after committing the results of an operation.
+     * @param startNanos The value returned by {@link #startCommit}.
+     */
+    public static void endCommit(final long startNanos) {
+        if (startNanos != 0) {
+            final Sample sample = sCurrentSample.get();
+            if (sample != null) {
+                sample.addTime(PHASE_COMMIT, startNanos);
+            }
+        }
+    }
+
+    /**
+     * Record commit writes for the operation in progress on this thread that ran on another
+     * thread, which can't see our sample (see {@link com.android.exchange.eas.SyncCommitPipeline}).
+     * The writes overlapped with this operation, apart from the time we spent waiting for them;
+     * that part is already in the handling time, so only the rest is added there, which keeps it
+     * out of the parse time.
+     * @param commitNanos How long the writes took.
+     * @param waitNanos How long we waited for them while handling the response.
+     */
+    public static void addCommitTime(final long commitNanos, final long waitNanos) {
+        final Sample sample = sCurrentSample.get();
+        if (sample != null) {
+            sample.mPhaseNanos[PHASE_COMMIT] += commitNanos;
+            sample.mHandlingNanos += Math.max(0, commitNanos - waitNanos);
+        }
+    }
+
+    /**
+     * Write the metrics for every account and command recorded so far.
+     * @param writer The {@link PrintWriter} to write to.
+     */
+    public static void dump(final PrintWriter writer) {
+        writer.println("Operation metrics" + (sEnabled ? ":" : " (disabled):"));
+        // Sort by account and command
+        final TreeMap<String, CommandMetrics> metrics =
+                new TreeMap<String, CommandMetrics>(sMetrics);
+        for (final Map.Entry<String, CommandMetrics> entry : metrics.entrySet()) {
+            writer.println("  Account " + entry.getKey());
+            entry.getValue().dump(writer);
+        }
+    }
+
+    /** Forget everything recorded so far. */
+    public static void clear() {
+        sMetrics.clear();
+    }
+}
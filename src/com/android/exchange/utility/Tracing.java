@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.utility;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Marks sections of the sync pipeline in systrace, so that individual slow operations can be seen
+ * on a timeline. {@link Trace} only exists from JB MR2, so on older releases this does nothing.
+ *
+ * Sections must be ended on the thread that began them, in reverse order, so always pair
+ * {@link #beginSection} with {@link #endSection} in a finally block.
+ *
+ * The SDK we build against can't tell us whether systrace is recording, so sections have their own
+ * switch, which is off by default. Callers that build a section name should only do so when
+ * {@link #isEnabled}, so that the names cost nothing while tracing is off.
+ */
+public class Tracing {
+    /** Trace section names longer than this are rejected, so we truncate them. */
+    private static final int MAX_SECTION_NAME_LENGTH = 127;
+
+    private static final boolean SUPPORTED =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+    private static volatile boolean sEnabled = false;
+
+    public static void setEnabled(final boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * @return Whether trace sections are being written.
+     */
+    public static boolean isEnabled() {
+        return SUPPORTED && sEnabled;
+    }
+
+    /**
+     * Begin a trace section on this thread, if tracing is enabled.
+     * @param name The name of the section.
+     */
+    public static void beginSection(final String name) {
+        if (isEnabled()) {
+            Trace.beginSection(name.length() > MAX_SECTION_NAME_LENGTH
+                    ? name.substring(0, MAX_SECTION_NAME_LENGTH) : name);
+        }
+    }
+
+    /**
+     * End the most recent trace section begun on this thread. This doesn't depend on the switch,
+     * so that a section is still ended if tracing is turned off while it's open; systrace ignores
+     * ends without a beginning.
+     */
+    public static void endSection() {
+        if (SUPPORTED) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Make a section name for an operation on a mailbox.
+     * @param name What's being done, e.g. the command.
+     * @param mailboxType The type of the mailbox, or {@link WbxmlCapture#NO_MAILBOX_TYPE}.
+     * @return The section name.
+     */
+    public static String makeSectionName(final String name, final int mailboxType) {
+        if (mailboxType == WbxmlCapture.NO_MAILBOX_TYPE) {
+            return name;
+        }
+        return name + " (mailbox type " + mailboxType + ")";
+    }
+}
@@ -0,0 +1,550 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.utility;
+
+import com.android.exchange.Eas;
+import com.android.exchange.adapter.Wbxml;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Captures the WBXML responses to EAS commands as we parse them, so that they can be replayed
+ * later (e.g. to turn real traffic into repeatable benchmarks). Each response is written, as it's
+ * read, to its own file in the capture directory; the file starts with a short header giving the
+ * command, the protocol version, and the type of the mailbox involved (if any), followed by the
+ * (uncompressed) WBXML as the server sent it, except that opaque values (attachment data, for
+ * the most part) are cut down to their first {@link #MAX_OPAQUE_LENGTH} bytes.
+ *
+ * Capture is off unless a capture directory has been set. Captures hold message contents, so the
+ * directory should be private to us. It's kept to at most {@link #MAX_CAPTURE_FILES} files and
+ * {@link #MAX_CAPTURE_BYTES} bytes by deleting the oldest captures; a response that won't fit at
+ * all isn't captured.
+ */
+public class WbxmlCapture {
+    private static final String TAG = Eas.LOG_TAG;
+
+    // "EASW"
+    private static final int MAGIC = 0x45415357;
+    private static final int FORMAT_VERSION = 1;
+    private static final int BUFFER_SIZE = 8192;
+    private static final String FILE_SUFFIX = ".wbxml";
+
+    @VisibleForTesting
+    static final int MAX_CAPTURE_FILES = 100;
+    @VisibleForTesting
+    static final long MAX_CAPTURE_BYTES = 16 * 1024 * 1024;
+    @VisibleForTesting
+    static final int MAX_OPAQUE_LENGTH = 1024;
+
+    /** The mailbox type recorded for commands that aren't about a particular mailbox */
+    public static final int NO_MAILBOX_TYPE = -1;
+
+    // The commands whose responses we capture
+    private static final HashSet<String> CAPTURED_COMMANDS = new HashSet<String>(Arrays.asList(
+            "Sync", "FolderSync", "Ping", "ItemOperations", "Search"));
+
+    private static volatile File sCaptureDirectory;
+    private static final AtomicInteger sSequence = new AtomicInteger();
+
+    /**
+     * Set the directory to write captures to.
+     * @param directory the directory, which is created if necessary; null to stop capturing
+     */
+    public static void setCaptureDirectory(final File directory) {
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            LogUtils.w(TAG, "Can't create capture directory %s", directory);
+            sCaptureDirectory = null;
+            return;
+        }
+        sCaptureDirectory = directory;
+    }
+
+    /**
+     * @return whether capture is on; callers can check this before working out what to capture
+     */
+    public static boolean isEnabled() {
+        return sCaptureDirectory != null;
+    }
+
+    /**
+     * @param command the EAS command
+     * @return whether we should capture the response to the command
+     */
+    public static boolean shouldCapture(final String command) {
+        return sCaptureDirectory != null && CAPTURED_COMMANDS.contains(command);
+    }
+
+    /**
+     * Start capturing a response.
+     * @param in the stream of the response's WBXML
+     * @param command the EAS command this is a response to
+     * @param protocolVersion the protocol version in use
+     * @param mailboxType the type of the mailbox the command is for, or
+     *     {@link #NO_MAILBOX_TYPE}
+     * @return a stream to read the response from instead, which captures everything read (or
+     *     skipped) from it, and finishes the capture when closed; or the original stream if the
+     *     capture can't be started
+     */
+    public static InputStream capture(final InputStream in, final String command,
+            final double protocolVersion, final int mailboxType) {
+        final File directory = sCaptureDirectory;
+        if (directory == null || in == null) {
+            return in;
+        }
+        pruneCaptures(directory);
+        // Padded, so that sorting the names puts the files in the order they were made
+        final File file = new File(directory, String.format(Locale.US, "%013d-%06d-%s%s",
+                System.currentTimeMillis(), sSequence.incrementAndGet(), command, FILE_SUFFIX));
+        try {
+            final BufferedOutputStream fileOut =
+                    new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+            final DataOutputStream header = new DataOutputStream(fileOut);
+            header.writeInt(MAGIC);
+            header.writeInt(FORMAT_VERSION);
+            header.writeUTF(command);
+            header.writeDouble(protocolVersion);
+            header.writeInt(mailboxType);
+            return new CaptureInputStream(in, new TruncatingOutputStream(fileOut, header.size()),
+                    file);
+        } catch (final IOException e) {
+            LogUtils.w(TAG, "Can't capture to %s: %s", file, e.getMessage());
+            return in;
+        }
+    }
+
+    /**
+     * Delete the oldest captures in a directory until there's room for another.
+     * @param directory the capture directory
+     */
+    @VisibleForTesting
+    static void pruneCaptures(final File directory) {
+        final File[] files = listCaptureFiles(directory);
+        long totalBytes = 0;
+        for (final File file : files) {
+            totalBytes += file.length();
+        }
+        int count = files.length;
+        for (final File file : files) {
+            if (count < MAX_CAPTURE_FILES && totalBytes < MAX_CAPTURE_BYTES) {
+                break;
+            }
+            totalBytes -= file.length();
+            count--;
+            if (!file.delete()) {
+                LogUtils.w(TAG, "Can't delete capture %s", file);
+            }
+        }
+    }
+
+    /**
+     * A stream that writes a WBXML document through to a capture file, cutting each opaque value
+     * down to {@link #MAX_OPAQUE_LENGTH} bytes (and its length to match). It fails if the file
+     * would grow past {@link #MAX_CAPTURE_BYTES}, or if the document isn't WBXML as EAS uses it.
+     */
+    @VisibleForTesting
+    static class TruncatingOutputStream extends FilterOutputStream {
+        // What the next byte of the document is
+        private static final int STATE_VERSION = 0;
+        private static final int STATE_INT = 1;
+        private static final int STATE_TABLE = 2;
+        private static final int STATE_TOKEN = 3;
+        private static final int STATE_PAGE = 4;
+        private static final int STATE_INLINE_STRING = 5;
+        private static final int STATE_OPAQUE_LENGTH = 6;
+        private static final int STATE_OPAQUE = 7;
+
+        private int mState = STATE_VERSION;
+        // The multi-byte integers left in the header: public id, charset and table length
+        private int mHeaderInts = 3;
+        // The multi-byte integer being read
+        private int mInt;
+        private int mIntBytes;
+        // The bytes left in the string table or opaque value, and how many more of them we keep
+        private int mRemaining;
+        private int mKeep;
+        private long mWritten;
+
+        /**
+         * @param out the file's stream
+         * @param headerSize the number of bytes already written to the file
+         */
+        public TruncatingOutputStream(final OutputStream out, final long headerSize) {
+            super(out);
+            mWritten = headerSize;
+        }
+
+        private void writeThrough(final int b) throws IOException {
+            if (++mWritten > MAX_CAPTURE_BYTES) {
+                throw new IOException("Capture too large");
+            }
+            out.write(b);
+        }
+
+        private void writeThrough(final byte[] b, final int off, final int len)
+                throws IOException {
+            mWritten += len;
+            if (mWritten > MAX_CAPTURE_BYTES) {
+                throw new IOException("Capture too large");
+            }
+            out.write(b, off, len);
+        }
+
+        private void startInt(final int state) {
+            mInt = 0;
+            mIntBytes = 0;
+            mState = state;
+        }
+
+        /**
+         * Add a byte to the multi-byte integer we're reading.
+         * @return whether the integer is complete
+         */
+        private boolean addIntByte(final int b) throws IOException {
+            mInt = (mInt << 7) | (b & 0x7F);
+            if (++mIntBytes > 5 || mInt < 0) {
+                throw new IOException("Bad WBXML integer");
+            }
+            return (b & 0x80) == 0;
+        }
+
+        @Override
+        public void write(final int oneByte) throws IOException {
+            final int b = oneByte & 0xFF;
+            switch (mState) {
+                case STATE_VERSION:
+                    writeThrough(b);
+                    startInt(STATE_INT);
+                    break;
+                case STATE_INT:
+                    writeThrough(b);
+                    if (!addIntByte(b)) {
+                        break;
+                    }
+                    if (mHeaderInts == 0) {
+                        mState = STATE_TOKEN;
+                    } else if (--mHeaderInts > 0) {
+                        startInt(STATE_INT);
+                    } else {
+                        mRemaining = mInt;
+                        mState = mRemaining > 0 ? STATE_TABLE : STATE_TOKEN;
+                    }
+                    break;
+                case STATE_TABLE:
+                    writeThrough(b);
+                    if (--mRemaining == 0) {
+                        mState = STATE_TOKEN;
+                    }
+                    break;
+                case STATE_TOKEN:
+                    writeThrough(b);
+                    startToken(b);
+                    break;
+                case STATE_PAGE:
+                    writeThrough(b);
+                    mState = STATE_TOKEN;
+                    break;
+                case STATE_INLINE_STRING:
+                    writeThrough(b);
+                    if (b == 0) {
+                        mState = STATE_TOKEN;
+                    }
+                    break;
+                case STATE_OPAQUE_LENGTH:
+                    // Held back until we know how much of the value we'll keep
+                    if (addIntByte(b)) {
+                        mRemaining = mInt;
+                        mKeep = Math.min(mRemaining, MAX_OPAQUE_LENGTH);
+                        writeInt(mKeep);
+                        mState = mRemaining > 0 ? STATE_OPAQUE : STATE_TOKEN;
+                    }
+                    break;
+                case STATE_OPAQUE:
+                    if (mKeep > 0) {
+                        writeThrough(b);
+                        mKeep--;
+                    }
+                    if (--mRemaining == 0) {
+                        mState = STATE_TOKEN;
+                    }
+                    break;
+            }
+        }
+
+        private void startToken(final int b) throws IOException {
+            switch (b) {
+                case Wbxml.SWITCH_PAGE:
+                    mState = STATE_PAGE;
+                    break;
+                case Wbxml.STR_I:
+                case Wbxml.EXT_I_0:
+                case Wbxml.EXT_I_1:
+                case Wbxml.EXT_I_2:
+                    mState = STATE_INLINE_STRING;
+                    break;
+                case Wbxml.ENTITY:
+                case Wbxml.LITERAL:
+                case Wbxml.LITERAL_C:
+                case Wbxml.LITERAL_A:
+                case Wbxml.LITERAL_AC:
+                case Wbxml.EXT_T_0:
+                case Wbxml.EXT_T_1:
+                case Wbxml.EXT_T_2:
+                case Wbxml.STR_T:
+                    startInt(STATE_INT);
+                    break;
+                case Wbxml.OPAQUE:
+                    startInt(STATE_OPAQUE_LENGTH);
+                    break;
+                case Wbxml.PI:
+                    throw new IOException("Unsupported WBXML processing instruction");
+                default:
+                    // END, EXT_0..2 and tags, which EAS never gives attributes
+                    if ((b & Wbxml.WITH_ATTRIBUTES) != 0 && (b & 0x3F) > Wbxml.LITERAL) {
+                        throw new IOException("Unsupported WBXML attributes");
+                    }
+            }
+        }
+
+        private void writeInt(final int value) throws IOException {
+            int shift = 28;
+            while (shift > 0 && (value >>> shift) == 0) {
+                shift -= 7;
+            }
+            for (; shift > 0; shift -= 7) {
+                writeThrough(0x80 | ((value >>> shift) & 0x7F));
+            }
+            writeThrough(value & 0x7F);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            final int end = off + len;
+            int i = off;
+            while (i < end) {
+                if (mState == STATE_OPAQUE) {
+                    // Opaque values are the big ones, so pass over them in blocks
+                    final int count = Math.min(end - i, mRemaining);
+                    final int kept = Math.min(count, mKeep);
+                    writeThrough(b, i, kept);
+                    mKeep -= kept;
+                    mRemaining -= count;
+                    i += count;
+                    if (mRemaining == 0) {
+                        mState = STATE_TOKEN;
+                    }
+                } else {
+                    write(b[i++]);
+                }
+            }
+        }
+    }
+
+    /**
+     * A stream that copies everything read from it to a capture file; if the capture fails, the
+     * file is deleted when the stream is closed, as a partial capture can't be replayed
+     */
+    private static class CaptureInputStream extends FilterInputStream {
+        private final OutputStream mCapture;
+        private final File mFile;
+        private byte[] mSkipBuffer;
+        private boolean mCaptureFailed;
+
+        public CaptureInputStream(final InputStream in, final OutputStream capture,
+                final File file) {
+            super(in);
+            mCapture = capture;
+            mFile = file;
+        }
+
+        private void capture(final byte[] b, final int off, final int len) {
+            if (mCaptureFailed) {
+                return;
+            }
+            try {
+                mCapture.write(b, off, len);
+            } catch (final IOException e) {
+                // Losing the capture shouldn't cost us the response
+                LogUtils.w(TAG, "Capture failed: %s", e.getMessage());
+                mCaptureFailed = true;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1 && !mCaptureFailed) {
+                try {
+                    mCapture.write(b);
+                } catch (final IOException e) {
+                    LogUtils.w(TAG, "Capture failed: %s", e.getMessage());
+                    mCaptureFailed = true;
+                }
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int count = in.read(b, off, len);
+            if (count > 0) {
+                capture(b, off, count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            // Read what's skipped, so that the capture is complete
+            if (mSkipBuffer == null) {
+                mSkipBuffer = new byte[BUFFER_SIZE];
+            }
+            final int count = read(mSkipBuffer, 0, (int) Math.min(n, mSkipBuffer.length));
+            return Math.max(count, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                mCapture.close();
+            } catch (final IOException e) {
+                mCaptureFailed = true;
+            }
+            if (mCaptureFailed) {
+                mFile.delete();
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * A captured response, as read back from its file
+     */
+    public static class Capture {
+        public final File mFile;
+        public final String mCommand;
+        public final double mProtocolVersion;
+        public final int mMailboxType;
+        private final long mDataOffset;
+
+        private Capture(final File file, final String command, final double protocolVersion,
+                final int mailboxType, final long dataOffset) {
+            mFile = file;
+            mCommand = command;
+            mProtocolVersion = protocolVersion;
+            mMailboxType = mailboxType;
+            mDataOffset = dataOffset;
+        }
+
+        /**
+         * @return the length of the captured WBXML
+         */
+        public long getLength() {
+            return mFile.length() - mDataOffset;
+        }
+
+        /**
+         * @return a new stream of the captured WBXML; the caller must close it
+         */
+        public InputStream getInputStream() throws IOException {
+            final InputStream in = new FileInputStream(mFile);
+            long toSkip = mDataOffset;
+            while (toSkip > 0) {
+                final long skipped = in.skip(toSkip);
+                if (skipped <= 0) {
+                    in.close();
+                    throw new IOException("Truncated capture " + mFile);
+                }
+                toSkip -= skipped;
+            }
+            return new BufferedInputStream(in, BUFFER_SIZE);
+        }
+
+        @Override
+        public String toString() {
+            return mCommand + " (" + mProtocolVersion + ", " + getLength() + " bytes)";
+        }
+    }
+
+    /**
+     * Read the header of a capture file.
+     * @param file the file
+     * @return the capture
+     * @throws IOException if the file can't be read, or isn't a capture
+     */
+    public static Capture readCapture(final File file) throws IOException {
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a capture: " + file);
+            }
+            final int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unknown capture version " + version + ": " + file);
+            }
+            final String command = in.readUTF();
+            final double protocolVersion = in.readDouble();
+            final int mailboxType = in.readInt();
+            // magic, version, the UTF (a length followed by the bytes), version, and mailbox type
+            final long dataOffset = 4 + 4 + 2 + command.getBytes("UTF-8").length + 8 + 4;
+            return new Capture(file, command, protocolVersion, mailboxType, dataOffset);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param directory a capture directory
+     * @return the capture files in it, oldest first
+     */
+    public static File[] listCaptureFiles(final File directory) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (final File file : files) {
+            if (file.getName().endsWith(FILE_SUFFIX)) {
+                files[count++] = file;
+            }
+        }
+        final File[] captures = Arrays.copyOf(files, count);
+        Arrays.sort(captures);
+        return captures;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.BaseColumns;
+import android.provider.CalendarContract;
+import android.provider.ContactsContract;
+import android.test.IsolatedContext;
+import android.test.mock.MockContentResolver;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.exchange.Eas;
+import com.android.exchange.utility.WbxmlCapture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * Replays captured responses (see {@link WbxmlCapture}) through the parser for their command,
+ * against a content resolver that accepts, and counts, whatever the parsers write to it without
+ * storing anything. This turns captured traffic into repeatable benchmarks of our response
+ * handling, separating the time spent parsing from the time spent committing the results.
+ */
+public class CaptureReplay {
+    private static final long ACCOUNT_ID = 1;
+    private static final long MAILBOX_ID = 2;
+    private static final long CALENDAR_ID = 3;
+
+    /**
+     * A provider that accepts every write, and answers every query with an empty cursor.
+     * MockProvider stores what it's given, but can't handle the queries the parsers make.
+     */
+    private static class RecordingProvider extends ContentProvider {
+        private long mNextId = 1;
+        int mBatches;
+        int mOperations;
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor query(final Uri uri, final String[] projection, final String selection,
+                final String[] selectionArgs, final String sortOrder) {
+            return new MatrixCursor(projection != null ? projection
+                    : new String[] { BaseColumns._ID });
+        }
+
+        @Override
+        public String getType(final Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(final Uri uri, final ContentValues values) {
+            mOperations++;
+            return ContentUris.withAppendedId(uri, mNextId++);
+        }
+
+        @Override
+        public int delete(final Uri uri, final String selection, final String[] selectionArgs) {
+            mOperations++;
+            return 1;
+        }
+
+        @Override
+        public int update(final Uri uri, final ContentValues values, final String selection,
+                final String[] selectionArgs) {
+            mOperations++;
+            return 1;
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(
+                final ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            mBatches++;
+            return super.applyBatch(operations);
+        }
+    }
+
+    /**
+     * An OutputStream that discards what's written to it, for attachment data
+     */
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    }
+
+    /**
+     * The results of replaying one capture
+     */
+    public static class Result {
+        public final WbxmlCapture.Capture mCapture;
+        public long mParseNanos;
+        public long mCommitNanos;
+        public int mBatches;
+        public int mOperations;
+        // The exception the parser threw, if any
+        public Exception mException;
+
+        private Result(final WbxmlCapture.Capture capture) {
+            mCapture = capture;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: parse %.2f ms, commit %.2f ms, %d ops in %d batches%s",
+                    mCapture, mParseNanos / 1e6, mCommitNanos / 1e6, mOperations, mBatches,
+                    mException == null ? "" : " (" + mException + ")");
+        }
+    }
+
+    private final Context mContext;
+    private final MockContentResolver mResolver;
+    private final RecordingProvider mProvider;
+    private final Account mAccount;
+    private final android.accounts.Account mAmAccount;
+    private final Mailbox mMailbox;
+    // Time spent in commit() during the current replay
+    private long mCommitNanos;
+
+    public CaptureReplay(final Context context) {
+        mProvider = new RecordingProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(EmailContent.AUTHORITY, mProvider);
+        mResolver.addProvider(CalendarContract.AUTHORITY, mProvider);
+        mResolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+        mContext = new IsolatedContext(mResolver, context);
+
+        mAccount = new Account();
+        mAccount.mId = ACCOUNT_ID;
+        mAccount.mEmailAddress = "replay@example.com";
+        mAccount.mSyncKey = "1";
+        mAmAccount = new android.accounts.Account(mAccount.mEmailAddress,
+                Eas.EXCHANGE_ACCOUNT_MANAGER_TYPE);
+        mMailbox = new Mailbox();
+        mMailbox.mId = MAILBOX_ID;
+        mMailbox.mAccountKey = ACCOUNT_ID;
+        mMailbox.mServerId = "1";
+        mMailbox.mDisplayName = "Replay";
+        mMailbox.mSyncKey = "1";
+    }
+
+    /**
+     * Replay a capture.
+     * @param capture the capture
+     * @return the results
+     */
+    public Result replay(final WbxmlCapture.Capture capture) throws IOException {
+        final Result result = new Result(capture);
+        mProvider.mBatches = 0;
+        mProvider.mOperations = 0;
+        mCommitNanos = 0;
+        mMailbox.mType = capture.mMailboxType;
+        mMailbox.mSyncKey = "1";
+        final InputStream in = capture.getInputStream();
+        final long start = System.nanoTime();
+        try {
+            makeParser(capture, in).parse();
+        } catch (final Exception e) {
+            result.mException = e;
+        } finally {
+            in.close();
+        }
+        result.mCommitNanos = mCommitNanos;
+        result.mParseNanos = System.nanoTime() - start - mCommitNanos;
+        result.mBatches = mProvider.mBatches;
+        result.mOperations = mProvider.mOperations;
+        return result;
+    }
+
+    /**
+     * Make the parser that handles responses to the capture's command. The sync parsers are
+     * wrapped so that we can time their commits; other parsers commit as they go, if at all.
+     */
+    private Parser makeParser(final WbxmlCapture.Capture capture, final InputStream in)
+            throws IOException {
+        final String command = capture.mCommand;
+        if (command.equals("Ping")) {
+            return new PingParser(in);
+        } else if (command.equals("ItemOperations")) {
+            return new ItemOperationsParser(in, new NullOutputStream(), 0, null);
+        } else if (command.equals("Search")) {
+            if (capture.mMailboxType == WbxmlCapture.NO_MAILBOX_TYPE) {
+                return new GalParser(in);
+            }
+            return new SearchParser(mContext, mResolver, in, mMailbox, mAccount, "replay");
+        } else if (command.equals("FolderSync")) {
+            return new FolderSyncParser(mContext, mResolver, in, mAccount, false) {
+                @Override
+                public void commit() throws IOException {
+                    final long start = System.nanoTime();
+                    super.commit();
+                    mCommitNanos += System.nanoTime() - start;
+                }
+            };
+        } else if (command.equals("Sync")) {
+            if (capture.mMailboxType == Mailbox.TYPE_CALENDAR) {
+                return new CalendarSyncParser(mContext, mResolver, in, mMailbox, mAccount,
+                        mAmAccount, CALENDAR_ID) {
+                    @Override
+                    public void commit() throws IOException {
+                        final long start = System.nanoTime();
+                        super.commit();
+                        mCommitNanos += System.nanoTime() - start;
+                    }
+                };
+            } else if (capture.mMailboxType == Mailbox.TYPE_CONTACTS) {
+                return new ContactsSyncParser(mContext, mResolver, in, mMailbox, mAccount,
+                        mAmAccount) {
+                    @Override
+                    public void commit() throws IOException {
+                        final long start = System.nanoTime();
+                        super.commit();
+                        mCommitNanos += System.nanoTime() - start;
+                    }
+                };
+            }
+            return new EmailSyncParser(mContext, mResolver, in, mMailbox, mAccount) {
+                @Override
+                public void commit() throws RemoteException, OperationApplicationException {
+                    final long start = System.nanoTime();
+                    super.commit();
+                    mCommitNanos += System.nanoTime() - start;
+                }
+            };
+        }
+        throw new IllegalArgumentException("No parser for " + capture);
+    }
+}
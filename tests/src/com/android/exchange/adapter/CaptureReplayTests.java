@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.emailcommon.provider.Mailbox;
+import com.android.exchange.utility.Benchmark;
+import com.android.exchange.utility.WbxmlCapture;
+import com.android.mail.utils.LogUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Replays captured responses; see {@link CaptureReplay}. With file logging on, Exchange captures
+ * the responses to its commands in the "wbxml" directory of its (private) cache directory; copy
+ * captures to the "wbxml" directory of this test's external files directory to benchmark them.
+ * You can run this with:
+ *   runtest -c com.android.exchange.adapter.CaptureReplayTests exchange
+ */
+@LargeTest
+public class CaptureReplayTests extends AndroidTestCase {
+    private static final String CAPTURE_DIRECTORY = "wbxml";
+
+    private File mTestDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestDirectory = new File(getContext().getCacheDir(), "capture-test");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        WbxmlCapture.setCaptureDirectory(null);
+        final File[] files = mTestDirectory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        mTestDirectory.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Capture a document the way EasResponse does, reading it in pieces and skipping some of it
+     */
+    private static void capture(final byte[] document, final String command,
+            final int mailboxType) throws IOException {
+        final InputStream in = WbxmlCapture.capture(new ByteArrayInputStream(document), command,
+                14.0, mailboxType);
+        final byte[] buffer = new byte[1000];
+        while (in.read(buffer) != -1 && in.skip(500) >= 0 && in.read() != -1) {
+            // Keep reading
+        }
+        in.close();
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    public void testCaptureAndReplay() throws IOException {
+        WbxmlCapture.setCaptureDirectory(mTestDirectory);
+        assertTrue(WbxmlCapture.shouldCapture("Sync"));
+        assertFalse(WbxmlCapture.shouldCapture("Provision"));
+
+        final SyncResponseGenerator generator = new SyncResponseGenerator(1);
+        final byte[][] documents = {
+            generator.makeMailResponse(50, 2000, 1),
+            generator.makeCalendarResponse(20, 4),
+            generator.makeContactsResponse(20, 8 * 1024)
+        };
+        final int[] mailboxTypes = { Mailbox.TYPE_INBOX, Mailbox.TYPE_CALENDAR,
+                Mailbox.TYPE_CONTACTS };
+        for (int i = 0; i < documents.length; i++) {
+            capture(documents[i], "Sync", mailboxTypes[i]);
+        }
+
+        final File[] files = WbxmlCapture.listCaptureFiles(mTestDirectory);
+        assertEquals(documents.length, files.length);
+        final CaptureReplay replay = new CaptureReplay(getContext());
+        for (int i = 0; i < files.length; i++) {
+            final WbxmlCapture.Capture capture = WbxmlCapture.readCapture(files[i]);
+            assertEquals("Sync", capture.mCommand);
+            assertEquals(14.0, capture.mProtocolVersion);
+            assertEquals(mailboxTypes[i], capture.mMailboxType);
+            assertEquals(documents[i].length, capture.getLength());
+            assertTrue(Arrays.equals(documents[i], readFully(capture.getInputStream())));
+            LogUtils.i(Benchmark.LOG_TAG, "%s", replay.replay(capture));
+        }
+    }
+
+    public void testReplayCaptures() throws IOException {
+        final File directory = getContext().getExternalFilesDir(CAPTURE_DIRECTORY);
+        if (directory == null) {
+            return;
+        }
+        final CaptureReplay replay = new CaptureReplay(getContext());
+        for (final File file : WbxmlCapture.listCaptureFiles(directory)) {
+            LogUtils.i(Benchmark.LOG_TAG, "%s: %s", file.getName(),
+                    replay.replay(WbxmlCapture.readCapture(file)));
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.exchange.utility.Benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Benchmarks for the WBXML codec, run against synthetic Sync responses. These only report
+ * results (see {@link Benchmark}); they don't fail on slow runs. You can run them with:
+ *   runtest -c com.android.exchange.adapter.CodecBenchmarks exchange
+ */
+@LargeTest
+public class CodecBenchmarks extends AndroidTestCase {
+    // Tags in the generated responses that contain other tags, rather than values
+    private static final HashSet<Integer> CONTAINER_TAGS = new HashSet<Integer>(Arrays.asList(
+            Tags.SYNC_SYNC, Tags.SYNC_COLLECTIONS, Tags.SYNC_COLLECTION, Tags.SYNC_COMMANDS,
+            Tags.SYNC_ADD, Tags.SYNC_APPLICATION_DATA, Tags.BASE_BODY, Tags.BASE_ATTACHMENTS,
+            Tags.BASE_ATTACHMENT, Tags.CALENDAR_ATTENDEES, Tags.CALENDAR_ATTENDEE,
+            Tags.CALENDAR_RECURRENCE, Tags.CALENDAR_EXCEPTIONS, Tags.CALENDAR_EXCEPTION));
+    private static final byte[] PHOTO_BUFFER = new byte[4096];
+
+    /**
+     * A parser that reads every value in a document, the way the sync parsers do, and optionally
+     * records the document so that it can be serialized again. Contact photos are decoded.
+     */
+    private static class ReadingParser extends Parser {
+        // Tag numbers (as Integers) for starts, Strings or byte[]s for values, null for ends
+        private final ArrayList<Object> mRecording;
+        private int mValueCount;
+
+        public ReadingParser(final byte[] document, final ArrayList<Object> recording)
+                throws IOException {
+            super(new ByteArrayInputStream(document));
+            mRecording = recording;
+        }
+
+        @Override
+        public boolean parse() throws IOException {
+            read(START_DOCUMENT);
+            return true;
+        }
+
+        private void read(final int endTag) throws IOException {
+            int tag;
+            while ((tag = nextTag(endTag)) != END && tag != END_DOCUMENT) {
+                if (mRecording != null) {
+                    mRecording.add(tag);
+                }
+                if (CONTAINER_TAGS.contains(tag)) {
+                    read(tag);
+                } else if (tag == Tags.CONTACTS_PICTURE) {
+                    decodePhoto();
+                } else if (tag == Tags.EMAIL2_CONVERSATION_ID) {
+                    record(getValueBytes());
+                } else {
+                    record(getValue());
+                }
+                if (mRecording != null) {
+                    mRecording.add(null);
+                }
+            }
+        }
+
+        private void record(final Object value) {
+            mValueCount++;
+            if (mRecording != null) {
+                mRecording.add(value);
+            }
+        }
+
+        private void decodePhoto() throws IOException {
+            if (mRecording != null) {
+                // Keep the encoded form, so that we serialize what we parsed
+                record(getValue());
+                return;
+            }
+            final InputStream in = new Base64InputStream(getValueStream());
+            try {
+                while (in.read(PHOTO_BUFFER) != -1) {
+                    // Nothing to do; we just want to decode it
+                }
+            } finally {
+                in.close();
+            }
+            mValueCount++;
+        }
+    }
+
+    private static int parse(final byte[] document) throws IOException {
+        final ReadingParser parser = new ReadingParser(document, null);
+        parser.parse();
+        return parser.mValueCount;
+    }
+
+    private static ArrayList<Object> record(final byte[] document) throws IOException {
+        final ArrayList<Object> recording = new ArrayList<Object>();
+        new ReadingParser(document, recording).parse();
+        return recording;
+    }
+
+    private static byte[] serialize(final ArrayList<Object> recording) throws IOException {
+        final Serializer s = new Serializer();
+        for (final Object item : recording) {
+            if (item == null) {
+                s.end();
+            } else if (item instanceof Integer) {
+                s.start((Integer) item);
+            } else if (item instanceof String) {
+                s.text((String) item);
+            } else {
+                final byte[] bytes = (byte[]) item;
+                s.opaque(new ByteArrayInputStream(bytes), bytes.length);
+            }
+        }
+        s.done();
+        return s.toByteArray();
+    }
+
+    private static void benchmarkParse(final String name, final byte[] document)
+            throws Exception {
+        final int valueCount = parse(document);
+        assertTrue(valueCount > 0);
+        Benchmark.measure(name + " (" + document.length + " bytes)", new Benchmark.Operation() {
+            @Override
+            public void run() throws Exception {
+                parse(document);
+            }
+        });
+    }
+
+    private static void benchmarkSerialize(final String name, final byte[] document)
+            throws Exception {
+        final ArrayList<Object> recording = record(document);
+        // Make sure we're measuring the serialization of the document we generated
+        assertTrue(Arrays.equals(document, serialize(recording)));
+        Benchmark.measure(name + " (" + document.length + " bytes)", new Benchmark.Operation() {
+            @Override
+            public void run() throws Exception {
+                serialize(recording);
+            }
+        });
+    }
+
+    public void testMail() throws Exception {
+        final SyncResponseGenerator generator = new SyncResponseGenerator(1);
+        final byte[] small = generator.makeMailResponse(100, 256, 0);
+        final byte[] large = generator.makeMailResponse(25, 32 * 1024, 3);
+        benchmarkParse("Parse mail", small);
+        benchmarkParse("Parse mail with large bodies", large);
+        benchmarkSerialize("Serialize mail", small);
+        benchmarkSerialize("Serialize mail with large bodies", large);
+    }
+
+    public void testCalendar() throws Exception {
+        final byte[] document = new SyncResponseGenerator(2).makeCalendarResponse(50, 10);
+        benchmarkParse("Parse calendar", document);
+        benchmarkSerialize("Serialize calendar", document);
+    }
+
+    public void testContacts() throws Exception {
+        final byte[] document = new SyncResponseGenerator(3).makeContactsResponse(50, 16 * 1024);
+        benchmarkParse("Parse contacts", document);
+        benchmarkSerialize("Serialize contacts", document);
+    }
+
+    public void testBase64() throws Exception {
+        final byte[] photo = new SyncResponseGenerator(4).makePhoto(64 * 1024).getBytes("UTF-8");
+        Benchmark.measure("Base64 decode (" + photo.length + " bytes)",
+                new Benchmark.Operation() {
+            @Override
+            public void run() throws Exception {
+                final InputStream in = new Base64InputStream(new ByteArrayInputStream(photo));
+                while (in.read(PHOTO_BUFFER) != -1) {
+                    // Nothing to do; we just want to decode it
+                }
+                in.close();
+            }
+        });
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.exchange.adapter;
 
+import android.os.Debug;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.text.TextUtils;
@@ -23,8 +24,10 @@ import android.text.TextUtils;
 import com.android.exchange.service.EasService;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Deque;
 import java.util.ArrayDeque;
 import java.util.Arrays;
@@ -70,6 +73,75 @@ public class ParserTest extends AndroidTestCase {
         }
     }
 
+    /**
+     * A parser that walks a Sync document, counting and skipping the elements inside it.
+     */
+    private static class TagCountingParser extends Parser {
+        private int mTagCount = 0;
+
+        public TagCountingParser(final InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        public boolean parse() throws IOException {
+            if (nextTag(START_DOCUMENT) != Tags.SYNC_SYNC) {
+                throw new IOException();
+            }
+            while (nextTag(Tags.SYNC_SYNC) != END) {
+                mTagCount++;
+                skipTag();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A parser that reads the values of the elements inside a Sync document through
+     * getValueStream(), recording what it reads.
+     */
+    private static class StreamingParser extends Parser {
+        // Read whole values as streams
+        public static final int READ_ALL = -1;
+        // Read the first byte of each value, then leave the rest to the parser
+        public static final int READ_FIRST_BYTE = 0;
+
+        private final int mMode;
+        private final ArrayList<String> mValues = new ArrayList<String>();
+
+        /**
+         * @param mode READ_ALL or READ_FIRST_BYTE
+         */
+        public StreamingParser(final InputStream in, final int mode) throws IOException {
+            super(in);
+            mMode = mode;
+        }
+
+        @Override
+        public boolean parse() throws IOException {
+            if (nextTag(START_DOCUMENT) != Tags.SYNC_SYNC) {
+                throw new IOException();
+            }
+            while (nextTag(Tags.SYNC_SYNC) != END) {
+                final InputStream value = getValueStream();
+                if (mMode == READ_FIRST_BYTE) {
+                    final int b = value.read();
+                    mValues.add(b == -1 ? "" : byteArrayToHexString(new byte[] {(byte) b}));
+                    continue;
+                }
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final byte[] buf = new byte[7];
+                int count;
+                while ((count = value.read(buf)) != -1) {
+                    out.write(buf, 0, count);
+                }
+                value.close();
+                mValues.add(byteArrayToHexString(out.toByteArray()));
+            }
+            return true;
+        }
+    }
+
     final protected static char[] hexArray = "0123456789ABCDEF".toCharArray();
     private static String byteArrayToHexString(byte[] bytes) {
         char[] hexChars = new char[bytes.length * 2];
@@ -101,6 +173,29 @@ public class ParserTest extends AndroidTestCase {
         return new ByteArrayInputStream(byteArray);
     }
 
+    /**
+     * An InputStream that hands out at most one byte per read, to exercise the parser's handling of
+     * values that span refills of its input buffer.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        public TrickleInputStream(final byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public synchronized int read(final byte[] b, final int off, final int len) {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    private static String repeat(final String s, final int count) {
+        final StringBuilder sb = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
     private void testParserHelper(String wbxmlStr) throws Exception {
         testParserHelper(wbxmlStr, null);
     }
@@ -241,4 +336,162 @@ public class ParserTest extends AndroidTestCase {
             // expected
         }
     }
+
+    @SmallTest
+    public void testTrickleInput() throws Exception {
+        // Text, integer and opaque values, each of them arriving one byte at a time
+        final String wbxml = "03 01 6A 00 45 4B 03 44 46 00 01 4C 03 31 32 00 01"
+                + " 4D C3 81 01 " + repeat("11 ", 129) + "01 01";
+        final Parser parser = new TestParser(new TrickleInputStream(hexStringToByteArray(wbxml)),
+                new Object[] {"DF", 12, repeat("11", 129)});
+        parser.parse();
+    }
+
+    @SmallTest
+    public void testValuesLargerThanBuffer() throws Exception {
+        // Values that don't fit in the parser's input buffer, followed by a small one
+        final int length = Parser.BUFFER_SIZE * 2 + 3;
+        final String text = repeat("44 ", length);
+        // Opaque length 2 * 8192 + 3 = 16387 is 0x81 0x80 0x03 as a multibyte integer
+        final String wbxml = "03 01 6A 00 45 4B 03 " + text + "00 01 4D C3 81 80 03 "
+                + repeat("22 ", length) + "01 4B 03 46 00 01 01";
+        testParserHelper(wbxml, new Object[] {
+                repeat("D", length), repeat("22", length), "F"});
+    }
+
+    /**
+     * Build a document of the given number of <Change><GetChanges/></Change> elements
+     */
+    private static byte[] makeElementDocument(final int count) {
+        final byte[] doc = new byte[6 + count * 3];
+        int i = 0;
+        doc[i++] = 0x03;
+        doc[i++] = 0x01;
+        doc[i++] = 0x6A;
+        doc[i++] = 0x00;
+        doc[i++] = Tags.SYNC_SYNC - Tags.SYNC_PAGE + Wbxml.WITH_CONTENT;
+        for (int j = 0; j < count; j++) {
+            doc[i++] = Tags.SYNC_CHANGE - Tags.SYNC_PAGE + Wbxml.WITH_CONTENT;
+            doc[i++] = Tags.SYNC_GET_CHANGES - Tags.SYNC_PAGE;
+            doc[i++] = Wbxml.END;
+        }
+        doc[i++] = Wbxml.END;
+        return doc;
+    }
+
+    private static int countParseAllocations(final int elementCount) throws IOException {
+        final TagCountingParser parser =
+                new TagCountingParser(new ByteArrayInputStream(makeElementDocument(elementCount)));
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        parser.parse();
+        final int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+        assertEquals(elementCount, parser.mTagCount);
+        return allocations;
+    }
+
+    @SmallTest
+    public void testNoAllocationPerElement() throws Exception {
+        final boolean protocolLogging = EasService.getProtocolLogging();
+        EasService.setProtocolLogging(false);
+        try {
+            // Warm up, then check that allocations don't grow with the number of elements
+            countParseAllocations(100);
+            final int fewElements = countParseAllocations(10);
+            final int manyElements = countParseAllocations(5000);
+            assertTrue("Parser allocated " + manyElements + " objects for 5000 elements, "
+                    + fewElements + " for 10", manyElements <= fewElements + 8);
+        } finally {
+            EasService.setProtocolLogging(protocolLogging);
+        }
+    }
+
+    private static ArrayList<String> parseStreaming(final String wbxml, final int mode)
+            throws IOException {
+        final StreamingParser parser = new StreamingParser(getTestInputStream(wbxml), mode);
+        parser.parse();
+        return parser.mValues;
+    }
+
+    @SmallTest
+    public void testValueStream() throws Exception {
+        // Text "DF", opaque {0x11, 0x22, 0x33}, <Tag/>, <Tag></Tag>, and a long text value
+        final String wbxml = "03 01 6A 00 45 4B 03 44 46 00 01 4D C3 03 11 22 33 01 0B 4B 01"
+                + " 4B 03 " + repeat("41 ", 100) + "00 01 01";
+        assertEquals(Arrays.asList("4446", "112233", "", "", repeat("41", 100)),
+                parseStreaming(wbxml, StreamingParser.READ_ALL));
+        // Abandoning a stream part way through must leave the parser at the next element
+        assertEquals(Arrays.asList("44", "11", "", "", "41"),
+                parseStreaming(wbxml, StreamingParser.READ_FIRST_BYTE));
+    }
+
+    @SmallTest
+    public void testValueStreamRequiresValue() throws Exception {
+        // A value stream on an element with child elements, rather than a value
+        final String wbxml = "03 01 6A 00 45 4B 0B 01 01";
+        try {
+            parseStreaming(wbxml, StreamingParser.READ_ALL);
+            fail("Expected EasParserException for missing value");
+        } catch (Parser.EasParserException e) {
+            // expected
+        }
+    }
+
+    @SmallTest
+    public void testSkipTag() throws Exception {
+        // <Sync><SyncKey><SyncKey>..</SyncKey><SyncKey/>"xyz"{opaque}</SyncKey>
+        //     <SyncKey>"DF"</SyncKey></Sync>
+        // Skipping the first SyncKey must not stop at the end of the SyncKey nested inside it
+        final String wbxml = "03 01 6A 00 45 4B 4B 03 " + repeat("41 ", Parser.BUFFER_SIZE)
+                + "00 01 0B 03 78 79 7A 00 C3 81 80 03 " + repeat("22 ", Parser.BUFFER_SIZE * 2 + 3)
+                + "01 4B 03 44 46 00 01 01";
+        final Parser parser = new Parser(getTestInputStream(wbxml)) {
+            @Override
+            public boolean parse() throws IOException {
+                assertEquals(Tags.SYNC_SYNC, nextTag(START_DOCUMENT));
+                assertEquals(Tags.SYNC_SYNC_KEY, nextTag(Tags.SYNC_SYNC));
+                skipTag();
+                assertEquals(Tags.SYNC_SYNC_KEY, nextTag(Tags.SYNC_SYNC));
+                assertEquals("DF", getValue());
+                assertEquals(END, nextTag(Tags.SYNC_SYNC));
+                assertEquals(END_DOCUMENT, nextTag(START_DOCUMENT));
+                return true;
+            }
+        };
+        final boolean protocolLogging = EasService.getProtocolLogging();
+        EasService.setProtocolLogging(false);
+        try {
+            parser.parse();
+        } finally {
+            EasService.setProtocolLogging(protocolLogging);
+        }
+    }
+
+    @SmallTest
+    public void testStringTable() throws Exception {
+        // String table "AB\0C\0"; values are references to "AB" and "C", and an inline "D"
+        final String table = "03 01 6A 05 41 42 00 43 00 ";
+        testParserHelper(table + "45 4B 83 00 01 4B 83 03 01 4B 03 44 00 01 01",
+                new Object[] {"AB", "C", "D"});
+
+        // A literal tag (named "AB" by the table), with content, is passed over
+        testParserHelper(table + "45 44 00 4B 83 03 01 01 4B 83 00 01 01", new Object[] {"C", "AB"});
+
+        // A reference past the end of the table
+        try {
+            testParserHelper(table + "45 4B 83 05 01 01");
+            fail("Expected EasParserException for invalid string table reference");
+        } catch (Parser.EasParserException e) {
+            // expected
+        }
+
+        // A reference with no string table
+        try {
+            testParserHelper("03 01 6A 00 45 4B 83 00 01 01");
+            fail("Expected EasParserException for missing string table");
+        } catch (Parser.EasParserException e) {
+            // expected
+        }
+    }
 }
@@ -26,6 +26,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 /** You can run this entire test case with:
  *   runtest -c com.android.exchange.adapter.SerializerTests exchange
@@ -104,4 +106,165 @@ public class SerializerTests extends AndroidTestCase {
         Serializer.writeInteger(output, 0);
         Serializer.writeInteger(output, -1);
     }
+
+    /**
+     * Writes a Sync document with a collection per folder class, each with a number of adds that
+     * share their message class and one recipient
+     */
+    private static void writeRepetitiveDocument(final Serializer s) throws IOException {
+        s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS);
+        for (final String folderClass : new String[] {"Email", "Calendar", "Contacts"}) {
+            s.start(Tags.SYNC_COLLECTION);
+            s.data(Tags.SYNC_CLASS, folderClass);
+            s.start(Tags.SYNC_COMMANDS);
+            for (int i = 0; i < 20; i++) {
+                s.start(Tags.SYNC_ADD);
+                s.data(Tags.SYNC_CLIENT_ID, Integer.toString(i));
+                s.start(Tags.SYNC_APPLICATION_DATA);
+                s.data(Tags.EMAIL_MESSAGE_CLASS, "IPM.Note");
+                s.data(Tags.EMAIL_TO, "attendee@example.com");
+                s.end().end(); // SYNC_APPLICATION_DATA, SYNC_ADD
+            }
+            s.end().end(); // SYNC_COMMANDS, SYNC_COLLECTION
+        }
+        s.end().end().done(); // SYNC_COLLECTIONS, SYNC_SYNC
+    }
+
+    /**
+     * A parser that collects the text values in a document, in order
+     */
+    private static class TextCollectingParser extends Parser {
+        private final ArrayList<String> mTexts = new ArrayList<String>();
+
+        public TextCollectingParser(final byte[] document) throws IOException {
+            super(new ByteArrayInputStream(document));
+        }
+
+        @Override
+        public boolean parse() throws IOException {
+            collect(START_DOCUMENT);
+            return true;
+        }
+
+        private void collect(final int endTag) throws IOException {
+            int tag;
+            while ((tag = nextTag(endTag)) != END && tag != END_DOCUMENT) {
+                if (noContent) {
+                    continue;
+                }
+                if (tag == Tags.SYNC_CLASS || tag == Tags.SYNC_CLIENT_ID
+                        || tag == Tags.EMAIL_MESSAGE_CLASS || tag == Tags.EMAIL_TO) {
+                    mTexts.add(getValue());
+                } else {
+                    collect(tag);
+                }
+            }
+        }
+    }
+
+    @SmallTest
+    public void testStringTable() throws IOException {
+        final Serializer plain = new Serializer();
+        writeRepetitiveDocument(plain);
+        final ByteArrayOutputStream tableOutput = new ByteArrayOutputStream();
+        final Serializer withTable = new Serializer(tableOutput, true, true);
+        writeRepetitiveDocument(withTable);
+
+        final byte[] plainBytes = plain.toByteArray();
+        final byte[] tableBytes = withTable.toByteArray();
+        MoreAsserts.assertEquals("Serializer mismatch", tableOutput.toByteArray(), tableBytes);
+        assertTrue("String table didn't make the document smaller",
+                tableBytes.length < plainBytes.length);
+        // The header has a non-empty string table
+        assertEquals(3, tableBytes[0]);
+        assertTrue(tableBytes[3] != 0);
+
+        // Both documents have the same content
+        final TextCollectingParser plainParser = new TextCollectingParser(plainBytes);
+        plainParser.parse();
+        final TextCollectingParser tableParser = new TextCollectingParser(tableBytes);
+        tableParser.parse();
+        assertEquals(3 * (1 + 20 * 3), plainParser.mTexts.size());
+        assertEquals(plainParser.mTexts, tableParser.mTexts);
+    }
+
+    @SmallTest
+    public void testStringTableDocumentRequiresDone() throws IOException {
+        final Serializer s = new Serializer(null, true, true);
+        s.start(Tags.SYNC_SYNC).data(Tags.SYNC_CLASS, "Email").end();
+        try {
+            s.toByteArray();
+            fail("Expected IllegalStateException for a string table document before done()");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        s.done();
+        final TextCollectingParser parser = new TextCollectingParser(s.toByteArray());
+        parser.parse();
+        assertEquals(1, parser.mTexts.size());
+    }
+
+    @SmallTest
+    public void testStringTableRequiresDocument() throws IOException {
+        try {
+            new Serializer(new ByteArrayOutputStream(), false, true);
+            fail("Expected IllegalArgumentException for string table without a document");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @SmallTest
+    public void testUtf8Text() throws IOException {
+        // One, two, three and four byte characters, and an unpaired surrogate
+        final String text = "a\u00e9\u20ac\ud83d\ude00\ud83d";
+        final Serializer s = new Serializer(false);
+        s.text(text);
+        final byte[] bytes = s.toByteArray();
+        final byte[] expected = text.getBytes("UTF-8");
+        // The leading 0 (as we're not starting a document), then STR_I, the text and terminator
+        assertEquals(expected.length + 3, bytes.length);
+        assertEquals(Wbxml.STR_I, bytes[1]);
+        MoreAsserts.assertEquals(expected, Arrays.copyOfRange(bytes, 2, bytes.length - 1));
+        assertEquals(0, bytes[bytes.length - 1]);
+    }
+
+    @SmallTest
+    public void testLargeOpaqueToStream() throws IOException {
+        final byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Serializer streaming = new Serializer(output);
+        streaming.start(Tags.COMPOSE_MIME).opaque(new ByteArrayInputStream(data), data.length);
+        streaming.end().done();
+        final Serializer buffered = new Serializer();
+        buffered.start(Tags.COMPOSE_MIME).opaque(new ByteArrayInputStream(data), data.length);
+        buffered.end().done();
+        MoreAsserts.assertEquals(buffered.toByteArray(), output.toByteArray());
+        // Header, SWITCH_PAGE, tag, OPAQUE and a three byte length, data, END
+        assertEquals(4 + 2 + 1 + 4 + data.length + 1, output.size());
+    }
+
+    @SmallTest
+    public void testEntity() throws IOException {
+        final Serializer s = new Serializer();
+        writeRepetitiveDocument(s);
+        final byte[] expected = s.toByteArray();
+        final SerializerEntity entity = new SerializerEntity(s);
+        assertEquals(expected.length, entity.getContentLength());
+        assertTrue(entity.isRepeatable());
+        // The entity can be written more than once, e.g. when following a redirect
+        for (int i = 0; i < 2; i++) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            entity.writeTo(output);
+            MoreAsserts.assertEquals(expected, output.toByteArray());
+        }
+        final InputStream content = entity.getContent();
+        final byte[] contentBytes = new byte[expected.length];
+        assertEquals(expected.length, content.read(contentBytes));
+        assertEquals(-1, content.read());
+        MoreAsserts.assertEquals(expected, contentBytes);
+    }
 }
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import android.content.Context;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.exchange.CommandStatusException;
+import com.android.exchange.provider.EmailContentSetupUtils;
+import com.android.exchange.utility.ExchangeTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.adapter.SyncCollectionsParserTests exchange
+ */
+@SmallTest
+public class SyncCollectionsParserTests extends ExchangeTestCase {
+
+    /** Records the server ids of the items added to its collection. */
+    private static class RecordingSyncParser extends AbstractSyncParser {
+        public final ArrayList<String> mAdded = new ArrayList<String>();
+        public int mCommitCount = 0;
+
+        public RecordingSyncParser(final Context context, final Mailbox mailbox,
+                final Account account) throws IOException {
+            super(context, context.getContentResolver(), (InputStream) null, mailbox, account);
+        }
+
+        @Override
+        public void commandsParser() throws IOException {
+            while (nextTag(Tags.SYNC_COMMANDS) != END) {
+                if (tag == Tags.SYNC_ADD) {
+                    while (nextTag(Tags.SYNC_ADD) != END) {
+                        if (tag == Tags.SYNC_SERVER_ID) {
+                            mAdded.add(getValue());
+                        } else {
+                            skipTag();
+                        }
+                    }
+                } else {
+                    skipTag();
+                }
+            }
+        }
+
+        @Override
+        public void responsesParser() throws IOException {
+            skipParser(Tags.SYNC_RESPONSES);
+        }
+
+        @Override
+        public void commit() {
+            mCommitCount++;
+        }
+
+        @Override
+        protected void wipe() {
+        }
+    }
+
+    private Account mAccount;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mAccount = setupTestAccount("collections", true);
+    }
+
+    private Mailbox setupMailbox(final String name) {
+        return EmailContentSetupUtils.setupMailbox(name, mAccount.mId, true, mProviderContext);
+    }
+
+    private static void addCollection(final Serializer s, final String syncKey,
+            final String collectionId, final boolean moreAvailable, final String... serverIds)
+            throws IOException {
+        addCollection(s, syncKey, collectionId, 1, moreAvailable, serverIds);
+    }
+
+    private static void addCollection(final Serializer s, final String syncKey,
+            final String collectionId, final int status, final boolean moreAvailable,
+            final String... serverIds) throws IOException {
+        s.start(Tags.SYNC_COLLECTION);
+        s.data(Tags.SYNC_SYNC_KEY, syncKey);
+        s.data(Tags.SYNC_COLLECTION_ID, collectionId);
+        s.data(Tags.SYNC_STATUS, Integer.toString(status));
+        if (moreAvailable) {
+            s.tag(Tags.SYNC_MORE_AVAILABLE);
+        }
+        s.start(Tags.SYNC_COMMANDS);
+        for (final String serverId : serverIds) {
+            s.start(Tags.SYNC_ADD);
+            s.data(Tags.SYNC_SERVER_ID, serverId);
+            // Other code pages, which the collection's parser switches to
+            s.start(Tags.SYNC_APPLICATION_DATA);
+            s.data(Tags.EMAIL_SUBJECT, "Subject of " + serverId);
+            s.start(Tags.BASE_BODY).data(Tags.BASE_TYPE, "1").data(Tags.BASE_DATA, "Body").end();
+            s.end().end(); // SYNC_APPLICATION_DATA, SYNC_ADD
+        }
+        s.end().end(); // SYNC_COMMANDS, SYNC_COLLECTION
+    }
+
+    public void testRoutesEachCollection() throws IOException, CommandStatusException {
+        final Mailbox inbox = setupMailbox("inbox");
+        final Mailbox archive = setupMailbox("archive");
+        final Mailbox other = setupMailbox("other");
+        final RecordingSyncParser inboxParser =
+                new RecordingSyncParser(mProviderContext, inbox, mAccount);
+        final RecordingSyncParser archiveParser =
+                new RecordingSyncParser(mProviderContext, archive, mAccount);
+        final RecordingSyncParser otherParser =
+                new RecordingSyncParser(mProviderContext, other, mAccount);
+        final HashMap<String, AbstractSyncParser> parsers =
+                new HashMap<String, AbstractSyncParser>();
+        parsers.put(inbox.mServerId, inboxParser);
+        parsers.put(archive.mServerId, archiveParser);
+        parsers.put(other.mServerId, otherParser);
+
+        final Serializer s = new Serializer();
+        s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS);
+        addCollection(s, "inbox-2", inbox.mServerId, true, "1:1", "1:2");
+        // One we didn't ask for, which is skipped
+        addCollection(s, "unknown-2", "serverid-unknown", false, "9:1");
+        addCollection(s, "archive-2", archive.mServerId, false, "2:1");
+        // The server leaves out collections with no changes, as it does for "other"
+        s.end().end().done();
+
+        final SyncCollectionsParser parser =
+                new SyncCollectionsParser(new ByteArrayInputStream(s.toByteArray()), parsers);
+        assertTrue(parser.parse());
+
+        assertEquals(2, inboxParser.mAdded.size());
+        assertEquals("1:1", inboxParser.mAdded.get(0));
+        assertEquals("1:2", inboxParser.mAdded.get(1));
+        assertEquals(1, archiveParser.mAdded.size());
+        assertEquals("2:1", archiveParser.mAdded.get(0));
+        assertTrue(otherParser.mAdded.isEmpty());
+
+        // Each collection is committed once, with its new sync key
+        assertEquals(1, inboxParser.mCommitCount);
+        assertEquals(1, archiveParser.mCommitCount);
+        assertEquals(0, otherParser.mCommitCount);
+        assertEquals("inbox-2", inbox.mSyncKey);
+        assertEquals("archive-2", archive.mSyncKey);
+        assertEquals("inbox-2",
+                Mailbox.restoreMailboxWithId(mProviderContext, inbox.mId).mSyncKey);
+
+        assertTrue(parser.isMoreAvailable(inbox.mServerId));
+        assertFalse(parser.isMoreAvailable(archive.mServerId));
+        assertFalse(parser.isMoreAvailable(other.mServerId));
+    }
+
+    public void testCollectionStatus() throws IOException, CommandStatusException {
+        final Mailbox inbox = setupMailbox("inbox");
+        final Mailbox archive = setupMailbox("archive");
+        final RecordingSyncParser inboxParser =
+                new RecordingSyncParser(mProviderContext, inbox, mAccount);
+        final RecordingSyncParser archiveParser =
+                new RecordingSyncParser(mProviderContext, archive, mAccount);
+        final HashMap<String, AbstractSyncParser> parsers =
+                new HashMap<String, AbstractSyncParser>();
+        parsers.put(inbox.mServerId, inboxParser);
+        parsers.put(archive.mServerId, archiveParser);
+
+        final Serializer s = new Serializer();
+        s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS);
+        // A conflict in one collection doesn't stop us from parsing the next
+        addCollection(s, "inbox-2", inbox.mServerId, 7, false);
+        addCollection(s, "archive-2", archive.mServerId, false, "2:1");
+        s.end().end().done();
+
+        new SyncCollectionsParser(new ByteArrayInputStream(s.toByteArray()), parsers).parse();
+        assertEquals(7, inboxParser.getCollectionStatus());
+        assertEquals(1, archiveParser.getCollectionStatus());
+        assertEquals(1, archiveParser.mAdded.size());
+    }
+
+    public void testFailedCollection() throws IOException, CommandStatusException {
+        final Mailbox inbox = setupMailbox("inbox");
+        final Mailbox archive = setupMailbox("archive");
+        final RecordingSyncParser inboxParser =
+                new RecordingSyncParser(mProviderContext, inbox, mAccount);
+        final RecordingSyncParser archiveParser =
+                new RecordingSyncParser(mProviderContext, archive, mAccount);
+        final HashMap<String, AbstractSyncParser> parsers =
+                new HashMap<String, AbstractSyncParser>();
+        parsers.put(inbox.mServerId, inboxParser);
+        parsers.put(archive.mServerId, archiveParser);
+
+        final Serializer s = new Serializer();
+        s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS);
+        // A server error for one collection doesn't fail the others
+        addCollection(s, "inbox-2", inbox.mServerId, 5, true, "1:1");
+        addCollection(s, "archive-2", archive.mServerId, false, "2:1");
+        s.end().end().done();
+
+        final SyncCollectionsParser parser =
+                new SyncCollectionsParser(new ByteArrayInputStream(s.toByteArray()), parsers);
+        assertFalse(parser.parse());
+        parser.checkAllFailed();
+
+        // Nothing of the failed collection is applied, and it keeps its key
+        assertTrue(parser.isFailed(inbox.mServerId));
+        assertTrue(inboxParser.isCollectionFailed());
+        assertEquals(5, inboxParser.getCollectionStatus());
+        assertTrue(inboxParser.mAdded.isEmpty());
+        assertEquals(0, inboxParser.mCommitCount);
+        assertEquals("sync-key-inbox", inbox.mSyncKey);
+        assertFalse(parser.isMoreAvailable(inbox.mServerId));
+        assertFalse(parser.isFolderSyncNeeded());
+
+        assertFalse(parser.isFailed(archive.mServerId));
+        assertEquals(1, archiveParser.mAdded.size());
+        assertEquals(1, archiveParser.mCommitCount);
+        assertEquals("archive-2", archive.mSyncKey);
+    }
+
+    public void testAllCollectionsFailed() throws IOException, CommandStatusException {
+        final Mailbox inbox = setupMailbox("inbox");
+        final Mailbox archive = setupMailbox("archive");
+        final HashMap<String, AbstractSyncParser> parsers =
+                new HashMap<String, AbstractSyncParser>();
+        parsers.put(inbox.mServerId, new RecordingSyncParser(mProviderContext, inbox, mAccount));
+        parsers.put(archive.mServerId,
+                new RecordingSyncParser(mProviderContext, archive, mAccount));
+
+        final Serializer s = new Serializer();
+        s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS);
+        // The server no longer knows either of them
+        addCollection(s, "inbox-2", inbox.mServerId, 8, false);
+        addCollection(s, "archive-2", archive.mServerId, 12, false);
+        s.end().end().done();
+
+        final SyncCollectionsParser parser =
+                new SyncCollectionsParser(new ByteArrayInputStream(s.toByteArray()), parsers);
+        parser.parse();
+        assertTrue(parser.isFolderSyncNeeded());
+        try {
+            parser.checkAllFailed();
+            fail("Expected IOException");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    public void testRequestStatus() throws IOException {
+        final Serializer s = new Serializer();
+        s.start(Tags.SYNC_SYNC).data(Tags.SYNC_STATUS, "4").end().done();
+        final SyncCollectionsParser parser = new SyncCollectionsParser(
+                new ByteArrayInputStream(s.toByteArray()),
+                new HashMap<String, AbstractSyncParser>());
+        try {
+            parser.parse();
+            fail("Expected CommandStatusException");
+        } catch (final CommandStatusException e) {
+            assertEquals(4, e.mStatus);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import android.util.Base64;
+
+import com.android.exchange.utility.CalendarUtilities;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Generates synthetic Sync responses, shaped like the ones Exchange sends for each kind of
+ * collection, for benchmarks. The content is random but deterministic, so the same parameters
+ * always give the same document.
+ */
+public class SyncResponseGenerator {
+    private static final String[] WORDS = {
+        "meeting", "quarterly", "report", "the", "and", "schedule", "review", "budget", "of",
+        "project", "update", "please", "find", "attached", "thanks", "regards", "to", "for",
+        "with", "team", "action", "items", "follow", "up", "d\u00e9j\u00e0", "vu",
+        "na\u00efve", "caf\u00e9", "\u4f1a\u8b70", "\u8cc7\u6599"
+    };
+
+    private final Random mRandom;
+
+    public SyncResponseGenerator(final long seed) {
+        mRandom = new Random(seed);
+    }
+
+    private String makeText(final int length) {
+        final StringBuilder sb = new StringBuilder(length + 16);
+        while (sb.length() < length) {
+            if (sb.length() > 0) {
+                sb.append(mRandom.nextInt(12) == 0 ? "\r\n" : " ");
+            }
+            sb.append(WORDS[mRandom.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private String makeAddress() {
+        return WORDS[mRandom.nextInt(WORDS.length)] + mRandom.nextInt(1000) + "@example.com";
+    }
+
+    private byte[] makeBytes(final int length) {
+        final byte[] bytes = new byte[length];
+        mRandom.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void startResponse(final Serializer s, final String syncKey,
+            final String collectionId) throws IOException {
+        s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS).start(Tags.SYNC_COLLECTION);
+        s.data(Tags.SYNC_SYNC_KEY, syncKey);
+        s.data(Tags.SYNC_COLLECTION_ID, collectionId);
+        s.data(Tags.SYNC_STATUS, "1");
+        s.start(Tags.SYNC_COMMANDS);
+    }
+
+    private static byte[] endResponse(final Serializer s) throws IOException {
+        // SYNC_COMMANDS, SYNC_COLLECTION, SYNC_COLLECTIONS, SYNC_SYNC
+        s.end().end().end().end().done();
+        return s.toByteArray();
+    }
+
+    private void writeBody(final Serializer s, final int bodySize) throws IOException {
+        s.start(Tags.BASE_BODY);
+        s.data(Tags.BASE_TYPE, "1");
+        s.data(Tags.BASE_ESTIMATED_DATA_SIZE, Integer.toString(bodySize));
+        s.data(Tags.BASE_DATA, makeText(bodySize));
+        s.end();
+    }
+
+    /**
+     * @param count the number of messages
+     * @param bodySize the size of each message body, in characters
+     * @param attachmentCount the number of attachments on each message
+     * @return a Sync response adding messages to an email collection
+     */
+    public byte[] makeMailResponse(final int count, final int bodySize,
+            final int attachmentCount) throws IOException {
+        final Serializer s = new Serializer();
+        startResponse(s, "{" + mRandom.nextLong() + "}1", "5");
+        for (int i = 0; i < count; i++) {
+            s.start(Tags.SYNC_ADD);
+            s.data(Tags.SYNC_SERVER_ID, "5:" + i);
+            s.start(Tags.SYNC_APPLICATION_DATA);
+            s.data(Tags.EMAIL_TO, '"' + makeText(12) + "\" <" + makeAddress() + '>');
+            s.data(Tags.EMAIL_FROM, '"' + makeText(12) + "\" <" + makeAddress() + '>');
+            s.data(Tags.EMAIL_SUBJECT, makeText(40));
+            s.data(Tags.EMAIL_DATE_RECEIVED, "2014-03-0" + (1 + i % 9) + "T12:34:56.000Z");
+            s.data(Tags.EMAIL_DISPLAY_TO, makeText(12));
+            s.data(Tags.EMAIL_IMPORTANCE, "1");
+            s.data(Tags.EMAIL_READ, Integer.toString(i % 2));
+            writeBody(s, bodySize);
+            s.data(Tags.EMAIL_MESSAGE_CLASS, "IPM.Note");
+            s.data(Tags.EMAIL_INTERNET_CPID, "65001");
+            if (attachmentCount > 0) {
+                s.start(Tags.BASE_ATTACHMENTS);
+                for (int j = 0; j < attachmentCount; j++) {
+                    s.start(Tags.BASE_ATTACHMENT);
+                    s.data(Tags.BASE_DISPLAY_NAME, makeText(10) + ".pdf");
+                    s.data(Tags.BASE_FILE_REFERENCE, "5%3a" + i + "%3a" + j);
+                    s.data(Tags.BASE_METHOD, "1");
+                    s.data(Tags.BASE_ESTIMATED_DATA_SIZE,
+                            Integer.toString(mRandom.nextInt(1000000)));
+                    s.end(); // BASE_ATTACHMENT
+                }
+                s.end(); // BASE_ATTACHMENTS
+            }
+            final byte[] conversationId = makeBytes(16);
+            s.start(Tags.EMAIL2_CONVERSATION_ID);
+            s.opaque(new ByteArrayInputStream(conversationId), conversationId.length);
+            s.end();
+            s.end().end(); // SYNC_APPLICATION_DATA, SYNC_ADD
+        }
+        return endResponse(s);
+    }
+
+    /**
+     * @param count the number of events; each is a weekly recurring meeting
+     * @param exceptionCount the number of exceptions to each event's recurrence
+     * @return a Sync response adding events to a calendar collection
+     */
+    public byte[] makeCalendarResponse(final int count, final int exceptionCount)
+            throws IOException {
+        final String timeZone = CalendarUtilities.timeZoneToTziString(
+                TimeZone.getTimeZone("America/Los_Angeles"));
+        final Serializer s = new Serializer();
+        startResponse(s, "{" + mRandom.nextLong() + "}1", "2");
+        for (int i = 0; i < count; i++) {
+            s.start(Tags.SYNC_ADD);
+            s.data(Tags.SYNC_SERVER_ID, "2:" + i);
+            s.start(Tags.SYNC_APPLICATION_DATA);
+            s.data(Tags.CALENDAR_TIME_ZONE, timeZone);
+            s.data(Tags.CALENDAR_DTSTAMP, "20140301T120000Z");
+            s.data(Tags.CALENDAR_START_TIME, "20140303T170000Z");
+            s.data(Tags.CALENDAR_END_TIME, "20140303T180000Z");
+            s.data(Tags.CALENDAR_SUBJECT, makeText(30));
+            s.data(Tags.CALENDAR_UID, Long.toHexString(mRandom.nextLong())
+                    + Long.toHexString(mRandom.nextLong()));
+            s.data(Tags.CALENDAR_ORGANIZER_EMAIL, makeAddress());
+            s.start(Tags.CALENDAR_ATTENDEES);
+            for (int j = 0; j < 5; j++) {
+                s.start(Tags.CALENDAR_ATTENDEE);
+                s.data(Tags.CALENDAR_ATTENDEE_EMAIL, makeAddress());
+                s.data(Tags.CALENDAR_ATTENDEE_NAME, makeText(12));
+                s.end();
+            }
+            s.end(); // CALENDAR_ATTENDEES
+            s.data(Tags.CALENDAR_LOCATION, makeText(20));
+            writeBody(s, 200);
+            s.data(Tags.CALENDAR_ALL_DAY_EVENT, "0");
+            s.data(Tags.CALENDAR_BUSY_STATUS, "2");
+            s.start(Tags.CALENDAR_RECURRENCE);
+            s.data(Tags.CALENDAR_RECURRENCE_TYPE, "1");
+            s.data(Tags.CALENDAR_RECURRENCE_INTERVAL, "1");
+            s.data(Tags.CALENDAR_RECURRENCE_DAYOFWEEK, "2");
+            s.data(Tags.CALENDAR_RECURRENCE_UNTIL, "20151231T170000Z");
+            s.end(); // CALENDAR_RECURRENCE
+            if (exceptionCount > 0) {
+                s.start(Tags.CALENDAR_EXCEPTIONS);
+                for (int j = 0; j < exceptionCount; j++) {
+                    s.start(Tags.CALENDAR_EXCEPTION);
+                    final String day = (j % 20 + 10) + "T170000Z";
+                    s.data(Tags.CALENDAR_EXCEPTION_START_TIME, "201404" + day);
+                    if (j % 2 == 0) {
+                        s.data(Tags.CALENDAR_EXCEPTION_IS_DELETED, "1");
+                    } else {
+                        // Moved by an hour, with a new subject
+                        s.data(Tags.CALENDAR_START_TIME, "201404" + (j % 20 + 10) + "T180000Z");
+                        s.data(Tags.CALENDAR_END_TIME, "201404" + (j % 20 + 10) + "T190000Z");
+                        s.data(Tags.CALENDAR_SUBJECT, makeText(30));
+                    }
+                    s.end(); // CALENDAR_EXCEPTION
+                }
+                s.end(); // CALENDAR_EXCEPTIONS
+            }
+            s.end().end(); // SYNC_APPLICATION_DATA, SYNC_ADD
+        }
+        return endResponse(s);
+    }
+
+    /**
+     * @param photoSize the size of the (binary) photo
+     * @return a photo of that size, base64 encoded as Exchange sends it
+     */
+    public String makePhoto(final int photoSize) {
+        return Base64.encodeToString(makeBytes(photoSize), Base64.NO_WRAP);
+    }
+
+    /**
+     * @param count the number of contacts
+     * @param photoSize the size of each contact's photo, before base64 encoding; 0 for none
+     * @return a Sync response adding contacts to a contacts collection
+     */
+    public byte[] makeContactsResponse(final int count, final int photoSize)
+            throws IOException {
+        final Serializer s = new Serializer();
+        startResponse(s, "{" + mRandom.nextLong() + "}1", "3");
+        for (int i = 0; i < count; i++) {
+            final String firstName = makeText(6);
+            final String lastName = makeText(8);
+            s.start(Tags.SYNC_ADD);
+            s.data(Tags.SYNC_SERVER_ID, "3:" + i);
+            s.start(Tags.SYNC_APPLICATION_DATA);
+            s.data(Tags.CONTACTS_FILE_AS, lastName + ", " + firstName);
+            s.data(Tags.CONTACTS_FIRST_NAME, firstName);
+            s.data(Tags.CONTACTS_LAST_NAME, lastName);
+            s.data(Tags.CONTACTS_COMPANY_NAME, makeText(15));
+            s.data(Tags.CONTACTS_EMAIL1_ADDRESS, '"' + firstName + "\" <" + makeAddress() + '>');
+            s.data(Tags.CONTACTS_MOBILE_TELEPHONE_NUMBER, "+1 650 555 " + (1000 + i % 9000));
+            s.data(Tags.CONTACTS_BUSINESS_TELEPHONE_NUMBER, "+1 650 555 " + (9999 - i % 9000));
+            if (photoSize > 0) {
+                s.data(Tags.CONTACTS_PICTURE, makePhoto(photoSize));
+            }
+            s.end().end(); // SYNC_APPLICATION_DATA, SYNC_ADD
+        }
+        return endResponse(s);
+    }
+}
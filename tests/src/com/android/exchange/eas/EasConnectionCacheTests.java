@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+
+import com.android.emailcommon.provider.HostAuth;
+import com.android.emailcommon.utility.EmailClientConnectionManager;
+
+import org.apache.http.client.HttpClient;
+
+import java.security.cert.CertificateException;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.eas.EasConnectionCacheTests exchange
+ */
+@SmallTest
+public class EasConnectionCacheTests extends AndroidTestCase {
+    private static final long IDLE_TIMEOUT = 10 * DateUtils.MINUTE_IN_MILLIS;
+
+    private static HostAuth makeHostAuth(final long id) {
+        final HostAuth hostAuth = new HostAuth();
+        hostAuth.mId = id;
+        hostAuth.mAddress = "eas" + id + ".example.com";
+        hostAuth.mPort = 443;
+        hostAuth.mFlags = HostAuth.FLAG_SSL;
+        return hostAuth;
+    }
+
+    private EmailClientConnectionManager get(final EasConnectionCache cache, final long id)
+            throws CertificateException {
+        final EmailClientConnectionManager manager =
+                cache.getConnectionManager(getContext(), makeHostAuth(id));
+        // Make sure each access has a distinct time
+        SystemClock.sleep(5);
+        return manager;
+    }
+
+    public void testReuse() throws CertificateException {
+        final EasConnectionCache cache = new EasConnectionCache(4, IDLE_TIMEOUT, 0);
+        final EmailClientConnectionManager manager = get(cache, 1);
+        assertSame(manager, get(cache, 1));
+        assertNotSame(manager, get(cache, 2));
+        assertEquals(2, cache.getCachedCount());
+        assertEquals(1, cache.getStats(1).getManagersCreated());
+
+        // HostAuths that aren't saved aren't cached
+        assertNotSame(get(cache, HostAuth.NOT_SAVED), get(cache, HostAuth.NOT_SAVED));
+        assertEquals(2, cache.getCachedCount());
+
+        cache.uncacheConnectionManager(makeHostAuth(1));
+        assertEquals(1, cache.getCachedCount());
+        assertNotSame(manager, get(cache, 1));
+        assertEquals(2, cache.getStats(1).getManagersCreated());
+    }
+
+    public void testLeastRecentlyUsedEviction() throws CertificateException {
+        final EasConnectionCache cache = new EasConnectionCache(2, IDLE_TIMEOUT, 0);
+        final EmailClientConnectionManager manager1 = get(cache, 1);
+        final EmailClientConnectionManager manager2 = get(cache, 2);
+        // Use 1 again, so that 2 is the least recently used
+        get(cache, 1);
+        get(cache, 3);
+        assertEquals(2, cache.getCachedCount());
+        assertSame(manager1, get(cache, 1));
+        assertNotSame(manager2, get(cache, 2));
+    }
+
+    public void testEvictionGracePeriod() throws CertificateException {
+        final EasConnectionCache cache =
+                new EasConnectionCache(1, IDLE_TIMEOUT, DateUtils.MINUTE_IN_MILLIS);
+        final EmailClientConnectionManager manager = get(cache, 1);
+        get(cache, 2);
+        // Both were just handed out, so neither can be evicted yet
+        assertEquals(2, cache.getCachedCount());
+        assertSame(manager, get(cache, 1));
+    }
+
+    public void testReapIdle() throws CertificateException {
+        final EasConnectionCache cache = new EasConnectionCache(4, IDLE_TIMEOUT, 0);
+        final EmailClientConnectionManager manager = get(cache, 1);
+        final long now = SystemClock.elapsedRealtime();
+        cache.reap(now);
+        assertEquals(1, cache.getCachedCount());
+        cache.reap(now + IDLE_TIMEOUT + 1);
+        assertEquals(0, cache.getCachedCount());
+        assertNotSame(manager, get(cache, 1));
+    }
+
+    public void testHttpClientIsShared() throws CertificateException {
+        final EasConnectionCache cache = new EasConnectionCache(4, IDLE_TIMEOUT, 0);
+        final HostAuth hostAuth = makeHostAuth(1);
+        final HttpClient client =
+                cache.getHttpClient(hostAuth, cache.getConnectionManager(getContext(), hostAuth));
+        assertSame(client,
+                cache.getHttpClient(hostAuth, cache.getConnectionManager(getContext(), hostAuth)));
+        assertNotSame(client, cache.getHttpClient(makeHostAuth(2),
+                cache.getConnectionManager(getContext(), makeHostAuth(2))));
+
+        // Once the connection manager is uncached, so is its client
+        cache.uncacheConnectionManager(hostAuth);
+        assertNotSame(client,
+                cache.getHttpClient(hostAuth, cache.getConnectionManager(getContext(), hostAuth)));
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.provider.MessageMove;
+import com.android.exchange.adapter.Parser;
+import com.android.exchange.adapter.Serializer;
+import com.android.exchange.adapter.Tags;
+import com.android.exchange.provider.EmailContentSetupUtils;
+import com.android.exchange.utility.Benchmark;
+import com.android.exchange.utility.ExchangeTestCase;
+import com.android.mail.utils.LogUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Runs MoveItems requests against a local server that moves everything it's asked to.
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.eas.EasMoveItemsTests exchange
+ */
+@MediumTest
+public class EasMoveItemsTests extends ExchangeTestCase {
+
+    /** Answers each move in a request with success and a new server id. */
+    private static class MoveResponder implements MockEasServer.Responder {
+        /** Whether to leave out the SrcMsgId, as some servers do. */
+        public volatile boolean mOmitSourceIds = false;
+
+        @Override
+        public byte[] respond(final byte[] requestBody) throws IOException {
+            final Serializer s = new Serializer();
+            s.start(Tags.MOVE_MOVE_ITEMS);
+            for (final String serverId : getSourceServerIds(requestBody)) {
+                s.start(Tags.MOVE_RESPONSE);
+                if (!mOmitSourceIds) {
+                    s.data(Tags.MOVE_SRCMSGID, serverId);
+                }
+                s.data(Tags.MOVE_STATUS, "3");
+                s.data(Tags.MOVE_DSTMSGID, "moved " + serverId);
+                s.end();
+            }
+            s.end().done();
+            return s.toByteArray();
+        }
+    }
+
+    private static ArrayList<String> getSourceServerIds(final byte[] requestBody)
+            throws IOException {
+        final ArrayList<String> serverIds = new ArrayList<String>();
+        new Parser(new ByteArrayInputStream(requestBody)) {
+            @Override
+            public boolean parse() throws IOException {
+                while (nextTag(START_DOCUMENT) != END_DOCUMENT) {
+                    if (tag == Tags.MOVE_SRCMSGID) {
+                        serverIds.add(getValue());
+                    } else if (tag != Tags.MOVE_MOVE_ITEMS && tag != Tags.MOVE_MOVE) {
+                        skipTag();
+                    }
+                }
+                return true;
+            }
+        }.parse();
+        return serverIds;
+    }
+
+    private MoveResponder mResponder;
+    private MockEasServer mServer;
+    private Account mAccount;
+    private Mailbox mInbox;
+    private Mailbox mArchive;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mResponder = new MoveResponder();
+        mServer = new MockEasServer(mResponder);
+        mServer.start();
+        mAccount = setupTestAccount("move", false);
+        mAccount.mProtocolVersion = "14.1";
+        mAccount.mHostAuthRecv = mServer.makeHostAuth();
+        mAccount.save(mProviderContext);
+        addTestAccount(mAccount);
+        mInbox = EmailContentSetupUtils.setupMailbox("inbox", mAccount.mId, true,
+                mProviderContext);
+        mArchive = EmailContentSetupUtils.setupMailbox("archive", mAccount.mId, true,
+                mProviderContext);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    /**
+     * Move messages from the inbox to the archive as the UI does, which leaves the moves for us
+     * to upsync.
+     */
+    private ArrayList<Message> moveMessages(final String name, final int count) {
+        final ArrayList<Message> messages = new ArrayList<Message>(count);
+        final ContentValues cv = new ContentValues(1);
+        cv.put(EmailContent.MessageColumns.MAILBOX_KEY, mArchive.mId);
+        for (int i = 0; i < count; i++) {
+            final Message message = EmailContentSetupUtils.setupMessage(name + i, mAccount.mId,
+                    mInbox.mId, false, true, mProviderContext);
+            mProviderContext.getContentResolver().update(
+                    ContentUris.withAppendedId(Message.CONTENT_URI, message.mId), cv, null, null);
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    public void testBatchesMoves() throws IOException {
+        final ArrayList<Message> messages = moveMessages("batch", 25);
+        final EasMoveItems moveItems = new EasMoveItems(mProviderContext, mAccount, 10);
+        assertEquals(EasMoveItems.RESULT_OK, moveItems.upsyncMovedMessages());
+
+        // 10 moves, 10 moves, and the last 5
+        assertEquals(3, mServer.getRequestBodies().size());
+        assertEquals(10, getSourceServerIds(mServer.getRequestBodies().get(0)).size());
+        assertEquals(5, getSourceServerIds(mServer.getRequestBodies().get(2)).size());
+
+        // Each message got its own response
+        for (final Message message : messages) {
+            final Message moved = Message.restoreMessageWithId(mProviderContext, message.mId);
+            assertEquals("moved " + message.mServerId, moved.mServerId);
+            assertEquals(mArchive.mId, moved.mMailboxKey);
+        }
+        assertNull(MessageMove.getMoves(mProviderContext, mAccount.mId));
+    }
+
+    public void testMatchesResponsesWithoutSourceIds() throws IOException {
+        mResponder.mOmitSourceIds = true;
+        final ArrayList<Message> messages = moveMessages("nosrc", 5);
+        final EasMoveItems moveItems = new EasMoveItems(mProviderContext, mAccount, 10);
+        assertEquals(EasMoveItems.RESULT_OK, moveItems.upsyncMovedMessages());
+
+        // Each response was matched to its move by position
+        for (final Message message : messages) {
+            final Message moved = Message.restoreMessageWithId(mProviderContext, message.mId);
+            assertEquals("moved " + message.mServerId, moved.mServerId);
+        }
+        assertNull(MessageMove.getMoves(mProviderContext, mAccount.mId));
+    }
+
+    /**
+     * Compare moving messages one per request with moving them in batches. Results are logged
+     * under {@link Benchmark#LOG_TAG}.
+     */
+    @LargeTest
+    public void testMoveThroughput() {
+        final int count = 200;
+        final int[] batchSizes = { 1, 10, EasMoveItems.DEFAULT_MAX_MOVES_PER_REQUEST };
+        for (final int batchSize : batchSizes) {
+            moveMessages("throughput" + batchSize + "-", count);
+            final int requests = mServer.getRequestBodies().size();
+            final EasMoveItems moveItems = new EasMoveItems(mProviderContext, mAccount, batchSize);
+            final long start = System.nanoTime();
+            assertEquals(EasMoveItems.RESULT_OK, moveItems.upsyncMovedMessages());
+            final long millis = (System.nanoTime() - start) / 1000000L;
+            LogUtils.i(Benchmark.LOG_TAG,
+                    "MoveItems, %d per request: %d messages in %d requests, %d ms (%.1f/s)",
+                    batchSize, count, mServer.getRequestBodies().size() - requests, millis,
+                    count * 1000.0 / Math.max(1, millis));
+        }
+    }
+}
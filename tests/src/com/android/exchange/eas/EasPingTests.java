@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.content.Context;
+import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.exchange.Eas;
+import com.android.exchange.adapter.PingParser;
+import com.android.exchange.adapter.Serializer;
+import com.android.exchange.adapter.Tags;
+import com.android.exchange.utility.ExchangeTestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs pings against a local server that plays back canned responses.
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.eas.EasPingTests exchange
+ */
+@MediumTest
+public class EasPingTests extends ExchangeTestCase {
+
+    /** Answers each ping with the next canned status. */
+    private static class PingResponder implements MockEasServer.Responder {
+        private final ArrayList<byte[]> mResponses = new ArrayList<byte[]>();
+        private int mNext = 0;
+
+        public void addResponse(final int status, final int heartbeat) throws IOException {
+            final Serializer s = new Serializer();
+            s.start(Tags.PING_PING).data(Tags.PING_STATUS, Integer.toString(status));
+            if (heartbeat != PingParser.NO_VALUE) {
+                s.data(Tags.PING_HEARTBEAT_INTERVAL, Integer.toString(heartbeat));
+            }
+            s.end().done();
+            mResponses.add(s.toByteArray());
+        }
+
+        @Override
+        public synchronized byte[] respond(final byte[] requestBody) throws IOException {
+            if (mNext == mResponses.size()) {
+                throw new IOException("No more responses");
+            }
+            return mResponses.get(mNext++);
+        }
+    }
+
+    /** An {@link EasPing} for a fixed set of mailboxes. */
+    private static class TestPing extends EasPing {
+        public TestPing(final Context context, final Account account) {
+            super(context, account, new android.accounts.Account(account.mEmailAddress,
+                    Eas.EXCHANGE_ACCOUNT_MANAGER_TYPE));
+        }
+
+        @Override
+        protected ArrayList<Mailbox> loadPushMailboxes() {
+            final ArrayList<Mailbox> mailboxes = new ArrayList<Mailbox>();
+            for (int i = 0; i < 30; i++) {
+                final Mailbox mailbox = new Mailbox();
+                mailbox.mServerId = "folder" + i;
+                mailbox.mType = Mailbox.TYPE_MAIL;
+                mailboxes.add(mailbox);
+            }
+            return mailboxes;
+        }
+    }
+
+    private Account setupAccount(final MockEasServer server) {
+        final Account account = setupTestAccount("ping", false);
+        account.mProtocolVersion = "14.1";
+        account.mHostAuthRecv = server.makeHostAuth();
+        account.save(mProviderContext);
+        addTestAccount(account);
+        return account;
+    }
+
+    public void testEmptyPingWhenServerHasParameters() throws IOException {
+        final PingResponder responder = new PingResponder();
+        // Settle the heartbeat, so that only the server decides whether the body changes.
+        responder.addResponse(PingParser.STATUS_REQUEST_HEARTBEAT_OUT_OF_BOUNDS, 600);
+        responder.addResponse(PingParser.STATUS_EXPIRED, PingParser.NO_VALUE);
+        responder.addResponse(PingParser.STATUS_EXPIRED, PingParser.NO_VALUE);
+        // The server has forgotten our parameters
+        responder.addResponse(PingParser.STATUS_REQUEST_INCOMPLETE, PingParser.NO_VALUE);
+        responder.addResponse(PingParser.STATUS_EXPIRED, PingParser.NO_VALUE);
+        final MockEasServer server = new MockEasServer(responder);
+        server.start();
+        final TestPing ping = new TestPing(mProviderContext, setupAccount(server));
+        try {
+            assertEquals(PingParser.STATUS_REQUEST_HEARTBEAT_OUT_OF_BOUNDS, ping.doPing());
+            assertEquals(PingParser.STATUS_EXPIRED, ping.doPing());
+            assertEquals(PingParser.STATUS_EXPIRED, ping.doPing());
+            assertEquals(PingParser.STATUS_REQUEST_INCOMPLETE, ping.doPing());
+            assertEquals(PingParser.STATUS_EXPIRED, ping.doPing());
+        } finally {
+            ping.stopWatchingPushMailboxes();
+            server.close();
+        }
+
+        final List<byte[]> bodies = server.getRequestBodies();
+        assertEquals(5, bodies.size());
+        // The first two have the full folder list, the second with the server's heartbeat
+        assertTrue(bodies.get(0).length > 0);
+        assertTrue(bodies.get(1).length > 0);
+        // Once the server has accepted our parameters, we don't send them again...
+        assertEquals(0, bodies.get(2).length);
+        assertEquals(0, bodies.get(3).length);
+        // ...until it tells us that it's lost them.
+        MoreAsserts.assertEquals(bodies.get(1), bodies.get(4));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.exchange.adapter.Parser;
+import com.android.exchange.adapter.Serializer;
+import com.android.exchange.adapter.Tags;
+import com.android.exchange.provider.EmailContentSetupUtils;
+import com.android.exchange.utility.ExchangeTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Runs syncs of several mailboxes at once against a local server that answers each collection
+ * with a status of the test's choosing.
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.eas.EasSyncCollectionsTests exchange
+ */
+@MediumTest
+public class EasSyncCollectionsTests extends ExchangeTestCase {
+
+    /**
+     * Answers each collection with a new sync key and its status from {@link #mStatuses}, or 1
+     * if it has none there.
+     */
+    private static class SyncResponder implements MockEasServer.Responder {
+        public final HashMap<String, Integer> mStatuses = new HashMap<String, Integer>();
+
+        @Override
+        public byte[] respond(final byte[] requestBody) throws IOException {
+            final Serializer s = new Serializer();
+            s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS);
+            for (final Map.Entry<String, String> collection :
+                    getSyncKeys(requestBody).entrySet()) {
+                final Integer status = mStatuses.get(collection.getKey());
+                s.start(Tags.SYNC_COLLECTION);
+                s.data(Tags.SYNC_SYNC_KEY, collection.getValue() + "-next");
+                s.data(Tags.SYNC_COLLECTION_ID, collection.getKey());
+                s.data(Tags.SYNC_STATUS, status != null ? status.toString() : "1");
+                s.end();
+            }
+            s.end().end().done();
+            return s.toByteArray();
+        }
+    }
+
+    /**
+     * @return The sync key of each collection in a Sync request, by collection id.
+     */
+    private static LinkedHashMap<String, String> getSyncKeys(final byte[] requestBody)
+            throws IOException {
+        final LinkedHashMap<String, String> syncKeys = new LinkedHashMap<String, String>();
+        new Parser(new ByteArrayInputStream(requestBody)) {
+            @Override
+            public boolean parse() throws IOException {
+                String syncKey = null;
+                while (nextTag(START_DOCUMENT) != END_DOCUMENT) {
+                    if (tag == Tags.SYNC_SYNC_KEY) {
+                        syncKey = getValue();
+                    } else if (tag == Tags.SYNC_COLLECTION_ID) {
+                        syncKeys.put(getValue(), syncKey);
+                    } else if (tag != Tags.SYNC_SYNC && tag != Tags.SYNC_COLLECTIONS
+                            && tag != Tags.SYNC_COLLECTION) {
+                        skipTag();
+                    }
+                }
+                return true;
+            }
+        }.parse();
+        return syncKeys;
+    }
+
+    private MockEasServer mServer;
+    private SyncResponder mResponder;
+    private Account mAccount;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mResponder = new SyncResponder();
+        mServer = new MockEasServer(mResponder);
+        mServer.start();
+        mAccount = setupTestAccount("collections", false);
+        mAccount.mProtocolVersion = "14.1";
+        mAccount.mHostAuthRecv = mServer.makeHostAuth();
+        mAccount.save(mProviderContext);
+        addTestAccount(mAccount);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    private Mailbox setupMailbox(final String name) {
+        return EmailContentSetupUtils.setupMailbox(name, mAccount.mId, true, mProviderContext);
+    }
+
+    private String getSavedSyncKey(final Mailbox mailbox) {
+        return Mailbox.restoreMailboxWithId(mProviderContext, mailbox.mId).mSyncKey;
+    }
+
+    public void testOneFailedCollection() {
+        final Mailbox inbox = setupMailbox("inbox");
+        final Mailbox failed = setupMailbox("failed");
+        final Mailbox other = setupMailbox("other");
+        // A server error for one collection...
+        mResponder.mStatuses.put(failed.mServerId, 5);
+
+        final ArrayList<Mailbox> mailboxes = new ArrayList<Mailbox>();
+        mailboxes.add(inbox);
+        mailboxes.add(failed);
+        mailboxes.add(other);
+        final int result =
+                new EasSyncCollections(mProviderContext, mAccount, mailboxes).performOperation();
+
+        // ...doesn't stop the others from syncing...
+        assertEquals(EasSyncCollections.RESULT_DONE, result);
+        assertEquals(1, mServer.getRequestBodies().size());
+        assertEquals("sync-key-inbox-next", getSavedSyncKey(inbox));
+        assertEquals("sync-key-other-next", getSavedSyncKey(other));
+        // ...and it keeps the key it had, to try again next time
+        assertEquals("sync-key-failed", getSavedSyncKey(failed));
+        assertEquals("sync-key-failed", failed.mSyncKey);
+    }
+
+    public void testAllCollectionsFailed() {
+        final Mailbox inbox = setupMailbox("inbox");
+        final Mailbox other = setupMailbox("other");
+        mResponder.mStatuses.put(inbox.mServerId, 5);
+        mResponder.mStatuses.put(other.mServerId, 16);
+
+        final ArrayList<Mailbox> mailboxes = new ArrayList<Mailbox>();
+        mailboxes.add(inbox);
+        mailboxes.add(other);
+        // As for a sync of just one of them, a server error fails the sync, so that we back off
+        assertEquals(EasOperation.RESULT_NETWORK_PROBLEM,
+                new EasSyncCollections(mProviderContext, mAccount, mailboxes).performOperation());
+        assertEquals("sync-key-inbox", getSavedSyncKey(inbox));
+        assertEquals("sync-key-other", getSavedSyncKey(other));
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.support.v4.util.LongSparseArray;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.emailcommon.provider.MessageStateChange;
+import com.android.exchange.adapter.Parser;
+import com.android.exchange.adapter.Serializer;
+import com.android.exchange.adapter.Tags;
+import com.android.exchange.provider.EmailContentSetupUtils;
+import com.android.exchange.utility.ExchangeTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs upsyncs of read and flag changes against a local server that answers each collection
+ * with a status of the test's choosing.
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.eas.EasSyncTests exchange
+ */
+@MediumTest
+public class EasSyncTests extends ExchangeTestCase {
+
+    /**
+     * Answers each collection with its status from {@link #mStatuses}, and each change in a
+     * collection with status 1 with success. Collections without a status are left out of the
+     * response.
+     */
+    private static class SyncResponder implements MockEasServer.Responder {
+        public final HashMap<String, Integer> mStatuses = new HashMap<String, Integer>();
+
+        @Override
+        public byte[] respond(final byte[] requestBody) throws IOException {
+            final Serializer s = new Serializer();
+            s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS);
+            for (final Map.Entry<String, ArrayList<String>> collection :
+                    getChanges(requestBody).entrySet()) {
+                final Integer status = mStatuses.get(collection.getKey());
+                if (status == null) {
+                    continue;
+                }
+                s.start(Tags.SYNC_COLLECTION);
+                s.data(Tags.SYNC_SYNC_KEY, "new-sync-key");
+                s.data(Tags.SYNC_COLLECTION_ID, collection.getKey());
+                s.data(Tags.SYNC_STATUS, status.toString());
+                if (status == 1) {
+                    s.start(Tags.SYNC_RESPONSES);
+                    for (final String serverId : collection.getValue()) {
+                        s.start(Tags.SYNC_CHANGE);
+                        s.data(Tags.SYNC_SERVER_ID, serverId);
+                        s.data(Tags.SYNC_STATUS, "1");
+                        s.end();
+                    }
+                    s.end();
+                }
+                s.end();
+            }
+            s.end().end().done();
+            return s.toByteArray();
+        }
+    }
+
+    /**
+     * @return The server ids of the changed messages in a Sync request, by collection.
+     */
+    private static LinkedHashMap<String, ArrayList<String>> getChanges(final byte[] requestBody)
+            throws IOException {
+        final LinkedHashMap<String, ArrayList<String>> changes =
+                new LinkedHashMap<String, ArrayList<String>>();
+        new Parser(new ByteArrayInputStream(requestBody)) {
+            @Override
+            public boolean parse() throws IOException {
+                ArrayList<String> serverIds = null;
+                while (nextTag(START_DOCUMENT) != END_DOCUMENT) {
+                    if (tag == Tags.SYNC_COLLECTION_ID) {
+                        serverIds = new ArrayList<String>();
+                        changes.put(getValue(), serverIds);
+                    } else if (tag == Tags.SYNC_SERVER_ID) {
+                        serverIds.add(getValue());
+                    } else if (tag != Tags.SYNC_SYNC && tag != Tags.SYNC_COLLECTIONS
+                            && tag != Tags.SYNC_COLLECTION && tag != Tags.SYNC_COMMANDS
+                            && tag != Tags.SYNC_CHANGE) {
+                        skipTag();
+                    }
+                }
+                return true;
+            }
+        }.parse();
+        return changes;
+    }
+
+    private MockEasServer mServer;
+    private SyncResponder mResponder;
+    private Account mAccount;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mResponder = new SyncResponder();
+        mServer = new MockEasServer(mResponder);
+        mServer.start();
+        mAccount = setupTestAccount("upsync", false);
+        mAccount.mProtocolVersion = "14.1";
+        mAccount.mHostAuthRecv = mServer.makeHostAuth();
+        mAccount.save(mProviderContext);
+        addTestAccount(mAccount);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    /**
+     * Mark messages in a new mailbox read as the UI does, which leaves the changes for us to
+     * upsync.
+     * @return The mailbox.
+     */
+    private Mailbox readMessages(final String name, final int count) {
+        final Mailbox mailbox = EmailContentSetupUtils.setupMailbox(name, mAccount.mId, true,
+                mProviderContext);
+        final ContentValues cv = new ContentValues(1);
+        cv.put(EmailContent.MessageColumns.FLAG_READ, true);
+        for (int i = 0; i < count; i++) {
+            final Message message = EmailContentSetupUtils.setupMessage(name + i, mAccount.mId,
+                    mailbox.mId, false, true, mProviderContext);
+            mProviderContext.getContentResolver().update(
+                    ContentUris.withAppendedId(Message.CONTENT_URI, message.mId), cv, null, null);
+        }
+        return mailbox;
+    }
+
+    /**
+     * @return The ids of the mailboxes with changes waiting to be upsynced.
+     */
+    private HashSet<Long> getMailboxesWithChanges() {
+        final HashSet<Long> mailboxIds = new HashSet<Long>();
+        final List<MessageStateChange> changes =
+                MessageStateChange.getChanges(mProviderContext, mAccount.mId, false);
+        if (changes != null) {
+            final LongSparseArray<List<MessageStateChange>> byMailbox =
+                    MessageStateChange.convertToChangesMap(changes);
+            for (int i = 0; i < byMailbox.size(); i++) {
+                mailboxIds.add(byMailbox.keyAt(i));
+            }
+        }
+        return mailboxIds;
+    }
+
+    public void testUpsyncPerCollection() throws IOException {
+        final Mailbox inbox = readMessages("inbox", 3);
+        final Mailbox conflicted = readMessages("conflicted", 2);
+        final Mailbox missing = readMessages("missing", 2);
+        mResponder.mStatuses.put(inbox.mServerId, 1);
+        // Conflict, which doesn't fail the request
+        mResponder.mStatuses.put(conflicted.mServerId, 7);
+
+        final EasSync sync = new EasSync(mProviderContext, mAccount);
+        // Only the inbox's changes were applied...
+        assertEquals(3, sync.upsync());
+        // ...all in one request...
+        assertEquals(1, mServer.getRequestBodies().size());
+        assertEquals(3, getChanges(mServer.getRequestBodies().get(0)).size());
+
+        // ...and the others are left to retry
+        final HashSet<Long> retried = getMailboxesWithChanges();
+        assertEquals(2, retried.size());
+        assertTrue(retried.contains(conflicted.mId));
+        assertTrue(retried.contains(missing.mId));
+    }
+
+    public void testUpsyncRetriesFailedRequest() throws IOException {
+        final Mailbox inbox = readMessages("inbox", 3);
+        mResponder.mStatuses.put(inbox.mServerId, 1);
+        // Nothing's listening now, so the request fails on the network
+        mServer.close();
+
+        assertTrue(new EasSync(mProviderContext, mAccount).upsync() < 0);
+        assertTrue(getMailboxesWithChanges().contains(inbox.mId));
+    }
+}
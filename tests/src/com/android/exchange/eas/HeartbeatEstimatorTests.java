@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+
+import java.util.HashSet;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.eas.HeartbeatEstimatorTests exchange
+ */
+@SmallTest
+public class HeartbeatEstimatorTests extends AndroidTestCase {
+    private static final long ACCOUNT_ID = 1;
+    private static final String NETWORK = "WIFI/\"office\"";
+    private static final long NOW = 1000000000000L;
+
+    private SharedPreferences mPreferences;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPreferences = getContext().getSharedPreferences("HeartbeatEstimatorTests",
+                Context.MODE_PRIVATE);
+        mPreferences.edit().clear().commit();
+    }
+
+    /**
+     * Ping on a network that drops connections idle for longer than natTimeout, until the
+     * estimate settles.
+     * @return The number of pings that timed out.
+     */
+    private int converge(final HeartbeatEstimator estimator, final long natTimeout) {
+        int timeouts = 0;
+        for (int i = 0; i < 20; i++) {
+            final long heartbeat = estimator.getHeartbeat();
+            if (heartbeat < natTimeout) {
+                estimator.onExpired(heartbeat);
+            } else {
+                estimator.onTimedOut(heartbeat, NOW);
+                timeouts++;
+            }
+        }
+        return timeouts;
+    }
+
+    public void testConverges() {
+        final long natTimeout = 15 * 60;
+        final HeartbeatEstimator estimator =
+                new HeartbeatEstimator(mPreferences, ACCOUNT_ID, NETWORK, NOW);
+        final int timeouts = converge(estimator, natTimeout);
+        final long heartbeat = estimator.getHeartbeat();
+        assertTrue(heartbeat < natTimeout);
+        assertTrue(heartbeat >= natTimeout - HeartbeatEstimator.RESOLUTION);
+        // Bisection, rather than fixed steps, keeps the failures down
+        assertTrue("Too many timeouts: " + timeouts, timeouts <= 5);
+    }
+
+    public void testUsesMaximumWhenNothingTimesOut() {
+        final HeartbeatEstimator estimator =
+                new HeartbeatEstimator(mPreferences, ACCOUNT_ID, NETWORK, NOW);
+        assertEquals(0, converge(estimator, Long.MAX_VALUE));
+        assertEquals(HeartbeatEstimator.MAXIMUM_HEARTBEAT, estimator.getHeartbeat());
+    }
+
+    public void testRemembersEachNetwork() {
+        final HeartbeatEstimator office =
+                new HeartbeatEstimator(mPreferences, ACCOUNT_ID, NETWORK, NOW);
+        converge(office, 15 * 60);
+        final HeartbeatEstimator carrier =
+                new HeartbeatEstimator(mPreferences, ACCOUNT_ID, "MOBILE/apn", NOW);
+        converge(carrier, 10 * 60);
+
+        // Coming back to a network starts from what we learned there
+        assertEquals(office.getHeartbeat(),
+                new HeartbeatEstimator(mPreferences, ACCOUNT_ID, NETWORK, NOW).getHeartbeat());
+        assertEquals(carrier.getHeartbeat(),
+                new HeartbeatEstimator(mPreferences, ACCOUNT_ID, "MOBILE/apn", NOW)
+                        .getHeartbeat());
+        // Other accounts learn for themselves
+        final HeartbeatEstimator other =
+                new HeartbeatEstimator(mPreferences, ACCOUNT_ID + 1, NETWORK, NOW);
+        assertTrue(other.getHeartbeat() > HeartbeatEstimator.MINIMUM_HEARTBEAT);
+        assertTrue(other.getHeartbeat() != office.getHeartbeat());
+    }
+
+    public void testForgetsOldTimeouts() {
+        final HeartbeatEstimator estimator =
+                new HeartbeatEstimator(mPreferences, ACCOUNT_ID, NETWORK, NOW);
+        converge(estimator, 15 * 60);
+        final long settled = estimator.getHeartbeat();
+        // A day later, we try longer heartbeats again
+        final HeartbeatEstimator later = new HeartbeatEstimator(mPreferences, ACCOUNT_ID, NETWORK,
+                NOW + HeartbeatEstimator.TIMEOUT_MEMORY_MILLIS + 1);
+        assertTrue(later.getHeartbeat() > settled);
+    }
+
+    public void testStartsAgainWhenSafeHeartbeatTimesOut() {
+        final HeartbeatEstimator estimator =
+                new HeartbeatEstimator(mPreferences, ACCOUNT_ID, NETWORK, NOW);
+        converge(estimator, 20 * 60);
+        // The network got worse
+        converge(estimator, 10 * 60);
+        final long heartbeat = estimator.getHeartbeat();
+        assertTrue(heartbeat < 10 * 60);
+        assertTrue(heartbeat >= 10 * 60 - HeartbeatEstimator.RESOLUTION);
+    }
+
+    public void testServerLimit() {
+        final HeartbeatEstimator estimator =
+                new HeartbeatEstimator(mPreferences, ACCOUNT_ID, NETWORK, NOW);
+        estimator.onServerLimit(9 * 60, NOW);
+        assertEquals(9 * 60, estimator.getHeartbeat());
+    }
+
+    public void testEarlyResetCountsAsTimeout() {
+        final HeartbeatEstimator estimator =
+                new HeartbeatEstimator(mPreferences, ACCOUNT_ID, NETWORK, NOW);
+        estimator.onExpired(10 * 60);
+        final long heartbeat = estimator.getHeartbeat();
+        assertTrue(heartbeat > 15 * 60);
+        // The network reset the connection after 15 minutes, well before the heartbeat was up
+        estimator.onFailed(heartbeat, 15 * DateUtils.MINUTE_IN_MILLIS, NOW);
+        assertTrue(estimator.getHeartbeat() < 15 * 60);
+        assertTrue(estimator.getHeartbeat() >= 10 * 60);
+        // A failure before we get to what's safe is the network coming and going
+        final long settled = estimator.getHeartbeat();
+        estimator.onFailed(settled, 5 * DateUtils.MINUTE_IN_MILLIS, NOW);
+        assertEquals(settled, estimator.getHeartbeat());
+        assertEquals(settled,
+                new HeartbeatEstimator(mPreferences, ACCOUNT_ID, NETWORK, NOW).getHeartbeat());
+    }
+
+    public void testFailureAtHeartbeatCountsAsTimeout() {
+        final HeartbeatEstimator estimator =
+                new HeartbeatEstimator(mPreferences, ACCOUNT_ID, NETWORK, NOW);
+        final long heartbeat = estimator.getHeartbeat();
+        estimator.onFailed(heartbeat, heartbeat * DateUtils.SECOND_IN_MILLIS, NOW);
+        assertTrue(estimator.getHeartbeat() < heartbeat);
+    }
+
+    public void testRemoveDeletedAccounts() {
+        converge(new HeartbeatEstimator(mPreferences, ACCOUNT_ID, NETWORK, NOW), 15 * 60);
+        converge(new HeartbeatEstimator(mPreferences, ACCOUNT_ID + 1, NETWORK, NOW), 15 * 60);
+        converge(new HeartbeatEstimator(mPreferences, ACCOUNT_ID + 10, NETWORK, NOW), 15 * 60);
+        assertEquals(3, mPreferences.getAll().size());
+
+        // The id 1 mustn't match 10
+        final HashSet<Long> remaining = new HashSet<Long>();
+        remaining.add(ACCOUNT_ID + 1);
+        IdKeyedPreferences.retainIds(mPreferences, remaining);
+        assertEquals(1, mPreferences.getAll().size());
+        final long fresh = new HeartbeatEstimator(mPreferences, ACCOUNT_ID + 2, NETWORK, NOW)
+                .getHeartbeat();
+        assertEquals(fresh,
+                new HeartbeatEstimator(mPreferences, ACCOUNT_ID, NETWORK, NOW).getHeartbeat());
+        assertTrue(fresh != new HeartbeatEstimator(mPreferences, ACCOUNT_ID + 1, NETWORK, NOW)
+                .getHeartbeat());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import com.android.emailcommon.provider.HostAuth;
+import com.android.exchange.Eas;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A minimal HTTP server on localhost for running operations against. It answers each request
+ * with whatever its {@link Responder} makes of the request body, and records the request bodies,
+ * until it's closed.
+ */
+public class MockEasServer extends Thread {
+
+    /** Makes the responses to the requests. */
+    public interface Responder {
+        /**
+         * @param requestBody The (WBXML) body of a request.
+         * @return The WBXML body of the response to it.
+         * @throws IOException To stop the server.
+         */
+        byte[] respond(byte[] requestBody) throws IOException;
+    }
+
+    private final ServerSocket mSocket;
+    private final Responder mResponder;
+    private final List<byte[]> mRequestBodies =
+            Collections.synchronizedList(new ArrayList<byte[]>());
+
+    public MockEasServer(final Responder responder) throws IOException {
+        mSocket = new ServerSocket(0, 1, InetAddress.getByName("localhost"));
+        mResponder = responder;
+    }
+
+    /**
+     * @return A {@link HostAuth} for connecting to this server.
+     */
+    public HostAuth makeHostAuth() {
+        final HostAuth hostAuth = new HostAuth();
+        hostAuth.mProtocol = Eas.PROTOCOL;
+        hostAuth.mAddress = "localhost";
+        hostAuth.mPort = mSocket.getLocalPort();
+        hostAuth.mLogin = "user@example.com";
+        hostAuth.mPassword = "password";
+        return hostAuth;
+    }
+
+    /**
+     * @return The bodies of the requests so far, in the order they arrived.
+     */
+    public List<byte[]> getRequestBodies() {
+        return mRequestBodies;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                final Socket socket = mSocket.accept();
+                try {
+                    final byte[] body = readRequestBody(socket.getInputStream());
+                    mRequestBodies.add(body);
+                    final byte[] response = mResponder.respond(body);
+                    final OutputStream out = socket.getOutputStream();
+                    out.write(("HTTP/1.1 200 OK\r\n"
+                            + "Content-Type: application/vnd.ms-sync.wbxml\r\n"
+                            + "Content-Length: " + response.length + "\r\n"
+                            + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+                    out.write(response);
+                    out.flush();
+                } finally {
+                    socket.close();
+                }
+            }
+        } catch (final IOException e) {
+            // We've been closed, or the responder gave up; the test will fail on any missing
+            // requests.
+        }
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        final StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static byte[] readRequestBody(final InputStream in) throws IOException {
+        int length = 0;
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                length = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int i = 0; i < length; i++) {
+            body.write(in.read());
+        }
+        return body.toByteArray();
+    }
+
+    public void close() throws IOException {
+        mSocket.close();
+    }
+}
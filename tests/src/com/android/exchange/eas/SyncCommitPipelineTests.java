@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.content.Context;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.emailcommon.provider.EmailContent.SyncColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.exchange.adapter.Parser;
+import com.android.exchange.adapter.Serializer;
+import com.android.exchange.adapter.Tags;
+import com.android.exchange.provider.EmailContentSetupUtils;
+import com.android.exchange.utility.ExchangeTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.eas.SyncCommitPipelineTests exchange
+ */
+@SmallTest
+public class SyncCommitPipelineTests extends ExchangeTestCase {
+
+    private final List<String> mWrites = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Thread> mWriteThreads =
+            Collections.synchronizedList(new ArrayList<Thread>());
+
+    /** Records its name and thread, after a while. */
+    private Callable<Void> makeWrite(final String name, final long writeMillis,
+            final boolean fail) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try {
+                    Thread.sleep(writeMillis);
+                } catch (final InterruptedException e) {
+                    // Just write sooner
+                }
+                if (fail) {
+                    throw new IOException("Write failed");
+                }
+                mWriteThreads.add(Thread.currentThread());
+                mWrites.add(name);
+                return null;
+            }
+        };
+    }
+
+    public void testWritesInOrder() throws IOException {
+        final SyncCommitPipeline pipeline = new SyncCommitPipeline("test");
+        for (int i = 1; i <= 5; i++) {
+            pipeline.write(makeWrite("write " + i, 10, false));
+        }
+        // Handing the writes over doesn't wait for them...
+        assertTrue(mWrites.size() < 5);
+        // ...but awaiting them does
+        pipeline.await();
+        assertEquals(5, mWrites.size());
+        for (int i = 1; i <= 5; i++) {
+            assertEquals("write " + i, mWrites.get(i - 1));
+            assertNotSame(Thread.currentThread(), mWriteThreads.get(i - 1));
+        }
+
+        // The pipeline carries on for the next window
+        pipeline.write(makeWrite("write 6", 0, false));
+        pipeline.finish();
+        assertEquals("write 6", mWrites.get(5));
+    }
+
+    public void testFailedWriteStopsWrites() throws IOException {
+        final SyncCommitPipeline pipeline = new SyncCommitPipeline("test");
+        pipeline.write(makeWrite("write 1", 0, false));
+        pipeline.write(makeWrite("write 2", 10, true));
+        pipeline.write(makeWrite("write 3", 0, false));
+        try {
+            pipeline.await();
+            fail("Expected IOException");
+        } catch (final IOException e) {
+            // Expected, so that we don't commit the window or save its sync key
+        }
+        assertEquals(Arrays.asList("write 1"), mWrites);
+
+        // Nothing's left over for the next attempt
+        pipeline.finish();
+        assertEquals(Arrays.asList("write 1"), mWrites);
+    }
+
+    /**
+     * Answers the requests of an initial mail sync: an empty first window, then one that adds a
+     * message, then one that deletes it again.
+     */
+    private static class AddThenDeleteResponder implements MockEasServer.Responder {
+        @Override
+        public byte[] respond(final byte[] requestBody) throws IOException {
+            final String syncKey = getSyncKey(requestBody);
+            final Serializer s = new Serializer();
+            s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS).start(Tags.SYNC_COLLECTION);
+            s.data(Tags.SYNC_SYNC_KEY, Integer.toString(Integer.parseInt(syncKey) + 1));
+            s.data(Tags.SYNC_COLLECTION_ID, "serverid-inbox");
+            s.data(Tags.SYNC_STATUS, "1");
+            if (syncKey.equals("1")) {
+                s.start(Tags.SYNC_COMMANDS).start(Tags.SYNC_ADD);
+                s.data(Tags.SYNC_SERVER_ID, "1:1");
+                s.start(Tags.SYNC_APPLICATION_DATA).data(Tags.EMAIL_SUBJECT, "Gone soon").end();
+                s.end().end();
+                s.tag(Tags.SYNC_MORE_AVAILABLE);
+            } else if (syncKey.equals("2")) {
+                s.start(Tags.SYNC_COMMANDS).start(Tags.SYNC_DELETE);
+                s.data(Tags.SYNC_SERVER_ID, "1:1");
+                s.end().end();
+            }
+            s.end().end().end().done();
+            return s.toByteArray();
+        }
+    }
+
+    private static String getSyncKey(final byte[] requestBody) throws IOException {
+        final String[] syncKey = new String[1];
+        new Parser(new ByteArrayInputStream(requestBody)) {
+            @Override
+            public boolean parse() throws IOException {
+                while (nextTag(START_DOCUMENT) != END_DOCUMENT) {
+                    if (tag == Tags.SYNC_SYNC_KEY) {
+                        syncKey[0] = getValue();
+                    } else if (tag != Tags.SYNC_SYNC && tag != Tags.SYNC_COLLECTIONS
+                            && tag != Tags.SYNC_COLLECTION) {
+                        skipTag();
+                    }
+                }
+                return true;
+            }
+        }.parse();
+        return syncKey[0];
+    }
+
+    private Account setupServerAccount(final MockEasServer server) {
+        final Account account = setupTestAccount("pipelined", false);
+        account.mProtocolVersion = "14.1";
+        account.mHostAuthRecv = server.makeHostAuth();
+        account.save(mProviderContext);
+        addTestAccount(account);
+        return account;
+    }
+
+    /** An inbox that's never been synced. */
+    private Mailbox setupInbox(final Account account) {
+        final Mailbox inbox = EmailContentSetupUtils.setupMailbox("inbox", account.mId, false,
+                mProviderContext, Mailbox.TYPE_INBOX);
+        inbox.mSyncKey = "0";
+        inbox.save(mProviderContext);
+        return inbox;
+    }
+
+    /**
+     * A Delete in one window of a pipelined sync, for a message added in the window before, must
+     * find the message.
+     */
+    @MediumTest
+    public void testDeleteOfPreviousWindowsAdd() throws IOException {
+        final MockEasServer server = new MockEasServer(new AddThenDeleteResponder());
+        server.start();
+        try {
+            final Account account = setupServerAccount(server);
+            final Mailbox inbox = setupInbox(account);
+
+            final EasSyncBase sync = new EasSyncBase(mProviderContext, account, inbox);
+            assertEquals(EasSyncBase.RESULT_DONE, sync.performOperation());
+            assertEquals(3, server.getRequestBodies().size());
+            assertEquals("3", Mailbox.restoreMailboxWithId(mProviderContext, inbox.mId).mSyncKey);
+            // Had the Delete been parsed before the Add was committed, the message would be left
+            assertEquals(0, EmailContent.count(mProviderContext, Message.CONTENT_URI,
+                    MessageColumns.MAILBOX_KEY + "=?",
+                    new String[] { Long.toString(inbox.mId) }));
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Answers the requests of an initial mail sync the way Exchange does with sync keys: it only
+     * accepts the key it issued last and the one before, and answers any other with status 3, so
+     * the client has to start again from scratch. After the empty first window, each window adds
+     * {@link #MESSAGES_PER_WINDOW} messages, to {@link #WINDOWS} windows. It can cut a window
+     * short, as if we died partway through it.
+     */
+    private static class TwoKeyResponder implements MockEasServer.Responder {
+        private static final int MESSAGES_PER_WINDOW = 30;
+        private static final int WINDOWS = 3;
+
+        private final Context mContext;
+        private long mMailboxId;
+        private int mLastIssuedKey;
+        /** The key of the request whose response to cut short, or 0 for none. */
+        public int mCutKey;
+        public int mBadKeys;
+        /** The requests sent with a key other than the one we'd saved. */
+        public final List<String> mUnsavedKeys =
+                Collections.synchronizedList(new ArrayList<String>());
+
+        public TwoKeyResponder(final Context context) {
+            mContext = context;
+        }
+
+        public void setMailbox(final Mailbox mailbox) {
+            mMailboxId = mailbox.mId;
+        }
+
+        @Override
+        public byte[] respond(final byte[] requestBody) throws IOException {
+            final String syncKey = getSyncKey(requestBody);
+            // We must have saved the key we're sending, which is to say that we saved each
+            // window's key before asking for the next
+            if (!syncKey.equals(Mailbox.restoreMailboxWithId(mContext, mMailboxId).mSyncKey)) {
+                mUnsavedKeys.add(syncKey);
+            }
+            final int key = Integer.parseInt(syncKey);
+            final Serializer s = new Serializer();
+            s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS).start(Tags.SYNC_COLLECTION);
+            if (key != 0 && key != mLastIssuedKey && key != mLastIssuedKey - 1) {
+                mBadKeys++;
+                s.data(Tags.SYNC_SYNC_KEY, "0");
+                s.data(Tags.SYNC_COLLECTION_ID, "serverid-inbox");
+                s.data(Tags.SYNC_STATUS, "3");
+                s.end().end().end().done();
+                return s.toByteArray();
+            }
+            mLastIssuedKey = key + 1;
+            s.data(Tags.SYNC_SYNC_KEY, Integer.toString(mLastIssuedKey));
+            s.data(Tags.SYNC_COLLECTION_ID, "serverid-inbox");
+            s.data(Tags.SYNC_STATUS, "1");
+            int cut = 0;
+            if (key > 0) {
+                s.start(Tags.SYNC_COMMANDS);
+                for (int i = 0; i < MESSAGES_PER_WINDOW; i++) {
+                    s.start(Tags.SYNC_ADD);
+                    s.data(Tags.SYNC_SERVER_ID, getServerId(key, i));
+                    s.start(Tags.SYNC_APPLICATION_DATA).data(Tags.EMAIL_SUBJECT, "Message " + i);
+                    s.end().end();
+                    if (key == mCutKey && i == 25) {
+                        cut = s.toByteArray().length;
+                    }
+                }
+                s.end();
+                if (key < WINDOWS) {
+                    s.tag(Tags.SYNC_MORE_AVAILABLE);
+                }
+            }
+            s.end().end().end().done();
+            if (cut > 0) {
+                mCutKey = 0;
+                return Arrays.copyOf(s.toByteArray(), cut);
+            }
+            return s.toByteArray();
+        }
+
+        public static String getServerId(final int key, final int message) {
+            return key + ":" + message;
+        }
+    }
+
+    private int countMessages(final Mailbox mailbox, final String serverId) {
+        return EmailContent.count(mProviderContext, Message.CONTENT_URI,
+                MessageColumns.MAILBOX_KEY + "=? and " + SyncColumns.SERVER_ID + "=?",
+                new String[] { Long.toString(mailbox.mId), serverId });
+    }
+
+    private int countMessages(final Mailbox mailbox) {
+        return EmailContent.count(mProviderContext, Message.CONTENT_URI,
+                MessageColumns.MAILBOX_KEY + "=?", new String[] { Long.toString(mailbox.mId) });
+    }
+
+    /**
+     * If a pipelined sync dies partway through writing a window, the next sync resumes from the
+     * window before, without the server resetting us, and without duplicating what was written.
+     */
+    @MediumTest
+    public void testResumeAfterDyingMidCommit() throws IOException {
+        final TwoKeyResponder responder = new TwoKeyResponder(mProviderContext);
+        final MockEasServer server = new MockEasServer(responder);
+        server.start();
+        try {
+            final Account account = setupServerAccount(server);
+            final Mailbox inbox = setupInbox(account);
+            responder.setMailbox(inbox);
+            responder.mCutKey = 2;
+
+            // Die partway through the second window of messages...
+            assertTrue(new EasSyncBase(mProviderContext, account, inbox).performOperation() < 0);
+            // ...after writing some of it, but before saving its key
+            assertEquals("2", Mailbox.restoreMailboxWithId(mProviderContext, inbox.mId).mSyncKey);
+            final int written = countMessages(inbox);
+            assertTrue(written > TwoKeyResponder.MESSAGES_PER_WINDOW);
+            assertTrue(written < 2 * TwoKeyResponder.MESSAGES_PER_WINDOW);
+
+            // As after a restart, the next sync starts from what we saved
+            final Mailbox restored = Mailbox.restoreMailboxWithId(mProviderContext, inbox.mId);
+            assertEquals(EasSyncBase.RESULT_DONE,
+                    new EasSyncBase(mProviderContext, account, restored).performOperation());
+
+            assertEquals(0, responder.mBadKeys);
+            assertTrue(responder.mUnsavedKeys.isEmpty());
+            assertEquals(Integer.toString(TwoKeyResponder.WINDOWS + 1),
+                    Mailbox.restoreMailboxWithId(mProviderContext, inbox.mId).mSyncKey);
+            assertEquals(TwoKeyResponder.WINDOWS * TwoKeyResponder.MESSAGES_PER_WINDOW,
+                    countMessages(inbox));
+            for (int key = 1; key <= TwoKeyResponder.WINDOWS; key++) {
+                for (int i = 0; i < TwoKeyResponder.MESSAGES_PER_WINDOW; i++) {
+                    assertEquals(1, countMessages(inbox, TwoKeyResponder.getServerId(key, i)));
+                }
+            }
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.eas;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.HashSet;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.eas.SyncWindowControllerTests exchange
+ */
+@SmallTest
+public class SyncWindowControllerTests extends AndroidTestCase {
+    private static final long MAILBOX_ID = 1;
+    private static final int DEFAULT_WINDOW_SIZE = 10;
+
+    private SharedPreferences mPreferences;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPreferences = getContext().getSharedPreferences("SyncWindowControllerTests",
+                Context.MODE_PRIVATE);
+        mPreferences.edit().clear().commit();
+    }
+
+    private SyncWindowController makeController(final String networkType) {
+        return new SyncWindowController(mPreferences, MAILBOX_ID, networkType,
+                DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Sync on a network where each item costs millisPerItem and bytesPerItem.
+     */
+    private static void sync(final SyncWindowController controller, final long millisPerItem,
+            final long bytesPerItem) {
+        for (int i = 0; i < 20; i++) {
+            final int windowSize = controller.getWindowSize();
+            controller.onFullWindow(windowSize * millisPerItem, windowSize * bytesPerItem);
+        }
+    }
+
+    public void testGrowsOnFastNetwork() {
+        final SyncWindowController controller = makeController("WIFI");
+        assertEquals(DEFAULT_WINDOW_SIZE, controller.getWindowSize());
+        sync(controller, 5, 1000);
+        assertEquals(SyncWindowController.MAXIMUM_WINDOW_SIZE, controller.getWindowSize());
+    }
+
+    public void testShrinksOnSlowNetwork() {
+        final SyncWindowController controller = makeController("MOBILE");
+        sync(controller, 3 * SyncWindowController.TARGET_MILLIS_PER_ITEM, 1000);
+        assertEquals(SyncWindowController.MINIMUM_WINDOW_SIZE, controller.getWindowSize());
+    }
+
+    public void testLimitsResponseSize() {
+        final SyncWindowController controller = makeController("WIFI");
+        // Big items, on a fast network
+        sync(controller, 1, 50 * 1024);
+        final long bytes = controller.getWindowSize() * 50 * 1024;
+        assertTrue(bytes <= 2 * SyncWindowController.TARGET_RESPONSE_BYTES);
+        assertTrue(controller.getWindowSize() < SyncWindowController.MAXIMUM_WINDOW_SIZE);
+    }
+
+    public void testShrinksOnFailures() {
+        final SyncWindowController controller = makeController("WIFI");
+        sync(controller, 5, 1000);
+        controller.onTimeout();
+        assertEquals(SyncWindowController.MAXIMUM_WINDOW_SIZE / 2, controller.getWindowSize());
+        controller.onTransactionTooLarge();
+        assertEquals(SyncWindowController.MAXIMUM_WINDOW_SIZE / 4, controller.getWindowSize());
+    }
+
+    public void testRemembersEachNetwork() {
+        sync(makeController("WIFI"), 5, 1000);
+        sync(makeController("MOBILE"), 3 * SyncWindowController.TARGET_MILLIS_PER_ITEM, 1000);
+        assertEquals(SyncWindowController.MAXIMUM_WINDOW_SIZE,
+                makeController("WIFI").getWindowSize());
+        assertEquals(SyncWindowController.MINIMUM_WINDOW_SIZE,
+                makeController("MOBILE").getWindowSize());
+        // Other collections start from the default
+        assertEquals(DEFAULT_WINDOW_SIZE,
+                new SyncWindowController(mPreferences, MAILBOX_ID + 1, "WIFI",
+                        DEFAULT_WINDOW_SIZE).getWindowSize());
+    }
+
+    public void testRemoveDeletedMailboxes() {
+        sync(makeController("WIFI"), 5, 1000);
+        sync(makeController("MOBILE"), 5, 1000);
+        final SyncWindowController other =
+                new SyncWindowController(mPreferences, MAILBOX_ID + 1, "WIFI", DEFAULT_WINDOW_SIZE);
+        sync(other, 5, 1000);
+        sync(new SyncWindowController(mPreferences, MAILBOX_ID + 10, "WIFI", DEFAULT_WINDOW_SIZE),
+                5, 1000);
+        assertEquals(4, mPreferences.getAll().size());
+
+        // One mailbox deleted on its own...
+        IdKeyedPreferences.removeId(mPreferences, MAILBOX_ID);
+        assertEquals(DEFAULT_WINDOW_SIZE, makeController("WIFI").getWindowSize());
+        assertEquals(DEFAULT_WINDOW_SIZE, makeController("MOBILE").getWindowSize());
+        assertEquals(2, mPreferences.getAll().size());
+
+        // ...and others along with their account; the id 1 mustn't match 10
+        final HashSet<Long> remaining = new HashSet<Long>();
+        remaining.add(MAILBOX_ID + 1);
+        IdKeyedPreferences.retainIds(mPreferences, remaining);
+        assertEquals(1, mPreferences.getAll().size());
+        assertEquals(SyncWindowController.MAXIMUM_WINDOW_SIZE,
+                new SyncWindowController(mPreferences, MAILBOX_ID + 1, "WIFI",
+                        DEFAULT_WINDOW_SIZE).getWindowSize());
+    }
+}
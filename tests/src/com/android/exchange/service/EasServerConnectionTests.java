@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.service;
+
+import android.content.ContentValues;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.HostAuth;
+import com.android.exchange.utility.Benchmark;
+import com.android.exchange.utility.ExchangeTestCase;
+
+import org.apache.http.client.methods.HttpPost;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.service.EasServerConnectionTests exchange
+ */
+public class EasServerConnectionTests extends ExchangeTestCase {
+    private static final String URI = "https://eas.example.com/Microsoft-Server-ActiveSync";
+
+    private Account setupAccount(final String policyKey) {
+        final Account account = setupTestAccount("connection", false);
+        account.mProtocolVersion = "14.1";
+        account.mSecuritySyncKey = policyKey;
+        account.save(mProviderContext);
+        addTestAccount(account);
+        return account;
+    }
+
+    private static HostAuth makeHostAuth() {
+        final HostAuth hostAuth = new HostAuth();
+        hostAuth.mLogin = "user@example.com";
+        hostAuth.mPassword = "password";
+        hostAuth.mAddress = "eas.example.com";
+        return hostAuth;
+    }
+
+    private static String getHeader(final HttpPost post, final String name) {
+        return post.getFirstHeader(name).getValue();
+    }
+
+    @SmallTest
+    public void testPolicyKeyIsCachedUntilInvalidated() {
+        final Account account = setupAccount("key1");
+        final EasServerConnection connection =
+                new EasServerConnection(mProviderContext, account, makeHostAuth());
+        assertEquals("key1",
+                getHeader(connection.makePost(URI, null, null, true), "X-MS-PolicyKey"));
+
+        final ContentValues cv = new ContentValues(1);
+        cv.put(EmailContent.AccountColumns.SECURITY_SYNC_KEY, "key2");
+        account.update(mProviderContext, cv);
+        assertEquals("key1",
+                getHeader(connection.makePost(URI, null, null, true), "X-MS-PolicyKey"));
+        connection.invalidatePolicyKey();
+        assertEquals("key2",
+                getHeader(connection.makePost(URI, null, null, true), "X-MS-PolicyKey"));
+    }
+
+    @SmallTest
+    public void testAuthorizationFollowsHostAuth() {
+        final HostAuth hostAuth = makeHostAuth();
+        final EasServerConnection connection =
+                new EasServerConnection(mProviderContext, setupAccount("key"), hostAuth);
+        final String authorization =
+                getHeader(connection.makePost(URI, null, null, false), "Authorization");
+        assertEquals(authorization,
+                getHeader(connection.makePost(URI, null, null, false), "Authorization"));
+        // An equal password (as when the HostAuth is reloaded) keeps the cached string
+        hostAuth.mPassword = new String("password");
+        assertSame(authorization,
+                getHeader(connection.makePost(URI, null, null, false), "Authorization"));
+        hostAuth.mPassword = "new password";
+        assertFalse(authorization.equals(
+                getHeader(connection.makePost(URI, null, null, false), "Authorization")));
+    }
+
+    /**
+     * Compares making requests on one connection, which reuses what it can from one request to
+     * the next, with making each request on a new connection, which has to build everything
+     * (including reading the policy key from the provider) from scratch.
+     */
+    @LargeTest
+    public void testMakePostBenchmark() throws Exception {
+        final Account account = setupAccount("key");
+        final HostAuth hostAuth = makeHostAuth();
+        final EasServerConnection connection =
+                new EasServerConnection(mProviderContext, account, hostAuth);
+        Benchmark.measure("makePost", new Benchmark.Operation() {
+            @Override
+            public void run() {
+                connection.makePost(URI, null, null, true);
+            }
+        });
+        Benchmark.measure("makePost on a new connection", new Benchmark.Operation() {
+            @Override
+            public void run() {
+                new EasServerConnection(mProviderContext, account, hostAuth)
+                        .makePost(URI, null, null, true);
+            }
+        });
+    }
+}
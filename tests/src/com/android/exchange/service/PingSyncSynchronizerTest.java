@@ -17,12 +17,25 @@
 package com.android.exchange.service;
 
 import android.app.Service;
+import android.content.ComponentName;
 import android.content.Intent;
 import android.os.IBinder;
 import android.test.AndroidTestCase;
 
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import com.android.emailcommon.provider.Account;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 @SmallTest
 public class PingSyncSynchronizerTest extends AndroidTestCase {
 
@@ -31,6 +44,304 @@ public class PingSyncSynchronizerTest extends AndroidTestCase {
         public IBinder onBind(final Intent intent) {
             return null;
         }
+
+        @Override
+        public ComponentName startService(final Intent service) {
+            return null;
+        }
+    }
+
+    /**
+     * A ping that runs until it's stopped, without a server. It checks that it never runs
+     * alongside a sync or another ping on its account, by counting itself in the same counter
+     * as the syncs do.
+     */
+    private static class FakePingTask extends PingTask {
+        private final PingSyncSynchronizer mSynchronizer;
+        private final long mAccountId;
+        private final android.accounts.Account mAmAccount;
+        private final AtomicInteger mRunning;
+        private final AtomicReference<String> mFailure;
+        private final CountDownLatch mStopped = new CountDownLatch(1);
+
+        public FakePingTask(final PingSyncSynchronizer synchronizer, final Account account,
+                final android.accounts.Account amAccount, final AtomicInteger running,
+                final AtomicReference<String> failure) {
+            super(synchronizer.getContext(), account, amAccount, synchronizer);
+            mSynchronizer = synchronizer;
+            mAccountId = account.mId;
+            mAmAccount = amAccount;
+            mRunning = running;
+            mFailure = failure;
+        }
+
+        @Override
+        public void stop() {
+            mStopped.countDown();
+        }
+
+        @Override
+        public void restart() {
+            // A real ping would pick up its new parameters; there are none here.
+        }
+
+        @Override
+        public void run() {
+            if (mRunning.incrementAndGet() != 1) {
+                mFailure.compareAndSet(null, "Ping overlapping on account " + mAccountId);
+            }
+            try {
+                if (!mStopped.await(60, TimeUnit.SECONDS)) {
+                    mFailure.compareAndSet(null, "Ping never stopped on account " + mAccountId);
+                }
+            } catch (final InterruptedException e) {
+                mFailure.compareAndSet(null, "Interrupted");
+            } finally {
+                mRunning.decrementAndGet();
+            }
+            mSynchronizer.pingEnd(mAccountId, mAmAccount);
+        }
+    }
+
+    /**
+     * A synchronizer that runs {@link FakePingTask}s, and doesn't schedule push kicks.
+     */
+    private static class FakePingSynchronizer extends PingSyncSynchronizer {
+        /** For each account, by id - 1, the number of syncs and pings running on it. */
+        public final AtomicInteger[] mRunning;
+        public final AtomicReference<String> mFailure = new AtomicReference<String>();
+
+        public FakePingSynchronizer(final int accountCount) {
+            super(new StubService());
+            mRunning = new AtomicInteger[accountCount];
+            for (int i = 0; i < accountCount; i++) {
+                mRunning[i] = new AtomicInteger();
+            }
+        }
+
+        @Override
+        PingTask makePingTask(final Account account, final android.accounts.Account amAccount) {
+            return new FakePingTask(this, account, amAccount, mRunning[(int) account.mId - 1],
+                    mFailure);
+        }
+
+        @Override
+        void schedulePushKick(final android.accounts.Account amAccount) {
+        }
+
+        /**
+         * Start an operation, and count it as running if it must not overlap others.
+         */
+        public void start(final Account account, final int priority) {
+            syncStart(account.mId, priority);
+            if (priority != PRIORITY_INTERACTIVE
+                    && mRunning[(int) account.mId - 1].incrementAndGet() != 1) {
+                mFailure.compareAndSet(null, "Overlapping syncs on account " + account.mId);
+            }
+        }
+
+        public void end(final Account account, final int priority) {
+            if (priority != PRIORITY_INTERACTIVE) {
+                mRunning[(int) account.mId - 1].decrementAndGet();
+            }
+            syncEnd(false, account, priority);
+        }
     }
 
+    /**
+     * Wait until there are no pings and no active accounts.
+     */
+    private static void waitForIdle(final PingSyncSynchronizer synchronizer)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (synchronizer.getOutstandingPingCount() > 0
+                || synchronizer.getActiveAccountCount() > 0) {
+            assertTrue("Synchronizer didn't go idle", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static Account makeAccount(final long accountId) {
+        final Account account = new Account();
+        account.mId = accountId;
+        account.mEmailAddress = "user" + accountId + "@example.com";
+        // Not push, so syncEnd doesn't need to look at the provider, and pings only start
+        // after pushModify.
+        account.mSyncInterval = Account.CHECK_INTERVAL_NEVER;
+        return account;
+    }
+
+    public void testSyncsAreSerializedPerAccount() throws InterruptedException {
+        final PingSyncSynchronizer synchronizer = new PingSyncSynchronizer(new StubService());
+        final Account account = makeAccount(1);
+        final Account otherAccount = makeAccount(2);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        synchronizer.syncStart(account.mId, PingSyncSynchronizer.PRIORITY_BACKGROUND_SYNC);
+        assertEquals(1, synchronizer.getActiveAccountCount());
+
+        // Another account's sync doesn't wait...
+        final Thread other = startSync(synchronizer, otherAccount,
+                PingSyncSynchronizer.PRIORITY_BACKGROUND_SYNC, "other", order);
+        other.join(10000);
+        assertEquals(Arrays.asList("other"), order);
+        // ...but a second sync on the same account waits until the first one ends.
+        final Thread second = startSync(synchronizer, account,
+                PingSyncSynchronizer.PRIORITY_BACKGROUND_SYNC, "second", order);
+        waitForWaitingSyncs(synchronizer, account.mId, 1);
+        assertEquals(Arrays.asList("other"), order);
+        synchronizer.syncEnd(false, account, PingSyncSynchronizer.PRIORITY_BACKGROUND_SYNC);
+        second.join(10000);
+        assertEquals(Arrays.asList("other", "second"), order);
+        assertEquals(0, synchronizer.getActiveAccountCount());
+        synchronizer.shutdown();
+    }
+
+    public void testSyncPreemptsPing() throws InterruptedException {
+        final FakePingSynchronizer synchronizer = new FakePingSynchronizer(1);
+        final Account account = makeAccount(1);
+        synchronizer.pushModify(account);
+        assertEquals(1, synchronizer.getOutstandingPingCount());
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (synchronizer.mRunning[0].get() == 0) {
+            assertTrue("Ping didn't start", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+
+        // The sync stops the ping, and only runs once the ping has ended.
+        synchronizer.start(account, PingSyncSynchronizer.PRIORITY_USER_SYNC);
+        assertEquals(0, synchronizer.getOutstandingPingCount());
+        // Once the sync is done, the ping starts again.
+        synchronizer.end(account, PingSyncSynchronizer.PRIORITY_USER_SYNC);
+        assertEquals(1, synchronizer.getOutstandingPingCount());
+        synchronizer.pushStop(account.mId);
+        waitForIdle(synchronizer);
+        assertNull(synchronizer.mFailure.get(), synchronizer.mFailure.get());
+        synchronizer.shutdown();
+    }
+
+    public void testInteractiveOperationsDontWait() {
+        final PingSyncSynchronizer synchronizer = new PingSyncSynchronizer(new StubService());
+        final Account account = makeAccount(1);
+        synchronizer.syncStart(account.mId, PingSyncSynchronizer.PRIORITY_BACKGROUND_SYNC);
+        // This would block forever if it waited for the sync.
+        synchronizer.syncStart(account.mId, PingSyncSynchronizer.PRIORITY_INTERACTIVE);
+        synchronizer.syncEnd(false, account, PingSyncSynchronizer.PRIORITY_BACKGROUND_SYNC);
+        // The interactive operation is still running.
+        assertEquals(1, synchronizer.getActiveAccountCount());
+        synchronizer.syncEnd(false, account, PingSyncSynchronizer.PRIORITY_INTERACTIVE);
+        assertEquals(0, synchronizer.getActiveAccountCount());
+        synchronizer.shutdown();
+    }
+
+    /**
+     * Start a sync on another thread, which records its name in order once it's allowed to run.
+     */
+    private static Thread startSync(final PingSyncSynchronizer synchronizer,
+            final Account account, final int priority, final String name,
+            final List<String> order) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronizer.syncStart(account.mId, priority);
+                order.add(name);
+                synchronizer.syncEnd(false, account, priority);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void waitForWaitingSyncs(final PingSyncSynchronizer synchronizer,
+            final long accountId, final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (synchronizer.getWaitingSyncCount(accountId) < count) {
+            assertTrue("Syncs didn't start waiting", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    public void testUserSyncsGoBeforeBackgroundSyncs() throws InterruptedException {
+        final PingSyncSynchronizer synchronizer = new PingSyncSynchronizer(new StubService());
+        final Account account = makeAccount(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        synchronizer.syncStart(account.mId, PingSyncSynchronizer.PRIORITY_BACKGROUND_SYNC);
+        final Thread background1 = startSync(synchronizer, account,
+                PingSyncSynchronizer.PRIORITY_BACKGROUND_SYNC, "background1", order);
+        waitForWaitingSyncs(synchronizer, account.mId, 1);
+        final Thread background2 = startSync(synchronizer, account,
+                PingSyncSynchronizer.PRIORITY_BACKGROUND_SYNC, "background2", order);
+        waitForWaitingSyncs(synchronizer, account.mId, 2);
+        final Thread user = startSync(synchronizer, account,
+                PingSyncSynchronizer.PRIORITY_USER_SYNC, "user", order);
+        waitForWaitingSyncs(synchronizer, account.mId, 3);
+        synchronizer.syncEnd(false, account, PingSyncSynchronizer.PRIORITY_BACKGROUND_SYNC);
+        background1.join(10000);
+        background2.join(10000);
+        user.join(10000);
+        assertEquals(Arrays.asList("user", "background1", "background2"), order);
+        assertEquals(0, synchronizer.getActiveAccountCount());
+        synchronizer.shutdown();
+    }
+
+    /**
+     * Run syncs, interactive operations, and push changes (which start and stop pings) on many
+     * accounts from many threads at once, checking that syncs and pings on the same account never
+     * overlap, and that every account is idle, with no pings left, at the end.
+     */
+    @LargeTest
+    public void testConcurrentSyncsOnManyAccounts() throws InterruptedException {
+        final int accountCount = 16;
+        final int threadCount = 32;
+        final int operationsPerThread = 200;
+        final FakePingSynchronizer synchronizer = new FakePingSynchronizer(accountCount);
+        final Account[] accounts = new Account[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            accounts[i] = makeAccount(i + 1);
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < operationsPerThread; i++) {
+                            final Account account = accounts[(seed + i * 7) % accountCount];
+                            switch ((seed + i) % 10) {
+                                case 0:
+                                    synchronizer.pushModify(account);
+                                    break;
+                                case 1:
+                                    synchronizer.pushStop(account.mId);
+                                    break;
+                                default:
+                                    final int priority = (i % 3 == 0)
+                                            ? PingSyncSynchronizer.PRIORITY_USER_SYNC
+                                            : (i % 3 == 1)
+                                            ? PingSyncSynchronizer.PRIORITY_BACKGROUND_SYNC
+                                            : PingSyncSynchronizer.PRIORITY_INTERACTIVE;
+                                    synchronizer.start(account, priority);
+                                    Thread.yield();
+                                    synchronizer.end(account, priority);
+                            }
+                        }
+                    } catch (final InterruptedException e) {
+                        synchronizer.mFailure.compareAndSet(null, "Interrupted");
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        assertTrue("Syncs didn't finish", done.await(60, TimeUnit.SECONDS));
+        for (final Account account : accounts) {
+            synchronizer.pushStop(account.mId);
+        }
+        waitForIdle(synchronizer);
+        assertNull(synchronizer.mFailure.get(), synchronizer.mFailure.get());
+        synchronizer.shutdown();
+    }
 }
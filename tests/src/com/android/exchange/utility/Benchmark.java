@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.utility;
+
+import android.os.Debug;
+
+import com.android.exchange.service.EasService;
+import com.android.mail.utils.LogUtils;
+
+/**
+ * A minimal harness for measuring the throughput and allocation rate of hot code paths, for use
+ * from instrumentation tests. Each measurement warms up, then runs the operation repeatedly for a
+ * fixed time and reports operations per second, and objects and bytes allocated per operation
+ * (which, unlike timings, should be stable from run to run and device to device).
+ *
+ * Results are logged with the tag {@link #LOG_TAG}, e.g.
+ *   adb logcat -s ExchangeBenchmark
+ */
+public class Benchmark {
+    public static final String LOG_TAG = "ExchangeBenchmark";
+
+    private static final long WARMUP_MILLIS = 500;
+    private static final long MEASURE_MILLIS = 2000;
+    private static final int ALLOCATION_OPERATIONS = 10;
+
+    /**
+     * An operation to measure
+     */
+    public interface Operation {
+        void run() throws Exception;
+    }
+
+    /**
+     * The results of measuring an {@link Operation}
+     */
+    public static class Result {
+        public final String mName;
+        public final int mOperations;
+        public final double mOperationsPerSecond;
+        public final double mObjectsPerOperation;
+        public final double mBytesPerOperation;
+
+        private Result(final String name, final int operations, final long nanos,
+                final int objects, final int bytes) {
+            mName = name;
+            mOperations = operations;
+            mOperationsPerSecond = operations * 1e9 / nanos;
+            mObjectsPerOperation = (double) objects / ALLOCATION_OPERATIONS;
+            mBytesPerOperation = (double) bytes / ALLOCATION_OPERATIONS;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %.1f ops/s, %.1f objects/op, %.0f bytes/op (%d ops)",
+                    mName, mOperationsPerSecond, mObjectsPerOperation, mBytesPerOperation,
+                    mOperations);
+        }
+    }
+
+    /**
+     * Measure an operation, and log the result.
+     * @param name the name to report the result under
+     * @param operation the operation to measure
+     * @return the result
+     */
+    public static Result measure(final String name, final Operation operation)
+            throws Exception {
+        // Protocol logging would dominate anything we'd want to measure
+        final boolean protocolLogging = EasService.getProtocolLogging();
+        EasService.setProtocolLogging(false);
+        try {
+            runFor(operation, WARMUP_MILLIS);
+            System.gc();
+
+            final long start = System.nanoTime();
+            final int operations = runFor(operation, MEASURE_MILLIS);
+            final long nanos = System.nanoTime() - start;
+
+            // Allocation counting slows things down (and the counters are only ints), so count
+            // allocations separately, over a fixed number of operations
+            Debug.startAllocCounting();
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            for (int i = 0; i < ALLOCATION_OPERATIONS; i++) {
+                operation.run();
+            }
+            final int objects = Debug.getThreadAllocCount();
+            final int bytes = Debug.getThreadAllocSize();
+            Debug.stopAllocCounting();
+
+            final Result result = new Result(name, operations, nanos, objects, bytes);
+            LogUtils.i(LOG_TAG, "%s", result);
+            return result;
+        } finally {
+            EasService.setProtocolLogging(protocolLogging);
+        }
+    }
+
+    private static int runFor(final Operation operation, final long millis) throws Exception {
+        final long end = System.nanoTime() + millis * 1000000L;
+        int operations = 0;
+        do {
+            operation.run();
+            operations++;
+        } while (System.nanoTime() < end);
+        return operations;
+    }
+}
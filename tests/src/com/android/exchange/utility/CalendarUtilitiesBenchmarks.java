@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.utility;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import java.util.TimeZone;
+
+/**
+ * Benchmarks for the time zone conversions in {@link CalendarUtilities}, which run for every
+ * event we sync. These only report results (see {@link Benchmark}). You can run them with:
+ *   runtest -c com.android.exchange.utility.CalendarUtilitiesBenchmarks exchange
+ */
+@LargeTest
+public class CalendarUtilitiesBenchmarks extends AndroidTestCase {
+    // A time zone with DST, and one without
+    private static final TimeZone[] TIME_ZONES = {
+        TimeZone.getTimeZone("America/Los_Angeles"), TimeZone.getTimeZone("Asia/Calcutta")
+    };
+
+    public void testTziStringToTimeZone() throws Exception {
+        for (final TimeZone timeZone : TIME_ZONES) {
+            final String tziString = CalendarUtilities.timeZoneToTziStringImpl(timeZone);
+            assertEquals(timeZone.getRawOffset(), CalendarUtilities.tziStringToTimeZoneImpl(
+                    tziString, CalendarUtilities.MINUTES).getRawOffset());
+            Benchmark.measure("tziStringToTimeZone " + timeZone.getID(),
+                    new Benchmark.Operation() {
+                @Override
+                public void run() {
+                    CalendarUtilities.tziStringToTimeZoneImpl(tziString,
+                            CalendarUtilities.MINUTES);
+                }
+            });
+            Benchmark.measure("tziStringToTimeZone " + timeZone.getID() + " (cached)",
+                    new Benchmark.Operation() {
+                @Override
+                public void run() {
+                    CalendarUtilities.tziStringToTimeZone(tziString);
+                }
+            });
+        }
+    }
+
+    public void testTimeZoneToTziString() throws Exception {
+        for (final TimeZone timeZone : TIME_ZONES) {
+            Benchmark.measure("timeZoneToTziString " + timeZone.getID(),
+                    new Benchmark.Operation() {
+                @Override
+                public void run() {
+                    CalendarUtilities.timeZoneToTziStringImpl(timeZone);
+                }
+            });
+        }
+    }
+
+    public void testTimeZoneToVTimezone() throws Exception {
+        for (final TimeZone timeZone : TIME_ZONES) {
+            Benchmark.measure("timeZoneToVTimezone " + timeZone.getID(),
+                    new Benchmark.Operation() {
+                @Override
+                public void run() throws Exception {
+                    CalendarUtilities.timeZoneToVTimezone(timeZone, new SimpleIcsWriter());
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.utility;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.utility.OperationMetricsTests exchange
+ */
+@SmallTest
+public class OperationMetricsTests extends AndroidTestCase {
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        OperationMetrics.setEnabled(false);
+        OperationMetrics.clear();
+    }
+
+    private static String dump() {
+        final StringWriter writer = new StringWriter();
+        OperationMetrics.dump(new PrintWriter(writer));
+        return writer.toString();
+    }
+
+    public void testDisabled() {
+        OperationMetrics.setEnabled(false);
+        assertNull(OperationMetrics.startOperation(1, "Sync"));
+        assertEquals(0, OperationMetrics.startCommit());
+        OperationMetrics.endOperation(null, System.nanoTime(), 0);
+        assertFalse(dump().contains("Account"));
+    }
+
+    public void testRecordOperation() throws IOException {
+        OperationMetrics.setEnabled(true);
+        final long start = System.nanoTime();
+        final OperationMetrics.Sample sample = OperationMetrics.startOperation(1, "Sync");
+        assertNotNull(sample);
+        sample.addTime(OperationMetrics.PHASE_BUILD, System.nanoTime());
+        sample.addBytesOut(100);
+
+        final long handleStart = System.nanoTime();
+        final InputStream in = sample.meter(new ByteArrayInputStream(new byte[1000]));
+        assertEquals(0, in.read());
+        assertEquals(500, in.read(new byte[500]));
+        assertEquals(499, in.skip(1000));
+        assertEquals(-1, in.read());
+        final long commitStart = OperationMetrics.startCommit();
+        assertTrue(commitStart != 0);
+        OperationMetrics.endCommit(commitStart);
+        sample.addHandlingTime(handleStart);
+        OperationMetrics.endOperation(sample, start, 1);
+
+        // Once the operation has ended, commits on this thread aren't measured
+        assertEquals(0, OperationMetrics.startCommit());
+
+        final String dump = dump();
+        assertTrue(dump, dump.contains("Account 1 Sync"));
+        assertTrue(dump, dump.contains("count=1 "));
+        assertTrue(dump, dump.contains("bytesOut=100 bytesIn=1000 results={1=1}"));
+    }
+
+    public void testResultsAreCountedPerCommand() {
+        OperationMetrics.setEnabled(true);
+        for (final int result : new int[] { 1, 1, -1 }) {
+            OperationMetrics.endOperation(OperationMetrics.startOperation(1, "Ping"),
+                    System.nanoTime(), result);
+        }
+        OperationMetrics.endOperation(OperationMetrics.startOperation(2, "Ping"),
+                System.nanoTime(), 1);
+        final String dump = dump();
+        assertTrue(dump, dump.contains("results={-1=1, 1=2}"));
+        assertTrue(dump, dump.contains("Account 2 Ping"));
+    }
+
+    public void testNestedOperations() {
+        OperationMetrics.setEnabled(true);
+        final OperationMetrics.Sample outer = OperationMetrics.startOperation(1, "Sync");
+        // e.g. a provision while handling the sync's response
+        final OperationMetrics.Sample inner = OperationMetrics.startOperation(1, "Provision");
+        OperationMetrics.endOperation(inner, System.nanoTime(), 1);
+
+        // The outer operation's commits are still measured
+        assertTrue(OperationMetrics.startCommit() != 0);
+        OperationMetrics.endOperation(outer, System.nanoTime(), 1);
+        assertEquals(0, OperationMetrics.startCommit());
+
+        final String dump = dump();
+        assertTrue(dump, dump.contains("Account 1 Sync"));
+        assertTrue(dump, dump.contains("Account 1 Provision"));
+    }
+}
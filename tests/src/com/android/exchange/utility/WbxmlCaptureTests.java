@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.utility;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.exchange.adapter.Serializer;
+import com.android.exchange.adapter.Tags;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests of the limits on what {@link WbxmlCapture} keeps.
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.utility.WbxmlCaptureTests exchange
+ */
+@SmallTest
+public class WbxmlCaptureTests extends AndroidTestCase {
+    private File mTestDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestDirectory = new File(getContext().getCacheDir(), "capture-limits-test");
+        WbxmlCapture.setCaptureDirectory(mTestDirectory);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        WbxmlCapture.setCaptureDirectory(null);
+        final File[] files = mTestDirectory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        mTestDirectory.delete();
+        super.tearDown();
+    }
+
+    /**
+     * @return A document with an opaque value of the given bytes between two text values.
+     */
+    private static byte[] makeDocument(final byte[] opaque) throws IOException {
+        final Serializer s = new Serializer();
+        s.start(Tags.SYNC_SYNC).data(Tags.SYNC_CLASS, "Email");
+        s.start(Tags.SYNC_SYNC_KEY).opaque(new ByteArrayInputStream(opaque), opaque.length).end();
+        s.data(Tags.SYNC_COLLECTION_ID, "after");
+        s.end().done();
+        return s.toByteArray();
+    }
+
+    /**
+     * Capture a document, checking that the capture doesn't change what's read.
+     */
+    private static void capture(final byte[] document) throws IOException {
+        final InputStream in = WbxmlCapture.capture(new ByteArrayInputStream(document),
+                "ItemOperations", 14.0, WbxmlCapture.NO_MAILBOX_TYPE);
+        assertTrue(Arrays.equals(document, readFully(in)));
+    }
+
+    private static byte[] readFully(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1000];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] makeBytes(final int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+    public void testTruncatesOpaqueValues() throws IOException {
+        capture(makeDocument(makeBytes(WbxmlCapture.MAX_OPAQUE_LENGTH * 5)));
+
+        final File[] files = WbxmlCapture.listCaptureFiles(mTestDirectory);
+        assertEquals(1, files.length);
+        final byte[] captured =
+                readFully(WbxmlCapture.readCapture(files[0]).getInputStream());
+        assertTrue(Arrays.equals(makeDocument(makeBytes(WbxmlCapture.MAX_OPAQUE_LENGTH)),
+                captured));
+    }
+
+    public void testKeepsShortOpaqueValues() throws IOException {
+        final byte[] document = makeDocument(makeBytes(10));
+        capture(document);
+
+        final File[] files = WbxmlCapture.listCaptureFiles(mTestDirectory);
+        assertEquals(1, files.length);
+        assertTrue(Arrays.equals(document,
+                readFully(WbxmlCapture.readCapture(files[0]).getInputStream())));
+    }
+
+    public void testDropsCapturesItCantRead() throws IOException {
+        // A processing instruction, which EAS doesn't use
+        capture(new byte[] { 0x03, 0x01, 0x6A, 0x00, 0x45, 0x43, 0x01 });
+        assertEquals(0, WbxmlCapture.listCaptureFiles(mTestDirectory).length);
+    }
+
+    public void testPrunesOldestCaptures() throws IOException {
+        final byte[] document = makeDocument(makeBytes(10));
+        final ArrayList<String> names = new ArrayList<String>();
+        for (int i = 0; i < WbxmlCapture.MAX_CAPTURE_FILES + 5; i++) {
+            capture(document);
+            final File[] files = WbxmlCapture.listCaptureFiles(mTestDirectory);
+            names.add(files[files.length - 1].getName());
+        }
+
+        final File[] files = WbxmlCapture.listCaptureFiles(mTestDirectory);
+        assertEquals(WbxmlCapture.MAX_CAPTURE_FILES, files.length);
+        for (int i = 0; i < files.length; i++) {
+            assertEquals(names.get(i + 5), files[i].getName());
+        }
+    }
+}